@@ -0,0 +1,39 @@
+/*
+ * JMH benchmarks for the metrigo library.
+ *
+ * Run with `./gradlew :benchmarks:jmh`. A subset can be selected with
+ * `-PjmhIncludes=<regex>`. Results are written as JSON to
+ * build/results/jmh/results.json so that runs can be compared.
+ */
+
+plugins {
+    java
+    id("me.champeau.jmh") version "0.7.1"
+}
+
+repositories {
+    // Use Maven Central for resolving dependencies.
+    mavenCentral()
+}
+
+dependencies {
+    jmh(project(":lib"))
+}
+
+// Apply a specific Java toolchain to ease working on different environments.
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(11))
+    }
+}
+
+jmh {
+    jmhVersion.set("1.36")
+    // Report allocation rates (gc.alloc.rate.norm is bytes per operation).
+    profilers.set(listOf("gc"))
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+    if (project.hasProperty("jmhIncludes")) {
+        includes.set(listOf(project.property("jmhIncludes").toString()))
+    }
+}
@@ -0,0 +1,122 @@
+package org.metrigo;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for reading a series as a block against reading it record by record.
+ * 
+ * Both read the same series of ten second snapshots of a steady service,
+ * with about a thousand samples each, and add the whole series up. Scores
+ * are per record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MetrigoSeriesBlockBenchmark {
+    /**
+     * The number of records in the series.
+     */
+    private static final int RECORDS = 1000;
+
+    private ByteBuffer block;
+    private ByteBuffer records;
+    private int [] recordLengths;
+    private MetrigoSeriesBlock.Builder builder;
+    private MetrigoStatistics [] series;
+    private long [] counts;
+    private long [] totals;
+    private MetrigoStatisticsMerger merger;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(11);
+        MetrigoBinLayout layout = MetrigoBinLayout.DEFAULT;
+        this.builder = new MetrigoSeriesBlock.Builder(layout, RECORDS);
+        this.series = new MetrigoStatistics[RECORDS];
+        this.recordLengths = new int[RECORDS];
+        int recordBytes = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            long [] binCounts = new long[layout.getBinCount()];
+            long [] binTotals = new long[layout.getBinCount()];
+            for (int s = 0; s < 1000; s++) {
+                long value = (long) Math.exp(7.5 + 0.6 * random.nextGaussian());
+                binCounts[layout.getBin(value)] += 1;
+                binTotals[layout.getBin(value)] += value;
+            }
+            this.series[i] = new MetrigoStatistics(layout, binCounts, binTotals);
+            this.builder.add(i * 10000L, this.series[i]);
+            this.recordLengths[i] = MetrigoStatistics.encodedLength(this.series[i]);
+            recordBytes += this.recordLengths[i];
+        }
+        this.block = ByteBuffer.wrap(this.builder.toBytes());
+        this.records = ByteBuffer.allocate(recordBytes);
+        for (MetrigoStatistics stats : this.series) {
+            MetrigoStatistics.encode(stats, this.records);
+        }
+        this.counts = new long[layout.getBinCount()];
+        this.totals = new long[layout.getBinCount()];
+        this.merger = new MetrigoStatisticsMerger();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long decodeBlockAndMerge() {
+        this.block.clear();
+        MetrigoSeriesBlock decoded = MetrigoSeriesBlock.decode(this.block, this.block.remaining());
+        return decoded.mergeInto(Long.MIN_VALUE, Long.MAX_VALUE, this.counts, this.totals);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long decodeRecordsAndMerge() {
+        this.records.clear();
+        this.merger.reset();
+        for (int length : this.recordLengths) {
+            this.merger.addEncoded(this.records, length);
+        }
+        return this.merger.getSampleCount();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public byte [] encodeBlock() {
+        this.builder.reset();
+        for (int i = 0; i < RECORDS; i++) {
+            this.builder.add(i * 10000L, this.series[i]);
+        }
+        return this.builder.toBytes();
+    }
+}
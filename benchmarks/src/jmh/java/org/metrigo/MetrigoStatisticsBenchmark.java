@@ -0,0 +1,145 @@
+package org.metrigo;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for statistics serialization and merging.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MetrigoStatisticsBenchmark {
+    /**
+     * How many of the bins are populated (spread over the range).
+     */
+    @Param({ "1", "6", "19" })
+    public int populatedBins;
+
+    /**
+     * The number of statistics merged by the merge benchmarks.
+     */
+    private static final int FAN_IN = 10000;
+
+    private MetrigoStatistics stats;
+    private byte [] bytes;
+    private ByteBuffer direct;
+    private List<MetrigoStatistics> fanIn;
+    private MetrigoStatisticsMerger merger;
+
+    @Setup
+    public void setup() {
+        int size = MetrigoStatistics.LOWER_BOUNDS.size();
+        List<Long> counts = new ArrayList<>();
+        List<Long> totals = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            boolean populated = (i * this.populatedBins) % size < this.populatedBins;
+            long count = populated ? 1000L + i : 0L;
+            counts.add(Long.valueOf(count));
+            totals.add(Long.valueOf(count * Math.max(1L, MetrigoStatistics.LOWER_BOUNDS.get(i).longValue())));
+        }
+        this.stats = new MetrigoStatistics(counts, totals);
+        this.bytes = MetrigoStatistics.toBytes(this.stats);
+        this.direct = ByteBuffer.allocateDirect(4096);
+        this.fanIn = new ArrayList<>();
+        for (int i = 0; i < FAN_IN; i++) {
+            this.fanIn.add(this.stats);
+        }
+        this.merger = new MetrigoStatisticsMerger();
+    }
+
+    @Benchmark
+    public byte [] toBytes() {
+        return MetrigoStatistics.toBytes(this.stats);
+    }
+
+    @Benchmark
+    public MetrigoStatistics fromBytes() {
+        return MetrigoStatistics.fromBytes(this.bytes);
+    }
+
+    /**
+     * Encode into a reused direct buffer, as a network send path would.
+     * 
+     * @return the encoded length.
+     */
+    @Benchmark
+    public int encodeDirect() {
+        this.direct.clear();
+        MetrigoStatistics.encode(this.stats, this.direct);
+        return this.direct.position();
+    }
+
+    /**
+     * Decode from a direct buffer.
+     * 
+     * @return the statistics.
+     */
+    @Benchmark
+    public MetrigoStatistics decodeDirect() {
+        this.direct.clear();
+        MetrigoStatistics.encode(this.stats, this.direct);
+        this.direct.flip();
+        return MetrigoStatistics.decode(this.direct);
+    }
+
+    /**
+     * Merge many statistics into a reused merger, as an aggregation tier would.
+     * 
+     * @return the number of merged samples.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FAN_IN)
+    public long mergeInPlace() {
+        this.merger.reset();
+        for (MetrigoStatistics value : this.fanIn) {
+            this.merger.add(value);
+        }
+        return this.merger.getSampleCount();
+    }
+
+    /**
+     * Merge many statistics with a fork-join reduction.
+     * 
+     * @return the merged statistics.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FAN_IN)
+    public MetrigoStatistics parallelMerge() {
+        return MetrigoStatistics.parallelMerge(this.fanIn);
+    }
+}
@@ -0,0 +1,148 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.client.MetrigoMetricAccumulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the accumulator hot path.
+ * 
+ * The addSample benchmarks share one accumulator between all benchmark
+ * threads, so they measure the cost of recording into a hot, contended metric.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetrigoAccumulatorBenchmark {
+    /**
+     * The accumulator under test, shared by all threads.
+     */
+    @State(Scope.Benchmark)
+    public static class SharedAccumulator {
+        @Param({ "synchronized", "striped", "offheap", "sampled" })
+        public String implementation;
+
+        public MetrigoMetricAccumulator accumulator;
+
+        @Setup
+        public void setup() {
+            if ("striped".equals(this.implementation)) {
+                this.accumulator = new MetrigoStripedMetricsAccumulatorImpl("benchmark");
+            } else if ("sampled".equals(this.implementation)) {
+                this.accumulator = new MetrigoSampledMetricsAccumulatorImpl("benchmark", 64);
+            } else if ("offheap".equals(this.implementation)) {
+                this.accumulator = new MetrigoOffHeapStore(1).newAccumulator("benchmark");
+            } else {
+                this.accumulator = new MetrigoMetricsAccumulatorImpl("benchmark");
+            }
+        }
+    }
+
+    /**
+     * Per thread position in the sample values.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position;
+
+        public long next() {
+            this.position = (this.position + 1) & (MetrigoSampleValues.SIZE - 1);
+            return MetrigoSampleValues.VALUES[this.position];
+        }
+    }
+
+    @Benchmark
+    public int getBin(Cursor cursor) {
+        return MetrigoMetricsAccumulatorImpl.getBin(cursor.next());
+    }
+
+    @Benchmark
+    public int getBinHighResolution(Cursor cursor) {
+        return MetrigoBinLayout.HIGH_RESOLUTION.getBin(cursor.next());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addSample01Thread(SharedAccumulator shared, Cursor cursor) {
+        shared.accumulator.addSample(cursor.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addSample04Threads(SharedAccumulator shared, Cursor cursor) {
+        shared.accumulator.addSample(cursor.next());
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void addSample16Threads(SharedAccumulator shared, Cursor cursor) {
+        shared.accumulator.addSample(cursor.next());
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void addSample64Threads(SharedAccumulator shared, Cursor cursor) {
+        shared.accumulator.addSample(cursor.next());
+    }
+
+    /**
+     * Swap out an empty accumulator.
+     * 
+     * @param shared the accumulator.
+     * @return the (null) statistics.
+     */
+    @Benchmark
+    @Threads(1)
+    public MetrigoStatistics sampleStatsEmpty(SharedAccumulator shared) {
+        return shared.accumulator.sampleStats();
+    }
+
+    /**
+     * Swap out an accumulator with every bin populated.
+     * 
+     * This includes the cost of one sample per bin.
+     * 
+     * @param shared the accumulator.
+     * @return the statistics.
+     */
+    @Benchmark
+    @Threads(1)
+    public MetrigoStatistics sampleStatsFull(SharedAccumulator shared) {
+        for (Long lowerBound : MetrigoStatistics.LOWER_BOUNDS) {
+            shared.accumulator.addSample(lowerBound.longValue());
+        }
+        return shared.accumulator.sampleStats();
+    }
+}
@@ -0,0 +1,47 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Random;
+
+/**
+ * A fixed set of sample values for benchmarks.
+ * 
+ * The values are spread logarithmically over the whole bin range so that the
+ * bin lookup can not be predicted by the branch predictor.
+ */
+public final class MetrigoSampleValues {
+    /**
+     * The number of values (a power of 2 so that we can mask the index).
+     */
+    public static final int SIZE = 4096;
+
+    /**
+     * The values in microseconds.
+     */
+    public static final long [] VALUES = new long[SIZE];
+
+    static {
+        Random random = new Random(0x6d657472L);
+        for (int i = 0; i < SIZE; i++) {
+            VALUES[i] = (long) Math.pow(10.0, random.nextDouble() * 10.0);
+        }
+    }
+
+    private MetrigoSampleValues() {
+    }
+}
@@ -0,0 +1,101 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.metrigo.client.MetrigoMetricAccumulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for a full sample: start, finish and close.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MetrigoSamplerBenchmark {
+    private final MetrigoMetricAccumulator success = new MetrigoMetricsAccumulatorImpl("success");
+    private final MetrigoMetricAccumulator error = new MetrigoMetricsAccumulatorImpl("error");
+    private final MetrigoCoarseClock coarseClock = new MetrigoCoarseClock(100);
+
+    @TearDown
+    public void tearDown() {
+        this.coarseClock.close();
+    }
+
+    @Benchmark
+    public void singleThreadStartFinish() {
+        try (MetrigoSampleSingleThreadImpl sample = new MetrigoSampleSingleThreadImpl()) {
+            sample.setErrorStats(this.error);
+            sample.start();
+            sample.finish(this.success);
+        }
+    }
+
+    /**
+     * The reusable sampler, which should show no allocation (gc.alloc.rate.norm).
+     */
+    @Benchmark
+    public void threadLocalStartFinish() {
+        try (MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire()) {
+            sample.setErrorStats(this.error);
+            sample.start();
+            sample.finish(this.success);
+        }
+    }
+
+    /**
+     * The reusable sampler on the coarse clock, which skips both reads of the system clock.
+     */
+    @Benchmark
+    public void threadLocalCoarseClock() {
+        try (MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire(this.coarseClock)) {
+            sample.setErrorStats(this.error);
+            sample.start();
+            sample.finish(this.success);
+        }
+    }
+
+    /**
+     * Nested reusable samplers.
+     */
+    @Benchmark
+    public void threadLocalNested() {
+        try (MetrigoSampleThreadLocalImpl outer = MetrigoSampleThreadLocalImpl.acquire()) {
+            outer.setErrorStats(this.error);
+            outer.start();
+            try (MetrigoSampleThreadLocalImpl inner = MetrigoSampleThreadLocalImpl.acquire()) {
+                inner.setErrorStats(this.error);
+                inner.start();
+                inner.finish(this.success);
+            }
+            outer.finish(this.success);
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package org.metrigo.collector;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A server that receives framed snapshots from many hosts.
+ * 
+ * Frames are read as written by the client's NIO send adapter: a four byte
+ * big endian length, then a snapshot as encoded by
+ * {@link org.metrigo.MetrigoSnapshot#encode}. Each connection reads into its
+ * own buffer, and every complete frame is merged straight from that buffer
+ * by a {@link MetrigoIntervalAggregator}, so nothing is copied or decoded
+ * on the way. The buffer starts small and grows to fit the largest frame.
+ * 
+ * The server is meant to be run on one or more threads. Each thread that
+ * calls {@link #run()} has its own selector, takes its share of the new
+ * connections, and reads them with non-blocking NIO. Between reads, one of
+ * the threads flushes the intervals that are complete, once the flush delay
+ * has passed, so the sink is written once per metric and interval however
+ * many hosts there are.
+ * 
+ * A frame that cannot be parsed is skipped and counted. A length that is not
+ * positive or is over the maximum frame size means the stream cannot be
+ * trusted, so the connection is closed and counted as a bad frame too.
+ * 
+ * Call {@link #shutdown()} to stop the server. The running threads close
+ * their connections, and then everything that has been merged is flushed.
+ * Frames that have not been read by then are lost.
+ */
+public class MetrigoCollectorServer implements Runnable {
+    /**
+     * The number of bytes before each frame, holding its length.
+     */
+    public static final int FRAME_HEADER = Integer.BYTES;
+
+    private static final int INITIAL_BUFFER_BYTES = 16 * 1024;
+    private static final long SELECT_MILLIS = 100;
+
+    private final ServerSocketChannel server;
+    private final MetrigoIntervalAggregator aggregator;
+    private final int maxFrameBytes;
+    private final long flushDelayMillis;
+    private final Set<Selector> selectors = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger runners = new AtomicInteger();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong badFrames = new AtomicLong();
+    private volatile boolean running;
+    private volatile IOException lastFailure;
+
+    /**
+     * A builder for a server.
+     */
+    public static class Builder {
+        private final InetSocketAddress address;
+        private final MetrigoIntervalAggregator aggregator;
+        private int maxFrameBytes = 1024 * 1024;
+        private long flushDelayMillis;
+
+        /**
+         * Constructor.
+         * 
+         * The largest frame defaults to 1MB, and the flush delay to one interval.
+         * 
+         * @param address the address to listen on, port 0 picks a free port.
+         * @param aggregator the aggregator to merge frames into.
+         */
+        public Builder(@Nonnull InetSocketAddress address, @Nonnull MetrigoIntervalAggregator aggregator) {
+            this.address = address;
+            this.aggregator = aggregator;
+            this.flushDelayMillis = aggregator.getIntervalMillis();
+        }
+
+        /**
+         * Set the size of the largest frame that will be accepted.
+         * 
+         * @param value the size in bytes, not counting the length before it.
+         * @return this builder.
+         */
+        public Builder maxFrameBytes(int value) {
+            if (value < 1024) {
+                throw new IllegalArgumentException("Largest frame must be at least 1024 bytes but got " + value);
+            }
+            this.maxFrameBytes = value;
+            return this;
+        }
+
+        /**
+         * Set how long to wait after an interval ends before flushing it.
+         * 
+         * This gives the hosts time to report. Anything for the interval that
+         * arrives after it has been flushed is dropped.
+         * 
+         * @param value the delay in milliseconds.
+         * @return this builder.
+         */
+        public Builder flushDelayMillis(long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Flush delay must not be negative but got " + value);
+            }
+            this.flushDelayMillis = value;
+            return this;
+        }
+
+        /**
+         * Open the server, listening on the address.
+         * 
+         * @return the server.
+         * @throws IOException if the address cannot be listened on.
+         */
+        public MetrigoCollectorServer open() throws IOException {
+            return new MetrigoCollectorServer(this);
+        }
+    }
+
+    /**
+     * The state of one connection.
+     */
+    private static final class Connection {
+        private ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         * 
+         * @param capacity the starting size of the buffer.
+         */
+        Connection(int capacity) {
+            this.buffer = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param builder the builder with the settings.
+     * @throws IOException if the address cannot be listened on.
+     */
+    private MetrigoCollectorServer(Builder builder) throws IOException {
+        this.aggregator = builder.aggregator;
+        this.maxFrameBytes = builder.maxFrameBytes;
+        this.flushDelayMillis = builder.flushDelayMillis;
+        this.server = ServerSocketChannel.open();
+        try {
+            this.server.configureBlocking(false);
+            this.server.bind(builder.address);
+        } catch (IOException e) {
+            this.server.close();
+            throw e;
+        }
+        this.running = true;
+    }
+
+    /**
+     * Get the address the server is listening on.
+     * 
+     * @return the address.
+     * @throws IOException if the server is closed.
+     */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) this.server.getLocalAddress();
+    }
+
+    /**
+     * Get the aggregator that frames are merged into.
+     * 
+     * @return the aggregator.
+     */
+    public MetrigoIntervalAggregator getAggregator() {
+        return this.aggregator;
+    }
+
+    /**
+     * Get the number of connections that have been accepted.
+     * 
+     * @return the number of connections.
+     */
+    public long getConnectionCount() {
+        return this.connections.get();
+    }
+
+    /**
+     * Get the number of frames that have been merged.
+     * 
+     * @return the number of frames.
+     */
+    public long getFrameCount() {
+        return this.frames.get();
+    }
+
+    /**
+     * Get the number of frames that were skipped, or made their connection close, because they were bad.
+     * 
+     * @return the number of frames.
+     */
+    public long getBadFrameCount() {
+        return this.badFrames.get();
+    }
+
+    /**
+     * Get the last failure to flush, or to run the selector.
+     * 
+     * @return the failure, or null if nothing has failed.
+     */
+    @CheckForNull
+    public IOException getLastFailure() {
+        return this.lastFailure;
+    }
+
+    /**
+     * Stop the server.
+     * 
+     * This stops listening straight away. The threads running the server
+     * return soon after, and the last of them flushes everything.
+     */
+    public void shutdown() {
+        this.running = false;
+        try {
+            this.server.close();
+        } catch (IOException e) {
+            this.lastFailure = e;
+        }
+        for (Selector selector : this.selectors) {
+            selector.wakeup();
+        }
+        if (this.runners.get() == 0) {
+            flushAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        Selector selector;
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            this.lastFailure = e;
+            return;
+        }
+        this.runners.incrementAndGet();
+        this.selectors.add(selector);
+        try {
+            this.server.register(selector, SelectionKey.OP_ACCEPT);
+            while (this.running) {
+                selector.select(SELECT_MILLIS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(selector);
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+                flush(System.currentTimeMillis() - this.flushDelayMillis);
+            }
+        } catch (ClosedChannelException e) {
+            // Shut down before we started.
+        } catch (IOException e) {
+            this.lastFailure = e;
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.channel() instanceof SocketChannel) {
+                    close(key);
+                }
+            }
+            this.selectors.remove(selector);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                this.lastFailure = e;
+            }
+            if (this.runners.decrementAndGet() == 0 && !this.running) {
+                flushAll();
+            }
+        }
+    }
+
+    /**
+     * Accept a new connection, if another thread has not taken it.
+     * 
+     * @param selector the selector to read the connection with.
+     */
+    private void accept(Selector selector) {
+        SocketChannel channel = null;
+        try {
+            channel = this.server.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ,
+                             new Connection(Math.min(INITIAL_BUFFER_BYTES, FRAME_HEADER + this.maxFrameBytes)));
+            this.connections.incrementAndGet();
+        } catch (IOException e) {
+            // The connection failed before we could use it, the host will connect again.
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ce) {
+                    // Nothing more to do.
+                }
+            }
+        }
+    }
+
+    /**
+     * Read what is available on a connection and merge every complete frame.
+     * 
+     * @param key the key for the connection.
+     */
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        int read;
+        try {
+            read = channel.read(connection.buffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0 || !mergeFrames(connection)) {
+            close(key);
+        }
+    }
+
+    /**
+     * Merge every complete frame in a connection's buffer.
+     * 
+     * What is left of a partial frame is moved to the start of the buffer,
+     * and the buffer is grown if the frame will not fit.
+     * 
+     * @param connection the connection.
+     * @return false if a frame had a bad length, so the connection must be closed.
+     */
+    private boolean mergeFrames(Connection connection) {
+        ByteBuffer buffer = connection.buffer;
+        buffer.flip();
+        int needed = 0;
+        while (buffer.remaining() >= FRAME_HEADER) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            if (length <= 0 || length > this.maxFrameBytes) {
+                this.badFrames.incrementAndGet();
+                return false;
+            }
+            if (buffer.remaining() < FRAME_HEADER + length) {
+                needed = FRAME_HEADER + length;
+                break;
+            }
+            int end = start + FRAME_HEADER + length;
+            int limit = buffer.limit();
+            buffer.limit(end);
+            buffer.position(start + FRAME_HEADER);
+            try {
+                this.aggregator.add(buffer);
+                this.frames.incrementAndGet();
+            } catch (IllegalArgumentException e) {
+                this.badFrames.incrementAndGet();
+            }
+            buffer.limit(limit);
+            buffer.position(end);
+        }
+        buffer.compact();
+        if (needed > buffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(Math.max(needed, 2 * buffer.capacity()),
+                                                            FRAME_HEADER + this.maxFrameBytes));
+            buffer.flip();
+            grown.put(buffer);
+            connection.buffer = grown;
+        }
+        return true;
+    }
+
+    /**
+     * Close a connection.
+     * 
+     * @param key the key for the connection.
+     */
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Nothing more to do.
+        }
+    }
+
+    /**
+     * Flush the complete intervals, unless another thread is already flushing.
+     * 
+     * @param timeMillis the time to flush up to.
+     */
+    private void flush(long timeMillis) {
+        if (!this.flushing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.aggregator.flush(timeMillis);
+        } catch (IOException e) {
+            this.lastFailure = e;
+        } finally {
+            this.flushing.set(false);
+        }
+    }
+
+    /**
+     * Flush everything, waiting for any flush that is running.
+     */
+    private void flushAll() {
+        try {
+            this.aggregator.flush(Long.MAX_VALUE);
+        } catch (IOException e) {
+            this.lastFailure = e;
+        }
+    }
+}
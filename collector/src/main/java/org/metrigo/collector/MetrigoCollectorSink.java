@@ -0,0 +1,41 @@
+package org.metrigo.collector;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoSnapshot;
+
+/**
+ * Where the collector writes merged snapshots.
+ * 
+ * Each snapshot holds every metric for one interval, stamped with the start
+ * of the interval, and snapshots are written in time order. A store can be
+ * used directly as a sink with {@code store::append}.
+ */
+@FunctionalInterface
+public interface MetrigoCollectorSink {
+    /**
+     * Write a merged snapshot.
+     * 
+     * @param snapshot the snapshot.
+     * @throws IOException if the snapshot could not be written.
+     */
+    void write(@Nonnull MetrigoSnapshot snapshot) throws IOException;
+}
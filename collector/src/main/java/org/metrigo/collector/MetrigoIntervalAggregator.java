@@ -0,0 +1,334 @@
+package org.metrigo.collector;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.MetrigoStatisticsMerger;
+
+/**
+ * Merges encoded snapshots from many hosts per metric and interval.
+ * 
+ * Each metric in a frame is merged straight from the frame's buffer into the
+ * merger for its name and interval, without decoding the name or statistics.
+ * The mergers are spread over stripes by a hash of the name, and each stripe
+ * has its own lock, so frames from different hosts merge in parallel.
+ * 
+ * Times are rounded down to the start of their interval, so hosts that
+ * report at slightly different times within an interval are merged
+ * together. {@link #flush(long)} writes every interval that is complete to
+ * the sink, as one snapshot per interval in time order. Once an interval has
+ * been flushed, later metrics for it are dropped and counted as late, so the
+ * sink never sees a time go backwards.
+ * 
+ * Merging is thread safe, and so is flushing, though only one flush runs at
+ * a time. Mergers are reused after a flush, so in the steady state merging
+ * only allocates for a metric that is new in an interval.
+ */
+public class MetrigoIntervalAggregator implements MetrigoSnapshot.EncodedVisitor {
+    private final long intervalMillis;
+    private final MetrigoCollectorSink sink;
+    private final Stripe [] stripes;
+    private final int mask;
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    // Every interval that starts before this has been flushed.
+    private volatile long watermark = Long.MIN_VALUE;
+
+    /**
+     * The mergers for the metrics whose names hash to one stripe.
+     */
+    private static final class Stripe {
+        private final TreeMap<Long, Map<NameKey, MetrigoStatisticsMerger>> intervals = new TreeMap<>();
+        private final ArrayDeque<MetrigoStatisticsMerger> free = new ArrayDeque<>();
+        private final NameKey probe = new NameKey();
+    }
+
+    /**
+     * A metric name as UTF-8 bytes.
+     * 
+     * The stripe's probe key points into the frame being merged, so that a
+     * name can be looked up without copying it. The keys in the maps have
+     * their own copy of the bytes, and the decoded name.
+     */
+    static final class NameKey {
+        private ByteBuffer source;
+        private int start;
+        private int length;
+        private int hash;
+        private String name;
+
+        /**
+         * Point the key at a name.
+         * 
+         * @param source the buffer holding the name.
+         * @param start the position of the name.
+         * @param length the length of the name in bytes.
+         * @param hash the hash of the name, from {@link #hash(ByteBuffer, int, int)}.
+         */
+        void set(ByteBuffer source, int start, int length, int hash) {
+            this.source = source;
+            this.start = start;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        /**
+         * Make a key that owns a copy of the name.
+         * 
+         * @return the copy.
+         */
+        NameKey copy() {
+            byte [] bytes = new byte[this.length];
+            for (int i = 0; i < this.length; i++) {
+                bytes[i] = this.source.get(this.start + i);
+            }
+            NameKey result = new NameKey();
+            result.set(ByteBuffer.wrap(bytes), 0, this.length, this.hash);
+            result.name = new String(bytes, StandardCharsets.UTF_8);
+            return result;
+        }
+
+        /**
+         * Hash a name in place.
+         * 
+         * @param source the buffer holding the name.
+         * @param start the position of the name.
+         * @param length the length of the name in bytes.
+         * @return the hash.
+         */
+        static int hash(ByteBuffer source, int start, int length) {
+            int result = 1;
+            for (int i = 0; i < length; i++) {
+                result = 31 * result + source.get(start + i);
+            }
+            return result;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof NameKey)) {
+                return false;
+            }
+            NameKey other = (NameKey) obj;
+            if (this.hash != other.hash || this.length != other.length) {
+                return false;
+            }
+            for (int i = 0; i < this.length; i++) {
+                if (this.source.get(this.start + i) != other.source.get(other.start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Constructor.
+     * 
+     * The number of stripes defaults to four times the number of available processors.
+     * 
+     * @param intervalMillis the length of the intervals to merge over.
+     * @param sink where to write the merged snapshots.
+     */
+    public MetrigoIntervalAggregator(long intervalMillis, @Nonnull MetrigoCollectorSink sink) {
+        this(intervalMillis, sink, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param intervalMillis the length of the intervals to merge over.
+     * @param sink where to write the merged snapshots.
+     * @param stripes the number of stripes to spread metrics over (rounded up to a power of 2).
+     */
+    public MetrigoIntervalAggregator(long intervalMillis, @Nonnull MetrigoCollectorSink sink, int stripes) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive but got " + intervalMillis);
+        }
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Stripes must be positive but got " + stripes);
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.intervalMillis = intervalMillis;
+        this.sink = sink;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Get the length of the intervals.
+     * 
+     * @return the length in milliseconds.
+     */
+    public long getIntervalMillis() {
+        return this.intervalMillis;
+    }
+
+    /**
+     * Get the number of metrics that have been merged.
+     * 
+     * @return the number of metrics, counted once for each frame they were in.
+     */
+    public long getMergedCount() {
+        return this.merged.get();
+    }
+
+    /**
+     * Get the number of metrics that were dropped because their interval had already been flushed.
+     * 
+     * @return the number of metrics.
+     */
+    public long getLateCount() {
+        return this.late.get();
+    }
+
+    /**
+     * Get the number of snapshots that have been written to the sink.
+     * 
+     * @return the number of snapshots.
+     */
+    public long getFlushedCount() {
+        return this.flushed.get();
+    }
+
+    /**
+     * Merge every metric in an encoded frame.
+     * 
+     * @param source the buffer holding the frame, the position is advanced past it.
+     * @throws IllegalArgumentException if the frame is bad, in which case the
+     *      metrics before the bad part may already have been merged.
+     */
+    public void add(ByteBuffer source) {
+        MetrigoSnapshot.visitEncoded(source, this);
+    }
+
+    @Override
+    public void visit(long timeMillis, ByteBuffer source, int nameStart, int nameLength, int statsLength) {
+        long interval = Math.floorDiv(timeMillis, this.intervalMillis) * this.intervalMillis;
+        int hash = NameKey.hash(source, nameStart, nameLength);
+        Stripe stripe = this.stripes[(hash ^ (hash >>> 16)) & this.mask];
+        synchronized (stripe) {
+            // Checked under the lock, as a flush moves the watermark before it empties the stripes.
+            if (interval < this.watermark) {
+                this.late.incrementAndGet();
+                return;
+            }
+            Map<NameKey, MetrigoStatisticsMerger> metrics = stripe.intervals.get(interval);
+            if (metrics == null) {
+                metrics = new HashMap<>();
+                stripe.intervals.put(interval, metrics);
+            }
+            stripe.probe.set(source, nameStart, nameLength, hash);
+            MetrigoStatisticsMerger merger = metrics.get(stripe.probe);
+            if (merger == null) {
+                merger = stripe.free.isEmpty() ? new MetrigoStatisticsMerger() : stripe.free.pop();
+                metrics.put(stripe.probe.copy(), merger);
+            }
+            stripe.probe.set(null, 0, 0, 0);
+            merger.addEncoded(source, statsLength);
+        }
+        this.merged.incrementAndGet();
+    }
+
+    /**
+     * Write every interval that ended at or before a time to the sink.
+     * 
+     * If the sink fails, the rest of the intervals are still written, and
+     * then the first failure is thrown. The metrics in the snapshots that
+     * failed are lost.
+     * 
+     * @param timeMillis the time, usually the current time less a delay
+     *                   that gives the hosts time to report.
+     * @return the number of snapshots written.
+     * @throws IOException if the sink failed.
+     */
+    public synchronized int flush(long timeMillis) throws IOException {
+        long complete = Math.floorDiv(timeMillis, this.intervalMillis) * this.intervalMillis;
+        if (timeMillis == Long.MAX_VALUE) {
+            complete = Long.MAX_VALUE;
+        }
+        if (complete <= this.watermark) {
+            return 0;
+        }
+        this.watermark = complete;
+
+        TreeMap<Long, MetrigoSnapshot.Builder> snapshots = new TreeMap<>();
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                while (!stripe.intervals.isEmpty() && stripe.intervals.firstKey() < complete) {
+                    Map.Entry<Long, Map<NameKey, MetrigoStatisticsMerger>> entry = stripe.intervals.pollFirstEntry();
+                    MetrigoSnapshot.Builder builder = snapshots.get(entry.getKey());
+                    if (builder == null) {
+                        builder = new MetrigoSnapshot.Builder(entry.getKey(), entry.getValue().size());
+                        snapshots.put(entry.getKey(), builder);
+                    }
+                    for (Map.Entry<NameKey, MetrigoStatisticsMerger> metric : entry.getValue().entrySet()) {
+                        builder.add(metric.getKey().name, metric.getValue().toStatistics());
+                        metric.getValue().reset();
+                        stripe.free.push(metric.getValue());
+                    }
+                }
+            }
+        }
+
+        IOException failure = null;
+        int written = 0;
+        for (MetrigoSnapshot.Builder builder : snapshots.values()) {
+            try {
+                this.sink.write(builder.build());
+                written += 1;
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        this.flushed.addAndGet(written);
+        if (failure != null) {
+            throw failure;
+        }
+        return written;
+    }
+}
@@ -0,0 +1,210 @@
+package org.metrigo.collector;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.metrigo.collector.MetrigoIntervalAggregatorTest.frame;
+import static org.metrigo.collector.MetrigoIntervalAggregatorTest.stats;
+import static org.metrigo.collector.MetrigoIntervalAggregatorTest.toMap;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.client.impl.MetrigoNioSendAdapterImpl;
+
+public class MetrigoCollectorServerTest {
+    private static final InetSocketAddress LOOPBACK = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    @Test
+    public void testBadArguments() {
+        MetrigoIntervalAggregator aggregator = new MetrigoIntervalAggregator(1000, snapshot -> { });
+        MetrigoCollectorServer.Builder builder = new MetrigoCollectorServer.Builder(LOOPBACK, aggregator);
+        assertThrows(IllegalArgumentException.class, () -> builder.maxFrameBytes(10));
+        assertThrows(IllegalArgumentException.class, () -> builder.flushDelayMillis(-1));
+    }
+
+    @Test
+    public void testMergesAcrossHosts() throws Exception {
+        final int hosts = 3;
+        final int metrics = 50;
+        final long interval = 3600000;
+        List<MetrigoSnapshot> sink = new CopyOnWriteArrayList<>();
+        MetrigoCollectorServer underTest = new MetrigoCollectorServer.Builder(
+            LOOPBACK, new MetrigoIntervalAggregator(interval, sink::add)).open();
+        List<Thread> runners = start(underTest, 2);
+
+        long start = Math.floorDiv(System.currentTimeMillis(), interval) * interval;
+        List<MetrigoNioSendAdapterImpl> clients = new ArrayList<>();
+        for (int h = 0; h < hosts; h++) {
+            MetrigoNioSendAdapterImpl client = new MetrigoNioSendAdapterImpl(underTest.getLocalAddress());
+            Date time = new Date(start + h);
+            for (int i = 0; i < metrics; i++) {
+                client.sendMetrics("metric" + i, time, stats(i + 1));
+            }
+            client.sendMetrics("host" + h, time, stats(1));
+            Thread thread = new Thread(client);
+            thread.start();
+            runners.add(thread);
+            clients.add(client);
+        }
+        waitFor(() -> underTest.getAggregator().getMergedCount() == hosts * (metrics + 1));
+        assertEquals(hosts, underTest.getConnectionCount());
+        // Nothing is flushed until the interval and the delay have passed.
+        assertTrue(sink.isEmpty());
+
+        for (MetrigoNioSendAdapterImpl client : clients) {
+            client.shutdown();
+        }
+        underTest.shutdown();
+        for (Thread thread : runners) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+
+        assertEquals(1, sink.size());
+        assertEquals(start, sink.get(0).getTimeMillis());
+        Map<String, MetrigoStatistics> merged = toMap(sink.get(0));
+        assertEquals(metrics + hosts, merged.size());
+        for (int i = 0; i < metrics; i++) {
+            assertEquals(stats(hosts * (i + 1)), merged.get("metric" + i));
+        }
+        assertEquals(stats(1), merged.get("host2"));
+        assertEquals(0, underTest.getBadFrameCount());
+    }
+
+    @Test
+    public void testFlushesWhenDue() throws Exception {
+        List<MetrigoSnapshot> sink = new CopyOnWriteArrayList<>();
+        MetrigoCollectorServer underTest = new MetrigoCollectorServer.Builder(
+            LOOPBACK, new MetrigoIntervalAggregator(1000, sink::add)).flushDelayMillis(0).open();
+        List<Thread> runners = start(underTest, 1);
+        try (SocketChannel channel = SocketChannel.open(underTest.getLocalAddress())) {
+            // Far enough ahead that the interval cannot end before the frame is read.
+            write(channel, frame(System.currentTimeMillis() + 500, "metric", stats(1)));
+            waitFor(() -> sink.size() == 1);
+            assertEquals(stats(1), sink.get(0).getStatistics(0));
+        }
+        stop(underTest, runners);
+    }
+
+    @Test
+    public void testPartialAndLargeFrames() throws Exception {
+        List<MetrigoSnapshot> sink = new CopyOnWriteArrayList<>();
+        MetrigoCollectorServer underTest = new MetrigoCollectorServer.Builder(
+            LOOPBACK, new MetrigoIntervalAggregator(1000, sink::add)).open();
+        List<Thread> runners = start(underTest, 1);
+
+        MetrigoSnapshot.Builder builder = new MetrigoSnapshot.Builder(System.currentTimeMillis(), 1000);
+        for (int i = 0; i < 1000; i++) {
+            builder.add("a fairly long metric name number " + i, stats(1));
+        }
+        byte [] large = MetrigoSnapshot.toBytes(builder.build());
+        assertTrue(large.length > 16 * 1024);
+        ByteBuffer framed = ByteBuffer.allocate(2 * (4 + large.length));
+        framed.putInt(large.length).put(large).putInt(large.length).put(large).flip();
+
+        try (SocketChannel channel = SocketChannel.open(underTest.getLocalAddress())) {
+            // Dribble the frames out so that they arrive in pieces.
+            while (framed.hasRemaining()) {
+                ByteBuffer piece = framed.duplicate();
+                piece.limit(Math.min(framed.limit(), framed.position() + 3001));
+                framed.position(piece.limit());
+                channel.write(piece);
+                Thread.sleep(1);
+            }
+            waitFor(() -> underTest.getFrameCount() == 2);
+        }
+        stop(underTest, runners);
+
+        assertEquals(1, sink.size());
+        assertEquals(1000, sink.get(0).size());
+        assertEquals(stats(2), sink.get(0).getStatistics(999));
+    }
+
+    @Test
+    public void testBadFrames() throws Exception {
+        List<MetrigoSnapshot> sink = new CopyOnWriteArrayList<>();
+        MetrigoCollectorServer underTest = new MetrigoCollectorServer.Builder(
+            LOOPBACK, new MetrigoIntervalAggregator(1000, sink::add)).open();
+        List<Thread> runners = start(underTest, 1);
+        try (SocketChannel channel = SocketChannel.open(underTest.getLocalAddress())) {
+            // A frame that cannot be parsed is skipped.
+            write(channel, ByteBuffer.wrap(new byte [] { 7, 1, 2 }));
+            write(channel, frame(System.currentTimeMillis(), "metric", stats(1)));
+            waitFor(() -> underTest.getFrameCount() == 1);
+            assertEquals(1, underTest.getBadFrameCount());
+
+            // A bad length closes the connection.
+            channel.write(ByteBuffer.allocate(4).putInt(0, -1));
+            waitFor(() -> underTest.getBadFrameCount() == 2);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        }
+        stop(underTest, runners);
+        assertEquals(stats(1), sink.get(0).getStatistics(0));
+    }
+
+    private static List<Thread> start(MetrigoCollectorServer server, int threads) {
+        List<Thread> result = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(server);
+            thread.start();
+            result.add(thread);
+        }
+        return result;
+    }
+
+    private static void stop(MetrigoCollectorServer server, List<Thread> runners) throws InterruptedException {
+        server.shutdown();
+        for (Thread thread : runners) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer frame) throws Exception {
+        ByteBuffer framed = ByteBuffer.allocate(4 + frame.remaining());
+        framed.putInt(frame.remaining()).put(frame).flip();
+        while (framed.hasRemaining()) {
+            channel.write(framed);
+        }
+    }
+
+    private interface Condition {
+        boolean test();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.test()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(1);
+        }
+    }
+}
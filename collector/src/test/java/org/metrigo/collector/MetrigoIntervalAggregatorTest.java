@@ -0,0 +1,217 @@
+package org.metrigo.collector;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.MetrigoStatistics;
+
+public class MetrigoIntervalAggregatorTest {
+    @Test
+    public void testBadArguments() {
+        List<MetrigoSnapshot> sink = new ArrayList<>();
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoIntervalAggregator(0, sink::add));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoIntervalAggregator(1000, sink::add, 0));
+    }
+
+    @Test
+    public void testMergesAcrossHosts() throws Exception {
+        List<MetrigoSnapshot> sink = new ArrayList<>();
+        MetrigoIntervalAggregator underTest = new MetrigoIntervalAggregator(60000, sink::add, 4);
+        // Three hosts report a little apart in the same interval.
+        underTest.add(frame(60100, "shared", stats(1), "first", stats(2)));
+        underTest.add(frame(61000, "shared", stats(3)));
+        underTest.add(frame(119999, "shared", stats(5), "third", stats(7)));
+        assertEquals(5, underTest.getMergedCount());
+
+        // Not complete yet.
+        assertEquals(0, underTest.flush(119999));
+        assertEquals(1, underTest.flush(120000));
+        assertEquals(1, sink.size());
+        assertEquals(1, underTest.getFlushedCount());
+        MetrigoSnapshot snapshot = sink.get(0);
+        assertEquals(60000, snapshot.getTimeMillis());
+        Map<String, MetrigoStatistics> metrics = toMap(snapshot);
+        assertEquals(3, metrics.size());
+        assertEquals(stats(9), metrics.get("shared"));
+        assertEquals(stats(2), metrics.get("first"));
+        assertEquals(stats(7), metrics.get("third"));
+
+        // Nothing is left to flush.
+        assertEquals(0, underTest.flush(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testIntervalsInOrder() throws Exception {
+        List<MetrigoSnapshot> sink = new ArrayList<>();
+        MetrigoIntervalAggregator underTest = new MetrigoIntervalAggregator(1000, sink::add, 2);
+        for (int i = 0; i < 100; i++) {
+            // Out of order across intervals, and spread over the stripes.
+            underTest.add(frame(((i * 7) % 10) * 1000 + 500, "metric" + (i % 13), stats(1)));
+        }
+        assertEquals(5, underTest.flush(5000));
+        assertEquals(5, underTest.flush(Long.MAX_VALUE));
+        assertEquals(10, sink.size());
+        long samples = 0;
+        for (int i = 0; i < sink.size(); i++) {
+            assertEquals(i * 1000L, sink.get(i).getTimeMillis());
+            for (MetrigoStatistics stats : toMap(sink.get(i)).values()) {
+                samples += stats.getCount(3);
+            }
+        }
+        assertEquals(100, samples);
+    }
+
+    @Test
+    public void testLate() throws Exception {
+        List<MetrigoSnapshot> sink = new ArrayList<>();
+        MetrigoIntervalAggregator underTest = new MetrigoIntervalAggregator(1000, sink::add);
+        underTest.add(frame(1500, "metric", stats(1)));
+        assertEquals(1, underTest.flush(2000));
+
+        underTest.add(frame(1999, "metric", stats(1), "other", stats(1)));
+        underTest.add(frame(2000, "metric", stats(4)));
+        assertEquals(2, underTest.getLateCount());
+        assertEquals(1, underTest.flush(3000));
+        assertEquals(2, sink.size());
+        assertEquals(2000, sink.get(1).getTimeMillis());
+        assertEquals(stats(4), sink.get(1).getStatistics(0));
+    }
+
+    @Test
+    public void testSinkFailure() throws Exception {
+        List<MetrigoSnapshot> written = new ArrayList<>();
+        IOException failure = new IOException("full");
+        MetrigoIntervalAggregator underTest = new MetrigoIntervalAggregator(1000, snapshot -> {
+            if (snapshot.getTimeMillis() == 0) {
+                throw failure;
+            }
+            written.add(snapshot);
+        });
+        underTest.add(frame(0, "metric", stats(1)));
+        underTest.add(frame(1000, "metric", stats(2)));
+        IOException thrown = assertThrows(IOException.class, () -> underTest.flush(2000));
+        assertSame(failure, thrown);
+        // The next interval is still written.
+        assertEquals(1, written.size());
+        assertEquals(1000, written.get(0).getTimeMillis());
+        assertEquals(1, underTest.getFlushedCount());
+    }
+
+    @Test
+    public void testMixedLayouts() throws Exception {
+        List<MetrigoSnapshot> sink = new ArrayList<>();
+        MetrigoIntervalAggregator underTest = new MetrigoIntervalAggregator(1000, sink::add);
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        counts[layout.getBin(40)] = 2;
+        totals[layout.getBin(40)] = 80;
+        underTest.add(frame(0, "metric", new MetrigoStatistics(layout, counts, totals)));
+        underTest.add(frame(0, "metric", stats(1)));
+        underTest.flush(1000);
+
+        MetrigoStatistics merged = sink.get(0).getStatistics(0);
+        assertEquals(MetrigoBinLayout.DEFAULT, merged.getLayout());
+        long count = 0;
+        long total = 0;
+        for (int i = 0; i < MetrigoBinLayout.DEFAULT.getBinCount(); i++) {
+            count += merged.getCount(i);
+            total += merged.getTotal(i);
+        }
+        assertEquals(3, count);
+        assertEquals(130, total);
+    }
+
+    @Test
+    public void testBadFrame() {
+        List<MetrigoSnapshot> sink = new ArrayList<>();
+        MetrigoIntervalAggregator underTest = new MetrigoIntervalAggregator(1000, sink::add);
+        assertThrows(IllegalArgumentException.class, () -> underTest.add(ByteBuffer.wrap(new byte [] { 7, 1, 2 })));
+        assertEquals(0, underTest.getMergedCount());
+    }
+
+    @Test
+    public void testConcurrentHosts() throws Exception {
+        final int hosts = 8;
+        final int framesPerHost = 2000;
+        List<MetrigoSnapshot> sink = new ArrayList<>();
+        MetrigoIntervalAggregator underTest = new MetrigoIntervalAggregator(10000, sink::add, 4);
+        List<Thread> threads = new ArrayList<>();
+        for (int h = 0; h < hosts; h++) {
+            final int host = h;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < framesPerHost; i++) {
+                    underTest.add(frame(i * 10L + host, "metric" + (i % 50), stats(1), "host" + host, stats(1)));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        underTest.flush(Long.MAX_VALUE);
+
+        // Every host reported into the same two intervals.
+        assertEquals(2, sink.size());
+        long samples = 0;
+        for (MetrigoSnapshot snapshot : sink) {
+            assertEquals(50 + hosts, snapshot.size());
+            for (int i = 0; i < snapshot.size(); i++) {
+                samples += snapshot.getStatistics(i).getCount(3);
+            }
+        }
+        assertEquals(2L * hosts * framesPerHost, samples);
+    }
+
+    static ByteBuffer frame(long timeMillis, Object... namesAndStats) {
+        MetrigoSnapshot.Builder builder = new MetrigoSnapshot.Builder(timeMillis, namesAndStats.length / 2);
+        for (int i = 0; i < namesAndStats.length; i += 2) {
+            builder.add((String) namesAndStats[i], (MetrigoStatistics) namesAndStats[i + 1]);
+        }
+        return ByteBuffer.wrap(MetrigoSnapshot.toBytes(builder.build()));
+    }
+
+    static MetrigoStatistics stats(long count) {
+        long [] counts = new long[MetrigoStatistics.LOWER_BOUNDS.size()];
+        long [] totals = new long[counts.length];
+        counts[3] = count;
+        totals[3] = count * 50;
+        return new MetrigoStatistics(counts, totals);
+    }
+
+    static Map<String, MetrigoStatistics> toMap(MetrigoSnapshot snapshot) {
+        Map<String, MetrigoStatistics> result = new HashMap<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            result.put(snapshot.getName(i), snapshot.getStatistics(i));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,320 @@
+package org.metrigo;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The layout of the bins in a set of statistics.
+ * 
+ * The default layout is the half decade bins in {@link MetrigoStatistics#LOWER_BOUNDS}.
+ * That keeps the statistics small, but is too coarse for some uses, such as
+ * alerting on a service level objective. The log-linear layout (in the style
+ * of HDR histograms) splits each power of two into {@code 2^subBucketBits}
+ * equal sub-buckets, so the width of a bin is at most {@code 2^-subBucketBits}
+ * of its lower bound. Values below {@code 2^(subBucketBits + 1)} each get their
+ * own bin, and values at or above {@code 2^maxBits} all go in the last bin.
+ * 
+ * Either way, finding the bin for a value takes a constant number of steps.
+ * 
+ * Layouts are immutable, and log-linear layouts are shared, so layouts can
+ * usually be compared by identity.
+ */
+public final class MetrigoBinLayout {
+    /**
+     * The largest number of bins a layout may have, so that bin indexes fit in
+     * a byte with some values left over to mark extensions to the encoding.
+     */
+    public static final int MAX_BIN_COUNT = 254;
+
+    /**
+     * The byte that starts the encoded layout. Bin indexes never reach it.
+     */
+    static final int MARKER = 0xff;
+
+    private static final int KIND_LOG_LINEAR = 1;
+
+    private static final ConcurrentMap<Integer, MetrigoBinLayout> LOG_LINEAR = new ConcurrentHashMap<>();
+
+    /**
+     * The default half decade layout.
+     */
+    public static final MetrigoBinLayout DEFAULT = new MetrigoBinLayout(
+            MetrigoStatistics.LOWER_BOUNDS.stream().mapToLong(Long::longValue).toArray());
+
+    /**
+     * A high resolution layout with four sub-buckets per power of two (bins at
+     * most 25% wide) up to about twelve days.
+     */
+    public static final MetrigoBinLayout HIGH_RESOLUTION = logLinear(2, 40);
+
+    private final long [] lowerBounds;
+    private final int subBucketBits;
+    private final int maxBits;
+    private final long maxValue;
+
+    /**
+     * The bin for the smallest value of each bit length, less one if the
+     * bit length does not cross a bin boundary. Only used by the default layout.
+     */
+    private final int [] binForBits;
+
+    /**
+     * The bin boundary crossed within each bit length. If there is no
+     * boundary, this is the smallest value with that bit length, so that the
+     * comparison always adds one. Only used by the default layout.
+     */
+    private final long [] boundaryForBits;
+
+    /**
+     * Constructor for a layout with explicit bounds, where any range of values
+     * with the same bit length crosses at most one bin boundary.
+     * 
+     * @param lowerBounds the lower bound of each bin.
+     */
+    private MetrigoBinLayout(long [] lowerBounds) {
+        this.lowerBounds = lowerBounds;
+        this.subBucketBits = -1;
+        this.maxBits = Long.SIZE - 1;
+        this.maxValue = Long.MAX_VALUE;
+        this.binForBits = new int[Long.SIZE];
+        this.boundaryForBits = new long[Long.SIZE];
+
+        for (int bits = 0; bits < Long.SIZE; bits++) {
+            long smallest = (bits == 0) ? 0L : (1L << (bits - 1));
+            long largest = (bits == 0) ? 0L : (smallest - 1) + smallest;
+            int lowBin = getBinBySearch(smallest);
+            int highBin = getBinBySearch(largest);
+            if (highBin - lowBin > 1) {
+                throw new IllegalStateException("Bit length " + bits + " crosses more than one bin boundary");
+            }
+            if (highBin > lowBin) {
+                this.binForBits[bits] = lowBin;
+                this.boundaryForBits[bits] = lowerBounds[highBin];
+            } else {
+                this.binForBits[bits] = lowBin - 1;
+                this.boundaryForBits[bits] = smallest;
+            }
+        }
+    }
+
+    /**
+     * Constructor for a log-linear layout.
+     * 
+     * @param subBucketBits the log base 2 of the number of sub-buckets for each power of two.
+     * @param maxBits the bit length above which all values share the last bin.
+     */
+    private MetrigoBinLayout(int subBucketBits, int maxBits) {
+        this.subBucketBits = subBucketBits;
+        this.maxBits = maxBits;
+        this.maxValue = (maxBits == Long.SIZE - 1) ? Long.MAX_VALUE : (1L << maxBits) - 1;
+        this.binForBits = null;
+        this.boundaryForBits = null;
+
+        int binCount = (maxBits - subBucketBits + 1) << subBucketBits;
+        this.lowerBounds = new long[binCount];
+        for (int bin = 0; bin < binCount; bin++) {
+            int shift = Math.max(0, (bin >> subBucketBits) - 1);
+            this.lowerBounds[bin] = (long) (bin - (shift << subBucketBits)) << shift;
+        }
+    }
+
+    /**
+     * Get a log-linear layout.
+     * 
+     * @param subBucketBits the log base 2 of the number of sub-buckets for each power of two.
+     * @param maxBits the bit length above which all values share the last bin.
+     * @return the layout.
+     */
+    public static MetrigoBinLayout logLinear(int subBucketBits, int maxBits) {
+        if (subBucketBits < 0 || subBucketBits > 6) {
+            throw new IllegalArgumentException("Sub-bucket bits must be between 0 and 6 but got " + subBucketBits);
+        }
+        if (maxBits <= subBucketBits || maxBits > Long.SIZE - 1) {
+            throw new IllegalArgumentException("Max bits must be between " + (subBucketBits + 1) + " and "
+                                               + (Long.SIZE - 1) + " but got " + maxBits);
+        }
+        int binCount = (maxBits - subBucketBits + 1) << subBucketBits;
+        if (binCount > MAX_BIN_COUNT) {
+            throw new IllegalArgumentException("Layout with sub-bucket bits " + subBucketBits + " and max bits "
+                                               + maxBits + " has " + binCount + " bins, but the most allowed is "
+                                               + MAX_BIN_COUNT);
+        }
+        return LOG_LINEAR.computeIfAbsent(Integer.valueOf((subBucketBits << 8) | maxBits),
+                                          k -> new MetrigoBinLayout(subBucketBits, maxBits));
+    }
+
+    /**
+     * Get the number of bins.
+     * 
+     * @return the number of bins.
+     */
+    public int getBinCount() {
+        return this.lowerBounds.length;
+    }
+
+    /**
+     * Get the lower bound of a bin.
+     * 
+     * @param bin the bin.
+     * @return the smallest value that goes in the bin.
+     */
+    public long getLowerBound(int bin) {
+        return this.lowerBounds[bin];
+    }
+
+    /**
+     * Check if this is the default layout.
+     * 
+     * @return true for the default layout.
+     */
+    public boolean isDefault() {
+        return this.subBucketBits < 0;
+    }
+
+    /**
+     * Get the bin number for a value.
+     * 
+     * For the default layout, we look up the bin for the bit length of the
+     * value, and add one if the value is at or above the boundary for that
+     * bit length. For log-linear layouts, the bin is the top
+     * {@code subBucketBits + 1} bits of the value, offset by how far they
+     * were shifted. Negative values go in bin 0.
+     * 
+     * @param value the value that we are binning.
+     * @return the bin number.
+     */
+    public int getBin(long value) {
+        long positive = value & ~(value >> 63);
+        if (this.binForBits != null) {
+            int bits = Long.SIZE - Long.numberOfLeadingZeros(positive);
+            return this.binForBits[bits] + (int) ((this.boundaryForBits[bits] - 1 - positive) >>> 63);
+        }
+        long clamped = Math.min(positive, this.maxValue);
+        int shift = Math.max(0, Long.SIZE - 1 - Long.numberOfLeadingZeros(clamped) - this.subBucketBits);
+        return (shift << this.subBucketBits) + (int) (clamped >>> shift);
+    }
+
+    /**
+     * Get the bin number for a value using a binary search over the bounds.
+     * 
+     * @param value the value that we are binning.
+     * @return the bin number.
+     */
+    private int getBinBySearch(long value) {
+        int lower = 0;
+        int higher = this.lowerBounds.length - 1;
+
+        do {
+            int guess = (higher + lower)/2;
+            if (value >= this.lowerBounds[guess]) {
+                lower = guess;
+            } else {
+                higher = guess;
+            }
+        } while (higher - lower > 1);
+        if (value >= this.lowerBounds[higher]) {
+            return higher;
+        } else {
+            return lower;
+        }
+    }
+
+    /**
+     * Get the number of bytes needed to encode this layout.
+     * 
+     * @return the number of bytes, which is zero for the default layout.
+     */
+    int encodedLength() {
+        return isDefault() ? 0 : 4;
+    }
+
+    /**
+     * Encode this layout at the buffer position.
+     * 
+     * The default layout is not written at all, so statistics using it are
+     * encoded exactly as they always were. Other layouts are written as the
+     * marker byte, the kind of layout, and its parameters.
+     * 
+     * @param target the buffer to write to.
+     */
+    void encode(ByteBuffer target) {
+        if (!isDefault()) {
+            target.put((byte) MARKER);
+            target.put((byte) KIND_LOG_LINEAR);
+            target.put((byte) this.subBucketBits);
+            target.put((byte) this.maxBits);
+        }
+    }
+
+    /**
+     * Decode a layout at the buffer position.
+     * 
+     * If the next byte is not the marker, nothing is read and the default
+     * layout is returned.
+     * 
+     * @param source the buffer to read from.
+     * @param start the start of the record, error positions are relative to this.
+     * @param end the end of the record.
+     * @return the layout.
+     */
+    static MetrigoBinLayout decode(ByteBuffer source, int start, int end) {
+        int at = source.position();
+        if (at >= end || (source.get(at) & 0xff) != MARKER) {
+            return DEFAULT;
+        }
+        if (at + 4 > end) {
+            throw new IllegalArgumentException("Failed to parse stream at position " + (at - start)
+                                               + " needed 4 bytes for the bin layout, but have " + (end - at));
+        }
+        int kind = source.get(at + 1) & 0xff;
+        if (kind != KIND_LOG_LINEAR) {
+            throw new IllegalArgumentException("Failed to parse stream at position " + (at - start)
+                                               + " unknown bin layout " + kind);
+        }
+        MetrigoBinLayout result = logLinear(source.get(at + 2) & 0xff, source.get(at + 3) & 0xff);
+        source.position(at + 4);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        if (isDefault()) {
+            return "MetrigoBinLayout [default]";
+        }
+        return "MetrigoBinLayout [subBucketBits=" + this.subBucketBits + ", maxBits=" + this.maxBits + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.subBucketBits + this.maxBits;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof MetrigoBinLayout)) {
+            return false;
+        }
+        MetrigoBinLayout other = (MetrigoBinLayout) obj;
+        return this.subBucketBits == other.subBucketBits && this.maxBits == other.maxBits;
+    }
+}
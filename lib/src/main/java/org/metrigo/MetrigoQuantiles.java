@@ -0,0 +1,227 @@
+package org.metrigo;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Quantile estimation over metrigo statistics.
+ * 
+ * The statistics only keep a count and a total for each bin, so quantiles
+ * have to be estimated. The estimate for a quantile works in two steps:
+ * 
+ * First, the rank of the quantile is found using the same definition as
+ * the R-1 (inverse of the empirical distribution) estimator, that is to say
+ * the {@code ceil(q * N)}th smallest sample, and the bin holding that rank
+ * is found by walking the cumulative counts.
+ * 
+ * Second, the samples in that bin are assumed to be spread evenly over an
+ * interval centred on the bin mean. The interval is as wide as it can be
+ * while staying inside the range the samples can actually have. That range
+ * is the bin bounds, narrowed using the total: with {@code c} samples in
+ * {@code [L, U)} adding up to {@code T}, no sample can be above
+ * {@code T - (c - 1) * L}, nor below {@code T - (c - 1) * (U - 1)}.
+ * A bin with a single sample is therefore exact, and the estimates for the
+ * samples in a bin always average to the bin mean.
+ * 
+ * Error bounds: the true quantile is always in the possible range of the
+ * bin that holds its rank, and so is the estimate, so the error is at most
+ * the distance from the estimate to the far end of that range. This is what
+ * {@link #errorBound(MetrigoStatistics, double)} returns. It is never more
+ * than the bin width. For the default layout that means that from 10
+ * microseconds up the estimate is within a factor of about 3.16 (half a
+ * decade) of the true quantile, and usually much closer. A finer
+ * {@link MetrigoBinLayout} tightens the bound in proportion.
+ * The last bin has no upper bound, so its range comes from the total alone.
+ * 
+ * Samples are assumed not to be negative. None of these methods allocate.
+ */
+public final class MetrigoQuantiles {
+    /**
+     * Not to be constructed.
+     */
+    private MetrigoQuantiles() {
+    }
+
+    /**
+     * Estimate a single quantile.
+     * 
+     * @param stats the statistics.
+     * @param quantile the quantile to estimate, between 0 and 1.
+     * @return the estimate, or NaN if there are no samples.
+     */
+    public static double quantile(MetrigoStatistics stats, double quantile) {
+        checkQuantile(quantile);
+        long sampleCount = stats.getSampleCount();
+        if (sampleCount == 0) {
+            return Double.NaN;
+        }
+        long rank = rank(quantile, sampleCount);
+        long seen = 0;
+        for (int bin = 0; bin < stats.getBinCount(); bin++) {
+            long count = stats.getCount(bin);
+            if (seen + count >= rank) {
+                return estimate(stats, bin, rank - seen);
+            }
+            seen += count;
+        }
+        throw new IllegalStateException("Rank " + rank + " not found in " + stats);
+    }
+
+    /**
+     * Estimate many quantiles in one pass over the bins.
+     * 
+     * @param stats the statistics.
+     * @param quantiles the quantiles to estimate, between 0 and 1, in ascending order.
+     * @param results where to put the estimates, at least as long as the quantiles.
+     *                Filled with NaN if there are no samples.
+     */
+    public static void quantiles(MetrigoStatistics stats, double [] quantiles, double [] results) {
+        if (results.length < quantiles.length) {
+            throw new IllegalArgumentException("Need room for " + quantiles.length + " results but have " + results.length);
+        }
+        for (int i = 0; i < quantiles.length; i++) {
+            checkQuantile(quantiles[i]);
+            if (i > 0 && quantiles[i] < quantiles[i - 1]) {
+                throw new IllegalArgumentException("Quantiles must be in ascending order but got " + quantiles[i]
+                                                   + " after " + quantiles[i - 1]);
+            }
+        }
+        long sampleCount = stats.getSampleCount();
+        if (sampleCount == 0) {
+            for (int i = 0; i < quantiles.length; i++) {
+                results[i] = Double.NaN;
+            }
+            return;
+        }
+
+        int next = 0;
+        long seen = 0;
+        for (int bin = 0; bin < stats.getBinCount() && next < quantiles.length; bin++) {
+            long count = stats.getCount(bin);
+            while (next < quantiles.length) {
+                long rank = rank(quantiles[next], sampleCount);
+                if (seen + count < rank) {
+                    break;
+                }
+                results[next] = estimate(stats, bin, rank - seen);
+                next += 1;
+            }
+            seen += count;
+        }
+    }
+
+    /**
+     * Get the largest possible error of a quantile estimate.
+     * 
+     * @param stats the statistics.
+     * @param quantile the quantile, between 0 and 1.
+     * @return the largest possible difference between {@link #quantile(MetrigoStatistics, double)}
+     *         and the true quantile, or NaN if there are no samples.
+     */
+    public static double errorBound(MetrigoStatistics stats, double quantile) {
+        checkQuantile(quantile);
+        long sampleCount = stats.getSampleCount();
+        if (sampleCount == 0) {
+            return Double.NaN;
+        }
+        long rank = rank(quantile, sampleCount);
+        long seen = 0;
+        for (int bin = 0; bin < stats.getBinCount(); bin++) {
+            long count = stats.getCount(bin);
+            if (seen + count >= rank) {
+                double estimate = estimate(stats, bin, rank - seen);
+                return Math.max(estimate - lowest(stats, bin), highest(stats, bin) - estimate);
+            }
+            seen += count;
+        }
+        throw new IllegalStateException("Rank " + rank + " not found in " + stats);
+    }
+
+    /**
+     * Check that a quantile is in range.
+     * 
+     * @param quantile the quantile.
+     */
+    private static void checkQuantile(double quantile) {
+        if (!(quantile >= 0.0 && quantile <= 1.0)) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1 but got " + quantile);
+        }
+    }
+
+    /**
+     * Get the 1 based rank for a quantile.
+     * 
+     * @param quantile the quantile.
+     * @param sampleCount the number of samples.
+     * @return the rank, between 1 and the number of samples.
+     */
+    static long rank(double quantile, long sampleCount) {
+        long rank = (long) Math.ceil(quantile * sampleCount);
+        return Math.max(1L, Math.min(sampleCount, rank));
+    }
+
+    /**
+     * Get the smallest value any sample in a bin can have.
+     * 
+     * @param stats the statistics.
+     * @param bin the bin, which must have samples.
+     * @return the smallest possible value.
+     */
+    private static double lowest(MetrigoStatistics stats, int bin) {
+        MetrigoBinLayout layout = stats.getLayout();
+        double lower = layout.getLowerBound(bin);
+        if (bin + 1 == layout.getBinCount()) {
+            return lower;
+        }
+        double others = (double) (stats.getCount(bin) - 1) * (layout.getLowerBound(bin + 1) - 1);
+        return Math.max(lower, stats.getTotal(bin) - others);
+    }
+
+    /**
+     * Get the largest value any sample in a bin can have.
+     * 
+     * @param stats the statistics.
+     * @param bin the bin, which must have samples.
+     * @return the largest possible value.
+     */
+    private static double highest(MetrigoStatistics stats, int bin) {
+        MetrigoBinLayout layout = stats.getLayout();
+        double others = (double) (stats.getCount(bin) - 1) * layout.getLowerBound(bin);
+        double highest = stats.getTotal(bin) - others;
+        if (bin + 1 == layout.getBinCount()) {
+            return highest;
+        }
+        return Math.min(layout.getLowerBound(bin + 1) - 1, highest);
+    }
+
+    /**
+     * Estimate the value of a sample within a bin.
+     * 
+     * @param stats the statistics.
+     * @param bin the bin.
+     * @param position the 1 based position of the sample within the bin.
+     * @return the estimate.
+     */
+    private static double estimate(MetrigoStatistics stats, int bin, long position) {
+        long count = stats.getCount(bin);
+        double mean = (double) stats.getTotal(bin) / count;
+        if (count == 1) {
+            return mean;
+        }
+        double halfWidth = Math.max(0.0, Math.min(mean - lowest(stats, bin), highest(stats, bin) - mean));
+        return mean + halfWidth * ((2.0 * position - 1.0) / count - 1.0);
+    }
+}
@@ -0,0 +1,597 @@
+package org.metrigo;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A block of statistics for one metric over time, stored by column.
+ * 
+ * Statistics that follow each other in a series tend to look alike: the
+ * same bins are used, and the counts and means change slowly. Rather than
+ * writing each record whole, a block writes each column on its own, as the
+ * differences from the value before:
+ * <pre>
+ *     byte      version
+ *     bytes     the bin layout, if it is not the default
+ *     varint    the number of records
+ *     varint    the first time, then the first gap, then the change in each gap after
+ *     bitmap    the bins used by any record
+ *     for each used bin:
+ *         byte      whether the bin is used by every record, and if not
+ *         bitmap    the records that use it
+ *         varint    the change in the count from the last record that used the bin
+ *         varint    the total less the count times the mean from the last record that used the bin
+ * </pre>
+ * Varints are zig-zag encoded, seven bits to a byte, with the lowest bits
+ * first. Bitmaps have the lowest bit first. The prediction of the total
+ * wraps around on overflow, in the same way when writing and reading, so
+ * any values round trip exactly.
+ * 
+ * Decoding fills flat arrays with one column after another for the used
+ * bins, so that summing a range of records is a simple loop over each
+ * column.
+ * 
+ * This is a standalone codec: the storage module does not write blocks yet,
+ * and still keeps one record per statistics. Blocks hold no sampling
+ * interval, so only statistics that were not sampled can be added.
+ */
+public final class MetrigoSeriesBlock {
+    public static final byte VERSION = 1;
+
+    private static final byte SPARSE = 0;
+    private static final byte DENSE = 1;
+
+    private final MetrigoBinLayout layout;
+    private final long [] times;
+    private final int [] bins;
+    // One column of length times.length for each used bin.
+    private final long [] counts;
+    private final long [] totals;
+
+    /**
+     * Constructor.
+     * 
+     * @param layout the layout of the bins.
+     * @param times the record times.
+     * @param bins the used bins.
+     * @param counts the count columns.
+     * @param totals the total columns.
+     */
+    private MetrigoSeriesBlock(MetrigoBinLayout layout, long [] times, int [] bins, long [] counts, long [] totals) {
+        this.layout = layout;
+        this.times = times;
+        this.bins = bins;
+        this.counts = counts;
+        this.totals = totals;
+    }
+
+    /**
+     * A builder that gathers records and encodes them as a block.
+     */
+    public static class Builder {
+        private final MetrigoBinLayout layout;
+        private final int maxRecords;
+        private final long [] times;
+        private final long [] counts;
+        private final long [] totals;
+        private int size;
+
+        /**
+         * Constructor.
+         * 
+         * @param layout the layout of the statistics in the block.
+         * @param maxRecords the largest number of records in the block.
+         */
+        public Builder(@Nonnull MetrigoBinLayout layout, int maxRecords) {
+            if (maxRecords < 1) {
+                throw new IllegalArgumentException("Block must hold at least one record but got " + maxRecords);
+            }
+            this.layout = layout;
+            this.maxRecords = maxRecords;
+            this.times = new long[maxRecords];
+            // Kept by bin, so that each column is together.
+            this.counts = new long[maxRecords * layout.getBinCount()];
+            this.totals = new long[maxRecords * layout.getBinCount()];
+        }
+
+        /**
+         * Add a record.
+         * 
+         * @param timeMillis the time of the record, no earlier than the record before.
+         * @param stats the statistics.
+         * @return false if the block is full, or the statistics have a different
+         *      layout or were sampled.
+         */
+        public boolean add(long timeMillis, @Nonnull MetrigoStatistics stats) {
+            if (this.size == this.maxRecords || !this.layout.equals(stats.getLayout())
+                || stats.getSamplingInterval() != 1) {
+                return false;
+            }
+            if (this.size > 0 && timeMillis < this.times[this.size - 1]) {
+                throw new IllegalArgumentException("Time " + timeMillis + " is before the last record at "
+                                                   + this.times[this.size - 1]);
+            }
+            this.times[this.size] = timeMillis;
+            for (int bin = 0; bin < stats.counts.length; bin++) {
+                this.counts[bin * this.maxRecords + this.size] = stats.counts[bin];
+                this.totals[bin * this.maxRecords + this.size] = stats.totals[bin];
+            }
+            this.size += 1;
+            return true;
+        }
+
+        /**
+         * Get the number of records added.
+         * 
+         * @return the number of records.
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * Clear the builder so that it can be reused.
+         */
+        public void reset() {
+            Arrays.fill(this.counts, 0L);
+            Arrays.fill(this.totals, 0L);
+            this.size = 0;
+        }
+
+        /**
+         * Encode the records added so far.
+         * 
+         * @return the encoded block.
+         */
+        public byte [] toBytes() {
+            int binCount = this.layout.getBinCount();
+            int n = this.size;
+            Output out = new Output(64 + n * 4);
+            out.put(VERSION);
+            ByteBuffer layoutBytes = ByteBuffer.allocate(this.layout.encodedLength());
+            this.layout.encode(layoutBytes);
+            out.put(layoutBytes.array());
+            out.putVarLong(n);
+
+            long previousTime = 0;
+            long previousGap = 0;
+            for (int i = 0; i < n; i++) {
+                long gap = this.times[i] - previousTime;
+                out.putVarLong((i == 0) ? this.times[i] : gap - previousGap);
+                previousGap = (i == 0) ? 0 : gap;
+                previousTime = this.times[i];
+            }
+
+            byte [] used = new byte[(binCount + 7) / 8];
+            byte [] present = new byte[(n + 7) / 8];
+            int usedAt = out.reserve(used.length);
+            for (int bin = 0; bin < binCount; bin++) {
+                int base = bin * this.maxRecords;
+                int occupied = 0;
+                Arrays.fill(present, (byte) 0);
+                for (int i = 0; i < n; i++) {
+                    if (this.counts[base + i] != 0) {
+                        present[i >>> 3] |= 1 << (i & 7);
+                        occupied += 1;
+                    }
+                }
+                if (occupied == 0) {
+                    continue;
+                }
+                used[bin >>> 3] |= 1 << (bin & 7);
+                if (occupied == n) {
+                    out.put(DENSE);
+                } else {
+                    out.put(SPARSE);
+                    out.put(present);
+                }
+                long previousCount = 0;
+                for (int i = 0; i < n; i++) {
+                    long count = this.counts[base + i];
+                    if (count != 0) {
+                        out.putVarLong(count - previousCount);
+                        previousCount = count;
+                    }
+                }
+                long mean = 0;
+                for (int i = 0; i < n; i++) {
+                    long count = this.counts[base + i];
+                    if (count != 0) {
+                        long total = this.totals[base + i];
+                        out.putVarLong(total - mean * count);
+                        mean = total / count;
+                    }
+                }
+            }
+            out.putAt(usedAt, used);
+            return out.toBytes();
+        }
+    }
+
+    /**
+     * A growable byte array.
+     */
+    private static final class Output {
+        private byte [] bytes;
+        private int size;
+
+        /**
+         * Constructor.
+         * 
+         * @param capacity the starting capacity.
+         */
+        Output(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        /**
+         * Make room for more bytes.
+         * 
+         * @param extra the number of bytes needed.
+         */
+        private void ensure(int extra) {
+            if (this.size + extra > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(this.size + extra, this.bytes.length * 2));
+            }
+        }
+
+        /**
+         * Write a byte.
+         * 
+         * @param value the byte.
+         */
+        void put(byte value) {
+            ensure(1);
+            this.bytes[this.size++] = value;
+        }
+
+        /**
+         * Write some bytes.
+         * 
+         * @param values the bytes.
+         */
+        void put(byte [] values) {
+            ensure(values.length);
+            System.arraycopy(values, 0, this.bytes, this.size, values.length);
+            this.size += values.length;
+        }
+
+        /**
+         * Leave room for bytes that are written later.
+         * 
+         * @param length the number of bytes.
+         * @return where the room starts.
+         */
+        int reserve(int length) {
+            ensure(length);
+            int at = this.size;
+            this.size += length;
+            return at;
+        }
+
+        /**
+         * Write bytes into room left earlier.
+         * 
+         * @param at where the room starts.
+         * @param values the bytes.
+         */
+        void putAt(int at, byte [] values) {
+            System.arraycopy(values, 0, this.bytes, at, values.length);
+        }
+
+        /**
+         * Write a zig-zag varint.
+         * 
+         * @param value the value.
+         */
+        void putVarLong(long value) {
+            ensure(10);
+            long zigZag = (value << 1) ^ (value >> 63);
+            while ((zigZag & ~0x7fL) != 0) {
+                this.bytes[this.size++] = (byte) ((zigZag & 0x7f) | 0x80);
+                zigZag >>>= 7;
+            }
+            this.bytes[this.size++] = (byte) zigZag;
+        }
+
+        /**
+         * Get the bytes written.
+         * 
+         * @return a copy of the bytes.
+         */
+        byte [] toBytes() {
+            return Arrays.copyOf(this.bytes, this.size);
+        }
+    }
+
+    /**
+     * Reads a block from a buffer, without moving the buffer's position.
+     */
+    private static final class Input {
+        private final ByteBuffer source;
+        private final int start;
+        private final int end;
+        private int at;
+
+        /**
+         * Constructor.
+         * 
+         * @param source the buffer.
+         * @param start the start of the block.
+         * @param end the end of the block.
+         */
+        Input(ByteBuffer source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.at = start;
+        }
+
+        /**
+         * Check that there are enough bytes left.
+         * 
+         * @param length the number of bytes needed.
+         * @param what what the bytes are for, for the error.
+         */
+        private void need(int length, String what) {
+            if (this.at + length > this.end) {
+                throw new IllegalArgumentException("Failed to parse stream at position " + (this.at - this.start)
+                                                   + " needed " + length + " bytes for " + what
+                                                   + ", but have " + (this.end - this.at));
+            }
+        }
+
+        /**
+         * Read a byte.
+         * 
+         * @param what what the byte is for, for the error.
+         * @return the byte.
+         */
+        byte get(String what) {
+            need(1, what);
+            return this.source.get(this.at++);
+        }
+
+        /**
+         * Read bytes.
+         * 
+         * @param target where to put the bytes, which is filled.
+         * @param what what the bytes are for, for the error.
+         */
+        void get(byte [] target, String what) {
+            need(target.length, what);
+            for (int i = 0; i < target.length; i++) {
+                target[i] = this.source.get(this.at++);
+            }
+        }
+
+        /**
+         * Read a zig-zag varint.
+         * 
+         * @return the value.
+         */
+        long getVarLong() {
+            long zigZag = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                byte b = get("a varint");
+                zigZag |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return (zigZag >>> 1) ^ -(zigZag & 1);
+                }
+            }
+            throw new IllegalArgumentException("Failed to parse stream at position " + (this.at - this.start)
+                                               + " varint is too long");
+        }
+    }
+
+    /**
+     * Decode a block.
+     * 
+     * @param source the buffer holding the block, the position is advanced to its end.
+     * @param length the length of the block.
+     * @return the block.
+     */
+    @Nonnull
+    public static MetrigoSeriesBlock decode(@Nonnull ByteBuffer source, int length) {
+        int start = source.position();
+        int end = start + length;
+        Input in = new Input(source, start, end);
+        byte version = in.get("the version");
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Failed to parse stream at position 0 unknown block version " + version);
+        }
+        source.position(in.at);
+        MetrigoBinLayout layout = MetrigoBinLayout.decode(source, start, end);
+        in.at = source.position();
+
+        long size = in.getVarLong();
+        if (size < 0 || size > end - in.at) {
+            // Every record takes at least a byte for its time.
+            throw new IllegalArgumentException("Failed to parse stream at position " + (in.at - start)
+                                               + " bad record count " + size);
+        }
+        int n = (int) size;
+        long [] times = new long[n];
+        long time = 0;
+        long gap = 0;
+        for (int i = 0; i < n; i++) {
+            long value = in.getVarLong();
+            if (i == 0) {
+                time = value;
+            } else {
+                gap += value;
+                time += gap;
+            }
+            times[i] = time;
+        }
+
+        byte [] used = new byte[(layout.getBinCount() + 7) / 8];
+        in.get(used, "the used bins");
+        int binCount = 0;
+        for (byte b : used) {
+            binCount += Integer.bitCount(b & 0xff);
+        }
+        int [] bins = new int[binCount];
+        long [] counts = new long[binCount * n];
+        long [] totals = new long[binCount * n];
+        byte [] present = new byte[(n + 7) / 8];
+        int column = 0;
+        for (int bin = 0; bin < layout.getBinCount(); bin++) {
+            if ((used[bin >>> 3] & (1 << (bin & 7))) == 0) {
+                continue;
+            }
+            bins[column] = bin;
+            int base = column * n;
+            byte mode = in.get("the bin mode");
+            if (mode == DENSE) {
+                Arrays.fill(present, (byte) 0xff);
+            } else if (mode == SPARSE) {
+                in.get(present, "the bin bitmap");
+            } else {
+                throw new IllegalArgumentException("Failed to parse stream at position " + (in.at - 1 - start)
+                                                   + " unknown bin mode " + mode);
+            }
+            long count = 0;
+            for (int i = 0; i < n; i++) {
+                if ((present[i >>> 3] & (1 << (i & 7))) != 0) {
+                    count += in.getVarLong();
+                    counts[base + i] = count;
+                }
+            }
+            long mean = 0;
+            for (int i = 0; i < n; i++) {
+                long binCountValue = counts[base + i];
+                if (binCountValue != 0) {
+                    long total = in.getVarLong() + mean * binCountValue;
+                    totals[base + i] = total;
+                    mean = total / binCountValue;
+                }
+            }
+            column += 1;
+        }
+        source.position(in.at);
+        return new MetrigoSeriesBlock(layout, times, bins, counts, totals);
+    }
+
+    /**
+     * Get the layout of the statistics.
+     * 
+     * @return the layout.
+     */
+    @Nonnull
+    public MetrigoBinLayout getLayout() {
+        return this.layout;
+    }
+
+    /**
+     * Get the number of records.
+     * 
+     * @return the number of records.
+     */
+    public int size() {
+        return this.times.length;
+    }
+
+    /**
+     * Get the time of a record.
+     * 
+     * @param index the index of the record.
+     * @return the time.
+     */
+    public long getTime(int index) {
+        return this.times[index];
+    }
+
+    /**
+     * Get the index of the first record at or after a time.
+     * 
+     * @param timeMillis the time.
+     * @return the index, which is the size if every record is earlier.
+     */
+    public int indexOf(long timeMillis) {
+        int low = 0;
+        int high = this.times.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.times[middle] < timeMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the statistics of a record.
+     * 
+     * @param index the index of the record.
+     * @return the statistics.
+     */
+    @Nonnull
+    public MetrigoStatistics getStatistics(int index) {
+        int n = this.times.length;
+        if (index < 0 || index >= n) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + n + " records");
+        }
+        long [] resultCounts = new long[this.layout.getBinCount()];
+        long [] resultTotals = new long[this.layout.getBinCount()];
+        for (int column = 0; column < this.bins.length; column++) {
+            resultCounts[this.bins[column]] = this.counts[column * n + index];
+            resultTotals[this.bins[column]] = this.totals[column * n + index];
+        }
+        return new MetrigoStatistics(this.layout, resultCounts, resultTotals);
+    }
+
+    /**
+     * Add up the records in a time range.
+     * 
+     * @param fromMillis the start of the range (inclusive).
+     * @param toMillis the end of the range (exclusive).
+     * @param resultCounts the counts to add to, one for each bin of the layout.
+     * @param resultTotals the totals to add to, one for each bin of the layout.
+     * @return the number of records added.
+     */
+    public int mergeInto(long fromMillis, long toMillis, long [] resultCounts, long [] resultTotals) {
+        if (resultCounts.length != this.layout.getBinCount() || resultTotals.length != this.layout.getBinCount()) {
+            throw new IllegalArgumentException("Need " + this.layout.getBinCount() + " bins but got "
+                                               + resultCounts.length + " and " + resultTotals.length);
+        }
+        int n = this.times.length;
+        int from = indexOf(fromMillis);
+        int to = indexOf(toMillis);
+        if (from >= to) {
+            return 0;
+        }
+        for (int column = 0; column < this.bins.length; column++) {
+            int base = column * n;
+            long count = 0;
+            long total = 0;
+            for (int i = base + from; i < base + to; i++) {
+                count += this.counts[i];
+                total += this.totals[i];
+            }
+            resultCounts[this.bins[column]] += count;
+            resultTotals[this.bins[column]] += total;
+        }
+        return to - from;
+    }
+}
@@ -0,0 +1,450 @@
+package org.metrigo;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A snapshot of a set of metrics for one interval.
+ * 
+ * This holds the time of the interval and the name and statistics for each
+ * metric that had samples. It is the unit that is handed to a batch send
+ * adapter, so that a whole flush can be sent as one message.
+ * 
+ * The snapshot can be encoded as a single frame. The frame is
+ * * a version byte.
+ * * the time in milliseconds since the epoch.
+ * * the number of metrics.
+ * * for each metric, the length of the UTF-8 name, the name, the length of
+ *   the statistics, and the statistics as encoded by {@link MetrigoStatistics#encode}.
+ * All numbers use the same length byte plus little endian bytes encoding as
+ * the statistics.
+ */
+public class MetrigoSnapshot {
+    /**
+     * The current frame version.
+     */
+    public static final byte FRAME_VERSION = 1;
+
+    private final long timeMillis;
+    private final String [] names;
+    private final MetrigoStatistics [] stats;
+
+    /**
+     * Construct a snapshot.
+     * 
+     * The arrays are not copied, the new instance takes ownership of them.
+     * 
+     * @param timeMillis the time of the interval in milliseconds since the epoch.
+     * @param names the metric names.
+     * @param stats the statistics for each name.
+     */
+    public MetrigoSnapshot(long timeMillis, @Nonnull String [] names, @Nonnull MetrigoStatistics [] stats) {
+        if (names.length != stats.length) {
+            throw new IllegalArgumentException("Have " + names.length + " names but " + stats.length + " statistics");
+        }
+        this.timeMillis = timeMillis;
+        this.names = names;
+        this.stats = stats;
+    }
+
+    /**
+     * Get the time of the interval.
+     * 
+     * @return the time in milliseconds since the epoch.
+     */
+    public long getTimeMillis() {
+        return this.timeMillis;
+    }
+
+    /**
+     * Get the number of metrics.
+     * 
+     * @return the number of metrics in the snapshot.
+     */
+    public int size() {
+        return this.names.length;
+    }
+
+    /**
+     * Get the name of a metric.
+     * 
+     * @param index the index of the metric.
+     * @return the name.
+     */
+    @Nonnull
+    public String getName(int index) {
+        return this.names[index];
+    }
+
+    /**
+     * Get the statistics for a metric.
+     * 
+     * @param index the index of the metric.
+     * @return the statistics.
+     */
+    @Nonnull
+    public MetrigoStatistics getStatistics(int index) {
+        return this.stats[index];
+    }
+
+    @Override
+    public String toString() {
+        return "MetrigoSnapshot [timeMillis=" + timeMillis + ", names=" + Arrays.toString(names)
+               + ", stats=" + Arrays.toString(stats) + "]";
+    }
+
+    /**
+     * Merge two snapshots.
+     * 
+     * Metrics that are in both are merged, the rest are copied. The result is
+     * stamped with the time of the newer snapshot.
+     * 
+     * @param older the older snapshot.
+     * @param newer the newer snapshot.
+     * @return the merged snapshot.
+     */
+    public static MetrigoSnapshot merge(MetrigoSnapshot older, MetrigoSnapshot newer) {
+        Map<String, Integer> positions = new HashMap<>();
+        Builder builder = new Builder(newer.timeMillis, older.size() + newer.size());
+        for (MetrigoSnapshot snapshot : List.of(older, newer)) {
+            for (int i = 0; i < snapshot.size(); i++) {
+                Integer position = positions.get(snapshot.names[i]);
+                if (position == null) {
+                    positions.put(snapshot.names[i], builder.size());
+                    builder.add(snapshot.names[i], snapshot.stats[i]);
+                } else {
+                    builder.stats[position] = MetrigoStatistics.merge(builder.stats[position], snapshot.stats[i]);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * A builder for a snapshot, used while gathering statistics.
+     */
+    public static class Builder {
+        private final long timeMillis;
+        private String [] names;
+        private MetrigoStatistics [] stats;
+        private int size;
+
+        /**
+         * Constructor.
+         * 
+         * @param timeMillis the time of the interval in milliseconds since the epoch.
+         * @param expectedSize the expected number of metrics.
+         */
+        public Builder(long timeMillis, int expectedSize) {
+            this.timeMillis = timeMillis;
+            this.names = new String[Math.max(1, expectedSize)];
+            this.stats = new MetrigoStatistics[this.names.length];
+        }
+
+        /**
+         * Add a metric.
+         * 
+         * @param name the name of the metric.
+         * @param value the statistics for the metric.
+         * @return this builder.
+         */
+        public Builder add(@Nonnull String name, @Nonnull MetrigoStatistics value) {
+            if (this.size == this.names.length) {
+                this.names = Arrays.copyOf(this.names, this.size * 2);
+                this.stats = Arrays.copyOf(this.stats, this.size * 2);
+            }
+            this.names[this.size] = name;
+            this.stats[this.size] = value;
+            this.size += 1;
+            return this;
+        }
+
+        /**
+         * Get the number of metrics added so far.
+         * 
+         * @return the number of metrics.
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * Build the snapshot.
+         * 
+         * @return the snapshot.
+         */
+        public MetrigoSnapshot build() {
+            if (this.size == this.names.length) {
+                return new MetrigoSnapshot(this.timeMillis, this.names, this.stats);
+            }
+            return new MetrigoSnapshot(this.timeMillis, Arrays.copyOf(this.names, this.size),
+                                       Arrays.copyOf(this.stats, this.size));
+        }
+    }
+
+    /**
+     * Get the exact number of bytes that {@link #encode(MetrigoSnapshot, ByteBuffer)} will write.
+     * 
+     * @param value the snapshot.
+     * @return the encoded length in bytes.
+     */
+    public static int encodedLength(MetrigoSnapshot value) {
+        int length = encodedHeaderLength(value.timeMillis, value.size());
+        for (int i = 0; i < value.size(); i++) {
+            length += encodedEntryLength(value.names[i], value.stats[i]);
+        }
+        return length;
+    }
+
+    /**
+     * Get the number of bytes a frame takes before its metrics.
+     * 
+     * The encoded length of a snapshot is this plus the
+     * {@link #encodedEntryLength(String, MetrigoStatistics)} of each metric.
+     * 
+     * @param timeMillis the time of the snapshot.
+     * @param size the number of metrics.
+     * @return the length in bytes.
+     */
+    public static int encodedHeaderLength(long timeMillis, int size) {
+        return 1 + 1 + MetrigoStatistics.encodedLongLength(timeMillis) + 1 + MetrigoStatistics.encodedLongLength(size);
+    }
+
+    /**
+     * Get the number of bytes one metric takes in a frame.
+     * 
+     * @param name the name of the metric.
+     * @param stats the statistics.
+     * @return the length in bytes.
+     */
+    public static int encodedEntryLength(String name, MetrigoStatistics stats) {
+        int nameLength = utf8Length(name);
+        int statsLength = MetrigoStatistics.encodedLength(stats);
+        return 1 + MetrigoStatistics.encodedLongLength(nameLength) + nameLength
+               + 1 + MetrigoStatistics.encodedLongLength(statsLength) + statsLength;
+    }
+
+    /**
+     * Get the length of a string in UTF-8, without encoding it.
+     * 
+     * This matches {@link String#getBytes(java.nio.charset.Charset)}, which
+     * writes a lone surrogate as a single replacement byte.
+     * 
+     * @param value the string.
+     * @return the length in bytes.
+     */
+    @VisibleForTesting
+    static int utf8Length(String value) {
+        int length = value.length();
+        int result = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                result += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                // Two chars become four bytes.
+                result += 2;
+                i += 1;
+            } else if (!Character.isSurrogate(c)) {
+                result += 2;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encode a snapshot as a single frame.
+     * 
+     * The frame is written at the current position, which is advanced past it.
+     * 
+     * @param value the snapshot.
+     * @param target the buffer to write into.
+     * @throws BufferOverflowException if the buffer does not have room, in which case nothing is written.
+     */
+    public static void encode(MetrigoSnapshot value, ByteBuffer target) {
+        if (target.remaining() < encodedLength(value)) {
+            throw new BufferOverflowException();
+        }
+        target.put(FRAME_VERSION);
+        MetrigoStatistics.encodeLong(value.timeMillis, target);
+        MetrigoStatistics.encodeLong(value.size(), target);
+        for (int i = 0; i < value.size(); i++) {
+            byte [] name = value.names[i].getBytes(StandardCharsets.UTF_8);
+            MetrigoStatistics.encodeLong(name.length, target);
+            target.put(name);
+            MetrigoStatistics.encodeLong(MetrigoStatistics.encodedLength(value.stats[i]), target);
+            MetrigoStatistics.encode(value.stats[i], target);
+        }
+    }
+
+    /**
+     * Decode a single frame.
+     * 
+     * @param source the buffer to read from, the position is advanced past the frame.
+     * @return the snapshot.
+     */
+    public static MetrigoSnapshot decode(ByteBuffer source) {
+        int start = source.position();
+        int end = source.limit();
+        if (start >= end) {
+            throw new IllegalArgumentException("Failed to parse frame, unexpected end of stream");
+        }
+        byte version = source.get();
+        if (version != FRAME_VERSION) {
+            throw new IllegalArgumentException("Failed to parse frame, unknown version " + version);
+        }
+        long timeMillis = MetrigoStatistics.decodeLong(source, start, end);
+        int size = decodeLength(source, start, end);
+        String [] names = new String[size];
+        MetrigoStatistics [] stats = new MetrigoStatistics[size];
+        for (int i = 0; i < size; i++) {
+            int nameLength = decodeLength(source, start, end);
+            names[i] = StandardCharsets.UTF_8.decode(slice(source, nameLength)).toString();
+            int statsLength = decodeLength(source, start, end);
+            stats[i] = MetrigoStatistics.decode(source, statsLength);
+        }
+        return new MetrigoSnapshot(timeMillis, names, stats);
+    }
+
+    /**
+     * A visitor for the metrics in an encoded frame.
+     */
+    public interface EncodedVisitor {
+        /**
+         * Visit one metric of a frame.
+         * 
+         * The source is positioned at the encoded statistics. The visitor may
+         * read them, for example with {@link MetrigoStatisticsMerger#addEncoded},
+         * and the source is moved past them afterwards whatever it does.
+         * 
+         * @param timeMillis the time of the frame.
+         * @param source the buffer holding the frame.
+         * @param nameStart the position of the UTF-8 name in the buffer.
+         * @param nameLength the length of the name in bytes.
+         * @param statsLength the length of the encoded statistics.
+         */
+        void visit(long timeMillis, ByteBuffer source, int nameStart, int nameLength, int statsLength);
+    }
+
+    /**
+     * Walk a single frame in place, without decoding the names or statistics.
+     * 
+     * The structure of the frame is checked as it is walked, so a bad frame
+     * may fail after some of its metrics have been visited.
+     * 
+     * @param source the buffer to read from, the position is advanced past the frame.
+     * @param visitor the visitor to call for each metric.
+     * @return the time of the frame.
+     */
+    public static long visitEncoded(ByteBuffer source, EncodedVisitor visitor) {
+        int start = source.position();
+        int end = source.limit();
+        if (start >= end) {
+            throw new IllegalArgumentException("Failed to parse frame, unexpected end of stream");
+        }
+        byte version = source.get();
+        if (version != FRAME_VERSION) {
+            throw new IllegalArgumentException("Failed to parse frame, unknown version " + version);
+        }
+        long timeMillis = MetrigoStatistics.decodeLong(source, start, end);
+        int size = decodeLength(source, start, end);
+        for (int i = 0; i < size; i++) {
+            int nameLength = decodeLength(source, start, end);
+            int nameStart = source.position();
+            source.position(nameStart + nameLength);
+            int statsLength = decodeLength(source, start, end);
+            int statsEnd = source.position() + statsLength;
+            visitor.visit(timeMillis, source, nameStart, nameLength, statsLength);
+            source.limit(end);
+            source.position(statsEnd);
+        }
+        return timeMillis;
+    }
+
+    /**
+     * Decode a length, checking that it fits in the rest of the stream.
+     * 
+     * @param source the buffer to read from.
+     * @param start the start of the frame.
+     * @param end the end of the stream.
+     * @return the length.
+     */
+    static int decodeLength(ByteBuffer source, int start, int end) {
+        int position = source.position() - start;
+        long length = MetrigoStatistics.decodeLong(source, start, end);
+        if (length < 0 || length > end - source.position()) {
+            throw new IllegalArgumentException("Failed to parse frame at position " + position
+                                               + " length " + length + " is larger than the stream");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Take a slice of the next bytes, advancing the source past them.
+     * 
+     * @param source the buffer.
+     * @param length the number of bytes.
+     * @return the slice.
+     */
+    private static ByteBuffer slice(ByteBuffer source, int length) {
+        ByteBuffer result = source.duplicate();
+        result.limit(source.position() + length);
+        source.position(source.position() + length);
+        return result;
+    }
+
+    /**
+     * Serialize a snapshot into a byte array.
+     * 
+     * @param value the snapshot.
+     * @return the frame.
+     */
+    public static byte [] toBytes(MetrigoSnapshot value) {
+        byte [] result = new byte[encodedLength(value)];
+        encode(value, ByteBuffer.wrap(result));
+        return result;
+    }
+
+    /**
+     * Deserialize a snapshot from a byte array.
+     * 
+     * @param bytes the frame.
+     * @return the snapshot.
+     */
+    public static MetrigoSnapshot fromBytes(byte [] bytes) {
+        ByteBuffer source = ByteBuffer.wrap(bytes);
+        MetrigoSnapshot result = decode(source);
+        if (source.hasRemaining()) {
+            throw new IllegalArgumentException("Failed to parse frame, " + source.remaining() + " trailing bytes");
+        }
+        return result;
+    }
+}
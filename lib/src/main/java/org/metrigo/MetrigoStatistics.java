@@ -16,10 +16,16 @@ package org.metrigo;
  * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
  */
 
-import java.util.ArrayList;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.Longs;
 
 /**
  * Metrigo Statistics class.
@@ -28,6 +34,13 @@ import com.google.common.annotations.VisibleForTesting;
  * set of counts and totals. The values are binned in a log scale so that we
  * can maintain both dynamic range and detail. It is expected that actual data
  * sets will be sparsely populated.
+ * 
+ * The bins default to the half decade {@link #LOWER_BOUNDS}, but statistics
+ * may use any {@link MetrigoBinLayout}, which is carried with them.
+ * 
+ * Statistics from a sampling accumulator only saw 1 in N of the values, and
+ * have their counts and totals scaled back up by N. The sampling interval N
+ * is carried with them too, so that it is known how coarse the estimate is.
  */
 public class MetrigoStatistics {
     /**
@@ -55,42 +68,190 @@ public class MetrigoStatistics {
         1000000000L         // 1000 seconds
     );
 
-    private List<Long> counts;
-    private List<Long> totals;
+    /**
+     * The byte that starts an encoded sampling interval. Bin indexes never reach it.
+     */
+    static final int SAMPLING_MARKER = 0xfe;
+
+    private final MetrigoBinLayout layout;
+    private final long samplingInterval;
+    // Package private so that mergers can read them without copies.
+    final long [] counts;
+    final long [] totals;
+    private List<Long> countsView;
+    private List<Long> totalsView;
 
     /**
      * Construct statistics with values.
      * 
+     * The values are copied into primitive arrays, so the lists are not kept
+     * and may be modified afterwards.
+     * 
      * @param counts the count of values in each bin.
      * @param totals the total for each bin.
      */
     public MetrigoStatistics(List<Long> counts, List<Long> totals) {
-        if (counts.size() != LOWER_BOUNDS.size()) {
-            throw new IllegalArgumentException("Length of counts is " + counts.size() + " but we expected "+ LOWER_BOUNDS.size());
+        this(toArray(counts, "counts"), toArray(totals, "totals"));
+    }
+
+    /**
+     * Construct statistics with values.
+     * 
+     * The arrays are not copied, the new instance takes ownership of them. The
+     * caller must not modify them afterwards.
+     * 
+     * @param counts the count of values in each bin.
+     * @param totals the total for each bin.
+     */
+    public MetrigoStatistics(long [] counts, long [] totals) {
+        this(MetrigoBinLayout.DEFAULT, counts, totals);
+    }
+
+    /**
+     * Construct statistics with values for a bin layout.
+     * 
+     * The arrays are not copied, the new instance takes ownership of them. The
+     * caller must not modify them afterwards.
+     * 
+     * @param layout the layout of the bins.
+     * @param counts the count of values in each bin.
+     * @param totals the total for each bin.
+     */
+    public MetrigoStatistics(MetrigoBinLayout layout, long [] counts, long [] totals) {
+        this(layout, counts, totals, 1L);
+    }
+
+    /**
+     * Construct statistics with values for a bin layout, that were sampled.
+     * 
+     * The arrays are not copied, the new instance takes ownership of them. The
+     * caller must not modify them afterwards.
+     * 
+     * @param layout the layout of the bins.
+     * @param counts the estimated count of values in each bin, already scaled up.
+     * @param totals the estimated total for each bin, already scaled up.
+     * @param samplingInterval the average number of values for each one that was recorded, 1 if all were.
+     */
+    public MetrigoStatistics(MetrigoBinLayout layout, long [] counts, long [] totals, long samplingInterval) {
+        if (samplingInterval < 1) {
+            throw new IllegalArgumentException("Sampling interval must be positive but got " + samplingInterval);
         }
-        if (totals.size() != LOWER_BOUNDS.size()) {
-            throw new IllegalArgumentException("Length of totals is " + totals.size() + " but we expected "+ LOWER_BOUNDS.size());
+        if (counts.length != layout.getBinCount()) {
+            throw new IllegalArgumentException("Length of counts is " + counts.length + " but we expected "+ layout.getBinCount());
         }
+        if (totals.length != layout.getBinCount()) {
+            throw new IllegalArgumentException("Length of totals is " + totals.length + " but we expected "+ layout.getBinCount());
+        }
+        this.layout = layout;
+        this.samplingInterval = samplingInterval;
         this.counts = counts;
         this.totals = totals;
     }
 
+    /**
+     * Convert a list to an array, checking the length.
+     * 
+     * @param values the list to convert.
+     * @param what the name of the list for errors.
+     * @return the array.
+     */
+    private static long [] toArray(List<Long> values, String what) {
+        if (values.size() != LOWER_BOUNDS.size()) {
+            throw new IllegalArgumentException("Length of " + what + " is " + values.size() + " but we expected "+ LOWER_BOUNDS.size());
+        }
+        long [] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i).longValue();
+        }
+        return result;
+    }
+
+    /**
+     * Get the layout of the bins.
+     * 
+     * @return the layout.
+     */
+    public MetrigoBinLayout getLayout() {
+        return this.layout;
+    }
+
+    /**
+     * Get the sampling interval.
+     * 
+     * @return the average number of values for each one that was recorded, 1 if all were.
+     */
+    public long getSamplingInterval() {
+        return this.samplingInterval;
+    }
+
+    /**
+     * Get the number of bins.
+     * 
+     * @return the number of bins.
+     */
+    public int getBinCount() {
+        return this.counts.length;
+    }
+
+    /**
+     * Get the count for a single bin.
+     * 
+     * @param bin the bin.
+     * @return the count of values in the bin.
+     */
+    public long getCount(int bin) {
+        return this.counts[bin];
+    }
+
+    /**
+     * Get the total for a single bin.
+     * 
+     * @param bin the bin.
+     * @return the total of the values in the bin.
+     */
+    public long getTotal(int bin) {
+        return this.totals[bin];
+    }
+
+    /**
+     * Get the count over all bins.
+     * 
+     * @return the number of values.
+     */
+    public long getSampleCount() {
+        long result = 0;
+        for (long count : this.counts) {
+            result += count;
+        }
+        return result;
+    }
+
     /**
      * get the list of counts.
      * 
+     * This is an unmodifiable view, values are boxed as they are read.
+     * 
      * @return a list of counts. Individual values may be 0, but not null.
      */
     public List<Long> getCounts() {
-        return this.counts;
+        if (this.countsView == null) {
+            this.countsView = Collections.unmodifiableList(Longs.asList(this.counts));
+        }
+        return this.countsView;
     }
 
     /**
      * Get the list of totals.
      * 
+     * This is an unmodifiable view, values are boxed as they are read.
+     * 
      * @return a list of totals, Individual values may be 0, but not null.
      */
     public List<Long> getTotals() {
-        return this.totals;
+        if (this.totalsView == null) {
+            this.totalsView = Collections.unmodifiableList(Longs.asList(this.totals));
+        }
+        return this.totalsView;
     }
 
     /**
@@ -99,12 +260,39 @@ public class MetrigoStatistics {
      * @return an array containing a copy of the counts.
      */
     public long [] getCountsAsArray() {
-        return this.counts.stream().mapToLong(Long::longValue).toArray();
+        return this.counts.clone();
     }
 
     @Override
     public String toString() {
-        return "MetrigoStatistics [counts=" + counts + ", totals=" + totals + "]";
+        String bins = "counts=" + Arrays.toString(counts) + ", totals=" + Arrays.toString(totals);
+        if (this.samplingInterval != 1) {
+            bins += ", samplingInterval=" + this.samplingInterval;
+        }
+        if (this.layout.isDefault()) {
+            return "MetrigoStatistics [" + bins + "]";
+        }
+        return "MetrigoStatistics [layout=" + this.layout + ", " + bins + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * this.layout.hashCode() + Long.hashCode(this.samplingInterval))
+                     + Arrays.hashCode(this.counts)) + Arrays.hashCode(this.totals);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof MetrigoStatistics)) {
+            return false;
+        }
+        MetrigoStatistics other = (MetrigoStatistics) obj;
+        return this.layout.equals(other.layout) && this.samplingInterval == other.samplingInterval
+            && Arrays.equals(this.counts, other.counts)
+            && Arrays.equals(this.totals, other.totals);
     }
 
     /**
@@ -113,7 +301,91 @@ public class MetrigoStatistics {
      * @return An array with a copy of the totals.
      */
     public long [] getTotalsAsArray() {
-        return this.totals.stream().mapToLong(Long::longValue).toArray();
+        return this.totals.clone();
+    }
+
+    /**
+     * Merge two sets of statistics.
+     * 
+     * The bins are exactly mergeable, so this just adds up the counts and
+     * totals for each bin. Statistics with different layouts are merged into
+     * the coarser layout, see {@link MetrigoStatisticsMerger}.
+     * 
+     * @param first the first statistics.
+     * @param second the second statistics.
+     * @return the merged statistics.
+     */
+    public static MetrigoStatistics merge(MetrigoStatistics first, MetrigoStatistics second) {
+        return new MetrigoStatisticsMerger().add(first).add(second).toStatistics();
+    }
+
+    /**
+     * Merge any number of statistics.
+     * 
+     * Null values are treated as empty.
+     * 
+     * @param values the statistics to merge.
+     * @return the merged statistics, which are empty if there were no values.
+     */
+    public static MetrigoStatistics merge(MetrigoStatistics... values) {
+        MetrigoStatisticsMerger merger = new MetrigoStatisticsMerger();
+        for (MetrigoStatistics value : values) {
+            merger.add(value);
+        }
+        return merger.toStatistics();
+    }
+
+    /**
+     * Merge any number of statistics.
+     * 
+     * Null values are treated as empty.
+     * 
+     * @param values the statistics to merge.
+     * @return the merged statistics, which are empty if there were no values.
+     */
+    public static MetrigoStatistics merge(Iterable<MetrigoStatistics> values) {
+        MetrigoStatisticsMerger merger = new MetrigoStatisticsMerger();
+        for (MetrigoStatistics value : values) {
+            merger.add(value);
+        }
+        return merger.toStatistics();
+    }
+
+    /**
+     * Merge a stream of statistics.
+     * 
+     * This works for parallel streams, in which case each thread merges into
+     * its own merger and the mergers are combined at the end.
+     * 
+     * @param values the statistics to merge.
+     * @return the merged statistics, which are empty if there were no values.
+     */
+    public static MetrigoStatistics merge(Stream<MetrigoStatistics> values) {
+        return values.collect(MetrigoStatisticsMerger.collector());
+    }
+
+    /**
+     * Merge a large number of statistics in parallel on the common fork-join pool.
+     * 
+     * @param values the statistics to merge.
+     * @return the merged statistics, which are empty if there were no values.
+     */
+    public static MetrigoStatistics parallelMerge(List<MetrigoStatistics> values) {
+        return parallelMerge(values, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Merge a large number of statistics in parallel.
+     * 
+     * The list is split in halves until the pieces are small enough to merge
+     * in place, then the partial merges are combined.
+     * 
+     * @param values the statistics to merge, which should support fast random access.
+     * @param pool the pool to run on.
+     * @return the merged statistics, which are empty if there were no values.
+     */
+    public static MetrigoStatistics parallelMerge(List<MetrigoStatistics> values, ForkJoinPool pool) {
+        return pool.invoke(new MetrigoStatisticsMerger.MergeTask(values, 0, values.size())).toStatistics();
     }
 
     /**
@@ -126,17 +398,10 @@ public class MetrigoStatistics {
      */
     @VisibleForTesting
     static int serializeLong(long value, byte [] holder, int position) {
-        int npos = position;
-        int lengthSpot = npos++;
-        int valueLen = 0;
-        long modValue = value;
-        do {
-            holder[npos++] = (byte)(modValue & 0xff);
-            valueLen += 1;
-            modValue >>= 8;
-        } while (modValue != 0);
-        holder[lengthSpot] = (byte)valueLen;
-        return npos;
+        ByteBuffer target = ByteBuffer.wrap(holder);
+        target.position(position);
+        encodeLong(value, target);
+        return target.position();
     }
 
     /**
@@ -149,14 +414,63 @@ public class MetrigoStatistics {
      */
     @VisibleForTesting
     static int deserializeLongAndAppend(byte [] holder, int position, List<Long> appendable) {
-        int npos = position;
+        ByteBuffer source = ByteBuffer.wrap(holder);
+        source.position(position);
+        appendable.add(Long.valueOf(decodeLong(source, 0, holder.length)));
+        return source.position();
+    }
+
+    /**
+     * Get the number of bytes needed to encode a long value.
+     * 
+     * @param value the value.
+     * @return the number of bytes, not including the length byte.
+     */
+    static int encodedLongLength(long value) {
+        int bits = Long.SIZE - Long.numberOfLeadingZeros(value);
+        return Math.max(1, (bits + 7) / 8);
+    }
+
+    /**
+     * Encode a long value at the buffer position.
+     * 
+     * The value is written as a length byte followed by the minimum number of
+     * little endian bytes (at least one).
+     * 
+     * @param value the value to encode.
+     * @param target the buffer to write to.
+     */
+    static void encodeLong(long value, ByteBuffer target) {
+        int lengthSpot = target.position();
+        target.put((byte)0);
+        int valueLen = 0;
+        long modValue = value;
+        do {
+            target.put((byte)(modValue & 0xff));
+            valueLen += 1;
+            modValue >>>= 8;
+        } while (modValue != 0);
+        target.put(lengthSpot, (byte)valueLen);
+    }
+
+    /**
+     * Decode a long value at the buffer position.
+     * 
+     * @param source the buffer to read from.
+     * @param start the start of the record, error positions are relative to this.
+     * @param end the end of the record.
+     * @return the value.
+     */
+    static long decodeLong(ByteBuffer source, int start, int end) {
+        int npos = source.position();
+        int position = npos - start;
 
-        if (npos >= holder.length) {
+        if (npos >= end) {
             throw new IllegalArgumentException("Failed to parse stream at position " + position
                                                + " unexpected end of stream");
         }
 
-        int valueLen = ((int)holder[npos++] & 0xff);
+        int valueLen = ((int)source.get(npos++) & 0xff);
         int shift = 0;
         long value = 0;
         if (valueLen > Long.BYTES) {
@@ -164,52 +478,188 @@ public class MetrigoStatistics {
                                                + " expected length less than " + Long.BYTES
                                                + " but got " + valueLen);
         }
-        if (npos + valueLen > holder.length) {
+        if (npos + valueLen > end) {
             throw new IllegalArgumentException("Failed to parse stream at position " + position
                                                + " needed " + valueLen
-                                               + " bytes on stream, but have " + holder.length);
+                                               + " bytes on stream, but have " + (end - start));
         }
 
         while (valueLen > 0) {
-            value |= (((long)holder[npos++] & 0xff) << shift);
+            value |= (((long)source.get(npos++) & 0xff) << shift);
             shift += 8;
             valueLen -= 1;
         }
-        appendable.add(Long.valueOf(value));
-        return npos;
+        source.position(npos);
+        return value;
     }
 
     /**
-     * The maximum number of bytes to encode a single entry.
+     * Get the exact number of bytes that {@link #encode(MetrigoStatistics, ByteBuffer)} will write.
      * 
-     * * one byte for position.
-     * * one byte for length
-     * * {@link Long.BYTES} for the actual value.
+     * @param value the statistics to encode.
+     * @return the encoded length in bytes.
      */
-    static int MAX_BYTES_PER_ENTRY = (Long.BYTES + 2);
+    public static int encodedLength(MetrigoStatistics value) {
+        int length = value.layout.encodedLength();
+        if (value.samplingInterval != 1) {
+            length += 2 + encodedLongLength(value.samplingInterval);
+        }
+        for (int i = 0; i < value.counts.length; i++) {
+            long count = value.counts[i];
+            if (count != 0) {
+                length += 3 + encodedLongLength(count) + encodedLongLength(value.totals[i]);
+            }
+        }
+        return length;
+    }
 
     /**
-     * Serialize a MetrigoStatistics instance into a byte array.
+     * Encode a MetrigoStatistics instance into a buffer.
+     * 
+     * The encoding is the same as {@link #toBytes(MetrigoStatistics)}: for each
+     * non-empty bin, the bin index followed by the count and the total. If the
+     * layout is not the default, it is written first, starting with a marker
+     * byte that is never a bin index. Before that, a sampling interval other
+     * than 1 is written after a marker byte of its own. The
+     * values are written at the current position, which is advanced past them.
+     * The buffer may be heap or direct.
      * 
      * @param value the value that we should serialize.
-     * @return the serialized byte array.
+     * @param target the buffer to write into.
+     * @throws BufferOverflowException if the buffer does not have room, in which case nothing is written.
      */
-    public static byte [] toBytes(MetrigoStatistics value) {
-        int maxLen = LOWER_BOUNDS.size() * 2 * MAX_BYTES_PER_ENTRY;
-        byte [] holder = new byte [ maxLen ];
-        int actualLen = 0;
-        for (int i = 0; i < LOWER_BOUNDS.size(); i++) {
-            long count = value.counts.get(i).longValue();
+    public static void encode(MetrigoStatistics value, ByteBuffer target) {
+        if (target.remaining() < encodedLength(value)) {
+            throw new BufferOverflowException();
+        }
+        if (value.samplingInterval != 1) {
+            target.put((byte) SAMPLING_MARKER);
+            encodeLong(value.samplingInterval, target);
+        }
+        value.layout.encode(target);
+        for (int i = 0; i < value.counts.length; i++) {
+            long count = value.counts[i];
             if (count != 0) {
-                holder[actualLen++] = (byte) i;
-                actualLen = serializeLong(count, holder, actualLen);
-                actualLen = serializeLong(value.totals.get(i).longValue(), holder, actualLen);
+                target.put((byte) i);
+                encodeLong(count, target);
+                encodeLong(value.totals[i], target);
             }
         }
-        byte [] result = new byte[actualLen];
-        for (int i = 0; i < actualLen; i++) {
-            result[i] = holder[i];
+    }
+
+    /**
+     * Decode a MetrigoStatistics instance from all remaining bytes in a buffer.
+     * 
+     * @param source the buffer to read from, the position is advanced to the limit.
+     * @return the deserialized instance.
+     */
+    public static MetrigoStatistics decode(ByteBuffer source) {
+        return decode(source, source.remaining());
+    }
+
+    /**
+     * Decode a MetrigoStatistics instance from a buffer.
+     * 
+     * The encoded form is not self delimiting, so the caller must know its
+     * length. Error positions are relative to the start of the encoded value.
+     * 
+     * @param source the buffer to read from, the position is advanced past the value.
+     * @param length the length of the encoded value in bytes.
+     * @return the deserialized instance.
+     */
+    public static MetrigoStatistics decode(ByteBuffer source, int length) {
+        int start = source.position();
+        long samplingInterval = decodeSamplingInterval(source, length);
+        MetrigoBinLayout layout = decodeLayout(source, start + length - source.position());
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        decodeBins(source, start, start + length, counts, totals);
+        return new MetrigoStatistics(layout, counts, totals, samplingInterval);
+    }
+
+    /**
+     * Decode the sampling interval at the start of encoded statistics.
+     * 
+     * @param source the buffer to read from, the position is advanced past the interval if there is one.
+     * @param length the length of the encoded value in bytes.
+     * @return the sampling interval, 1 if there is none.
+     */
+    static long decodeSamplingInterval(ByteBuffer source, int length) {
+        int start = source.position();
+        int end = start + length;
+        if (length < 0 || end > source.limit()) {
+            throw new IllegalArgumentException("Failed to parse stream of length " + length
+                                               + " with " + source.remaining() + " bytes remaining");
+        }
+        if (start >= end || (source.get(start) & 0xff) != SAMPLING_MARKER) {
+            return 1L;
+        }
+        source.position(start + 1);
+        long result = decodeLong(source, start, end);
+        if (result < 1) {
+            throw new IllegalArgumentException("Failed to parse stream at position 1 sampling interval "
+                                               + result + " is not positive");
+        }
+        return result;
+    }
+
+    /**
+     * Decode the layout at the start of encoded statistics.
+     * 
+     * @param source the buffer to read from, the position is advanced past the layout if there is one.
+     * @param length the length of the encoded value in bytes.
+     * @return the layout.
+     */
+    static MetrigoBinLayout decodeLayout(ByteBuffer source, int length) {
+        int start = source.position();
+        int end = start + length;
+        if (length < 0 || end > source.limit()) {
+            throw new IllegalArgumentException("Failed to parse stream of length " + length
+                                               + " with " + source.remaining() + " bytes remaining");
+        }
+        return MetrigoBinLayout.decode(source, start, end);
+    }
+
+    /**
+     * Decode the bins of statistics into a pair of arrays.
+     * 
+     * Only the bins that are present in the encoding are set, so the arrays
+     * should be zeroed first. The arrays must be the size of the layout
+     * returned by {@link #decodeLayout(ByteBuffer, int)}, which must already
+     * have been called.
+     * 
+     * @param source the buffer to read from, the position is advanced to the end.
+     * @param start the start of the encoded value, error positions are relative to this.
+     * @param end the end of the encoded value.
+     * @param counts the array for the counts.
+     * @param totals the array for the totals.
+     */
+    static void decodeBins(ByteBuffer source, int start, int end, long [] counts, long [] totals) {
+        int next = 0;
+
+        while (source.position() < end) {
+            int at = source.position() - start;
+            int position = (((int)source.get()) & 0xff);
+            if (position < next || position >= counts.length) {
+                throw new IllegalArgumentException("Failed to parse stream at " + at
+                                                   + " the location " + position
+                                                   + " was out of bounds [" + next + ", " + counts.length + ")");
+            }
+            counts[position] = decodeLong(source, start, end);
+            totals[position] = decodeLong(source, start, end);
+            next = position + 1;
         }
+    }
+
+    /**
+     * Serialize a MetrigoStatistics instance into a byte array.
+     * 
+     * @param value the value that we should serialize.
+     * @return the serialized byte array.
+     */
+    public static byte [] toBytes(MetrigoStatistics value) {
+        byte [] result = new byte[encodedLength(value)];
+        encode(value, ByteBuffer.wrap(result));
         return result;
     }
 
@@ -220,28 +670,6 @@ public class MetrigoStatistics {
      * @return the deserialized instance.
      */
     public static MetrigoStatistics fromBytes(byte [] bytes) {
-        ArrayList<Long> counts = new ArrayList<>();
-        ArrayList<Long> totals = new ArrayList<>();
-        int i = 0;
-
-        while (i < bytes.length) {
-            int position = (((int)bytes[i++]) & 0xff);
-            if (position < counts.size() || position >= LOWER_BOUNDS.size()) {
-                throw new IllegalArgumentException("Failed to parse stream at " + (i-1)
-                                                   + " the location " + position
-                                                   + " was out of bounds [" + counts.size() + ", " + LOWER_BOUNDS.size() + ")");
-            }
-            while (counts.size() < position) {
-                counts.add(Long.valueOf(0));
-                totals.add(Long.valueOf(0));
-            }
-            i = deserializeLongAndAppend(bytes, i, counts);
-            i = deserializeLongAndAppend(bytes, i, totals);
-        }
-        while (counts.size() < LOWER_BOUNDS.size()) {
-            counts.add(Long.valueOf(0));
-            totals.add(Long.valueOf(0));
-        }
-        return new MetrigoStatistics(counts, totals);
+        return decode(ByteBuffer.wrap(bytes));
     }
 }
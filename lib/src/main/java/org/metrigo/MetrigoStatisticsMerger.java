@@ -0,0 +1,363 @@
+package org.metrigo;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collector;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Merges statistics in place.
+ * 
+ * When statistics share a bin layout, merging is just adding the counts and
+ * totals for each bin. This class keeps the running sums in primitive arrays,
+ * so merging many statistics allocates nothing until the result is taken
+ * with {@link #toStatistics()}. It can also merge encoded statistics straight
+ * from a buffer, without creating the statistics.
+ * 
+ * Statistics with a different layout are down-sampled: each of their bins is
+ * moved whole into the bin that holds its mean. Counts and totals are kept
+ * exactly, but where the bin boundaries do not line up the samples may end up
+ * in a neighbouring bin. A merger made without a layout takes the layout of
+ * the first statistics added, and moves to the coarser layout (the one with
+ * fewer bins) when layouts are mixed. A merger made with a layout always
+ * merges into that layout.
+ * 
+ * Sampled statistics are already scaled up, so they are merged like any
+ * other. The merged sampling interval is the overall ratio of values to
+ * recorded values, so a sampled metric merged with an unsampled one ends up
+ * somewhere between the two.
+ * 
+ * This class is not thread safe. For parallel merges, use one merger per
+ * thread and {@link #combine(MetrigoStatisticsMerger)} them at the end.
+ */
+public class MetrigoStatisticsMerger {
+    /**
+     * The number of statistics below which a parallel merge is done in place.
+     */
+    static final int PARALLEL_THRESHOLD = 1024;
+
+    private final boolean fixedLayout;
+    private MetrigoBinLayout layout;
+    private long [] counts;
+    private long [] totals;
+    private long [] scratchCounts;
+    private long [] scratchTotals;
+    // The number of values that were actually recorded, which is the count over the sampling interval.
+    private double recorded;
+    private boolean sampled;
+
+    /**
+     * Constructor for a merger that follows the layout of what it merges.
+     */
+    public MetrigoStatisticsMerger() {
+        this(MetrigoBinLayout.DEFAULT, false);
+    }
+
+    /**
+     * Constructor for a merger into a fixed layout.
+     * 
+     * @param layout the layout to merge into.
+     */
+    public MetrigoStatisticsMerger(MetrigoBinLayout layout) {
+        this(layout, true);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param layout the starting layout.
+     * @param fixedLayout true if the layout never changes.
+     */
+    private MetrigoStatisticsMerger(MetrigoBinLayout layout, boolean fixedLayout) {
+        this.fixedLayout = fixedLayout;
+        this.layout = layout;
+        this.counts = new long[layout.getBinCount()];
+        this.totals = new long[layout.getBinCount()];
+    }
+
+    /**
+     * Get the layout that is being merged into.
+     * 
+     * @return the layout.
+     */
+    public MetrigoBinLayout getLayout() {
+        return this.layout;
+    }
+
+    /**
+     * Add statistics.
+     * 
+     * @param value the statistics to add, null is treated as empty.
+     * @return this merger.
+     */
+    public MetrigoStatisticsMerger add(@CheckForNull MetrigoStatistics value) {
+        if (value != null) {
+            addRecorded(addBins(value.getLayout(), value.counts, value.totals), value.getSamplingInterval());
+        }
+        return this;
+    }
+
+    /**
+     * Add encoded statistics straight from a buffer.
+     * 
+     * @param source the buffer holding statistics as written by {@link MetrigoStatistics#encode},
+     *               the position is advanced past them.
+     * @param length the length of the encoded statistics.
+     * @return this merger.
+     * @throws IllegalArgumentException if the encoding is bad, in which case nothing is added.
+     */
+    public MetrigoStatisticsMerger addEncoded(ByteBuffer source, int length) {
+        int start = source.position();
+        long samplingInterval = MetrigoStatistics.decodeSamplingInterval(source, length);
+        MetrigoBinLayout from = MetrigoStatistics.decodeLayout(source, start + length - source.position());
+        if (this.scratchCounts == null || this.scratchCounts.length != from.getBinCount()) {
+            this.scratchCounts = new long[from.getBinCount()];
+            this.scratchTotals = new long[from.getBinCount()];
+        } else {
+            Arrays.fill(this.scratchCounts, 0L);
+            Arrays.fill(this.scratchTotals, 0L);
+        }
+        MetrigoStatistics.decodeBins(source, start, start + length, this.scratchCounts, this.scratchTotals);
+        addRecorded(addBins(from, this.scratchCounts, this.scratchTotals), samplingInterval);
+        return this;
+    }
+
+    /**
+     * Add everything from another merger.
+     * 
+     * @param other the other merger.
+     * @return this merger.
+     */
+    public MetrigoStatisticsMerger combine(MetrigoStatisticsMerger other) {
+        addBins(other.layout, other.counts, other.totals);
+        this.recorded += other.recorded;
+        this.sampled |= other.sampled;
+        return this;
+    }
+
+    /**
+     * Add bins in some layout.
+     * 
+     * @param from the layout of the bins.
+     * @param fromCounts the counts.
+     * @param fromTotals the totals.
+     * @return the number of values added.
+     */
+    private long addBins(MetrigoBinLayout from, long [] fromCounts, long [] fromTotals) {
+        if (!from.equals(this.layout) && !this.fixedLayout) {
+            if (isEmpty(fromCounts)) {
+                // Nothing to add, so the layout should not change.
+                return 0;
+            }
+            if (isEmpty(this.counts)) {
+                resize(from);
+            } else if (from.getBinCount() < this.layout.getBinCount()) {
+                long [] oldCounts = this.counts;
+                long [] oldTotals = this.totals;
+                MetrigoBinLayout oldLayout = this.layout;
+                resize(from);
+                downSample(oldLayout, oldCounts, oldTotals);
+            }
+        }
+        long added = 0;
+        if (from.equals(this.layout)) {
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] += fromCounts[i];
+                this.totals[i] += fromTotals[i];
+                added += fromCounts[i];
+            }
+        } else {
+            added = downSample(from, fromCounts, fromTotals);
+        }
+        return added;
+    }
+
+    /**
+     * Keep track of how many of the values added were actually recorded.
+     * 
+     * @param added the number of values added.
+     * @param samplingInterval the sampling interval they were added with.
+     */
+    private void addRecorded(long added, long samplingInterval) {
+        if (samplingInterval == 1) {
+            this.recorded += added;
+        } else {
+            this.recorded += (double) added / samplingInterval;
+            this.sampled = true;
+        }
+    }
+
+    /**
+     * Move each bin whole into the bin of our layout that holds its mean.
+     * 
+     * @param from the layout of the bins.
+     * @param fromCounts the counts.
+     * @param fromTotals the totals.
+     * @return the number of values moved.
+     */
+    private long downSample(MetrigoBinLayout from, long [] fromCounts, long [] fromTotals) {
+        long moved = 0;
+        for (int i = 0; i < fromCounts.length; i++) {
+            long count = fromCounts[i];
+            if (count != 0) {
+                long mean = Math.max(from.getLowerBound(i), fromTotals[i] / count);
+                int bin = this.layout.getBin(mean);
+                this.counts[bin] += count;
+                this.totals[bin] += fromTotals[i];
+                moved += count;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Switch to empty arrays for a new layout.
+     * 
+     * @param newLayout the new layout.
+     */
+    private void resize(MetrigoBinLayout newLayout) {
+        this.layout = newLayout;
+        this.counts = new long[newLayout.getBinCount()];
+        this.totals = new long[newLayout.getBinCount()];
+    }
+
+    /**
+     * Get the number of samples merged so far.
+     * 
+     * @return the sum of all counts.
+     */
+    public long getSampleCount() {
+        long result = 0;
+        for (long count : this.counts) {
+            result += count;
+        }
+        return result;
+    }
+
+    /**
+     * Check if nothing has been merged.
+     * 
+     * @return true if all counts are zero.
+     */
+    public boolean isEmpty() {
+        return isEmpty(this.counts);
+    }
+
+    /**
+     * Check if all counts are zero.
+     * 
+     * @param values the counts.
+     * @return true if all counts are zero.
+     */
+    private static boolean isEmpty(long [] values) {
+        for (long count : values) {
+            if (count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the merged statistics.
+     * 
+     * The merger can carry on being used afterwards.
+     * 
+     * @return a copy of the merged statistics.
+     */
+    public MetrigoStatistics toStatistics() {
+        return new MetrigoStatistics(this.layout, this.counts.clone(), this.totals.clone(), getSamplingInterval());
+    }
+
+    /**
+     * Get the sampling interval of what has been merged so far.
+     * 
+     * @return the number of values for each one that was recorded, rounded, or 1 if nothing was sampled.
+     */
+    public long getSamplingInterval() {
+        if (!this.sampled || this.recorded <= 0) {
+            return 1L;
+        }
+        return Math.max(1L, Math.round(getSampleCount() / this.recorded));
+    }
+
+    /**
+     * Clear the merger so that it can be reused.
+     */
+    public void reset() {
+        Arrays.fill(this.counts, 0L);
+        Arrays.fill(this.totals, 0L);
+        this.recorded = 0;
+        this.sampled = false;
+    }
+
+    /**
+     * Get a collector that merges a stream of statistics.
+     * 
+     * @return the collector.
+     */
+    public static Collector<MetrigoStatistics, MetrigoStatisticsMerger, MetrigoStatistics> collector() {
+        return Collector.of(MetrigoStatisticsMerger::new, MetrigoStatisticsMerger::add,
+                            MetrigoStatisticsMerger::combine, MetrigoStatisticsMerger::toStatistics,
+                            Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * A fork-join task that merges a range of a list.
+     */
+    static class MergeTask extends RecursiveTask<MetrigoStatisticsMerger> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<MetrigoStatistics> values;
+        private final int from;
+        private final int to;
+
+        /**
+         * Constructor.
+         * 
+         * @param values the values to merge.
+         * @param from the first index to merge.
+         * @param to one past the last index to merge.
+         */
+        MergeTask(List<MetrigoStatistics> values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected MetrigoStatisticsMerger compute() {
+            if (this.to - this.from <= PARALLEL_THRESHOLD) {
+                MetrigoStatisticsMerger merger = new MetrigoStatisticsMerger();
+                for (int i = this.from; i < this.to; i++) {
+                    merger.add(this.values.get(i));
+                }
+                return merger;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            MergeTask left = new MergeTask(this.values, this.from, middle);
+            left.fork();
+            MetrigoStatisticsMerger right = new MergeTask(this.values, middle, this.to).compute();
+            return left.join().combine(right);
+        }
+    }
+}
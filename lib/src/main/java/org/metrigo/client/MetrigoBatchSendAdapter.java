@@ -0,0 +1,55 @@
+package org.metrigo.client;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Date;
+
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.MetrigoStatistics;
+
+/**
+ * A send adapter that takes a whole interval at once.
+ * 
+ * When the queue runner is given one of these, it calls {@link #sendBatch(MetrigoSnapshot)}
+ * once per interval with every metric that had samples, rather than calling
+ * {@link #sendMetrics(String, Date, MetrigoStatistics)} once per metric. This lets a transport
+ * send one message per flush, for example by encoding the snapshot as a single frame
+ * with {@link MetrigoSnapshot#encode}.
+ * 
+ * The same rules as for {@link MetrigoSendAdapter} apply: errors are handled internally, and
+ * this should not block.
+ */
+public interface MetrigoBatchSendAdapter extends MetrigoSendAdapter {
+    /**
+     * Send a snapshot of all metrics for an interval to the back-end.
+     * 
+     * @param snapshot the snapshot, which will not be modified after this call.
+     */
+    void sendBatch(MetrigoSnapshot snapshot);
+
+    /**
+     * Send statistics for a single metric as a snapshot of one.
+     * 
+     * @param name the name of the statistic
+     * @param time the time of collection
+     * @param stats the actual statistics to send.
+     */
+    @Override
+    default void sendMetrics(final String name, final Date time, final MetrigoStatistics stats) {
+        sendBatch(new MetrigoSnapshot(time.getTime(), new String [] { name }, new MetrigoStatistics [] { stats }));
+    }
+}
@@ -16,13 +16,33 @@ package org.metrigo.client;
  * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
  */
 
-import org.metrigo.client.impl.MetrigoSampleCrossThreadImpl;
+import org.metrigo.client.impl.MetrigoSampleAsyncImpl;
 import org.metrigo.client.impl.MetrigoSampleSingleThreadImpl;
+import org.metrigo.client.impl.MetrigoSampleThreadLocalImpl;
+import org.metrigo.client.impl.MetrigoSystemClock;
 
 /**
   * Public interface to get default implementations.
   */
 public class MetrigoClient {
+    private final MetrigoClock clock;
+
+    /**
+     * Constructor for a client whose samplers use the system clock.
+     */
+    public MetrigoClient() {
+        this(MetrigoSystemClock.INSTANCE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param clock the clock for the samplers to time with.
+     */
+    public MetrigoClient(MetrigoClock clock) {
+        this.clock = clock;
+    }
+
     /**
      * Get a single threaded sampler.
      * 
@@ -38,7 +58,25 @@ public class MetrigoClient {
      * @return the initialized sampler (auto-closeable)
      */
     public MetrigoSample getSamplerAndStart(MetrigoMetricAccumulator errorAccumulator) {
-        MetrigoSampleSingleThreadImpl impl = new MetrigoSampleSingleThreadImpl();
+        MetrigoSampleSingleThreadImpl impl = new MetrigoSampleSingleThreadImpl(this.clock);
+        impl.setErrorStats(errorAccumulator);
+        impl.start();
+        return impl;
+    }
+
+    /**
+     * Get a reusable single threaded sampler.
+     * 
+     * This behaves like {@link #getSamplerAndStart(MetrigoMetricAccumulator)}, but the sampler is taken from
+     * a per thread pool and given back when it is closed, so no memory is allocated per sample. Samples may be
+     * nested on one thread. The sampler must be closed on the thread that got it, and must not be used after
+     * it is closed, so it should only be used in the try-with stanza.
+     * 
+     * @param errorAccumulator the accumulator to use when auto-closing if nothing else closed the sample.
+     * @return the initialized sampler (auto-closeable)
+     */
+    public MetrigoSample getReusableSamplerAndStart(MetrigoMetricAccumulator errorAccumulator) {
+        MetrigoSampleThreadLocalImpl impl = MetrigoSampleThreadLocalImpl.acquire(this.clock);
         impl.setErrorStats(errorAccumulator);
         impl.start();
         return impl;
@@ -47,15 +85,17 @@ public class MetrigoClient {
     /**
      * Get a cross thread sampler.
      * 
-     * This sampler is less accurate, but can be used across threads. This could be useful when queuing or 
-     * sending out to a compute thread pool. It is the consumers responsibility to close this sampler, but
-     * the standard try-with block will not work in the use cases where you would want this.
+     * This sampler can be started on one thread and finished or closed on another. This could be useful when
+     * queuing or sending out to a compute thread pool. It is the consumers responsibility to close this sampler,
+     * but the standard try-with block will not work in the use cases where you would want this. Only the first
+     * finish or close records a sample. For a {@link java.util.concurrent.CompletionStage}, see
+     * {@link MetrigoSampleAsyncImpl#whenComplete}.
      * 
      * @param errorAccumulator the accumulator to use in the case of error
      * @return the initialized sampler.
      */
     public MetrigoSample getCrossThreadSamplerAndStart(MetrigoMetricAccumulator errorAccumulator) {
-        MetrigoSampleCrossThreadImpl impl = new MetrigoSampleCrossThreadImpl();
+        MetrigoSampleAsyncImpl impl = new MetrigoSampleAsyncImpl(this.clock);
         impl.setErrorStats(errorAccumulator);
         impl.start();
         return impl;
@@ -0,0 +1,34 @@
+package org.metrigo.client;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A source of monotonic time for the samplers.
+ * 
+ * Only the difference between two readings is meaningful, as with
+ * {@link System#nanoTime()}. The clock must be safe to read from any
+ * thread, and readings must never go backwards.
+ */
+@FunctionalInterface
+public interface MetrigoClock {
+    /**
+     * Read the clock.
+     * 
+     * @return the current time in nanoseconds from some fixed but arbitrary origin.
+     */
+    long nanoTime();
+}
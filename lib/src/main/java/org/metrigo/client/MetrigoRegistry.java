@@ -0,0 +1,203 @@
+package org.metrigo.client;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.metrigo.client.impl.MetrigoMetricsAccumulatorImpl;
+
+/**
+ * A registry of accumulators with dense integer handles.
+ * 
+ * Each metric name is interned once into a handle, which is its index into a
+ * flat array of accumulators. Recording by handle is then a plain array read,
+ * with no hashing or string work, and flushing walks the array in order.
+ * 
+ * Registration takes a lock and may grow the array, which is copied and
+ * published whole, so recording never blocks on a registration: a recorder
+ * either sees the old array or the new one, and both hold every handle that
+ * had been returned before the copy.
+ * 
+ * Handles are never reused. Once a metric is removed, its slot is left empty
+ * and samples recorded against its handle are dropped.
+ */
+public class MetrigoRegistry {
+    /**
+     * The handle returned when there is no metric.
+     */
+    public static final int NO_HANDLE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Function<String, MetrigoMetricAccumulator> factory;
+    private final ConcurrentHashMap<String, Integer> handles;
+    private volatile MetrigoMetricAccumulator [] accumulators;
+    private volatile int size;
+
+    /**
+     * Constructor for a registry that makes standard accumulators.
+     */
+    public MetrigoRegistry() {
+        this(MetrigoMetricsAccumulatorImpl::new);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param factory makes an accumulator for a metric name.
+     */
+    public MetrigoRegistry(@Nonnull Function<String, MetrigoMetricAccumulator> factory) {
+        this.factory = factory;
+        this.handles = new ConcurrentHashMap<>();
+        this.accumulators = new MetrigoMetricAccumulator[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    /**
+     * Get the handle for a metric, making an accumulator for it if needed.
+     * 
+     * This should be called once, off the hot path, and the handle kept.
+     * 
+     * @param metricName the name of the metric.
+     * @return the handle.
+     */
+    public int getOrRegister(@Nonnull String metricName) {
+        Integer handle = this.handles.get(metricName);
+        if (handle != null) {
+            return handle.intValue();
+        }
+        synchronized (this) {
+            handle = this.handles.get(metricName);
+            if (handle != null) {
+                return handle.intValue();
+            }
+            return add(metricName, this.factory.apply(metricName));
+        }
+    }
+
+    /**
+     * Register an existing accumulator under its metric name.
+     * 
+     * @param accumulator the accumulator.
+     * @return the handle, or {@link #NO_HANDLE} if another accumulator already has the same name.
+     */
+    public int register(@Nonnull MetrigoMetricAccumulator accumulator) {
+        String metricName = accumulator.getMetricName();
+        synchronized (this) {
+            Integer handle = this.handles.get(metricName);
+            if (handle != null) {
+                return (this.accumulators[handle.intValue()] == accumulator) ? handle.intValue() : NO_HANDLE;
+            }
+            return add(metricName, accumulator);
+        }
+    }
+
+    /**
+     * Add an accumulator in a new slot, growing the array if needed.
+     * 
+     * Must be called holding the lock.
+     * 
+     * @param metricName the name of the metric.
+     * @param accumulator the accumulator.
+     * @return the new handle.
+     */
+    private int add(String metricName, MetrigoMetricAccumulator accumulator) {
+        int handle = this.size;
+        MetrigoMetricAccumulator [] current = this.accumulators;
+        if (handle == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[handle] = accumulator;
+        // Publish the array before the size, so anyone who sees the size sees the slot.
+        this.accumulators = current;
+        this.size = handle + 1;
+        this.handles.put(metricName, Integer.valueOf(handle));
+        return handle;
+    }
+
+    /**
+     * Remove a metric.
+     * 
+     * @param metricName the name of the metric.
+     * @return the accumulator that was removed, or null if there was none.
+     */
+    @CheckForNull
+    public synchronized MetrigoMetricAccumulator remove(@Nonnull String metricName) {
+        Integer handle = this.handles.remove(metricName);
+        if (handle == null) {
+            return null;
+        }
+        MetrigoMetricAccumulator [] current = this.accumulators;
+        MetrigoMetricAccumulator removed = current[handle.intValue()];
+        current[handle.intValue()] = null;
+        // Republish so that the cleared slot is visible.
+        this.accumulators = current;
+        return removed;
+    }
+
+    /**
+     * Get the handle for a metric without registering it.
+     * 
+     * @param metricName the name of the metric.
+     * @return the handle, or {@link #NO_HANDLE} if there is none.
+     */
+    public int getHandle(@Nonnull String metricName) {
+        Integer handle = this.handles.get(metricName);
+        return (handle == null) ? NO_HANDLE : handle.intValue();
+    }
+
+    /**
+     * Get the accumulator for a handle.
+     * 
+     * @param handle the handle.
+     * @return the accumulator, or null if the metric was removed.
+     */
+    @CheckForNull
+    public MetrigoMetricAccumulator get(int handle) {
+        return this.accumulators[handle];
+    }
+
+    /**
+     * Record a sample by handle.
+     * 
+     * @param handle the handle from {@link #getOrRegister(String)} or {@link #register(MetrigoMetricAccumulator)}.
+     * @param timeInMicroSeconds the sample time.
+     */
+    public void addSample(int handle, long timeInMicroSeconds) {
+        MetrigoMetricAccumulator accumulator = this.accumulators[handle];
+        if (accumulator != null) {
+            accumulator.addSample(timeInMicroSeconds);
+        }
+    }
+
+    /**
+     * Get the number of handles that have been given out.
+     * 
+     * Every handle from 0 up to this is valid for {@link #get(int)}, though
+     * some may have been removed.
+     * 
+     * @return the number of handles.
+     */
+    public int size() {
+        return this.size;
+    }
+}
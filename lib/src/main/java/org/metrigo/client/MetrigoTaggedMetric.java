@@ -0,0 +1,211 @@
+package org.metrigo.client;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A metric with tags (dimensions).
+ * 
+ * Each distinct set of tags gets its own accumulator in a {@link MetrigoRegistry},
+ * named {@code metricName{key1=value1,key2=value2}}, so snapshots and the wire
+ * format still carry flat names. A tag set is resolved to its accumulator once,
+ * and the accumulator (or registry handle) should be kept and used on the hot
+ * path, which then does no string building or hashing.
+ * 
+ * The number of tag sets is limited, so that a tag with an unbounded value
+ * (such as an id) cannot use up memory. Once the limit is reached, any new
+ * tag set is recorded into a single overflow accumulator, named with the
+ * {@link #OVERFLOW_KEY} tag, and is not remembered.
+ */
+public class MetrigoTaggedMetric {
+    /**
+     * The tag key used for the overflow accumulator.
+     */
+    public static final String OVERFLOW_KEY = "_overflow";
+
+    private static final MetrigoTags OVERFLOW_TAGS = MetrigoTags.of(OVERFLOW_KEY, "true");
+
+    private final MetrigoRegistry registry;
+    @Nonnull private final String name;
+    private final int maxTagSets;
+    private final ConcurrentHashMap<MetrigoTags, Integer> handles;
+    private final LongAdder overflowCount;
+    private volatile int overflowHandle;
+
+    /**
+     * Constructor.
+     * 
+     * @param registry the registry to put the accumulators in.
+     * @param metricName the name of the metric, without tags.
+     * @param maxTagSets the largest number of distinct tag sets to keep.
+     */
+    public MetrigoTaggedMetric(@Nonnull MetrigoRegistry registry, @Nonnull String metricName, int maxTagSets) {
+        if (maxTagSets < 1) {
+            throw new IllegalArgumentException("Max tag sets must be positive but got " + maxTagSets);
+        }
+        this.registry = registry;
+        this.name = metricName;
+        this.maxTagSets = maxTagSets;
+        this.handles = new ConcurrentHashMap<>();
+        this.overflowCount = new LongAdder();
+        this.overflowHandle = MetrigoRegistry.NO_HANDLE;
+    }
+
+    /**
+     * Get the full metric name for a set of tags.
+     * 
+     * @param metricName the name of the metric, without tags.
+     * @param tags the tags.
+     * @return the name, with the tags in braces if there are any.
+     */
+    public static String canonicalName(@Nonnull String metricName, @Nonnull MetrigoTags tags) {
+        if (tags.size() == 0) {
+            return metricName;
+        }
+        return metricName + "{" + tags + "}";
+    }
+
+    /**
+     * Get the name of the metric, without tags.
+     * 
+     * @return the name.
+     */
+    @Nonnull
+    public String getMetricName() {
+        return this.name;
+    }
+
+    /**
+     * Get the registry handle for a set of tags, registering it if needed.
+     * 
+     * @param tags the tags.
+     * @return the handle, which is the overflow handle if there are too many tag sets.
+     */
+    public int getHandle(@Nonnull MetrigoTags tags) {
+        Integer handle = this.handles.get(tags);
+        if (handle != null) {
+            return handle.intValue();
+        }
+        if (this.handles.size() >= this.maxTagSets) {
+            return overflow();
+        }
+        return register(tags);
+    }
+
+    /**
+     * Get the accumulator for a set of tags.
+     * 
+     * If the accumulator has been removed from the registry, the tag set is
+     * registered again with a new accumulator.
+     * 
+     * @param tags the tags.
+     * @return the accumulator, which is the overflow accumulator if there are too many tag sets.
+     */
+    @Nonnull
+    public MetrigoMetricAccumulator resolve(@Nonnull MetrigoTags tags) {
+        while (true) {
+            int handle = getHandle(tags);
+            MetrigoMetricAccumulator accumulator = this.registry.get(handle);
+            if (accumulator != null) {
+                return accumulator;
+            }
+            forget(tags, handle);
+        }
+    }
+
+    /**
+     * Record a sample for a set of tags.
+     * 
+     * This looks up the tags each time. Where the tags are known ahead of
+     * time, {@link #resolve(MetrigoTags)} them once instead.
+     * 
+     * @param tags the tags.
+     * @param timeInMicroSeconds the sample time.
+     */
+    public void addSample(@Nonnull MetrigoTags tags, long timeInMicroSeconds) {
+        resolve(tags).addSample(timeInMicroSeconds);
+    }
+
+    /**
+     * Register a new tag set, unless the limit has been reached.
+     * 
+     * @param tags the tags.
+     * @return the handle.
+     */
+    private synchronized int register(MetrigoTags tags) {
+        Integer handle = this.handles.get(tags);
+        if (handle != null) {
+            return handle.intValue();
+        }
+        if (this.handles.size() >= this.maxTagSets) {
+            return overflow();
+        }
+        int result = this.registry.getOrRegister(canonicalName(this.name, tags));
+        this.handles.put(tags, Integer.valueOf(result));
+        return result;
+    }
+
+    /**
+     * Forget a handle whose accumulator was removed from the registry.
+     * 
+     * @param tags the tags that the handle was for.
+     * @param handle the handle.
+     */
+    private synchronized void forget(MetrigoTags tags, int handle) {
+        this.handles.remove(tags, Integer.valueOf(handle));
+        if (this.overflowHandle == handle) {
+            this.overflowHandle = MetrigoRegistry.NO_HANDLE;
+        }
+    }
+
+    /**
+     * Get the overflow handle, registering it if needed.
+     * 
+     * @return the handle.
+     */
+    private int overflow() {
+        this.overflowCount.increment();
+        int handle = this.overflowHandle;
+        if (handle == MetrigoRegistry.NO_HANDLE) {
+            handle = this.registry.getOrRegister(canonicalName(this.name, OVERFLOW_TAGS));
+            this.overflowHandle = handle;
+        }
+        return handle;
+    }
+
+    /**
+     * Get the number of distinct tag sets that have their own accumulator.
+     * 
+     * @return the number of tag sets.
+     */
+    public int getTagSetCount() {
+        return this.handles.size();
+    }
+
+    /**
+     * Get the number of lookups that went to the overflow accumulator.
+     * 
+     * @return the number of overflowed lookups.
+     */
+    public long getOverflowCount() {
+        return this.overflowCount.sum();
+    }
+}
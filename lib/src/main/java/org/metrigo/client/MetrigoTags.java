@@ -0,0 +1,172 @@
+package org.metrigo.client;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An immutable set of tags (dimensions) for a metric.
+ * 
+ * Tags are key and value pairs, kept sorted by key, so the same tags given in
+ * any order are equal. The canonical form, {@code key1=value1,key2=value2},
+ * and the hash code are worked out once when the tags are made, so tags are
+ * cheap to use as map keys. Backslashes, commas, equals signs and braces in
+ * a key or value are escaped with a backslash in the canonical form, so it
+ * can be split apart again unambiguously.
+ */
+public final class MetrigoTags {
+    /**
+     * No tags.
+     */
+    public static final MetrigoTags EMPTY = new MetrigoTags(new String[0], new String[0]);
+
+    private final String [] keys;
+    private final String [] values;
+    private final String canonical;
+    private final int hash;
+
+    /**
+     * Constructor.
+     * 
+     * @param keys the keys, sorted with no duplicates.
+     * @param values the values to go with the keys.
+     */
+    private MetrigoTags(String [] keys, String [] values) {
+        this.keys = keys;
+        this.values = values;
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            escape(keys[i], builder);
+            builder.append('=');
+            escape(values[i], builder);
+        }
+        this.canonical = builder.toString();
+        this.hash = this.canonical.hashCode();
+    }
+
+    /**
+     * Make a set of tags.
+     * 
+     * @param keysAndValues alternating keys and values.
+     * @return the tags.
+     */
+    public static MetrigoTags of(@Nonnull String... keysAndValues) {
+        if (keysAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("Tags need a value for every key but got " + keysAndValues.length + " strings");
+        }
+        int size = keysAndValues.length / 2;
+        if (size == 0) {
+            return EMPTY;
+        }
+        Integer [] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            if (keysAndValues[2 * i] == null || keysAndValues[2 * i + 1] == null) {
+                throw new IllegalArgumentException("Tag keys and values must not be null");
+            }
+            order[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(order, (a, b) -> keysAndValues[2 * a.intValue()].compareTo(keysAndValues[2 * b.intValue()]));
+
+        String [] keys = new String[size];
+        String [] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = keysAndValues[2 * order[i].intValue()];
+            values[i] = keysAndValues[2 * order[i].intValue() + 1];
+            if (i > 0 && keys[i].equals(keys[i - 1])) {
+                throw new IllegalArgumentException("Tag key " + keys[i] + " is given more than once");
+            }
+        }
+        return new MetrigoTags(keys, values);
+    }
+
+    /**
+     * Escape a key or value into the canonical form.
+     * 
+     * @param text the key or value.
+     * @param builder where to put it.
+     */
+    private static void escape(String text, StringBuilder builder) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' || c == ',' || c == '=' || c == '{' || c == '}') {
+                builder.append('\\');
+            }
+            builder.append(c);
+        }
+    }
+
+    /**
+     * Get the number of tags.
+     * 
+     * @return the number of tags.
+     */
+    public int size() {
+        return this.keys.length;
+    }
+
+    /**
+     * Get a tag key.
+     * 
+     * @param index the index of the tag, in key order.
+     * @return the key.
+     */
+    public String getKey(int index) {
+        return this.keys[index];
+    }
+
+    /**
+     * Get a tag value.
+     * 
+     * @param index the index of the tag, in key order.
+     * @return the value.
+     */
+    public String getValue(int index) {
+        return this.values[index];
+    }
+
+    /**
+     * Get the canonical form of the tags.
+     * 
+     * @return the tags as {@code key1=value1,key2=value2}, escaped and sorted by key.
+     */
+    @Override
+    public String toString() {
+        return this.canonical;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof MetrigoTags)) {
+            return false;
+        }
+        MetrigoTags other = (MetrigoTags) obj;
+        return this.hash == other.hash && this.canonical.equals(other.canonical);
+    }
+}
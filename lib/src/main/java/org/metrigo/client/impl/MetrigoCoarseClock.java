@@ -0,0 +1,88 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.metrigo.client.MetrigoClock;
+
+/**
+ * A clock that is cheap to read, but only as precise as its tick.
+ * 
+ * A daemon ticker thread reads {@link System#nanoTime()} once per tick and
+ * publishes it, so reading the clock is just a volatile read. This is meant
+ * for very hot paths on hosts where the system clock source is slow, and
+ * where the operations being timed are long enough that an error of up to a
+ * tick still puts them in the right bin. The ticker may wake late on a busy
+ * host, which makes the error larger.
+ * 
+ * Call {@link #close()} to stop the ticker. The clock then stops moving.
+ */
+public class MetrigoCoarseClock implements MetrigoClock, AutoCloseable {
+    private final long tickNanos;
+    private final Thread ticker;
+    private volatile long now;
+    private volatile boolean running;
+
+    /**
+     * Constructor, which starts the ticker.
+     * 
+     * @param tickMicros the time between ticks in microseconds.
+     */
+    public MetrigoCoarseClock(long tickMicros) {
+        if (tickMicros < 1) {
+            throw new IllegalArgumentException("Tick must be positive but got " + tickMicros);
+        }
+        this.tickNanos = TimeUnit.MICROSECONDS.toNanos(tickMicros);
+        this.now = System.nanoTime();
+        this.running = true;
+        this.ticker = new Thread(this::tick, "metrigo-coarse-clock");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * Get the time between ticks.
+     * 
+     * @return the tick in nanoseconds.
+     */
+    public long getTickNanos() {
+        return this.tickNanos;
+    }
+
+    /**
+     * Update the time once per tick until closed.
+     */
+    private void tick() {
+        while (this.running) {
+            this.now = System.nanoTime();
+            LockSupport.parkNanos(this.tickNanos);
+        }
+    }
+
+    @Override
+    public long nanoTime() {
+        return this.now;
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this.ticker);
+    }
+}
@@ -0,0 +1,64 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.metrigo.client.MetrigoClock;
+
+/**
+ * A clock that only moves when it is told to.
+ * 
+ * This is meant for tests, so that the time a sampler records is exact.
+ */
+public class MetrigoManualClock implements MetrigoClock {
+    private final AtomicLong time;
+
+    /**
+     * Constructor for a clock that starts at zero.
+     */
+    public MetrigoManualClock() {
+        this(0L);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param startNanos the time to start at.
+     */
+    public MetrigoManualClock(long startNanos) {
+        this.time = new AtomicLong(startNanos);
+    }
+
+    /**
+     * Move the clock forward.
+     * 
+     * @param nanos the number of nanoseconds to move by.
+     * @return the new time.
+     */
+    public long advance(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Clock cannot go backwards but got " + nanos);
+        }
+        return this.time.addAndGet(nanos);
+    }
+
+    @Override
+    public long nanoTime() {
+        return this.time.get();
+    }
+}
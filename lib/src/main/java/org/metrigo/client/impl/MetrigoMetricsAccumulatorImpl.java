@@ -16,13 +16,10 @@ package org.metrigo.client.impl;
  * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
  */
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
+import org.metrigo.MetrigoBinLayout;
 import org.metrigo.MetrigoStatistics;
 import org.metrigo.client.MetrigoMetricAccumulator;
 
@@ -34,90 +31,61 @@ import com.google.common.annotations.VisibleForTesting;
  * This accumulator is a "hidden" piece of the code. Consumers should generally not interact with this directly,
  * but rather interact with a sampler. This accumulator will accumulate a logarithmic histogram that can be sent
  * out to a metrics storage.
+ * 
+ * The bins are double buffered (see {@link MetrigoPhasedBins}). Recording a sample never takes a lock, and
+ * sampling the statistics flips to the other buffer and waits for in-flight samples to land, so every sample
+ * is reported exactly once. Nothing is allocated in the steady state beyond the returned statistics.
  */ 
 public class MetrigoMetricsAccumulatorImpl implements MetrigoMetricAccumulator {
     private static final long lowerBounds [] = MetrigoStatistics.LOWER_BOUNDS.stream().mapToLong(Long::longValue).toArray();
 
+    private final MetrigoPhasedBins bins;
+    @Nonnull private final String name;
+    @Nonnull private final MetrigoBinLayout layout;
+
     /**
-     * Internal class to actually accumulate statistics.
+     * Constructor.
      * 
-     * This internal class is used to ensure
-     * * the stats are atomically initialized.
-     * * the stats can be swapped out easily.
-     * * the stats are fast to update.
-     * The stats are held in an array to speed updates, but must be synchronized so
-     * that they are correct.
+     * @param metricName the name for this metric.
      */
-    private static class StatsHolder {
-        private long [] counts;
-        private long [] totals;
-        private long statsCount;
-
-        /**
-         * Constructor.
-         */
-        public StatsHolder() {
-            this.counts = new long[lowerBounds.length];
-            this.totals = new long[lowerBounds.length];
-
-            for (int i = 0; i < lowerBounds.length; i++) {
-                this.counts[i] = 0;
-                this.totals[i] = 0;
-            }
-        }
-
-        /**
-         * Add a total to a specific bin.
-         * 
-         * @param bin the bin to update.
-         * @param total the number of microseconds to add.
-         */
-        public void addToBin(int bin, long total) {
-            this.counts[bin] += 1;
-            this.totals[bin] += total;
-            this.statsCount += 1;
-        }
-
-        /**
-         * Convert this holder into a public structure.
-         * 
-         * @return the converted stats.
-         */
-        @CheckForNull
-        public MetrigoStatistics convertToStats() {
-            if (this.statsCount == 0) {
-                // Nothing here.
-                return null;
-            }
-            List<Long> countList = Arrays.stream(this.counts).boxed().collect(Collectors.toList());
-            List<Long> totalsList = Arrays.stream(this.totals).boxed().collect(Collectors.toList());
-            return new MetrigoStatistics(countList, totalsList);
-        }
+    public MetrigoMetricsAccumulatorImpl(@Nonnull String metricName) {
+        this(metricName, MetrigoBinLayout.DEFAULT);
     }
-    
-    private volatile StatsHolder stats;
-    @Nonnull private final String name;
 
     /**
      * Constructor.
      * 
      * @param metricName the name for this metric.
+     * @param layout the layout of the bins to accumulate into.
      */
-    public MetrigoMetricsAccumulatorImpl(@Nonnull String metricName) {
-        this.stats = new StatsHolder();
+    public MetrigoMetricsAccumulatorImpl(@Nonnull String metricName, @Nonnull MetrigoBinLayout layout) {
+        this.layout = layout;
+        this.bins = new MetrigoPhasedBins(layout.getBinCount());
         this.name = metricName;
     }
 
     /**
-     * Get the bin number for a specific time.
-     * 
-     * Because the bins are logarithmically scaled, we need to do a binary search.
+     * Get the bin number for a specific time in the default layout.
      * 
      * @param timeInMicroSeconds the time that we are binning.
      * @return the bin number.
+     * @see MetrigoBinLayout#getBin(long)
      */
     @VisibleForTesting
     static int getBin(long timeInMicroSeconds) {
+        return MetrigoBinLayout.DEFAULT.getBin(timeInMicroSeconds);
+    }
+
+    /**
+     * Get the bin number for a specific time using a binary search.
+     * 
+     * This is the reference implementation for {@link #getBin(long)}.
+     * 
+     * @param timeInMicroSeconds the time that we are binning.
+     * @return the bin number.
+     */
+    @VisibleForTesting
+    static int getBinBySearch(long timeInMicroSeconds) {
         int lower = 0;
         int higher = lowerBounds.length - 1;
 
@@ -144,19 +112,31 @@ public class MetrigoMetricsAccumulatorImpl implements MetrigoMetricAccumulator {
 
     @Override
     public void addSample(long timeInMicroSeconds) {
-        int bin = getBin(timeInMicroSeconds);
-        synchronized (this) {
-            this.stats.addToBin(bin, timeInMicroSeconds);
-        }
+        this.bins.record(this.layout.getBin(timeInMicroSeconds), timeInMicroSeconds);
     }
 
     @Override
-    public MetrigoStatistics sampleStats() {
-        StatsHolder newStats = new StatsHolder();
-        StatsHolder oldStats = this.stats;
-        synchronized (this) {
-            this.stats = newStats;
+    @CheckForNull
+    public synchronized MetrigoStatistics sampleStats() {
+        return this.bins.drain(this.layout);
+    }
+
+    /**
+     * Drain the current sample set into a pair of arrays, without allocating.
+     * 
+     * This is the same as {@link #sampleStats()}, but adds the counts and
+     * totals to the arrays rather than making new statistics, so it can be
+     * used to merge many accumulators into one set of reused arrays.
+     * 
+     * @param counts the counts to add to, one per bin of the layout.
+     * @param totals the totals to add to, one per bin of the layout.
+     * @return the number of samples drained.
+     */
+    public synchronized long sampleStatsInto(long [] counts, long [] totals) {
+        if (counts.length != this.layout.getBinCount() || totals.length != this.layout.getBinCount()) {
+            throw new IllegalArgumentException("Arrays must have " + this.layout.getBinCount() + " bins but got "
+                                               + counts.length + " and " + totals.length);
         }
-        return oldStats.convertToStats();
+        return this.bins.drainInto(counts, totals);
     }
 }
\ No newline at end of file
@@ -0,0 +1,518 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.client.MetrigoBatchSendAdapter;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A send adapter that streams snapshots over a TCP connection.
+ * 
+ * Sending only puts the snapshot on a bounded {@link MetrigoSnapshotQueue},
+ * so it never blocks and never does I/O. The adapter is also meant to be run
+ * on its own thread, which takes snapshots off the queue and writes them to
+ * a persistent connection with non-blocking NIO. Each snapshot is written as
+ * a frame: a four byte big endian length, then the snapshot as encoded by
+ * {@link MetrigoSnapshot#encode}. Snapshots for the same time that are
+ * queued one after another, as happens when metrics are sent one at a time,
+ * are put together in one frame, as long as it fits in the send buffer. A
+ * snapshot too large for the send buffer is split across several frames for
+ * the same time, which the receiver merges. Frames are packed into a single
+ * send buffer and written without waiting for any reply.
+ * 
+ * Memory is bounded by the queue and the send buffer. If the connection
+ * cannot keep up, the send buffer fills, the thread stops taking from the
+ * queue, and the queue's overflow policy drops snapshots and counts them.
+ * A single metric too large for the send buffer on its own is dropped, and
+ * counted apart, in metrics.
+ * 
+ * If the connection fails, frames still in the send buffer are lost and
+ * counted, and the adapter reconnects after a backoff that doubles with
+ * each failed attempt, with random jitter so that a fleet of clients does
+ * not reconnect all at once.
+ * 
+ * Call {@link #shutdown()} to stop the adapter. It keeps sending for a short
+ * while to empty the queue, then closes the connection and returns from
+ * {@link #run()}.
+ */
+public class MetrigoNioSendAdapterImpl implements MetrigoBatchSendAdapter, Runnable {
+    /**
+     * The number of bytes before each frame, holding its length.
+     */
+    public static final int FRAME_HEADER = Integer.BYTES;
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SELECT_MILLIS = 100;
+    private static final long SHUTDOWN_MILLIS = 1000;
+
+    private final InetSocketAddress address;
+    private final MetrigoSnapshotQueue queue;
+    private final ByteBuffer sendBuffer;
+    // The end of each frame in the send buffer, counted in bytes since the connection was made.
+    private final long [] frameEnds;
+    private final long minReconnectMillis;
+    private final long maxReconnectMillis;
+    private final AtomicLong oversizedMetrics = new AtomicLong();
+    private final AtomicLong lostFrames = new AtomicLong();
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private volatile boolean running;
+    private volatile Selector selector;
+    private volatile Thread runner;
+    private SocketChannel channel;
+    private int firstFrame;
+    private int frameCount;
+    private long bytesBuffered;
+    private long bytesWritten;
+    // Taken off the queue, but not yet in a frame.
+    @CheckForNull private MetrigoSnapshot carried;
+    // Built, but waiting for room in the send buffer.
+    @CheckForNull private MetrigoSnapshot pending;
+
+    /**
+     * Constructor.
+     * 
+     * The queue holds 1024 snapshots and drops the oldest when full, the
+     * send buffer is 256KB, and reconnects back off from 100 milliseconds to
+     * 30 seconds.
+     * 
+     * @param address the address to send to.
+     */
+    public MetrigoNioSendAdapterImpl(@Nonnull InetSocketAddress address) {
+        this(address, new MetrigoSnapshotQueue(1024, MetrigoSnapshotQueue.OverflowPolicy.DROP_OLDEST),
+             256 * 1024, 100, 30000);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param address the address to send to.
+     * @param queue the queue to hold snapshots until they are sent.
+     * @param sendBufferBytes the size of the send buffer, which limits the size of a frame.
+     * @param minReconnectMillis the backoff after the first failed connection.
+     * @param maxReconnectMillis the longest backoff.
+     */
+    public MetrigoNioSendAdapterImpl(@Nonnull InetSocketAddress address, @Nonnull MetrigoSnapshotQueue queue,
+                                     int sendBufferBytes, long minReconnectMillis, long maxReconnectMillis) {
+        if (sendBufferBytes < 1024) {
+            throw new IllegalArgumentException("Send buffer must be at least 1024 bytes but got " + sendBufferBytes);
+        }
+        if (minReconnectMillis <= 0 || maxReconnectMillis < minReconnectMillis) {
+            throw new IllegalArgumentException("Reconnect backoff must be positive and ordered but got "
+                                               + minReconnectMillis + " to " + maxReconnectMillis);
+        }
+        this.address = address;
+        this.queue = queue;
+        this.sendBuffer = ByteBuffer.allocateDirect(sendBufferBytes);
+        // Every frame takes at least eight bytes.
+        this.frameEnds = new long[sendBufferBytes / 8 + 1];
+        this.minReconnectMillis = minReconnectMillis;
+        this.maxReconnectMillis = maxReconnectMillis;
+        this.running = true;
+    }
+
+    @Override
+    public void sendBatch(@Nonnull MetrigoSnapshot snapshot) {
+        this.queue.offer(snapshot);
+    }
+
+    /**
+     * Stop the adapter, after trying for a short while to send what is queued.
+     */
+    public void shutdown() {
+        this.running = false;
+        Selector current = this.selector;
+        if (current != null) {
+            current.wakeup();
+        }
+        Thread thread = this.runner;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Get the number of snapshots dropped because the queue was full.
+     * 
+     * @return the number of snapshots.
+     */
+    public long getDroppedCount() {
+        return this.queue.getDroppedCount();
+    }
+
+    /**
+     * Get the number of metrics dropped because one alone was too large for the send buffer.
+     * 
+     * @return the number of metrics.
+     */
+    public long getOversizedMetricCount() {
+        return this.oversizedMetrics.get();
+    }
+
+    /**
+     * Get the number of frames lost because the connection failed before they were sent.
+     * 
+     * @return the number of frames.
+     */
+    public long getLostFrameCount() {
+        return this.lostFrames.get();
+    }
+
+    /**
+     * Get the number of frames written to the connection.
+     * 
+     * @return the number of frames.
+     */
+    public long getSentFrameCount() {
+        return this.sentFrames.get();
+    }
+
+    /**
+     * Get the number of times a connection has been made.
+     * 
+     * @return the number of connections.
+     */
+    public long getConnectCount() {
+        return this.connects.get();
+    }
+
+    /**
+     * Work out how long to wait before trying to connect again.
+     * 
+     * The backoff doubles with each failure, up to the maximum, and the wait
+     * is a random time between half the backoff and the whole of it.
+     * 
+     * @param failures the number of failures in a row, at least one.
+     * @param minMillis the first backoff.
+     * @param maxMillis the longest backoff.
+     * @param random the source of jitter.
+     * @return the wait in milliseconds.
+     */
+    @VisibleForTesting
+    static long backoffMillis(int failures, long minMillis, long maxMillis, Random random) {
+        int doublings = Math.min(failures - 1, 62 - (63 - Long.numberOfLeadingZeros(minMillis)));
+        long backoff = Math.min(maxMillis, minMillis << Math.max(0, doublings));
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half + 1));
+    }
+
+    @Override
+    public void run() {
+        this.runner = Thread.currentThread();
+        this.queue.setConsumer(this.runner);
+        int failures = 0;
+        long nextConnect = 0;
+        long deadline = Long.MAX_VALUE;
+        try (Selector opened = Selector.open()) {
+            this.selector = opened;
+            while (true) {
+                if (!this.running) {
+                    if (deadline == Long.MAX_VALUE) {
+                        deadline = System.currentTimeMillis() + SHUTDOWN_MILLIS;
+                    }
+                    if (isIdle() || System.currentTimeMillis() >= deadline) {
+                        break;
+                    }
+                }
+                if (this.channel == null) {
+                    long wait = nextConnect - System.currentTimeMillis();
+                    if (wait > 0) {
+                        if (!this.running) {
+                            // No connection to empty the queue into.
+                            break;
+                        }
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.min(wait, SELECT_MILLIS)));
+                        continue;
+                    }
+                    if (!connect(opened)) {
+                        failures += 1;
+                        nextConnect = System.currentTimeMillis()
+                            + backoffMillis(failures, this.minReconnectMillis, this.maxReconnectMillis,
+                                            ThreadLocalRandom.current());
+                        continue;
+                    }
+                    failures = 0;
+                }
+                try {
+                    fill();
+                    if (this.sendBuffer.position() == 0) {
+                        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                        continue;
+                    }
+                    write(opened);
+                } catch (IOException e) {
+                    disconnect();
+                    failures += 1;
+                    nextConnect = System.currentTimeMillis()
+                        + backoffMillis(failures, this.minReconnectMillis, this.maxReconnectMillis,
+                                        ThreadLocalRandom.current());
+                }
+            }
+        } catch (IOException e) {
+            // The selector could not be opened, so nothing can be sent.
+        } finally {
+            disconnect();
+            this.selector = null;
+            this.queue.setConsumer(null);
+            this.runner = null;
+        }
+    }
+
+    /**
+     * Check if there is nothing left to send.
+     * 
+     * @return true if the queue and the send buffer are empty.
+     */
+    private boolean isIdle() {
+        return this.carried == null && this.pending == null && this.queue.size() == 0
+            && this.sendBuffer.position() == 0;
+    }
+
+    /**
+     * Connect, waiting at most a little while.
+     * 
+     * @param opened the selector.
+     * @return true if connected.
+     */
+    private boolean connect(Selector opened) {
+        SocketChannel connecting = null;
+        try {
+            connecting = SocketChannel.open();
+            connecting.configureBlocking(false);
+            connecting.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+            if (!connecting.connect(this.address)) {
+                SelectionKey key = connecting.register(opened, SelectionKey.OP_CONNECT);
+                long deadline = System.currentTimeMillis() + this.maxReconnectMillis;
+                while (!connecting.finishConnect()) {
+                    if (!this.running || System.currentTimeMillis() >= deadline) {
+                        throw new IOException("Timed out connecting to " + this.address);
+                    }
+                    opened.select(SELECT_MILLIS);
+                    opened.selectedKeys().clear();
+                }
+                key.interestOps(0);
+            }
+            this.channel = connecting;
+            this.connects.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            if (connecting != null) {
+                try {
+                    connecting.close();
+                } catch (IOException ignored) {
+                    // Already failed.
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Drop the connection, losing anything in the send buffer.
+     */
+    private void disconnect() {
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException ignored) {
+                // Going away anyway.
+            }
+            this.channel = null;
+        }
+        this.lostFrames.addAndGet(this.frameCount);
+        this.firstFrame = 0;
+        this.frameCount = 0;
+        this.bytesBuffered = 0;
+        this.bytesWritten = 0;
+        this.sendBuffer.clear();
+    }
+
+    /**
+     * Move snapshots from the queue into the send buffer, while they fit.
+     */
+    private void fill() {
+        while (true) {
+            if (this.pending == null) {
+                MetrigoSnapshot first = (this.carried != null) ? this.carried : this.queue.poll();
+                this.carried = null;
+                if (first == null) {
+                    return;
+                }
+                this.pending = nextFrame(first);
+                if (this.pending == null) {
+                    continue;
+                }
+            }
+            int length = MetrigoSnapshot.encodedLength(this.pending);
+            if (FRAME_HEADER + length > this.sendBuffer.remaining()) {
+                // No room until the buffer has been written.
+                return;
+            }
+            this.sendBuffer.putInt(length);
+            MetrigoSnapshot.encode(this.pending, this.sendBuffer);
+            this.pending = null;
+            this.bytesBuffered += FRAME_HEADER + length;
+            this.frameEnds[(this.firstFrame + this.frameCount) % this.frameEnds.length] = this.bytesBuffered;
+            this.frameCount += 1;
+        }
+    }
+
+    /**
+     * Build the next frame, starting with a snapshot.
+     * 
+     * Following snapshots for the same time are put in the same frame while
+     * it fits in the send buffer. The first snapshot that is not put in the
+     * frame is carried to the next one.
+     * 
+     * @param first the first snapshot.
+     * @return the frame, or null if every metric in the snapshot was too large.
+     */
+    @CheckForNull
+    private MetrigoSnapshot nextFrame(MetrigoSnapshot first) {
+        int limit = this.sendBuffer.capacity() - FRAME_HEADER;
+        long time = first.getTimeMillis();
+        int length = MetrigoSnapshot.encodedLength(first);
+        if (length > limit) {
+            return split(first, limit);
+        }
+        int size = first.size();
+        int entriesLength = length - MetrigoSnapshot.encodedHeaderLength(time, size);
+        MetrigoSnapshot.Builder builder = null;
+        MetrigoSnapshot next;
+        while ((next = this.queue.poll()) != null) {
+            int nextEntriesLength = MetrigoSnapshot.encodedLength(next)
+                - MetrigoSnapshot.encodedHeaderLength(next.getTimeMillis(), next.size());
+            if (next.getTimeMillis() != time
+                || MetrigoSnapshot.encodedHeaderLength(time, size + next.size())
+                   + entriesLength + nextEntriesLength > limit) {
+                this.carried = next;
+                break;
+            }
+            if (builder == null) {
+                builder = new MetrigoSnapshot.Builder(time, size + next.size());
+                addAll(builder, first, 0);
+            }
+            addAll(builder, next, 0);
+            size += next.size();
+            entriesLength += nextEntriesLength;
+        }
+        return (builder != null) ? builder.build() : first;
+    }
+
+    /**
+     * Take as many metrics from the start of a snapshot as fit in a frame.
+     * 
+     * The rest of the snapshot is carried to the next frame. A metric that
+     * does not fit in a frame on its own is dropped.
+     * 
+     * @param snapshot the snapshot, which is too large for one frame.
+     * @param limit the largest encoded length of a frame.
+     * @return the frame, or null if every metric was too large.
+     */
+    @CheckForNull
+    private MetrigoSnapshot split(MetrigoSnapshot snapshot, int limit) {
+        long time = snapshot.getTimeMillis();
+        MetrigoSnapshot.Builder builder = new MetrigoSnapshot.Builder(time, snapshot.size());
+        int entriesLength = 0;
+        int i = 0;
+        for (; i < snapshot.size(); i++) {
+            int entryLength = MetrigoSnapshot.encodedEntryLength(snapshot.getName(i), snapshot.getStatistics(i));
+            if (MetrigoSnapshot.encodedHeaderLength(time, 1) + entryLength > limit) {
+                this.oversizedMetrics.incrementAndGet();
+                continue;
+            }
+            if (MetrigoSnapshot.encodedHeaderLength(time, builder.size() + 1) + entriesLength + entryLength > limit) {
+                break;
+            }
+            builder.add(snapshot.getName(i), snapshot.getStatistics(i));
+            entriesLength += entryLength;
+        }
+        if (i < snapshot.size()) {
+            MetrigoSnapshot.Builder rest = new MetrigoSnapshot.Builder(time, snapshot.size() - i);
+            addAll(rest, snapshot, i);
+            this.carried = rest.build();
+        }
+        return (builder.size() > 0) ? builder.build() : null;
+    }
+
+    /**
+     * Add the metrics of a snapshot to a builder.
+     * 
+     * @param builder the builder.
+     * @param snapshot the snapshot.
+     * @param from the index of the first metric to add.
+     */
+    private static void addAll(MetrigoSnapshot.Builder builder, MetrigoSnapshot snapshot, int from) {
+        for (int i = from; i < snapshot.size(); i++) {
+            builder.add(snapshot.getName(i), snapshot.getStatistics(i));
+        }
+    }
+
+    /**
+     * Write the send buffer, waiting a little while for room on the connection if needed.
+     * 
+     * Frames are counted as sent once their last byte has been written.
+     * 
+     * @param opened the selector.
+     * @throws IOException if the connection fails.
+     */
+    private void write(Selector opened) throws IOException {
+        this.sendBuffer.flip();
+        try {
+            this.bytesWritten += this.channel.write(this.sendBuffer);
+            if (this.sendBuffer.hasRemaining()) {
+                SelectionKey key = this.channel.keyFor(opened);
+                if (key == null) {
+                    key = this.channel.register(opened, SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                opened.select(SELECT_MILLIS);
+                opened.selectedKeys().clear();
+                key.interestOps(0);
+                this.bytesWritten += this.channel.write(this.sendBuffer);
+            }
+        } finally {
+            this.sendBuffer.compact();
+        }
+        int sent = 0;
+        while (this.frameCount > 0 && this.frameEnds[this.firstFrame] <= this.bytesWritten) {
+            this.firstFrame = (this.firstFrame + 1) % this.frameEnds.length;
+            this.frameCount -= 1;
+            sent += 1;
+        }
+        this.sentFrames.addAndGet(sent);
+    }
+}
@@ -0,0 +1,301 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.client.MetrigoMetricAccumulator;
+
+/**
+ * Off-heap storage for the bins of many accumulators.
+ * 
+ * All the bins for all the accumulators live in one direct buffer, so tens of
+ * thousands of metrics cost the garbage collector nothing but a small handle
+ * object each. Each accumulator gets a fixed slot in the buffer, which holds a
+ * header and two phases of bins, and is updated with atomic operations
+ * through a {@link VarHandle}.
+ * 
+ * The slots work like {@link MetrigoPhasedBins}: writers record into the
+ * current phase, marking themselves in flight, and draining flips the phase,
+ * waits for in-flight writers on the old phase, then reads and zeroes it. So
+ * snapshots are exact, and flipping needs no allocation. The header of each
+ * slot is a whole cache line, so the hot phase and in-flight counters of one
+ * slot do not share a line with the bins of its neighbour.
+ * 
+ * Slots are never reused, so the store should be sized for every metric
+ * the process will make. A store can be used as the factory for a
+ * {@link org.metrigo.client.MetrigoRegistry}, using {@code store::newAccumulator}.
+ */
+public class MetrigoOffHeapStore {
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int SPINS_BEFORE_YIELD = 100;
+
+    /**
+     * Longs in the header of a slot: the phase, two in-flight counts, and padding to 64 bytes.
+     */
+    private static final int HEADER_LONGS = 8;
+    private static final int PHASE = 0;
+    private static final int IN_FLIGHT = Long.BYTES;
+
+    private final MetrigoBinLayout layout;
+    private final int binCount;
+    private final int slotBytes;
+    private final int capacity;
+    private final ByteBuffer slab;
+    private final AtomicInteger slots;
+
+    /**
+     * Constructor for a store using the default bin layout.
+     * 
+     * @param capacity the number of accumulators the store can hold.
+     */
+    public MetrigoOffHeapStore(int capacity) {
+        this(capacity, MetrigoBinLayout.DEFAULT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity the number of accumulators the store can hold.
+     * @param layout the layout of the bins.
+     */
+    public MetrigoOffHeapStore(int capacity, @Nonnull MetrigoBinLayout layout) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive but got " + capacity);
+        }
+        this.layout = layout;
+        this.binCount = layout.getBinCount();
+        // Round slots up to whole cache lines, so that every header starts a line.
+        this.slotBytes = ((HEADER_LONGS + 2 * 2 * this.binCount) * Long.BYTES + 63) & ~63;
+        if ((long) capacity * this.slotBytes > Integer.MAX_VALUE - 64) {
+            throw new IllegalArgumentException("Capacity " + capacity + " needs more than 2GB with " + this.binCount + " bins");
+        }
+        this.capacity = capacity;
+        // Align to a cache line, so that atomic access is allowed and headers sit on their own line.
+        // The aligned slice loses up to a line, which the extra line makes up for.
+        this.slab = ByteBuffer.allocateDirect(capacity * this.slotBytes + 64).alignedSlice(64).order(ByteOrder.nativeOrder());
+        this.slots = new AtomicInteger();
+    }
+
+    /**
+     * Make an accumulator in the next free slot.
+     * 
+     * @param metricName the name for the metric.
+     * @return the accumulator.
+     * @throws IllegalStateException if the store is full.
+     */
+    @Nonnull
+    public MetrigoMetricAccumulator newAccumulator(@Nonnull String metricName) {
+        int slot = this.slots.getAndIncrement();
+        if (slot >= this.capacity) {
+            this.slots.decrementAndGet();
+            throw new IllegalStateException("Off heap store is full with " + this.capacity + " accumulators");
+        }
+        return new Accumulator(metricName, slot);
+    }
+
+    /**
+     * Get the number of accumulators that can be made.
+     * 
+     * @return the capacity.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Get the number of accumulators that have been made.
+     * 
+     * @return the number of used slots.
+     */
+    public int size() {
+        return Math.min(this.slots.get(), this.capacity);
+    }
+
+    /**
+     * Get the layout of the bins.
+     * 
+     * @return the layout.
+     */
+    public MetrigoBinLayout getLayout() {
+        return this.layout;
+    }
+
+    /**
+     * Get the byte index of a bin's count.
+     * 
+     * @param base the byte index of the slot.
+     * @param phase the phase.
+     * @param bin the bin.
+     * @return the byte index, the total follows it.
+     */
+    private int binIndex(int base, int phase, int bin) {
+        return base + (HEADER_LONGS + (phase * this.binCount + bin) * 2) * Long.BYTES;
+    }
+
+    /**
+     * Record a value into a slot.
+     * 
+     * @param slot the slot.
+     * @param value the value, in microseconds.
+     */
+    void record(int slot, long value) {
+        int bin = this.layout.getBin(value);
+        int base = slot * this.slotBytes;
+        int phase;
+        while (true) {
+            phase = (int) (long) LONGS.getVolatile(this.slab, base + PHASE);
+            LONGS.getAndAdd(this.slab, base + IN_FLIGHT + phase * Long.BYTES, 1L);
+            if ((int) (long) LONGS.getVolatile(this.slab, base + PHASE) == phase) {
+                break;
+            }
+            // We raced with a flip, back out and use the new phase.
+            LONGS.getAndAdd(this.slab, base + IN_FLIGHT + phase * Long.BYTES, -1L);
+        }
+        int index = binIndex(base, phase, bin);
+        LONGS.getAndAdd(this.slab, index, 1L);
+        LONGS.getAndAdd(this.slab, index + Long.BYTES, value);
+        LONGS.getAndAdd(this.slab, base + IN_FLIGHT + phase * Long.BYTES, -1L);
+    }
+
+    /**
+     * Flip the phase of a slot and wait for writers on the old phase to finish.
+     * 
+     * @param base the byte index of the slot.
+     * @return the old phase, which is now safe to read.
+     */
+    private int flip(int base) {
+        int old = (int) (long) LONGS.getVolatile(this.slab, base + PHASE);
+        LONGS.setVolatile(this.slab, base + PHASE, (long) (1 - old));
+
+        int spins = 0;
+        while ((long) LONGS.getVolatile(this.slab, base + IN_FLIGHT + old * Long.BYTES) != 0) {
+            if (++spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Drain a slot, adding it to a pair of arrays.
+     * 
+     * This must not be called concurrently with itself for the same slot.
+     * 
+     * @param slot the slot.
+     * @param counts the counts to add to, one per bin.
+     * @param totals the totals to add to, one per bin.
+     * @return the number of samples drained.
+     */
+    long drainInto(int slot, long [] counts, long [] totals) {
+        int base = slot * this.slotBytes;
+        int old = flip(base);
+        long drained = 0;
+        for (int bin = 0; bin < this.binCount; bin++) {
+            int index = binIndex(base, old, bin);
+            long count = (long) LONGS.getVolatile(this.slab, index);
+            if (count != 0) {
+                counts[bin] += count;
+                totals[bin] += (long) LONGS.getVolatile(this.slab, index + Long.BYTES);
+                drained += count;
+                LONGS.setVolatile(this.slab, index, 0L);
+                LONGS.setVolatile(this.slab, index + Long.BYTES, 0L);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Drain a slot into new statistics.
+     * 
+     * Nothing is allocated if the slot is empty.
+     * 
+     * This must not be called concurrently with itself for the same slot.
+     * 
+     * @param slot the slot.
+     * @return the statistics, or null if there were no samples.
+     */
+    @CheckForNull
+    MetrigoStatistics drain(int slot) {
+        int base = slot * this.slotBytes;
+        int old = flip(base);
+        boolean empty = true;
+        for (int bin = 0; bin < this.binCount && empty; bin++) {
+            empty = (long) LONGS.getVolatile(this.slab, binIndex(base, old, bin)) == 0;
+        }
+        if (empty) {
+            return null;
+        }
+        long [] counts = new long[this.binCount];
+        long [] totals = new long[this.binCount];
+        for (int bin = 0; bin < this.binCount; bin++) {
+            int index = binIndex(base, old, bin);
+            counts[bin] = (long) LONGS.getVolatile(this.slab, index);
+            totals[bin] = (long) LONGS.getVolatile(this.slab, index + Long.BYTES);
+            LONGS.setVolatile(this.slab, index, 0L);
+            LONGS.setVolatile(this.slab, index + Long.BYTES, 0L);
+        }
+        return new MetrigoStatistics(this.layout, counts, totals);
+    }
+
+    /**
+     * An accumulator backed by a slot in the store.
+     */
+    private final class Accumulator implements MetrigoMetricAccumulator {
+        @Nonnull private final String name;
+        private final int slot;
+
+        /**
+         * Constructor.
+         * 
+         * @param metricName the name for this metric.
+         * @param slot the slot in the store.
+         */
+        Accumulator(@Nonnull String metricName, int slot) {
+            this.name = metricName;
+            this.slot = slot;
+        }
+
+        @Override
+        @Nonnull
+        public String getMetricName() {
+            return this.name;
+        }
+
+        @Override
+        public void addSample(long timeInMicroSeconds) {
+            record(this.slot, timeInMicroSeconds);
+        }
+
+        @Override
+        @CheckForNull
+        public synchronized MetrigoStatistics sampleStats() {
+            return drain(this.slot);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.CheckForNull;
+
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoStatistics;
+
+/**
+ * A double buffered set of bins.
+ * 
+ * Writers record into the bins of the current phase, and a reader drains the
+ * bins by flipping the phase and then waiting for any writer that is still
+ * using the old phase to finish. Writers never block: they only retry if they
+ * raced with a phase flip.
+ * 
+ * Counts and totals for a bin are kept next to each other so that a sample
+ * touches a single cache line.
+ */
+class MetrigoPhasedBins {
+    private static final int SPINS_BEFORE_YIELD = 100;
+
+    private final int binCount;
+    private final AtomicLongArray values;
+    private final AtomicLongArray inFlight;
+    private volatile int phase;
+
+    /**
+     * Constructor.
+     * 
+     * @param binCount the number of bins in each phase.
+     */
+    MetrigoPhasedBins(int binCount) {
+        this.binCount = binCount;
+        this.values = new AtomicLongArray(2 * 2 * binCount);
+        this.inFlight = new AtomicLongArray(2);
+        this.phase = 0;
+    }
+
+    /**
+     * Record a value into a bin.
+     * 
+     * @param bin the bin to update.
+     * @param total the number of microseconds to add.
+     */
+    void record(int bin, long total) {
+        int current;
+        while (true) {
+            current = this.phase;
+            this.inFlight.incrementAndGet(current);
+            if (this.phase == current) {
+                break;
+            }
+            // We raced with a flip, back out and use the new phase.
+            this.inFlight.decrementAndGet(current);
+        }
+        int index = (current * this.binCount + bin) * 2;
+        this.values.getAndIncrement(index);
+        this.values.getAndAdd(index + 1, total);
+        this.inFlight.decrementAndGet(current);
+    }
+
+    /**
+     * Drain the bins, adding them to a pair of arrays.
+     * 
+     * This method must not be called concurrently with itself on the same
+     * instance. Every recorded sample is drained exactly once, with its count
+     * and total always in the same drain.
+     * 
+     * @param counts the counts to add to.
+     * @param totals the totals to add to.
+     * @return the number of samples drained.
+     */
+    long drainInto(long [] counts, long [] totals) {
+        int old = flip();
+        long drained = 0;
+        int base = old * this.binCount * 2;
+        for (int bin = 0; bin < this.binCount; bin++) {
+            int index = base + bin * 2;
+            long count = this.values.get(index);
+            if (count != 0) {
+                counts[bin] += count;
+                totals[bin] += this.values.get(index + 1);
+                drained += count;
+                this.values.set(index, 0);
+                this.values.set(index + 1, 0);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Drain the bins into new statistics.
+     * 
+     * Nothing is allocated if there were no samples. This method must not be
+     * called concurrently with itself, or with {@link #drainInto(long[], long[])}.
+     * 
+     * @param layout the layout of the bins.
+     * @return the statistics, or null if there were no samples.
+     */
+    @CheckForNull
+    MetrigoStatistics drain(MetrigoBinLayout layout) {
+        int old = flip();
+        int base = old * this.binCount * 2;
+        boolean empty = true;
+        for (int bin = 0; bin < this.binCount && empty; bin++) {
+            empty = this.values.get(base + bin * 2) == 0;
+        }
+        if (empty) {
+            return null;
+        }
+        long [] counts = new long[this.binCount];
+        long [] totals = new long[this.binCount];
+        for (int bin = 0; bin < this.binCount; bin++) {
+            int index = base + bin * 2;
+            counts[bin] = this.values.get(index);
+            totals[bin] = this.values.get(index + 1);
+            this.values.set(index, 0);
+            this.values.set(index + 1, 0);
+        }
+        return new MetrigoStatistics(layout, counts, totals);
+    }
+
+    /**
+     * Flip the phase and wait for writers on the old phase to finish.
+     * 
+     * @return the old phase, which is now safe to read.
+     */
+    private int flip() {
+        int old = this.phase;
+        this.phase = 1 - old;
+
+        int spins = 0;
+        while (this.inFlight.get(old) != 0) {
+            if (++spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return old;
+    }
+}
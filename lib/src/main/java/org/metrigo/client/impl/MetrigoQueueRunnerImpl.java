@@ -16,40 +16,307 @@ package org.metrigo.client.impl;
  * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
  */
 
-import java.util.Date;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.MetrigoStatistics;
 import org.metrigo.client.MetrigoMetricAccumulator;
+import org.metrigo.client.MetrigoRegistry;
 import org.metrigo.client.MetrigoSendAdapter;
 
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * The runner that periodically flushes accumulators to a send adapter.
+ * 
+ * This is meant to be run on its own thread. Flushes are aligned to wall
+ * clock boundaries that are a multiple of the sampling interval (so with a
+ * one minute interval, flushes happen on the minute), and each flush is
+ * stamped with its boundary, so intervals from different hosts line up. The
+ * next boundary is always computed from the clock rather than by adding up
+ * sleeps, so there is no cumulative drift. If a flush runs so late that it
+ * misses boundaries, those boundaries are skipped rather than flushed in a
+ * burst.
+ * 
+ * Call {@link #shutdown()} to stop the runner. It does one final flush of
+ * whatever has been gathered, stamped with the boundary that ends the current
+ * interval, before {@link #run()} returns.
+ * 
+ * The runner either sends to the adapter itself, or puts each snapshot on a
+ * {@link MetrigoSnapshotQueue} for a {@link MetrigoSendRunnerImpl} on another
+ * thread to send, so that a slow adapter does not delay gathering.
+ * 
+ * The accumulators to flush are held in a {@link MetrigoRegistry}, which may
+ * be shared with the code that records samples.
+ */
 public class MetrigoQueueRunnerImpl implements Runnable {
+    private static final long MICROS_PER_MILLI = 1000L;
+
     private final long samplingIntervalMillis;
-    private final ConcurrentHashMap<String, MetrigoMetricAccumulator> accumulators;
-    private final MetrigoSendAdapter sendAdapter;
+    private final MetrigoRegistry registry;
+    private final ConcurrentLinkedQueue<MetrigoMetricAccumulator> retired;
+    @CheckForNull private final MetrigoSendAdapter sendAdapter;
+    @CheckForNull private final MetrigoSnapshotQueue queue;
+    private volatile boolean running;
+    private volatile MetrigoMetricAccumulator latenessAccumulator;
+    private volatile long lastFlushLatenessMillis;
+
+    /**
+     * Constructor.
+     * 
+     * @param samplingIntervalMillis the interval between flushes.
+     * @param sendAdapter the adapter to send to.
+     */
+    public MetrigoQueueRunnerImpl(long samplingIntervalMillis, @Nonnull MetrigoSendAdapter sendAdapter) {
+        this(samplingIntervalMillis, new MetrigoRegistry(), sendAdapter, null);
+    }
 
-    public MetrigoQueueRunnerImpl(long samplingIntervalMillis, MetrigoSendAdapter sendAdapter) {
+    /**
+     * Constructor.
+     * 
+     * @param samplingIntervalMillis the interval between flushes.
+     * @param registry the registry of accumulators to flush.
+     * @param sendAdapter the adapter to send to.
+     */
+    public MetrigoQueueRunnerImpl(long samplingIntervalMillis, @Nonnull MetrigoRegistry registry,
+                                  @Nonnull MetrigoSendAdapter sendAdapter) {
+        this(samplingIntervalMillis, registry, sendAdapter, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param samplingIntervalMillis the interval between flushes.
+     * @param queue the queue to put snapshots on.
+     */
+    public MetrigoQueueRunnerImpl(long samplingIntervalMillis, @Nonnull MetrigoSnapshotQueue queue) {
+        this(samplingIntervalMillis, new MetrigoRegistry(), null, queue);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param samplingIntervalMillis the interval between flushes.
+     * @param registry the registry of accumulators to flush.
+     * @param queue the queue to put snapshots on.
+     */
+    public MetrigoQueueRunnerImpl(long samplingIntervalMillis, @Nonnull MetrigoRegistry registry,
+                                  @Nonnull MetrigoSnapshotQueue queue) {
+        this(samplingIntervalMillis, registry, null, queue);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param samplingIntervalMillis the interval between flushes.
+     * @param registry the registry of accumulators to flush.
+     * @param sendAdapter the adapter to send to, if there is no queue.
+     * @param queue the queue to put snapshots on, if there is no adapter.
+     */
+    private MetrigoQueueRunnerImpl(long samplingIntervalMillis, MetrigoRegistry registry,
+                                   @CheckForNull MetrigoSendAdapter sendAdapter,
+                                   @CheckForNull MetrigoSnapshotQueue queue) {
+        if (samplingIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Sampling interval must be positive but got " + samplingIntervalMillis);
+        }
         this.samplingIntervalMillis = samplingIntervalMillis;
-        this.accumulators = new ConcurrentHashMap<>();
+        this.registry = registry;
+        this.retired = new ConcurrentLinkedQueue<>();
         this.sendAdapter = sendAdapter;
+        this.queue = queue;
+        this.running = true;
+    }
+
+    /**
+     * Get the registry of accumulators that are flushed.
+     * 
+     * @return the registry.
+     */
+    public MetrigoRegistry getRegistry() {
+        return this.registry;
+    }
+
+    /**
+     * Register an accumulator to be flushed.
+     * 
+     * @param accumulator the accumulator.
+     * @return true if it was registered, false if another accumulator already has the same name.
+     */
+    public boolean register(@Nonnull MetrigoMetricAccumulator accumulator) {
+        return this.registry.register(accumulator) != MetrigoRegistry.NO_HANDLE;
+    }
+
+    /**
+     * Deregister an accumulator.
+     * 
+     * Any samples that it has gathered are sent with the next flush.
+     * 
+     * @param metricName the name of the accumulator.
+     * @return the accumulator that was removed, or null if there was none.
+     */
+    @CheckForNull
+    public MetrigoMetricAccumulator deregister(@Nonnull String metricName) {
+        MetrigoMetricAccumulator removed = this.registry.remove(metricName);
+        if (removed != null) {
+            this.retired.add(removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Set an accumulator to record how late each flush ran.
+     * 
+     * The lateness is the time from the interval boundary to the start of the
+     * flush. The accumulator is not flushed unless it is also registered.
+     * 
+     * @param accumulator the accumulator, or null for none.
+     */
+    public void setFlushLatenessAccumulator(@CheckForNull MetrigoMetricAccumulator accumulator) {
+        this.latenessAccumulator = accumulator;
+    }
+
+    /**
+     * Get how late the last flush ran.
+     * 
+     * @return the time from the interval boundary to the start of the last flush.
+     */
+    public long getLastFlushLatenessMillis() {
+        return this.lastFlushLatenessMillis;
+    }
+
+    /**
+     * Stop the runner.
+     * 
+     * The runner does a final flush and then returns from {@link #run()}. It
+     * is woken from its sleep rather than interrupted, so a flush that is
+     * sending is not disturbed.
+     */
+    public synchronized void shutdown() {
+        this.running = false;
+        notifyAll();
+    }
+
+    /**
+     * Get the first interval boundary after a time.
+     * 
+     * @param timeMillis the time.
+     * @return the next boundary.
+     */
+    @VisibleForTesting
+    long nextBoundary(long timeMillis) {
+        return (Math.floorDiv(timeMillis, this.samplingIntervalMillis) + 1) * this.samplingIntervalMillis;
     }
 
     @Override
     public void run() {
-        long adjustmentTime = 0;
-        while (true) {
-            try {
-                Thread.sleep(this.samplingIntervalMillis - adjustmentTime);
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException("Interrupted", ie);
+        long next = nextBoundary(System.currentTimeMillis());
+
+        while (this.running) {
+            long now = System.currentTimeMillis();
+            if (now < next) {
+                if (next - now > this.samplingIntervalMillis) {
+                    // The clock went backwards, start again from the new time.
+                    next = nextBoundary(now);
+                    continue;
+                }
+                try {
+                    sleep(next - now);
+                } catch (InterruptedException ie) {
+                    // Interrupted by something other than shutdown, pass it on
+                    // after the final flush, so that it does not break sending.
+                    flush(next);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
             }
-            long startTime = System.nanoTime();
-            Date startDate = new Date();
-            for (Map.Entry<String, MetrigoMetricAccumulator> entry : accumulators.entrySet()) {
-                this.sendAdapter.sendMetrics(entry.getKey(), startDate, entry.getValue().sampleStats());
+            recordLateness(now - next);
+            flush(next);
+            next = nextBoundary(now);
+        }
+
+        // Final flush of whatever was gathered since the last boundary,
+        // stamped with the boundary that ends the interval.
+        flush(next);
+    }
+
+    /**
+     * Wait until a time has passed, or for a shutdown.
+     * 
+     * @param millis the time to wait.
+     * @throws InterruptedException if the thread was interrupted.
+     */
+    private synchronized void sleep(long millis) throws InterruptedException {
+        if (this.running) {
+            wait(millis);
+        }
+    }
+
+    /**
+     * Record how late a flush ran.
+     * 
+     * @param latenessMillis the lateness.
+     */
+    private void recordLateness(long latenessMillis) {
+        this.lastFlushLatenessMillis = latenessMillis;
+        MetrigoMetricAccumulator accumulator = this.latenessAccumulator;
+        if (accumulator != null) {
+            accumulator.addSample(latenessMillis * MICROS_PER_MILLI);
+        }
+    }
+
+    /**
+     * Flush all accumulators to the send adapter or queue.
+     * 
+     * Accumulators with no samples are left out.
+     * 
+     * @param timeMillis the time to stamp the statistics with.
+     */
+    @VisibleForTesting
+    void flush(long timeMillis) {
+        MetrigoSnapshot snapshot = gather(timeMillis);
+        if (this.queue != null) {
+            this.queue.offer(snapshot);
+        } else {
+            MetrigoSendRunnerImpl.send(this.sendAdapter, snapshot);
+        }
+    }
+
+    /**
+     * Gather all accumulators into one snapshot.
+     * 
+     * @param timeMillis the time of the snapshot.
+     * @return the snapshot.
+     */
+    private MetrigoSnapshot gather(long timeMillis) {
+        int size = this.registry.size();
+        MetrigoSnapshot.Builder builder = new MetrigoSnapshot.Builder(timeMillis, size);
+        for (int handle = 0; handle < size; handle++) {
+            MetrigoMetricAccumulator accumulator = this.registry.get(handle);
+            if (accumulator != null) {
+                add(builder, accumulator);
             }
-            adjustmentTime = (System.nanoTime() - startTime)/1000000000L;
+        }
+        MetrigoMetricAccumulator accumulator;
+        while ((accumulator = this.retired.poll()) != null) {
+            add(builder, accumulator);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Add the statistics for an accumulator to a snapshot, if it had any samples.
+     * 
+     * @param builder the snapshot being built.
+     * @param accumulator the accumulator.
+     */
+    private static void add(MetrigoSnapshot.Builder builder, MetrigoMetricAccumulator accumulator) {
+        MetrigoStatistics stats = accumulator.sampleStats();
+        if (stats != null) {
+            builder.add(accumulator.getMetricName(), stats);
         }
     }
 }
@@ -0,0 +1,254 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.BiConsumer;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.metrigo.client.MetrigoClock;
+import org.metrigo.client.MetrigoMetricAccumulator;
+import org.metrigo.client.MetrigoSample;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Asynchronous implementation for a metrigo sampler.
+ * 
+ * This sampler can be started on one thread and finished on another, for
+ * example from a {@link CompletionStage} callback, a thread pool task or a
+ * virtual thread. It times with the monotonic {@link System#nanoTime()},
+ * which is consistent across threads, and rounds to the nearest microsecond,
+ * so short operations land in the right bin rather than all in the first.
+ * Another {@link MetrigoClock} can be given instead of the system clock, as
+ * long as it is safe to read from any thread.
+ * 
+ * Only the first of {@link #finish(MetrigoMetricAccumulator)}, {@link #close()}
+ * or {@link #accept(Object, Throwable)} records a sample, however many
+ * threads race to finish it.
+ * 
+ * The sampler is also a callback for {@link CompletionStage#whenComplete},
+ * recording into the success or the error accumulator depending on how the
+ * stage completed. {@link #whenComplete(CompletionStage, MetrigoMetricAccumulator, MetrigoMetricAccumulator)}
+ * and {@link #wrap(Callable, MetrigoMetricAccumulator, MetrigoMetricAccumulator)}
+ * do this with no wrapper or lambda beyond the sampler itself, though
+ * {@link CompletionStage#whenComplete} still allocates its own dependent
+ * stage and completion node.
+ */
+public class MetrigoSampleAsyncImpl implements MetrigoSample, BiConsumer<Object, Throwable> {
+    private static final AtomicIntegerFieldUpdater<MetrigoSampleAsyncImpl> FINISHED =
+        AtomicIntegerFieldUpdater.newUpdater(MetrigoSampleAsyncImpl.class, "finished");
+    private static final long NANOS_PER_MICRO = 1000L;
+    private static final long HALF_MICRO_NANOS = 500L;
+
+    @CheckForNull private MetrigoMetricAccumulator successStats;
+    @CheckForNull private MetrigoMetricAccumulator errorStats;
+    private final MetrigoClock clock;
+    private long startNanoTime;
+    // Written after the other fields, so a thread that sees it also sees them.
+    private volatile int finished;
+
+    /**
+     * A sampler that times a task from when it is wrapped until it has run.
+     * 
+     * @param <T> the result of the task.
+     */
+    private static final class TimedCallable<T> extends MetrigoSampleAsyncImpl implements Callable<T> {
+        private final Callable<T> task;
+
+        /**
+         * Constructor.
+         * 
+         * @param task the task to time.
+         */
+        TimedCallable(Callable<T> task) {
+            super(MetrigoSystemClock.INSTANCE);
+            this.task = task;
+        }
+
+        @Override
+        public T call() throws Exception {
+            T result;
+            try {
+                result = this.task.call();
+            } catch (Exception | Error e) {
+                accept(null, e);
+                throw e;
+            }
+            accept(result, null);
+            return result;
+        }
+    }
+
+    /**
+     * Constructor.
+     */
+    public MetrigoSampleAsyncImpl() {
+        this(MetrigoSystemClock.INSTANCE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param clock the clock to time with.
+     */
+    public MetrigoSampleAsyncImpl(@Nonnull MetrigoClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Set the error statistics for this sample.
+     * 
+     * These are recorded into if the sample is closed without being finished,
+     * or the stage it is watching fails.
+     * 
+     * @param errorStats the new error stats to set.
+     */
+    public void setErrorStats(@CheckForNull MetrigoMetricAccumulator errorStats) {
+        this.errorStats = errorStats;
+    }
+
+    /**
+     * Set the success statistics for this sample.
+     * 
+     * These are recorded into if the stage it is watching succeeds.
+     * 
+     * @param successStats the new success stats to set.
+     */
+    public void setSuccessStats(@CheckForNull MetrigoMetricAccumulator successStats) {
+        this.successStats = successStats;
+    }
+
+    /**
+     * Check if the sample has been finished, or closed.
+     * 
+     * @return true if it has been finished.
+     */
+    public boolean isFinished() {
+        return this.finished != 0;
+    }
+
+    @Override
+    public void start() {
+        this.startNanoTime = this.clock.nanoTime();
+        this.finished = 0;
+    }
+
+    @Override
+    public void finish(@Nonnull MetrigoMetricAccumulator stats) {
+        if (FINISHED.compareAndSet(this, 0, 1)) {
+            stats.addSample(toMicros(this.clock.nanoTime() - this.startNanoTime));
+        }
+    }
+
+    @Override
+    public void close() {
+        MetrigoMetricAccumulator stats = this.errorStats;
+        if (stats != null) {
+            finish(stats);
+        } else {
+            FINISHED.set(this, 1);
+        }
+    }
+
+    /**
+     * Finish the sample when a stage completes.
+     * 
+     * @param result the result of the stage, which is ignored.
+     * @param error the failure of the stage, or null if it succeeded.
+     */
+    @Override
+    public void accept(@CheckForNull Object result, @CheckForNull Throwable error) {
+        MetrigoMetricAccumulator stats = error == null ? this.successStats : this.errorStats;
+        if (stats != null) {
+            finish(stats);
+        } else {
+            FINISHED.set(this, 1);
+        }
+    }
+
+    /**
+     * Convert a time in nanoseconds to microseconds, rounding half to even.
+     * 
+     * @param nanoTime the time in nanoseconds.
+     * @return the time in microseconds, never negative.
+     */
+    @VisibleForTesting
+    static long toMicros(long nanoTime) {
+        if (nanoTime <= 0) {
+            return 0;
+        }
+        long microTime = nanoTime / NANOS_PER_MICRO;
+        long remainder = nanoTime % NANOS_PER_MICRO;
+        if (remainder > HALF_MICRO_NANOS || (remainder == HALF_MICRO_NANOS && (microTime & 1) == 1)) {
+            microTime += 1;
+        }
+        return microTime;
+    }
+
+    /**
+     * Time a stage from now until it completes.
+     * 
+     * The sampler is the callback, so there is no lambda, but the stage still
+     * allocates the dependent stage that {@link CompletionStage#whenComplete}
+     * returns.
+     * 
+     * @param <T> the result of the stage.
+     * @param <S> the type of the stage.
+     * @param stage the stage to time.
+     * @param successStats the accumulator to record into if the stage succeeds.
+     * @param errorStats the accumulator to record into if the stage fails.
+     * @return the same stage.
+     */
+    public static <T, S extends CompletionStage<T>> S whenComplete(@Nonnull S stage,
+                                                                  @CheckForNull MetrigoMetricAccumulator successStats,
+                                                                  @CheckForNull MetrigoMetricAccumulator errorStats) {
+        MetrigoSampleAsyncImpl sample = new MetrigoSampleAsyncImpl();
+        sample.setSuccessStats(successStats);
+        sample.setErrorStats(errorStats);
+        sample.start();
+        stage.whenComplete(sample);
+        return stage;
+    }
+
+    /**
+     * Wrap a task so that it is timed from now until it has run.
+     * 
+     * When the task is handed to another thread, the time includes the wait
+     * to be run. A task that throws is recorded as an error, and the
+     * exception is passed on.
+     * 
+     * @param <T> the result of the task.
+     * @param task the task to time.
+     * @param successStats the accumulator to record into if the task succeeds.
+     * @param errorStats the accumulator to record into if the task throws.
+     * @return the wrapped task, which should be run once.
+     */
+    public static <T> Callable<T> wrap(@Nonnull Callable<T> task,
+                                       @CheckForNull MetrigoMetricAccumulator successStats,
+                                       @CheckForNull MetrigoMetricAccumulator errorStats) {
+        TimedCallable<T> sample = new TimedCallable<>(task);
+        sample.setSuccessStats(successStats);
+        sample.setErrorStats(errorStats);
+        sample.start();
+        return sample;
+    }
+}
@@ -29,6 +29,8 @@ import com.google.common.annotations.VisibleForTesting;
  * timer, as it has built in biases, and will likely give you biased results. That
  * said, if you are consistently using this sampler, and you are doing cross thread
  * timing that is typically multiple milli-seconds, you should get reasonable results.
+ * {@link MetrigoSampleAsyncImpl} times across threads with nanosecond precision,
+ * and should be preferred.
  * 
  * @author Gordon Oliver
  */
@@ -16,6 +16,7 @@ package org.metrigo.client.impl;
  * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
  */
 
+import org.metrigo.client.MetrigoClock;
 import org.metrigo.client.MetrigoMetricAccumulator;
 import org.metrigo.client.MetrigoSample;
 
@@ -28,16 +29,41 @@ import com.google.common.annotations.VisibleForTesting;
  * accurate, but thread specific Nano Time counter from Java. There is careful
  * logic to avoid biasing down due to rounding.
  * 
+ * The time comes from a {@link MetrigoClock}, which defaults to the system
+ * clock.
+ * 
  * @author Gordon Oliver
  */
 public class MetrigoSampleSingleThreadImpl implements MetrigoSample {
     private MetrigoMetricAccumulator errorStats;
+    private MetrigoClock clock;
     private long startNanoTime;
 
     /**
      * Constructor.
      */
     public MetrigoSampleSingleThreadImpl() {
+        this(MetrigoSystemClock.INSTANCE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param clock the clock to time with.
+     */
+    public MetrigoSampleSingleThreadImpl(MetrigoClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Set the clock to time with.
+     * 
+     * This is for reusable samplers, and must not be called while a sample is running.
+     * 
+     * @param clock the clock.
+     */
+    void setClock(MetrigoClock clock) {
+        this.clock = clock;
     }
 
     /**
@@ -56,9 +82,9 @@ public class MetrigoSampleSingleThreadImpl implements MetrigoSample {
          }
     }
 
-    private static long NANOS_PER_MICRO = 1000000L;
-    private static long NANOS_FOR_ROUND_EVEN = 499999L;
-    private static long NANOS_FOR_ROUND_ODD = 500000L;
+    private static long NANOS_PER_MICRO = 1000L;
+    private static long NANOS_FOR_ROUND_EVEN = 499L;
+    private static long NANOS_FOR_ROUND_ODD = 500L;
 
     @VisibleForTesting
     void addSample(MetrigoMetricAccumulator stats, long nanoTime) {
@@ -72,11 +98,11 @@ public class MetrigoSampleSingleThreadImpl implements MetrigoSample {
 
     @Override
     public void finish(MetrigoMetricAccumulator stats) {
-        addSample(stats, System.nanoTime() - this.startNanoTime);
+        addSample(stats, this.clock.nanoTime() - this.startNanoTime);
     }
 
     @Override
     public void start() {
-       this.startNanoTime = System.nanoTime();
+       this.startNanoTime = this.clock.nanoTime();
     }
 }
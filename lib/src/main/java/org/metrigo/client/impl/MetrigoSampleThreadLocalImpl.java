@@ -0,0 +1,128 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+import org.metrigo.client.MetrigoClock;
+
+/**
+ * Reusable single threaded implementation for a metrigo sampler.
+ * 
+ * Each thread keeps a small stack of these samplers. Acquiring a sampler takes
+ * the next one off the stack, and closing it gives it back, so in the steady
+ * state no samplers are allocated. Nested samples on one thread each get their
+ * own sampler from deeper in the stack.
+ * 
+ * Because the instance is handed out again once it is closed, a sampler must
+ * not be used after it is closed, and must be closed on the thread that
+ * acquired it. The try-with-resources form takes care of both.
+ */
+public class MetrigoSampleThreadLocalImpl extends MetrigoSampleSingleThreadImpl {
+    private static final ThreadLocal<SampleStack> STACKS = ThreadLocal.withInitial(SampleStack::new);
+
+    /**
+     * The per thread stack of samplers.
+     */
+    private static final class SampleStack {
+        private MetrigoSampleThreadLocalImpl [] samples = new MetrigoSampleThreadLocalImpl[4];
+        private int depth;
+
+        /**
+         * Take the next free sampler, allocating only if we are nested deeper than ever before.
+         * 
+         * @return the sampler.
+         */
+        MetrigoSampleThreadLocalImpl acquire() {
+            if (this.depth == this.samples.length) {
+                this.samples = Arrays.copyOf(this.samples, this.samples.length * 2);
+            }
+            MetrigoSampleThreadLocalImpl sample = this.samples[this.depth];
+            if (sample == null) {
+                sample = new MetrigoSampleThreadLocalImpl(this);
+                this.samples[this.depth] = sample;
+            }
+            this.depth += 1;
+            sample.inUse = true;
+            return sample;
+        }
+
+        /**
+         * Give back a sampler.
+         * 
+         * Samplers are normally released in the reverse order to which they
+         * were acquired. If not, the sampler is only popped once everything
+         * above it has also been released.
+         * 
+         * @param sample the sampler to release.
+         */
+        void release(MetrigoSampleThreadLocalImpl sample) {
+            sample.inUse = false;
+            while (this.depth > 0 && !this.samples[this.depth - 1].inUse) {
+                this.depth -= 1;
+            }
+        }
+    }
+
+    private final SampleStack owner;
+    private boolean inUse;
+
+    /**
+     * Constructor.
+     * 
+     * @param owner the stack that this sampler is returned to.
+     */
+    private MetrigoSampleThreadLocalImpl(SampleStack owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Get a sampler for the current thread.
+     * 
+     * The sampler has no error statistics set, and has not been started.
+     * 
+     * @return the sampler.
+     */
+    public static MetrigoSampleThreadLocalImpl acquire() {
+        return acquire(MetrigoSystemClock.INSTANCE);
+    }
+
+    /**
+     * Get a sampler for the current thread that times with a clock.
+     * 
+     * The sampler has no error statistics set, and has not been started.
+     * 
+     * @param clock the clock to time with.
+     * @return the sampler.
+     */
+    public static MetrigoSampleThreadLocalImpl acquire(MetrigoClock clock) {
+        MetrigoSampleThreadLocalImpl sample = STACKS.get().acquire();
+        sample.setErrorStats(null);
+        sample.setClock(clock);
+        return sample;
+    }
+
+    @Override
+    public void close() {
+        if (!this.inUse) {
+            // Already given back.
+            return;
+        }
+        super.close();
+        this.owner.release(this);
+    }
+}
@@ -0,0 +1,169 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.client.MetrigoMetricAccumulator;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Sampling metrics accumulator implementation.
+ * 
+ * This accumulator is meant for metrics that are recorded so often that even
+ * an atomic increment per sample costs too much. Each thread counts down in
+ * a thread local, and only records a sample when its countdown runs out, so
+ * only about 1 in N samples touches shared memory. The countdown is drawn at
+ * random with a mean of N, so a periodic workload cannot line up with it.
+ * When the statistics are sampled, the counts and totals are scaled back up
+ * by N, and N is carried in the statistics as the sampling interval.
+ * 
+ * N can be fixed, or adapt to the rate. When adapting, N is set after each
+ * sample of the statistics so that the next interval records about a target
+ * number of samples at the rate just seen. N goes up straight away, but only
+ * halves at most each interval, so a pause does not leave the next burst
+ * recording everything. A countdown that was started before N changed runs
+ * out with the old N, which slightly skews the first sample of each thread.
+ */
+public class MetrigoSampledMetricsAccumulatorImpl implements MetrigoMetricAccumulator {
+    /**
+     * The largest sampling interval.
+     */
+    public static final int MAX_SAMPLING_INTERVAL = 1 << 20;
+
+    private final MetrigoPhasedBins bins;
+    private final ThreadLocal<int []> countdowns = ThreadLocal.withInitial(() -> new int [] { nextCountdown() });
+    private final long targetSamples;
+    @Nonnull private final String name;
+    @Nonnull private final MetrigoBinLayout layout;
+    private volatile int samplingInterval;
+
+    /**
+     * Constructor for a fixed sampling interval.
+     * 
+     * @param metricName the name for this metric.
+     * @param samplingInterval the mean number of samples for each one recorded.
+     */
+    public MetrigoSampledMetricsAccumulatorImpl(@Nonnull String metricName, int samplingInterval) {
+        this(metricName, MetrigoBinLayout.DEFAULT, samplingInterval, 0);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param metricName the name for this metric.
+     * @param layout the layout of the bins to accumulate into.
+     * @param samplingInterval the mean number of samples for each one recorded, to start with if adapting.
+     * @param targetSamples the number of samples to record in each interval when adapting, or 0 for a fixed interval.
+     */
+    public MetrigoSampledMetricsAccumulatorImpl(@Nonnull String metricName, @Nonnull MetrigoBinLayout layout,
+                                                int samplingInterval, long targetSamples) {
+        if (samplingInterval < 1 || samplingInterval > MAX_SAMPLING_INTERVAL) {
+            throw new IllegalArgumentException("Sampling interval must be between 1 and " + MAX_SAMPLING_INTERVAL
+                                               + " but got " + samplingInterval);
+        }
+        if (targetSamples < 0) {
+            throw new IllegalArgumentException("Target samples must not be negative but got " + targetSamples);
+        }
+        this.bins = new MetrigoPhasedBins(layout.getBinCount());
+        this.targetSamples = targetSamples;
+        this.name = metricName;
+        this.layout = layout;
+        this.samplingInterval = samplingInterval;
+    }
+
+    /**
+     * Get the current sampling interval.
+     * 
+     * @return the mean number of samples for each one recorded.
+     */
+    public int getSamplingInterval() {
+        return this.samplingInterval;
+    }
+
+    /**
+     * Draw the length of the next countdown.
+     * 
+     * @return a length between 1 and 2N - 1, with a mean of N.
+     */
+    private int nextCountdown() {
+        int interval = this.samplingInterval;
+        if (interval == 1) {
+            return 1;
+        }
+        return ThreadLocalRandom.current().nextInt(2 * interval - 1) + 1;
+    }
+
+    @Override
+    @Nonnull
+    public String getMetricName() {
+        return this.name;
+    }
+
+    @Override
+    public void addSample(long timeInMicroSeconds) {
+        int [] countdown = this.countdowns.get();
+        if (--countdown[0] > 0) {
+            return;
+        }
+        countdown[0] = nextCountdown();
+        this.bins.record(this.layout.getBin(timeInMicroSeconds), timeInMicroSeconds);
+    }
+
+    @Override
+    @CheckForNull
+    public synchronized MetrigoStatistics sampleStats() {
+        int interval = this.samplingInterval;
+        long [] counts = new long[this.layout.getBinCount()];
+        long [] totals = new long[this.layout.getBinCount()];
+        long recorded = this.bins.drainInto(counts, totals);
+        if (this.targetSamples > 0) {
+            this.samplingInterval = nextInterval(interval, recorded * interval, this.targetSamples);
+        }
+        if (recorded == 0) {
+            // Nothing here.
+            return null;
+        }
+        if (interval != 1) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] *= interval;
+                totals[i] *= interval;
+            }
+        }
+        return new MetrigoStatistics(this.layout, counts, totals, interval);
+    }
+
+    /**
+     * Pick the sampling interval for the next interval.
+     * 
+     * @param current the current sampling interval.
+     * @param estimated the estimated number of samples in the last interval.
+     * @param targetSamples the number of samples to record.
+     * @return the new sampling interval.
+     */
+    @VisibleForTesting
+    static int nextInterval(int current, long estimated, long targetSamples) {
+        long wanted = Math.max(estimated / targetSamples, current / 2);
+        return (int) Math.max(1, Math.min(MAX_SAMPLING_INTERVAL, wanted));
+    }
+}
@@ -0,0 +1,107 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.client.MetrigoBatchSendAdapter;
+import org.metrigo.client.MetrigoSendAdapter;
+
+/**
+ * The runner that takes snapshots off the internal queue and sends them.
+ * 
+ * This is the enqueuer side of the internal queue, and is meant to be run on
+ * its own thread. It sleeps while the queue is empty, and is woken when a
+ * snapshot is added. Call {@link #shutdown()} to stop it, after it has sent
+ * everything left on the queue.
+ */
+public class MetrigoSendRunnerImpl implements Runnable {
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final MetrigoSnapshotQueue queue;
+    private final MetrigoSendAdapter sendAdapter;
+    private volatile boolean running;
+    private volatile Thread runner;
+
+    /**
+     * Constructor.
+     * 
+     * @param queue the queue to take snapshots from.
+     * @param sendAdapter the adapter to send to.
+     */
+    public MetrigoSendRunnerImpl(@Nonnull MetrigoSnapshotQueue queue, @Nonnull MetrigoSendAdapter sendAdapter) {
+        this.queue = queue;
+        this.sendAdapter = sendAdapter;
+        this.running = true;
+    }
+
+    /**
+     * Stop the runner once the queue is empty.
+     */
+    public void shutdown() {
+        this.running = false;
+        Thread thread = this.runner;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        this.runner = Thread.currentThread();
+        this.queue.setConsumer(this.runner);
+        try {
+            while (true) {
+                MetrigoSnapshot snapshot = this.queue.poll();
+                if (snapshot != null) {
+                    send(this.sendAdapter, snapshot);
+                } else if (this.running) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            this.queue.setConsumer(null);
+            this.runner = null;
+        }
+    }
+
+    /**
+     * Send a snapshot to an adapter.
+     * 
+     * Batch adapters get the whole snapshot, other adapters get one call per metric.
+     * 
+     * @param adapter the adapter.
+     * @param snapshot the snapshot.
+     */
+    static void send(MetrigoSendAdapter adapter, MetrigoSnapshot snapshot) {
+        if (adapter instanceof MetrigoBatchSendAdapter) {
+            ((MetrigoBatchSendAdapter) adapter).sendBatch(snapshot);
+        } else {
+            Date time = new Date(snapshot.getTimeMillis());
+            for (int i = 0; i < snapshot.size(); i++) {
+                adapter.sendMetrics(snapshot.getName(i), time, snapshot.getStatistics(i));
+            }
+        }
+    }
+}
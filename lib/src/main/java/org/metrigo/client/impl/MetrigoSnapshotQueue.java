@@ -0,0 +1,225 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoSnapshot;
+
+/**
+ * A bounded, lock free queue of snapshots.
+ * 
+ * This is the internal queue between the gatherer (the queue runner) and the
+ * enqueuer (the send runner), so that a slow send adapter does not hold up
+ * gathering. It is a fixed size ring of slots, each with a sequence number
+ * that says whether the slot is ready to be written or read, so producers and
+ * consumers only ever compete with a compare and set on the head or tail.
+ * 
+ * When the queue is full, the overflow policy decides what to do with a new
+ * snapshot. Drops and merges are counted.
+ */
+public class MetrigoSnapshotQueue {
+    /**
+     * What to do when a snapshot is offered to a full queue.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest queued snapshot to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new snapshot.
+         */
+        DROP_NEWEST,
+        /**
+         * Take the oldest queued snapshot out and merge it into the new one.
+         * 
+         * No samples are lost, but the merged snapshot is stamped with the
+         * newer time, so the older samples are reported late.
+         */
+        MERGE
+    }
+
+    private final AtomicReferenceArray<MetrigoSnapshot> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+    private final AtomicLong dropped;
+    private final AtomicLong merged;
+    private volatile Thread consumer;
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity the maximum number of queued snapshots (rounded up to a power of 2).
+     * @param policy what to do when the queue is full.
+     */
+    public MetrigoSnapshotQueue(int capacity, @Nonnull OverflowPolicy policy) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30 but got " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.policy = policy;
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.merged = new AtomicLong();
+    }
+
+    /**
+     * Try to add a snapshot without applying the overflow policy.
+     * 
+     * @param snapshot the snapshot.
+     * @return true if it was added, false if the queue is full.
+     */
+    private boolean tryOffer(MetrigoSnapshot snapshot) {
+        while (true) {
+            long position = this.tail.get();
+            int index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.slots.set(index, snapshot);
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            // Otherwise another producer got this slot, try again.
+        }
+    }
+
+    /**
+     * Add a snapshot, applying the overflow policy if the queue is full.
+     * 
+     * @param snapshot the snapshot.
+     * @return true if the snapshot (or a merge containing it) was queued, false if it was dropped.
+     */
+    public boolean offer(@Nonnull MetrigoSnapshot snapshot) {
+        MetrigoSnapshot pending = snapshot;
+        while (!tryOffer(pending)) {
+            if (this.policy == OverflowPolicy.DROP_NEWEST) {
+                this.dropped.incrementAndGet();
+                return false;
+            }
+            MetrigoSnapshot oldest = poll();
+            if (oldest != null) {
+                if (this.policy == OverflowPolicy.DROP_OLDEST) {
+                    this.dropped.incrementAndGet();
+                } else {
+                    pending = MetrigoSnapshot.merge(oldest, pending);
+                    this.merged.incrementAndGet();
+                }
+            }
+        }
+        Thread waiting = this.consumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+        return true;
+    }
+
+    /**
+     * Take the oldest snapshot.
+     * 
+     * @return the snapshot, or null if the queue is empty.
+     */
+    @CheckForNull
+    public MetrigoSnapshot poll() {
+        while (true) {
+            long position = this.head.get();
+            int index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (this.head.compareAndSet(position, position + 1)) {
+                    MetrigoSnapshot result = this.slots.getAndSet(index, null);
+                    this.sequences.set(index, position + this.mask + 1);
+                    return result;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+            // Otherwise another consumer got this slot, try again.
+        }
+    }
+
+    /**
+     * Set the thread to wake when a snapshot is added.
+     * 
+     * @param thread the consumer thread, or null for none.
+     */
+    void setConsumer(@CheckForNull Thread thread) {
+        this.consumer = thread;
+    }
+
+    /**
+     * Get the number of queued snapshots.
+     * 
+     * This is only approximate while other threads are using the queue.
+     * 
+     * @return the queue depth.
+     */
+    public int size() {
+        long depth = this.tail.get() - this.head.get();
+        return (int) Math.max(0, Math.min(depth, this.mask + 1));
+    }
+
+    /**
+     * Get the maximum number of queued snapshots.
+     * 
+     * @return the capacity.
+     */
+    public int capacity() {
+        return this.mask + 1;
+    }
+
+    /**
+     * Get the number of snapshots dropped because the queue was full.
+     * 
+     * @return the drop count.
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Get the number of snapshots merged because the queue was full.
+     * 
+     * @return the merge count.
+     */
+    public long getMergedCount() {
+        return this.merged.get();
+    }
+}
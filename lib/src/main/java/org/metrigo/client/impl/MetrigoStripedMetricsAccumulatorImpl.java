@@ -0,0 +1,144 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.client.MetrigoMetricAccumulator;
+
+/**
+ * Striped metrics accumulator implementation.
+ * 
+ * This accumulator is meant for hot metrics that are updated from many threads
+ * at once. Rather than taking a lock for every sample, each thread records into
+ * one of a set of cells (in the style of {@link java.util.concurrent.atomic.LongAdder}),
+ * and the cells are merged when the statistics are sampled. Cells are allocated
+ * lazily, so a metric that is only touched by a few threads stays small.
+ * 
+ * Recording a sample never blocks. Sampling the statistics flips each cell to a
+ * fresh buffer and waits for in-flight writers to finish, so a sample that lands
+ * during the swap is reported in either this interval or the next, but never lost.
+ */
+public class MetrigoStripedMetricsAccumulatorImpl implements MetrigoMetricAccumulator {
+    private final AtomicReferenceArray<MetrigoPhasedBins> cells;
+    private final int mask;
+    @Nonnull private final String name;
+    @Nonnull private final MetrigoBinLayout layout;
+
+    /**
+     * Constructor.
+     * 
+     * The number of cells defaults to twice the number of available processors.
+     * 
+     * @param metricName the name for this metric.
+     */
+    public MetrigoStripedMetricsAccumulatorImpl(@Nonnull String metricName) {
+        this(metricName, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param metricName the name for this metric.
+     * @param stripes the number of cells to spread samples over (rounded up to a power of 2).
+     */
+    public MetrigoStripedMetricsAccumulatorImpl(@Nonnull String metricName, int stripes) {
+        this(metricName, stripes, MetrigoBinLayout.DEFAULT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param metricName the name for this metric.
+     * @param stripes the number of cells to spread samples over (rounded up to a power of 2).
+     * @param layout the layout of the bins to accumulate into.
+     */
+    public MetrigoStripedMetricsAccumulatorImpl(@Nonnull String metricName, int stripes, @Nonnull MetrigoBinLayout layout) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Stripes must be positive but got " + stripes);
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.cells = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.name = metricName;
+        this.layout = layout;
+    }
+
+    /**
+     * Get the cell index for the current thread.
+     * 
+     * Thread ids are sequential, so we mix them to spread neighbouring threads
+     * over the cells.
+     * 
+     * @return the cell index.
+     */
+    private int cellIndex() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & this.mask;
+    }
+
+    @Override
+    @Nonnull
+    public String getMetricName() {
+        return this.name;
+    }
+
+    @Override
+    public void addSample(long timeInMicroSeconds) {
+        int bin = this.layout.getBin(timeInMicroSeconds);
+        int index = cellIndex();
+        MetrigoPhasedBins cell = this.cells.get(index);
+        if (cell == null) {
+            MetrigoPhasedBins created = new MetrigoPhasedBins(this.layout.getBinCount());
+            if (this.cells.compareAndSet(index, null, created)) {
+                cell = created;
+            } else {
+                cell = this.cells.get(index);
+            }
+        }
+        cell.record(bin, timeInMicroSeconds);
+    }
+
+    @Override
+    @CheckForNull
+    public synchronized MetrigoStatistics sampleStats() {
+        long [] counts = new long[this.layout.getBinCount()];
+        long [] totals = new long[this.layout.getBinCount()];
+        long drained = 0;
+
+        for (int i = 0; i < this.cells.length(); i++) {
+            MetrigoPhasedBins cell = this.cells.get(i);
+            if (cell != null) {
+                drained += cell.drainInto(counts, totals);
+            }
+        }
+        if (drained == 0) {
+            // Nothing here.
+            return null;
+        }
+        return new MetrigoStatistics(this.layout, counts, totals);
+    }
+}
@@ -0,0 +1,40 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.metrigo.client.MetrigoClock;
+
+/**
+ * The default clock, which reads {@link System#nanoTime()} every time.
+ */
+public final class MetrigoSystemClock implements MetrigoClock {
+    /**
+     * The only instance.
+     */
+    public static final MetrigoSystemClock INSTANCE = new MetrigoSystemClock();
+
+    /**
+     * Constructor.
+     */
+    private MetrigoSystemClock() {
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+}
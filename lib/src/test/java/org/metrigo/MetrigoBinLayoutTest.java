@@ -0,0 +1,126 @@
+package org.metrigo;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class MetrigoBinLayoutTest {
+    private static int binBySearch(MetrigoBinLayout layout, long value) {
+        int bin = 0;
+        while (bin + 1 < layout.getBinCount() && layout.getLowerBound(bin + 1) <= value) {
+            bin += 1;
+        }
+        return bin;
+    }
+
+    private static void checkAgainstSearch(MetrigoBinLayout layout) {
+        for (int bin = 0; bin < layout.getBinCount(); bin++) {
+            long lower = layout.getLowerBound(bin);
+            assertEquals(bin, layout.getBin(lower), "lower bound of " + bin);
+            if (lower > 0) {
+                assertEquals(bin - 1, layout.getBin(lower - 1), "below " + bin);
+            }
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> random.nextInt(64);
+            assertEquals(binBySearch(layout, value), layout.getBin(value), "value " + value);
+        }
+        assertEquals(0, layout.getBin(-1L));
+        assertEquals(0, layout.getBin(Long.MIN_VALUE));
+        assertEquals(layout.getBinCount() - 1, layout.getBin(Long.MAX_VALUE));
+    }
+
+    @Test
+    void testDefault() {
+        MetrigoBinLayout layout = MetrigoBinLayout.DEFAULT;
+        assertTrue(layout.isDefault());
+        assertThat(layout.getBinCount(), equalTo(MetrigoStatistics.LOWER_BOUNDS.size()));
+        for (int bin = 0; bin < layout.getBinCount(); bin++) {
+            assertThat(layout.getLowerBound(bin), equalTo(MetrigoStatistics.LOWER_BOUNDS.get(bin)));
+        }
+        checkAgainstSearch(layout);
+    }
+
+    @Test
+    void testHighResolution() {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        assertFalse(layout.isDefault());
+        assertThat(layout.getBinCount(), equalTo(156));
+        checkAgainstSearch(layout);
+        // values up to 2^40 have bins at most a quarter as wide as their lower bound.
+        for (int bin = 8; bin < layout.getBinCount() - 1; bin++) {
+            long width = layout.getLowerBound(bin + 1) - layout.getLowerBound(bin);
+            assertThat(width * 4, lessThanOrEqualTo(layout.getLowerBound(bin)));
+        }
+        assertEquals(layout.getBinCount() - 1, layout.getBin(1L << 40));
+        assertEquals(layout.getBinCount() - 1, layout.getBin(7L << 37));
+        assertEquals(layout.getBinCount() - 2, layout.getBin((7L << 37) - 1));
+    }
+
+    @Test
+    void testLogLinear() {
+        checkAgainstSearch(MetrigoBinLayout.logLinear(0, 63));
+        checkAgainstSearch(MetrigoBinLayout.logLinear(3, 33));
+        checkAgainstSearch(MetrigoBinLayout.logLinear(5, 10));
+        MetrigoBinLayout layout = MetrigoBinLayout.logLinear(1, 5);
+        // 0, 1, 2, 3, then 2 per power of two up to 32.
+        long [] expected = new long [] { 0, 1, 2, 3, 4, 6, 8, 12, 16, 24 };
+        assertThat(layout.getBinCount(), equalTo(expected.length));
+        for (int bin = 0; bin < expected.length; bin++) {
+            assertThat(layout.getLowerBound(bin), equalTo(expected[bin]));
+        }
+    }
+
+    @Test
+    void testLogLinearShared() {
+        assertThat(MetrigoBinLayout.logLinear(2, 40), sameInstance(MetrigoBinLayout.HIGH_RESOLUTION));
+        assertThat(MetrigoBinLayout.logLinear(2, 41), equalTo(MetrigoBinLayout.logLinear(2, 41)));
+        assertFalse(MetrigoBinLayout.logLinear(2, 41).equals(MetrigoBinLayout.HIGH_RESOLUTION));
+        assertFalse(MetrigoBinLayout.DEFAULT.equals(MetrigoBinLayout.HIGH_RESOLUTION));
+    }
+
+    @Test
+    void testBadLogLinear() {
+        assertThrows(IllegalArgumentException.class, () -> MetrigoBinLayout.logLinear(-1, 10));
+        assertThrows(IllegalArgumentException.class, () -> MetrigoBinLayout.logLinear(7, 10));
+        assertThrows(IllegalArgumentException.class, () -> MetrigoBinLayout.logLinear(2, 2));
+        assertThrows(IllegalArgumentException.class, () -> MetrigoBinLayout.logLinear(2, 64));
+        // too many bins.
+        assertThrows(IllegalArgumentException.class, () -> MetrigoBinLayout.logLinear(4, 40));
+    }
+
+    @Test
+    void testEncodeDecode() {
+        MetrigoBinLayout layout = MetrigoBinLayout.logLinear(3, 30);
+        ByteBuffer buffer = ByteBuffer.allocate(layout.encodedLength());
+        layout.encode(buffer);
+        buffer.flip();
+        assertThat(buffer.get(0), equalTo((byte) 0xff));
+        assertThat(MetrigoBinLayout.decode(buffer, 0, buffer.limit()), sameInstance(layout));
+        assertThat(buffer.remaining(), equalTo(0));
+
+        assertThat(MetrigoBinLayout.DEFAULT.encodedLength(), equalTo(0));
+        ByteBuffer other = ByteBuffer.wrap(new byte [] { 3, 1, 1, 1, 1 });
+        assertThat(MetrigoBinLayout.decode(other, 0, other.limit()), sameInstance(MetrigoBinLayout.DEFAULT));
+        assertThat(other.position(), equalTo(0));
+    }
+
+    @Test
+    void testDecodeBad() {
+        ByteBuffer unknown = ByteBuffer.wrap(new byte [] { (byte) 0xff, 9, 2, 40 });
+        assertThrows(IllegalArgumentException.class, () -> MetrigoBinLayout.decode(unknown, 0, unknown.limit()));
+        ByteBuffer shortLayout = ByteBuffer.wrap(new byte [] { (byte) 0xff, 1, 2 });
+        assertThrows(IllegalArgumentException.class, () -> MetrigoBinLayout.decode(shortLayout, 0, shortLayout.limit()));
+    }
+}
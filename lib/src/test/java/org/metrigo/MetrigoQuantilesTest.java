@@ -0,0 +1,191 @@
+package org.metrigo;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.junit.jupiter.api.Test;
+
+public class MetrigoQuantilesTest {
+    private static final int BINS = MetrigoStatistics.LOWER_BOUNDS.size();
+    private static final double [] QUANTILES = new double [] { 0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1.0 };
+
+    private static int bin(long value) {
+        int bin = 0;
+        while (bin + 1 < BINS && MetrigoStatistics.LOWER_BOUNDS.get(bin + 1).longValue() <= value) {
+            bin += 1;
+        }
+        return bin;
+    }
+
+    private static MetrigoStatistics binned(double [] values) {
+        long [] counts = new long[BINS];
+        long [] totals = new long[BINS];
+        for (double value : values) {
+            int bin = bin((long) value);
+            counts[bin] += 1;
+            totals[bin] += (long) value;
+        }
+        return new MetrigoStatistics(counts, totals);
+    }
+
+    /**
+     * Check estimates against exact quantiles for a set of samples.
+     * 
+     * @param values the samples, which must be whole numbers.
+     */
+    private static void checkAgainstExact(double [] values) {
+        MetrigoStatistics stats = binned(values);
+        Percentile exact = new Percentile().withEstimationType(Percentile.EstimationType.R_1);
+        double [] batch = new double[QUANTILES.length];
+        MetrigoQuantiles.quantiles(stats, QUANTILES, batch);
+
+        for (int i = 0; i < QUANTILES.length; i++) {
+            double quantile = QUANTILES[i];
+            double expected = exact.evaluate(values, quantile * 100.0);
+            double estimate = MetrigoQuantiles.quantile(stats, quantile);
+            double bound = MetrigoQuantiles.errorBound(stats, quantile);
+
+            assertThat(batch[i], equalTo(estimate));
+            // the estimate is in the same bin as the true quantile.
+            assertThat(bin((long) Math.floor(estimate)), equalTo(bin((long) expected)));
+            assertThat(Math.abs(estimate - expected), lessThanOrEqualTo(bound + 1e-6));
+            if (expected >= 10) {
+                assertThat(Math.max(estimate / expected, expected / estimate), lessThanOrEqualTo(3.17));
+            }
+        }
+    }
+
+    @Test
+    void testLogUniform() {
+        Random random = new Random(1234);
+        double [] values = new double[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.floor(Math.pow(10.0, random.nextDouble() * 9.0));
+        }
+        checkAgainstExact(values);
+    }
+
+    @Test
+    void testLogNormal() {
+        Random random = new Random(5678);
+        double [] values = new double[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.floor(Math.exp(8.0 + 1.5 * random.nextGaussian()));
+        }
+        checkAgainstExact(values);
+    }
+
+    @Test
+    void testBimodal() {
+        Random random = new Random(91011);
+        double [] values = new double[50000];
+        for (int i = 0; i < values.length; i++) {
+            double mode = (i % 10 == 0) ? 2000000.0 : 500.0;
+            values[i] = Math.floor(mode * (0.9 + 0.2 * random.nextDouble()));
+        }
+        checkAgainstExact(values);
+    }
+
+    @Test
+    void testSingleSampleIsExact() {
+        MetrigoStatistics stats = binned(new double [] { 4567.0 });
+        assertThat(MetrigoQuantiles.quantile(stats, 0.0), equalTo(4567.0));
+        assertThat(MetrigoQuantiles.quantile(stats, 0.5), equalTo(4567.0));
+        assertThat(MetrigoQuantiles.quantile(stats, 1.0), equalTo(4567.0));
+        assertThat(MetrigoQuantiles.errorBound(stats, 0.5), equalTo(0.0));
+    }
+
+    @Test
+    void testOneSampleEachBinIsExact() {
+        double [] values = new double[BINS];
+        for (int i = 0; i < BINS; i++) {
+            values[i] = MetrigoStatistics.LOWER_BOUNDS.get(i).longValue() + 1;
+        }
+        MetrigoStatistics stats = binned(values);
+        for (int i = 0; i < BINS; i++) {
+            assertThat(MetrigoQuantiles.quantile(stats, (i + 1.0) / BINS), closeTo(values[i], 1e-9));
+        }
+    }
+
+    @Test
+    void testEstimatesAverageToMean() {
+        // two samples in one bin, pinned to the possible range by the total.
+        MetrigoStatistics stats = binned(new double [] { 1000.0, 3000.0 });
+        double low = MetrigoQuantiles.quantile(stats, 0.5);
+        double high = MetrigoQuantiles.quantile(stats, 1.0);
+        assertThat((low + high) / 2.0, closeTo(2000.0, 1e-9));
+        assertTrue(low >= 1000.0);
+        assertTrue(high <= 3000.0);
+    }
+
+    @Test
+    void testLastBin() {
+        MetrigoStatistics stats = binned(new double [] { 2000000000.0, 4000000000.0 });
+        assertThat(MetrigoQuantiles.quantile(stats, 0.5), closeTo(2000000000.0, 1e-3));
+        assertThat(MetrigoQuantiles.quantile(stats, 1.0), closeTo(4000000000.0, 1e-3));
+    }
+
+    @Test
+    void testEmpty() {
+        MetrigoStatistics stats = new MetrigoStatistics(new long[BINS], new long[BINS]);
+        assertTrue(Double.isNaN(MetrigoQuantiles.quantile(stats, 0.5)));
+        assertTrue(Double.isNaN(MetrigoQuantiles.errorBound(stats, 0.5)));
+        double [] results = new double[2];
+        MetrigoQuantiles.quantiles(stats, new double [] { 0.5, 0.9 }, results);
+        assertTrue(Double.isNaN(results[0]));
+        assertTrue(Double.isNaN(results[1]));
+    }
+
+    @Test
+    void testBadArguments() {
+        MetrigoStatistics stats = binned(new double [] { 1.0 });
+        assertThrows(IllegalArgumentException.class, () -> MetrigoQuantiles.quantile(stats, -0.1));
+        assertThrows(IllegalArgumentException.class, () -> MetrigoQuantiles.quantile(stats, 1.1));
+        assertThrows(IllegalArgumentException.class, () -> MetrigoQuantiles.quantile(stats, Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> MetrigoQuantiles.quantiles(stats, new double [] { 0.9, 0.5 }, new double[2]));
+        assertThrows(IllegalArgumentException.class, () -> MetrigoQuantiles.quantiles(stats, new double [] { 0.5, 0.9 }, new double[1]));
+    }
+
+    @Test
+    void testRank() {
+        assertThat(MetrigoQuantiles.rank(0.0, 10), equalTo(1L));
+        assertThat(MetrigoQuantiles.rank(0.5, 10), equalTo(5L));
+        assertThat(MetrigoQuantiles.rank(0.51, 10), equalTo(6L));
+        assertThat(MetrigoQuantiles.rank(1.0, 10), equalTo(10L));
+    }
+
+    @Test
+    void testHighResolutionIsTighter() {
+        Random random = new Random(1213);
+        double [] values = new double[100000];
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.floor(Math.exp(8.0 + 1.5 * random.nextGaussian()));
+            counts[layout.getBin((long) values[i])] += 1;
+            totals[layout.getBin((long) values[i])] += (long) values[i];
+        }
+        MetrigoStatistics fine = new MetrigoStatistics(layout, counts, totals);
+        MetrigoStatistics coarse = binned(values);
+        Percentile exact = new Percentile().withEstimationType(Percentile.EstimationType.R_1);
+
+        for (double quantile : QUANTILES) {
+            double expected = exact.evaluate(values, quantile * 100.0);
+            double estimate = MetrigoQuantiles.quantile(fine, quantile);
+            double bound = MetrigoQuantiles.errorBound(fine, quantile);
+            assertThat(Math.abs(estimate - expected), lessThanOrEqualTo(bound + 1e-6));
+            assertThat(bound, lessThanOrEqualTo(MetrigoQuantiles.errorBound(coarse, quantile) + 1e-6));
+            if (expected >= 8) {
+                assertThat(Math.abs(estimate - expected), lessThanOrEqualTo(expected * 0.25));
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.metrigo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class MetrigoSeriesBlockTest {
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(3);
+        MetrigoSeriesBlock.Builder builder = new MetrigoSeriesBlock.Builder(MetrigoBinLayout.DEFAULT, 500);
+        List<MetrigoStatistics> expected = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        long time = 1700000000000L;
+        for (int i = 0; i < 500; i++) {
+            time += random.nextInt(3) * 5000;
+            MetrigoStatistics stats = randomStats(random, MetrigoBinLayout.DEFAULT);
+            assertTrue(builder.add(time, stats));
+            expected.add(stats);
+            times.add(time);
+        }
+        assertFalse(builder.add(time, expected.get(0)));
+
+        MetrigoSeriesBlock block = decode(builder.toBytes());
+        assertEquals(500, block.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals((long) times.get(i), block.getTime(i));
+            assertEquals(expected.get(i), block.getStatistics(i));
+        }
+    }
+
+    @Test
+    public void testExtremeValues() {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        MetrigoSeriesBlock.Builder builder = new MetrigoSeriesBlock.Builder(layout, 4);
+        long [][] values = { { 1, Long.MAX_VALUE }, { Long.MAX_VALUE, 3 }, { 1, Long.MIN_VALUE }, { 7, -1 } };
+        List<MetrigoStatistics> expected = new ArrayList<>();
+        long [] times = { Long.MIN_VALUE, -5, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+        for (int i = 0; i < values.length; i++) {
+            long [] counts = new long[layout.getBinCount()];
+            long [] totals = new long[layout.getBinCount()];
+            counts[layout.getBinCount() - 1] = values[i][0];
+            totals[layout.getBinCount() - 1] = values[i][1];
+            counts[i] = 1;
+            totals[i] = i;
+            MetrigoStatistics stats = new MetrigoStatistics(layout, counts, totals);
+            assertTrue(builder.add(times[i], stats));
+            expected.add(stats);
+        }
+        MetrigoSeriesBlock block = decode(builder.toBytes());
+        assertEquals(layout, block.getLayout());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(times[i], block.getTime(i));
+            assertEquals(expected.get(i), block.getStatistics(i));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        MetrigoSeriesBlock block = decode(new MetrigoSeriesBlock.Builder(MetrigoBinLayout.DEFAULT, 10).toBytes());
+        assertEquals(0, block.size());
+        long [] counts = new long[MetrigoBinLayout.DEFAULT.getBinCount()];
+        assertEquals(0, block.mergeInto(0, Long.MAX_VALUE, counts, counts.clone()));
+    }
+
+    @Test
+    public void testBuilderRules() {
+        MetrigoSeriesBlock.Builder builder = new MetrigoSeriesBlock.Builder(MetrigoBinLayout.DEFAULT, 10);
+        MetrigoStatistics stats = randomStats(new Random(1), MetrigoBinLayout.DEFAULT);
+        assertTrue(builder.add(1000, stats));
+        assertThrows(IllegalArgumentException.class, () -> builder.add(999, stats));
+        assertFalse(builder.add(2000, randomStats(new Random(1), MetrigoBinLayout.HIGH_RESOLUTION)));
+        MetrigoStatistics sampled = new MetrigoStatistics(MetrigoBinLayout.DEFAULT, stats.getCountsAsArray(),
+                                                          stats.getTotalsAsArray(), 10);
+        assertFalse(builder.add(2000, sampled));
+        assertEquals(1, builder.size());
+        builder.reset();
+        assertEquals(0, builder.size());
+        assertTrue(builder.add(0, stats));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoSeriesBlock.Builder(MetrigoBinLayout.DEFAULT, 0));
+    }
+
+    @Test
+    public void testMergeInto() {
+        Random random = new Random(5);
+        MetrigoSeriesBlock.Builder builder = new MetrigoSeriesBlock.Builder(MetrigoBinLayout.DEFAULT, 100);
+        List<MetrigoStatistics> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            MetrigoStatistics stats = randomStats(random, MetrigoBinLayout.DEFAULT);
+            builder.add(i * 10L, stats);
+            expected.add(stats);
+        }
+        MetrigoSeriesBlock block = decode(builder.toBytes());
+        assertEquals(25, block.indexOf(250));
+        assertEquals(26, block.indexOf(251));
+        assertEquals(100, block.indexOf(5000));
+
+        long [] counts = new long[MetrigoBinLayout.DEFAULT.getBinCount()];
+        long [] totals = new long[counts.length];
+        assertEquals(30, block.mergeInto(205, 505, counts, totals));
+        MetrigoStatistics merged = MetrigoStatistics.merge(expected.subList(21, 51));
+        assertEquals(merged, new MetrigoStatistics(counts, totals));
+        assertThrows(IllegalArgumentException.class, () -> block.mergeInto(0, 10, new long[3], new long[3]));
+    }
+
+    @Test
+    public void testBadInput() {
+        assertThrows(IllegalArgumentException.class, () -> decode(new byte[] { 9 }));
+        byte [] bytes = new MetrigoSeriesBlock.Builder(MetrigoBinLayout.DEFAULT, 10).toBytes();
+        bytes[1] = 20;
+        assertThrows(IllegalArgumentException.class, () -> decode(bytes));
+
+        MetrigoSeriesBlock.Builder builder = new MetrigoSeriesBlock.Builder(MetrigoBinLayout.DEFAULT, 10);
+        builder.add(0, randomStats(new Random(2), MetrigoBinLayout.DEFAULT));
+        byte [] full = builder.toBytes();
+        for (int length = 0; length < full.length; length++) {
+            byte [] truncated = java.util.Arrays.copyOf(full, length);
+            assertThrows(IllegalArgumentException.class, () -> decode(truncated));
+        }
+    }
+
+    @Test
+    public void testCompression() {
+        // Ten second snapshots of a steady service, with about 1000 samples each.
+        Random random = new Random(11);
+        int records = 1000;
+        MetrigoSeriesBlock.Builder builder = new MetrigoSeriesBlock.Builder(MetrigoBinLayout.DEFAULT, records);
+        long perRecord = 0;
+        long time = 1700000000000L;
+        for (int i = 0; i < records; i++) {
+            long [] counts = new long[MetrigoBinLayout.DEFAULT.getBinCount()];
+            long [] totals = new long[counts.length];
+            int samples = 950 + random.nextInt(100);
+            for (int s = 0; s < samples; s++) {
+                long value = (long) Math.exp(7.5 + 0.6 * random.nextGaussian());
+                int bin = MetrigoBinLayout.DEFAULT.getBin(value);
+                counts[bin] += 1;
+                totals[bin] += value;
+            }
+            MetrigoStatistics stats = new MetrigoStatistics(counts, totals);
+            builder.add(time, stats);
+            // A per record store writes a time and a length along with each record.
+            perRecord += Long.BYTES + Integer.BYTES + MetrigoStatistics.encodedLength(stats);
+            time += 10000;
+        }
+        int blockLength = builder.toBytes().length;
+        assertTrue(blockLength * 2 < perRecord, blockLength + " vs " + perRecord);
+    }
+
+    private static MetrigoSeriesBlock decode(byte [] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        MetrigoSeriesBlock result = MetrigoSeriesBlock.decode(buffer, bytes.length);
+        assertEquals(bytes.length, buffer.position());
+        return result;
+    }
+
+    private static MetrigoStatistics randomStats(Random random, MetrigoBinLayout layout) {
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        for (int i = 0; i < 5; i++) {
+            int bin = random.nextInt(layout.getBinCount());
+            counts[bin] = 1 + random.nextInt(1000);
+            totals[bin] = counts[bin] * (layout.getLowerBound(bin) + random.nextInt(100));
+        }
+        return new MetrigoStatistics(layout, counts, totals);
+    }
+}
@@ -0,0 +1,180 @@
+package org.metrigo;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class MetrigoSnapshotTest {
+    private static MetrigoStatistics stats(int bin, long count, long total) {
+        long [] counts = new long[MetrigoStatistics.LOWER_BOUNDS.size()];
+        long [] totals = new long[MetrigoStatistics.LOWER_BOUNDS.size()];
+        counts[bin] = count;
+        totals[bin] = total;
+        return new MetrigoStatistics(counts, totals);
+    }
+
+    private static MetrigoSnapshot snapshot() {
+        return new MetrigoSnapshot.Builder(1690000000000L, 1)
+            .add("first", stats(0, 1, 2))
+            .add("second.\u00e9t\u00e9", stats(18, 2, 1000000000L))
+            .add("third", stats(7, 300, 1000000L))
+            .build();
+    }
+
+    private static void assertSnapshotsEqual(MetrigoSnapshot expected, MetrigoSnapshot actual) {
+        assertThat(actual.getTimeMillis(), equalTo(expected.getTimeMillis()));
+        assertThat(actual.size(), equalTo(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.getName(i), equalTo(expected.getName(i)));
+            assertThat(actual.getStatistics(i), equalTo(expected.getStatistics(i)));
+        }
+    }
+
+    @Test
+    void testBuilder() {
+        MetrigoSnapshot underTest = snapshot();
+        assertThat(underTest.size(), equalTo(3));
+        assertThat(underTest.getName(2), equalTo("third"));
+        assertThat(underTest.getStatistics(2), equalTo(stats(7, 300, 1000000L)));
+    }
+
+    @Test
+    void testMismatchedArrays() {
+        assertThrows(IllegalArgumentException.class,
+                     () -> new MetrigoSnapshot(0L, new String [] { "a" }, new MetrigoStatistics[0]));
+    }
+
+    @Test
+    void testMerge() {
+        MetrigoSnapshot older = new MetrigoSnapshot.Builder(1L, 2).add("a", stats(0, 1, 2)).add("b", stats(3, 1, 40)).build();
+        MetrigoSnapshot newer = new MetrigoSnapshot.Builder(2L, 2).add("b", stats(3, 2, 90)).add("c", stats(5, 1, 400)).build();
+        MetrigoSnapshot merged = MetrigoSnapshot.merge(older, newer);
+        assertThat(merged.getTimeMillis(), equalTo(2L));
+        assertThat(merged.size(), equalTo(3));
+        assertThat(merged.getName(0), equalTo("a"));
+        assertThat(merged.getStatistics(0), equalTo(stats(0, 1, 2)));
+        assertThat(merged.getName(1), equalTo("b"));
+        assertThat(merged.getStatistics(1), equalTo(stats(3, 3, 130)));
+        assertThat(merged.getName(2), equalTo("c"));
+        assertThat(merged.getStatistics(2), equalTo(stats(5, 1, 400)));
+    }
+
+    @Test
+    void testRoundTrip() {
+        MetrigoSnapshot expected = snapshot();
+        byte [] frame = MetrigoSnapshot.toBytes(expected);
+        assertThat(frame.length, equalTo(MetrigoSnapshot.encodedLength(expected)));
+        assertSnapshotsEqual(expected, MetrigoSnapshot.fromBytes(frame));
+    }
+
+    @Test
+    void testEmptyRoundTrip() {
+        MetrigoSnapshot expected = new MetrigoSnapshot.Builder(5L, 0).build();
+        assertSnapshotsEqual(expected, MetrigoSnapshot.fromBytes(MetrigoSnapshot.toBytes(expected)));
+    }
+
+    @Test
+    void testFrameLayout() {
+        MetrigoSnapshot value = new MetrigoSnapshot.Builder(0x102L, 1).add("ab", stats(0, 1, 2)).build();
+        assertThat(MetrigoSnapshot.toBytes(value), equalTo(new byte [] {
+            1,              // version
+            2, 2, 1,        // time
+            1, 1,           // count
+            1, 2, 'a', 'b', // name
+            1, 5,           // stats length
+            0, 1, 1, 1, 2   // stats
+        }));
+    }
+
+    @Test
+    void testPackedFrames() {
+        MetrigoSnapshot expected = snapshot();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(2 * MetrigoSnapshot.encodedLength(expected));
+        MetrigoSnapshot.encode(expected, buffer);
+        MetrigoSnapshot.encode(expected, buffer);
+        assertThat(buffer.remaining(), equalTo(0));
+        buffer.flip();
+        assertSnapshotsEqual(expected, MetrigoSnapshot.decode(buffer));
+        assertSnapshotsEqual(expected, MetrigoSnapshot.decode(buffer));
+        assertThat(buffer.remaining(), equalTo(0));
+    }
+
+    @Test
+    void testEncodedLengthParts() {
+        MetrigoSnapshot value = snapshot();
+        int length = MetrigoSnapshot.encodedHeaderLength(value.getTimeMillis(), value.size());
+        for (int i = 0; i < value.size(); i++) {
+            length += MetrigoSnapshot.encodedEntryLength(value.getName(i), value.getStatistics(i));
+        }
+        assertThat(length, equalTo(MetrigoSnapshot.encodedLength(value)));
+        assertThat(length, equalTo(MetrigoSnapshot.toBytes(value).length));
+    }
+
+    @Test
+    void testUtf8Length() {
+        for (String value : new String[] {"", "latency", "caf\u00e9", "\u20ac1", "\ud83d\ude00 smile",
+                                          "lone \ud83d", "\ude00 lone", "\ud83d\ud83d"}) {
+            assertThat(MetrigoSnapshot.utf8Length(value), equalTo(value.getBytes(StandardCharsets.UTF_8).length));
+        }
+    }
+
+    @Test
+    void testEncodeOverflow() {
+        MetrigoSnapshot value = snapshot();
+        ByteBuffer buffer = ByteBuffer.allocate(MetrigoSnapshot.encodedLength(value) - 1);
+        assertThrows(BufferOverflowException.class, () -> MetrigoSnapshot.encode(value, buffer));
+        assertThat(buffer.position(), equalTo(0));
+    }
+
+    @Test
+    void testDecodeFailures() {
+        byte [] frame = MetrigoSnapshot.toBytes(snapshot());
+        assertThrows(IllegalArgumentException.class, () -> MetrigoSnapshot.fromBytes(new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> MetrigoSnapshot.fromBytes(new byte [] { 2 }));
+        for (int length = 1; length < frame.length; length++) {
+            byte [] truncated = java.util.Arrays.copyOf(frame, length);
+            assertThrows(IllegalArgumentException.class, () -> MetrigoSnapshot.fromBytes(truncated));
+        }
+        byte [] trailing = java.util.Arrays.copyOf(frame, frame.length + 1);
+        assertThrows(IllegalArgumentException.class, () -> MetrigoSnapshot.fromBytes(trailing));
+    }
+
+    @Test
+    void testVisitEncoded() {
+        MetrigoSnapshot value = snapshot();
+        ByteBuffer buffer = ByteBuffer.allocate(MetrigoSnapshot.encodedLength(value) + 3);
+        buffer.put((byte) 9);
+        MetrigoSnapshot.encode(value, buffer);
+        buffer.put((byte) 9).put((byte) 9);
+        buffer.flip().position(1);
+
+        List<String> names = new ArrayList<>();
+        List<MetrigoStatistics> stats = new ArrayList<>();
+        long time = MetrigoSnapshot.visitEncoded(buffer, (timeMillis, source, nameStart, nameLength, statsLength) -> {
+            assertThat(timeMillis, equalTo(value.getTimeMillis()));
+            names.add(new String(source.array(), nameStart, nameLength, StandardCharsets.UTF_8));
+            if (names.size() != 2) {
+                // Leave the second one unread, the walk must still carry on.
+                stats.add(MetrigoStatistics.decode(source, statsLength));
+            }
+        });
+        assertThat(time, equalTo(value.getTimeMillis()));
+        assertThat(buffer.position(), equalTo(buffer.limit() - 2));
+        assertThat(names, equalTo(List.of(value.getName(0), value.getName(1), value.getName(2))));
+        assertThat(stats, equalTo(List.of(value.getStatistics(0), value.getStatistics(2))));
+
+        byte [] frame = MetrigoSnapshot.toBytes(value);
+        for (int length = 0; length < frame.length; length++) {
+            ByteBuffer truncated = ByteBuffer.wrap(frame, 0, length);
+            assertThrows(IllegalArgumentException.class, () -> MetrigoSnapshot.visitEncoded(truncated, (t, s, n, l, sl) -> { }));
+        }
+    }
+}
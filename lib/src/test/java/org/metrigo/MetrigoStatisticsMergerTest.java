@@ -0,0 +1,232 @@
+package org.metrigo;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+public class MetrigoStatisticsMergerTest {
+    private static final int BINS = MetrigoStatistics.LOWER_BOUNDS.size();
+
+    private static MetrigoStatistics stats(int bin, long count, long total) {
+        long [] counts = new long[BINS];
+        long [] totals = new long[BINS];
+        counts[bin] = count;
+        totals[bin] = total;
+        return new MetrigoStatistics(counts, totals);
+    }
+
+    private static List<MetrigoStatistics> many(int size) {
+        List<MetrigoStatistics> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(stats(i % BINS, 1, i));
+        }
+        return result;
+    }
+
+    private static MetrigoStatistics expected(int size) {
+        long [] counts = new long[BINS];
+        long [] totals = new long[BINS];
+        for (int i = 0; i < size; i++) {
+            counts[i % BINS] += 1;
+            totals[i % BINS] += i;
+        }
+        return new MetrigoStatistics(counts, totals);
+    }
+
+    @Test
+    void testEmpty() {
+        MetrigoStatisticsMerger underTest = new MetrigoStatisticsMerger();
+        assertTrue(underTest.isEmpty());
+        assertThat(underTest.getSampleCount(), equalTo(0L));
+        assertThat(underTest.toStatistics().getSampleCount(), equalTo(0L));
+    }
+
+    @Test
+    void testAdd() {
+        MetrigoStatisticsMerger underTest = new MetrigoStatisticsMerger();
+        underTest.add(stats(1, 2, 30)).add(null).add(stats(1, 1, 20)).add(stats(5, 4, 4000));
+        assertFalse(underTest.isEmpty());
+        assertThat(underTest.getSampleCount(), equalTo(7L));
+
+        MetrigoStatistics result = underTest.toStatistics();
+        assertThat(result.getCount(1), equalTo(3L));
+        assertThat(result.getTotal(1), equalTo(50L));
+        assertThat(result.getCount(5), equalTo(4L));
+        assertThat(result.getTotal(5), equalTo(4000L));
+
+        // the result is a copy, so carrying on does not change it.
+        underTest.add(stats(1, 1, 10));
+        assertThat(result.getCount(1), equalTo(3L));
+
+        underTest.reset();
+        assertTrue(underTest.isEmpty());
+    }
+
+    @Test
+    void testAddEncoded() {
+        MetrigoStatistics first = stats(2, 3, 33);
+        MetrigoStatistics second = stats(2, 1, 11);
+        ByteBuffer buffer = ByteBuffer.allocate(MetrigoStatistics.encodedLength(first) + MetrigoStatistics.encodedLength(second));
+        MetrigoStatistics.encode(first, buffer);
+        MetrigoStatistics.encode(second, buffer);
+        buffer.flip();
+
+        MetrigoStatisticsMerger underTest = new MetrigoStatisticsMerger();
+        underTest.addEncoded(buffer, MetrigoStatistics.encodedLength(first));
+        underTest.addEncoded(buffer, MetrigoStatistics.encodedLength(second));
+        assertThat(buffer.remaining(), equalTo(0));
+        assertThat(underTest.toStatistics(), equalTo(stats(2, 4, 44)));
+    }
+
+    @Test
+    void testCombine() {
+        MetrigoStatisticsMerger left = new MetrigoStatisticsMerger().add(stats(0, 1, 1));
+        MetrigoStatisticsMerger right = new MetrigoStatisticsMerger().add(stats(0, 2, 3));
+        assertThat(left.combine(right).toStatistics(), equalTo(stats(0, 3, 4)));
+    }
+
+    @Test
+    void testMergeTwo() {
+        assertThat(MetrigoStatistics.merge(stats(3, 1, 200), stats(3, 2, 500)), equalTo(stats(3, 3, 700)));
+    }
+
+    @Test
+    void testMergeVarargs() {
+        MetrigoStatistics result = MetrigoStatistics.merge(stats(3, 1, 200), null, stats(3, 2, 500), stats(4, 1, 700));
+        assertThat(result.getCount(3), equalTo(3L));
+        assertThat(result.getCount(4), equalTo(1L));
+        assertThat(MetrigoStatistics.merge().getSampleCount(), equalTo(0L));
+    }
+
+    @Test
+    void testMergeIterable() {
+        assertThat(MetrigoStatistics.merge(many(5000)), equalTo(expected(5000)));
+    }
+
+    @Test
+    void testMergeStream() {
+        assertThat(MetrigoStatistics.merge(many(5000).stream()), equalTo(expected(5000)));
+        assertThat(MetrigoStatistics.merge(Stream.empty()).getSampleCount(), equalTo(0L));
+    }
+
+    @Test
+    void testMergeParallelStream() {
+        assertThat(many(20000).parallelStream().collect(MetrigoStatisticsMerger.collector()), equalTo(expected(20000)));
+    }
+
+    @Test
+    void testParallelMerge() {
+        assertThat(MetrigoStatistics.parallelMerge(many(20000)), equalTo(expected(20000)));
+        assertThat(MetrigoStatistics.parallelMerge(many(10)), equalTo(expected(10)));
+        assertThat(MetrigoStatistics.parallelMerge(List.of()).getSampleCount(), equalTo(0L));
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            assertThat(MetrigoStatistics.parallelMerge(many(30000), pool), equalTo(expected(30000)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testParallelMergeWithNulls() {
+        List<MetrigoStatistics> values = many(3000);
+        values.addAll(Arrays.asList(null, null));
+        assertThat(MetrigoStatistics.parallelMerge(values), equalTo(expected(3000)));
+    }
+
+    private static MetrigoStatistics highResolution(long ... values) {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        for (long value : values) {
+            counts[layout.getBin(value)] += 1;
+            totals[layout.getBin(value)] += value;
+        }
+        return new MetrigoStatistics(layout, counts, totals);
+    }
+
+    @Test
+    void testMergeSameHighResolution() {
+        MetrigoStatistics result = MetrigoStatistics.merge(highResolution(400, 900), highResolution(410));
+        assertThat(result, equalTo(highResolution(400, 410, 900)));
+    }
+
+    @Test
+    void testMergeMixedLayoutsDownSamples() {
+        MetrigoStatistics fine = highResolution(400, 410, 900, 5000000);
+        MetrigoStatistics coarse = stats(5, 2, 700);
+
+        MetrigoStatistics forward = MetrigoStatistics.merge(fine, coarse);
+        MetrigoStatistics backward = MetrigoStatistics.merge(coarse, fine);
+        assertThat(forward.getLayout(), equalTo(MetrigoBinLayout.DEFAULT));
+        assertThat(forward, equalTo(backward));
+        assertThat(forward.getSampleCount(), equalTo(6L));
+        // 400, 410 and the coarse samples are in [316, 1000).
+        assertThat(forward.getCount(5), equalTo(5L));
+        assertThat(forward.getTotal(5), equalTo(400L + 410L + 900L + 700L));
+        assertThat(forward.getCount(13), equalTo(1L));
+    }
+
+    @Test
+    void testMergeEmptyKeepsLayout() {
+        MetrigoStatisticsMerger fine = new MetrigoStatisticsMerger().add(highResolution(400));
+        fine.combine(new MetrigoStatisticsMerger());
+        assertThat(fine.getLayout(), equalTo(MetrigoBinLayout.HIGH_RESOLUTION));
+        assertThat(new MetrigoStatisticsMerger().combine(fine).toStatistics(), equalTo(highResolution(400)));
+    }
+
+    @Test
+    void testFixedLayout() {
+        MetrigoStatisticsMerger underTest = new MetrigoStatisticsMerger(MetrigoBinLayout.HIGH_RESOLUTION);
+        underTest.add(stats(5, 2, 700));
+        MetrigoStatistics result = underTest.toStatistics();
+        assertThat(result.getLayout(), equalTo(MetrigoBinLayout.HIGH_RESOLUTION));
+        assertThat(result.getCount(MetrigoBinLayout.HIGH_RESOLUTION.getBin(350)), equalTo(2L));
+    }
+
+    @Test
+    void testAddEncodedHighResolution() {
+        MetrigoStatistics fine = highResolution(400, 900);
+        ByteBuffer buffer = ByteBuffer.wrap(MetrigoStatistics.toBytes(fine));
+        MetrigoStatisticsMerger underTest = new MetrigoStatisticsMerger();
+        underTest.addEncoded(buffer, buffer.remaining());
+        assertThat(underTest.toStatistics(), equalTo(fine));
+    }
+
+    @Test
+    void testMergeSampled() {
+        long [] counts = new long[BINS];
+        long [] totals = new long[BINS];
+        counts[3] = 300;
+        totals[3] = 15000;
+        // 30 recorded at 1 in 10, plus 60 recorded at 1 in 1.
+        MetrigoStatistics sampled = new MetrigoStatistics(MetrigoBinLayout.DEFAULT, counts, totals, 10);
+        MetrigoStatistics result = new MetrigoStatisticsMerger().add(sampled).add(stats(3, 60, 3000)).toStatistics();
+        assertThat(result.getCount(3), equalTo(360L));
+        assertThat(result.getTotal(3), equalTo(18000L));
+        assertThat(result.getSamplingInterval(), equalTo(4L));
+
+        // The same through the encoding, and through combine.
+        ByteBuffer buffer = ByteBuffer.wrap(MetrigoStatistics.toBytes(sampled));
+        MetrigoStatisticsMerger encoded = new MetrigoStatisticsMerger().addEncoded(buffer, buffer.remaining());
+        assertThat(encoded.toStatistics(), equalTo(sampled));
+        MetrigoStatisticsMerger combined = new MetrigoStatisticsMerger().add(stats(3, 60, 3000)).combine(encoded);
+        assertThat(combined.toStatistics(), equalTo(result));
+
+        // Reset forgets the sampling.
+        combined.reset();
+        combined.add(stats(3, 1, 50));
+        assertThat(combined.getSamplingInterval(), equalTo(1L));
+    }
+}
@@ -6,6 +6,8 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -32,8 +34,17 @@ public class MetrigoStatisticsTest {
     void testGetCounts() {
         List<Long> expected = countList;
         MetrigoStatistics underTest = new MetrigoStatistics(expected, zeroList);
-        assertThat(underTest.getCounts(), sameInstance(expected));
-        assertThat(underTest.getTotals(), sameInstance(zeroList));
+        assertThat(underTest.getCounts(), equalTo(expected));
+        assertThat(underTest.getTotals(), equalTo(zeroList));
+    }
+
+    @Test
+    void testListsNotKept() {
+        List<Long> counts = new ArrayList<>(countList);
+        MetrigoStatistics underTest = new MetrigoStatistics(counts, zeroList);
+        counts.set(0, 100L);
+        assertThat(underTest.getCounts(), equalTo(countList));
+        assertThat(underTest.getCountsAsArray(), equalTo(countArray));
     }
 
     @Test
@@ -47,7 +58,7 @@ public class MetrigoStatisticsTest {
     void testGetTotals() {
         List<Long> expected = countList;
         MetrigoStatistics underTest = new MetrigoStatistics(zeroList, expected);
-        assertThat(underTest.getTotals(), sameInstance(expected));
+        assertThat(underTest.getTotals(), equalTo(expected));
     }
 
     @Test
@@ -56,6 +67,42 @@ public class MetrigoStatisticsTest {
         assertThat(underTest.getTotalsAsArray(), equalTo(countArray));
     }
 
+    @Test
+    void testArrayConstructor() {
+        long [] counts = countArray.clone();
+        MetrigoStatistics underTest = new MetrigoStatistics(counts, zeroArray.clone());
+        assertThat(underTest.getBinCount(), equalTo(19));
+        assertThat(underTest.getCount(4), equalTo(5L));
+        assertThat(underTest.getTotal(4), equalTo(0L));
+        assertThat(underTest.getSampleCount(), equalTo(190L));
+        assertThat(underTest.getCounts(), equalTo(countList));
+        assertThat(underTest.getTotals(), equalTo(zeroList));
+        assertThat(underTest, equalTo(new MetrigoStatistics(countList, zeroList)));
+    }
+
+    @Test
+    void testArraysAreCopies() {
+        MetrigoStatistics underTest = new MetrigoStatistics(countArray.clone(), zeroArray.clone());
+        underTest.getCountsAsArray()[0] = 100L;
+        underTest.getTotalsAsArray()[0] = 100L;
+        assertThat(underTest.getCount(0), equalTo(1L));
+        assertThat(underTest.getTotal(0), equalTo(0L));
+    }
+
+    @Test
+    void testListViewsAreUnmodifiable() {
+        MetrigoStatistics underTest = new MetrigoStatistics(countArray.clone(), zeroArray.clone());
+        assertThrows(UnsupportedOperationException.class, () -> underTest.getCounts().set(0, zero));
+        assertThrows(UnsupportedOperationException.class, () -> underTest.getTotals().set(0, zero));
+    }
+
+    @Test
+    void testBadLengths() {
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoStatistics(new long[18], zeroArray.clone()));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoStatistics(zeroArray.clone(), new long[20]));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoStatistics(List.of(zero), zeroList));
+    }
+
     private static final List<Arguments> longSerializationArguments = List.of(
         Arguments.of(1L, 0, new byte[] { 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }),
         Arguments.of(1L, 1, new byte[] { 0, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }),
@@ -199,6 +246,62 @@ public class MetrigoStatisticsTest {
         assertThat(MetrigoStatistics.toBytes(deserialized), equalTo(serialized));
     }
 
+    @ParameterizedTest
+    @ArgumentsSource(value = StatsSerializationPassArgumentProvider.class)
+    void testEncodeDirectBuffer(MetrigoStatistics stats, byte [] serialized) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        buffer.position(3);
+        MetrigoStatistics.encode(stats, buffer);
+        assertThat(buffer.position(), equalTo(3 + serialized.length));
+        assertThat(MetrigoStatistics.encodedLength(stats), equalTo(serialized.length));
+        byte [] written = new byte[serialized.length];
+        buffer.position(3);
+        buffer.get(written);
+        assertThat(written, equalTo(serialized));
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(value = StatsSerializationPassArgumentProvider.class)
+    void testPackedEncodeDecode(MetrigoStatistics stats, byte [] serialized) {
+        // Pack two copies back to back, as a send path would.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(128);
+        MetrigoStatistics.encode(stats, buffer);
+        MetrigoStatistics.encode(stats, buffer);
+        buffer.flip();
+        MetrigoStatistics first = MetrigoStatistics.decode(buffer, serialized.length);
+        assertThat(buffer.position(), equalTo(serialized.length));
+        MetrigoStatistics second = MetrigoStatistics.decode(buffer);
+        assertThat(buffer.remaining(), equalTo(0));
+        assertThat(first, equalTo(stats));
+        assertThat(second, equalTo(stats));
+    }
+
+    @Test
+    void testEncodeOverflowWritesNothing() {
+        MetrigoStatistics stats = new MetrigoStatistics(countArray.clone(), countArray.clone());
+        ByteBuffer buffer = ByteBuffer.allocate(MetrigoStatistics.encodedLength(stats) - 1);
+        assertThrows(BufferOverflowException.class, () -> MetrigoStatistics.encode(stats, buffer));
+        assertThat(buffer.position(), equalTo(0));
+    }
+
+    @Test
+    void testDecodeLengthPastLimit() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte [] { 0, 1, 1, 1, 2 });
+        assertThrows(IllegalArgumentException.class, () -> MetrigoStatistics.decode(buffer, 6));
+    }
+
+    @Test
+    void testNegativeTotalRoundTrip() {
+        long [] totals = zeroArray.clone();
+        totals[0] = -5L;
+        long [] counts = zeroArray.clone();
+        counts[0] = 1L;
+        MetrigoStatistics stats = new MetrigoStatistics(counts, totals);
+        byte [] bytes = MetrigoStatistics.toBytes(stats);
+        assertThat(bytes.length, equalTo(MetrigoStatistics.encodedLength(stats)));
+        assertThat(MetrigoStatistics.fromBytes(bytes), equalTo(stats));
+    }
+
     private static final List<Arguments> statsSerializationFailArguments = List.of(
         Arguments.of(new byte [] { 1, -1 },
                      "Failed to parse stream at position 1 expected length less than 8 but got 255"),
@@ -225,4 +328,72 @@ public class MetrigoStatisticsTest {
                                                     () -> MetrigoStatistics.fromBytes(serialized));
         assertThat(iae.getMessage(), equalTo(expectedError));
     }
+
+    @Test
+    void testLayout() {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        counts[100] = 3;
+        totals[100] = 3000000;
+        MetrigoStatistics underTest = new MetrigoStatistics(layout, counts, totals);
+        assertThat(underTest.getLayout(), sameInstance(layout));
+        assertThat(underTest.getBinCount(), equalTo(156));
+        assertThat(new MetrigoStatistics(zeroArray, zeroArray).getLayout(), sameInstance(MetrigoBinLayout.DEFAULT));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoStatistics(layout, zeroArray, zeroArray));
+        assertThat(underTest.equals(new MetrigoStatistics(MetrigoBinLayout.logLinear(2, 41), Arrays.copyOf(counts, 160), Arrays.copyOf(totals, 160))),
+                   equalTo(false));
+    }
+
+    @Test
+    void testEncodeDecodeLayout() {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        counts[7] = 1;
+        totals[7] = 7;
+        counts[155] = 2;
+        totals[155] = 1L << 45;
+        MetrigoStatistics value = new MetrigoStatistics(layout, counts, totals);
+        byte [] bytes = MetrigoStatistics.toBytes(value);
+        assertThat(bytes.length, equalTo(MetrigoStatistics.encodedLength(value)));
+        assertThat(bytes[0], equalTo((byte) 0xff));
+        assertThat(MetrigoStatistics.fromBytes(bytes), equalTo(value));
+
+        // the default layout is encoded as before, without a marker.
+        byte [] plain = MetrigoStatistics.toBytes(new MetrigoStatistics(countArray, countArray));
+        assertThat(plain[0], equalTo((byte) 0));
+    }
+
+    @Test
+    void testDecodeLayoutBinOutOfRange() {
+        // bin 200 does not exist in the high resolution layout.
+        byte [] bytes = new byte [] { (byte) 0xff, 1, 2, 40, (byte) 200, 1, 1, 1, 1 };
+        assertThrows(IllegalArgumentException.class, () -> MetrigoStatistics.fromBytes(bytes));
+    }
+
+    @Test
+    void testEncodeDecodeSamplingInterval() {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        counts[7] = 16;
+        totals[7] = 112;
+        MetrigoStatistics value = new MetrigoStatistics(layout, counts, totals, 16);
+        assertThat(value.getSamplingInterval(), equalTo(16L));
+        byte [] bytes = MetrigoStatistics.toBytes(value);
+        assertThat(bytes.length, equalTo(MetrigoStatistics.encodedLength(value)));
+        assertThat(bytes[0], equalTo((byte) 0xfe));
+        assertThat(MetrigoStatistics.fromBytes(bytes), equalTo(value));
+
+        // The interval is part of equality, and is not written when it is 1.
+        MetrigoStatistics unsampled = new MetrigoStatistics(layout, counts.clone(), totals.clone());
+        assertThat(unsampled.getSamplingInterval(), equalTo(1L));
+        assertThat(unsampled.equals(value), equalTo(false));
+        assertThat(MetrigoStatistics.toBytes(unsampled)[0], equalTo((byte) 0xff));
+
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoStatistics(layout, counts, totals, 0));
+        byte [] zero = new byte [] { (byte) 0xfe, 1, 0 };
+        assertThrows(IllegalArgumentException.class, () -> MetrigoStatistics.fromBytes(zero));
+    }
 }
@@ -0,0 +1,148 @@
+package org.metrigo.client;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.client.impl.MetrigoMetricsAccumulatorImpl;
+import org.metrigo.client.impl.MetrigoStripedMetricsAccumulatorImpl;
+
+public class MetrigoRegistryTest {
+    @Test
+    public void testGetOrRegister() {
+        MetrigoRegistry underTest = new MetrigoRegistry();
+        int first = underTest.getOrRegister("first");
+        int second = underTest.getOrRegister("second");
+        assertEquals(0, first);
+        assertEquals(1, second);
+        assertEquals(first, underTest.getOrRegister("first"));
+        assertEquals(2, underTest.size());
+        assertEquals("second", underTest.get(second).getMetricName());
+        assertEquals(second, underTest.getHandle("second"));
+        assertEquals(MetrigoRegistry.NO_HANDLE, underTest.getHandle("third"));
+    }
+
+    @Test
+    public void testAddSample() {
+        MetrigoRegistry underTest = new MetrigoRegistry();
+        int handle = underTest.getOrRegister("theName");
+        underTest.addSample(handle, 10);
+        underTest.addSample(handle, 20);
+        MetrigoStatistics stats = underTest.get(handle).sampleStats();
+        assertEquals(2L, stats.getSampleCount());
+    }
+
+    @Test
+    public void testFactory() {
+        MetrigoRegistry underTest = new MetrigoRegistry(MetrigoStripedMetricsAccumulatorImpl::new);
+        int handle = underTest.getOrRegister("theName");
+        assertEquals(MetrigoStripedMetricsAccumulatorImpl.class, underTest.get(handle).getClass());
+    }
+
+    @Test
+    public void testRegister() {
+        MetrigoRegistry underTest = new MetrigoRegistry();
+        MetrigoMetricsAccumulatorImpl first = new MetrigoMetricsAccumulatorImpl("first");
+        int handle = underTest.register(first);
+        assertEquals(handle, underTest.register(first));
+        assertEquals(MetrigoRegistry.NO_HANDLE, underTest.register(new MetrigoMetricsAccumulatorImpl("first")));
+        assertSame(first, underTest.get(underTest.getOrRegister("first")));
+    }
+
+    @Test
+    public void testRemove() {
+        MetrigoRegistry underTest = new MetrigoRegistry();
+        int handle = underTest.getOrRegister("first");
+        MetrigoMetricAccumulator accumulator = underTest.get(handle);
+        assertSame(accumulator, underTest.remove("first"));
+        assertNull(underTest.remove("first"));
+        assertNull(underTest.get(handle));
+        // samples against a removed handle are dropped.
+        underTest.addSample(handle, 10);
+        assertNull(accumulator.sampleStats());
+        // handles are not reused.
+        assertEquals(handle + 1, underTest.getOrRegister("first"));
+    }
+
+    @Test
+    public void testGrow() {
+        MetrigoRegistry underTest = new MetrigoRegistry();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, underTest.getOrRegister("metric" + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("metric" + i, underTest.get(i).getMetricName());
+        }
+    }
+
+    @Test
+    public void testRecordWhileRegistering() throws Exception {
+        MetrigoRegistry underTest = new MetrigoRegistry();
+        int hot = underTest.getOrRegister("hot");
+        final int samples = 200000;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Thread> threads = new ArrayList<>();
+
+        Thread recorder = new Thread(() -> {
+            try {
+                start.await();
+                for (int i = 0; i < samples; i++) {
+                    underTest.addSample(hot, 5);
+                }
+            } catch (Throwable t) {
+                failed.set(true);
+            }
+        });
+        threads.add(recorder);
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < 2000; i++) {
+                        int handle = underTest.getOrRegister("metric" + (i * 4 + offset));
+                        assertNotNull(underTest.get(handle));
+                    }
+                } catch (Throwable th) {
+                    failed.set(true);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(false, failed.get());
+        assertEquals(8001, underTest.size());
+        assertEquals((long) samples, underTest.get(hot).sampleStats().getSampleCount());
+    }
+}
@@ -0,0 +1,107 @@
+package org.metrigo.client;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class MetrigoTaggedMetricTest {
+    @Test
+    public void testCanonicalName() {
+        assertEquals("latency", MetrigoTaggedMetric.canonicalName("latency", MetrigoTags.EMPTY));
+        assertEquals("latency{endpoint=/users,status=200}",
+                     MetrigoTaggedMetric.canonicalName("latency", MetrigoTags.of("status", "200", "endpoint", "/users")));
+    }
+
+    @Test
+    public void testResolve() {
+        MetrigoRegistry registry = new MetrigoRegistry();
+        MetrigoTaggedMetric underTest = new MetrigoTaggedMetric(registry, "latency", 10);
+        MetrigoMetricAccumulator ok = underTest.resolve(MetrigoTags.of("status", "200"));
+        MetrigoMetricAccumulator error = underTest.resolve(MetrigoTags.of("status", "500"));
+        assertNotSame(ok, error);
+        assertSame(ok, underTest.resolve(MetrigoTags.of("status", "200")));
+        assertEquals("latency{status=200}", ok.getMetricName());
+        assertEquals(registry.getHandle("latency{status=500}"), underTest.getHandle(MetrigoTags.of("status", "500")));
+        assertEquals(2, underTest.getTagSetCount());
+
+        ok.addSample(10);
+        underTest.addSample(MetrigoTags.of("status", "200"), 20);
+        assertEquals(2L, ok.sampleStats().getSampleCount());
+    }
+
+    @Test
+    public void testOverflow() {
+        MetrigoRegistry registry = new MetrigoRegistry();
+        MetrigoTaggedMetric underTest = new MetrigoTaggedMetric(registry, "latency", 2);
+        MetrigoMetricAccumulator first = underTest.resolve(MetrigoTags.of("user", "1"));
+        underTest.resolve(MetrigoTags.of("user", "2"));
+        for (int i = 3; i < 1000; i++) {
+            underTest.addSample(MetrigoTags.of("user", Integer.toString(i)), 5);
+        }
+        assertEquals(2, underTest.getTagSetCount());
+        assertEquals(997L, underTest.getOverflowCount());
+        // only the two tag sets and the overflow were registered.
+        assertEquals(3, registry.size());
+        MetrigoMetricAccumulator overflow = registry.get(registry.getHandle("latency{_overflow=true}"));
+        assertEquals(997L, overflow.sampleStats().getSampleCount());
+        // known tag sets still get their own accumulator.
+        assertSame(first, underTest.resolve(MetrigoTags.of("user", "1")));
+    }
+
+    @Test
+    public void testResolveAfterRemove() {
+        MetrigoRegistry registry = new MetrigoRegistry();
+        MetrigoTaggedMetric underTest = new MetrigoTaggedMetric(registry, "latency", 1);
+        MetrigoMetricAccumulator ok = underTest.resolve(MetrigoTags.of("status", "200"));
+        MetrigoMetricAccumulator overflow = underTest.resolve(MetrigoTags.of("status", "500"));
+        registry.remove("latency{status=200}");
+        registry.remove("latency{_overflow=true}");
+
+        MetrigoMetricAccumulator again = underTest.resolve(MetrigoTags.of("status", "200"));
+        assertNotSame(ok, again);
+        assertEquals("latency{status=200}", again.getMetricName());
+        assertSame(again, registry.get(registry.getHandle("latency{status=200}")));
+        MetrigoMetricAccumulator overflowAgain = underTest.resolve(MetrigoTags.of("status", "500"));
+        assertNotSame(overflow, overflowAgain);
+        assertEquals("latency{_overflow=true}", overflowAgain.getMetricName());
+    }
+
+    @Test
+    public void testAddSampleAfterRemove() {
+        MetrigoRegistry registry = new MetrigoRegistry();
+        MetrigoTaggedMetric underTest = new MetrigoTaggedMetric(registry, "latency", 1);
+        underTest.addSample(MetrigoTags.of("status", "200"), 10);
+        registry.remove("latency{status=200}");
+
+        underTest.addSample(MetrigoTags.of("status", "200"), 20);
+        MetrigoMetricAccumulator again = registry.get(registry.getHandle("latency{status=200}"));
+        assertEquals(1L, again.sampleStats().getSampleCount());
+        // The removed tag set no longer counts against the limit.
+        assertEquals(1, underTest.getTagSetCount());
+        assertEquals(0L, underTest.getOverflowCount());
+    }
+
+    @Test
+    public void testBadLimit() {
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoTaggedMetric(new MetrigoRegistry(), "latency", 0));
+    }
+}
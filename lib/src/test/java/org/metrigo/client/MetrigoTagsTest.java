@@ -0,0 +1,66 @@
+package org.metrigo.client;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class MetrigoTagsTest {
+    @Test
+    public void testSortedByKey() {
+        MetrigoTags underTest = MetrigoTags.of("status", "200", "endpoint", "/users");
+        assertEquals(2, underTest.size());
+        assertEquals("endpoint", underTest.getKey(0));
+        assertEquals("/users", underTest.getValue(0));
+        assertEquals("status", underTest.getKey(1));
+        assertEquals("endpoint=/users,status=200", underTest.toString());
+    }
+
+    @Test
+    public void testEqualsIgnoresOrder() {
+        MetrigoTags first = MetrigoTags.of("a", "1", "b", "2");
+        MetrigoTags second = MetrigoTags.of("b", "2", "a", "1");
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertFalse(first.equals(MetrigoTags.of("a", "1", "b", "3")));
+    }
+
+    @Test
+    public void testEscaping() {
+        MetrigoTags underTest = MetrigoTags.of("k,1", "v=1", "k2", "{a\\b}");
+        assertEquals("k\\,1=v\\=1,k2=\\{a\\\\b\\}", underTest.toString());
+        // a comma in a value does not look like two tags.
+        assertFalse(MetrigoTags.of("a", "1,b=2").equals(MetrigoTags.of("a", "1", "b", "2")));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertSame(MetrigoTags.EMPTY, MetrigoTags.of());
+        assertEquals("", MetrigoTags.EMPTY.toString());
+    }
+
+    @Test
+    public void testBadTags() {
+        assertThrows(IllegalArgumentException.class, () -> MetrigoTags.of("a"));
+        assertThrows(IllegalArgumentException.class, () -> MetrigoTags.of("a", "1", "a", "2"));
+        assertThrows(IllegalArgumentException.class, () -> MetrigoTags.of("a", null));
+    }
+}
@@ -0,0 +1,109 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+
+/**
+ * Checks that an accumulator loses no samples while it is drained under load.
+ */
+final class MetrigoAccumulatorConcurrency {
+    private static final int THREADS = 8;
+    private static final int SAMPLES_PER_THREAD = 200000;
+
+    /**
+     * Drains an accumulator.
+     */
+    interface Drain {
+        /**
+         * Add everything gathered since the last drain, then clear it.
+         * 
+         * @param counts the counts to add to, by bin.
+         * @param totals the totals to add to, by bin.
+         */
+        void drainInto(long [] counts, long [] totals);
+    }
+
+    private MetrigoAccumulatorConcurrency() {
+    }
+
+    /**
+     * Record from several threads while another drains, and check that every sample is seen.
+     * 
+     * @param binCount the number of bins in the accumulator.
+     * @param record records one sample.
+     * @param drain drains the accumulator.
+     * @throws InterruptedException if interrupted while waiting for the threads.
+     */
+    static void assertNoSamplesLost(int binCount, LongConsumer record, Drain drain) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean done = new AtomicBoolean(false);
+        List<Thread> writers = new ArrayList<>();
+
+        for (int t = 0; t < THREADS; t++) {
+            final long value = 10L * (t + 1);
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < SAMPLES_PER_THREAD; i++) {
+                    record.accept(value);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+
+        long [] counts = new long[binCount];
+        long [] totals = new long[binCount];
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                drain.drainInto(counts, totals);
+            }
+        });
+        reader.start();
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        reader.join();
+        drain.drainInto(counts, totals);
+
+        long seenCount = 0;
+        long seenTotal = 0;
+        for (int i = 0; i < binCount; i++) {
+            seenCount += counts[i];
+            seenTotal += totals[i];
+        }
+        long expectedTotal = 0;
+        for (int t = 0; t < THREADS; t++) {
+            expectedTotal += 10L * (t + 1) * SAMPLES_PER_THREAD;
+        }
+        assertEquals((long) THREADS * SAMPLES_PER_THREAD, seenCount);
+        assertEquals(expectedTotal, seenTotal);
+    }
+}
@@ -0,0 +1,71 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class MetrigoCoarseClockTest {
+    @Test
+    void testBadTick() {
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoCoarseClock(0));
+    }
+
+    @Test
+    void testTicks() throws Exception {
+        try (MetrigoCoarseClock underTest = new MetrigoCoarseClock(100)) {
+            assertEquals(100000, underTest.getTickNanos());
+            long first = underTest.nanoTime();
+            assertTrue(first <= System.nanoTime());
+            long deadline = System.currentTimeMillis() + 10000;
+            while (underTest.nanoTime() == first) {
+                assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+                Thread.sleep(1);
+            }
+            assertTrue(underTest.nanoTime() > first);
+        }
+    }
+
+    @Test
+    void testClose() throws Exception {
+        MetrigoCoarseClock underTest = new MetrigoCoarseClock(100);
+        underTest.close();
+        // Give the ticker time to stop, then the clock stays still.
+        Thread.sleep(50);
+        long stopped = underTest.nanoTime();
+        Thread.sleep(20);
+        assertEquals(stopped, underTest.nanoTime());
+    }
+
+    @Test
+    void testSampler() {
+        MetrigoMetricsAccumulatorImpl stats = new MetrigoMetricsAccumulatorImpl("good");
+        try (MetrigoCoarseClock clock = new MetrigoCoarseClock(1000)) {
+            MetrigoSampleAsyncImpl underTest = new MetrigoSampleAsyncImpl(clock);
+            underTest.start();
+            underTest.finish(stats);
+        }
+        long count = 0;
+        for (long value : stats.sampleStats().getCountsAsArray()) {
+            count += value;
+        }
+        assertEquals(1, count);
+    }
+}
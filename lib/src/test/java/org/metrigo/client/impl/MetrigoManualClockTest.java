@@ -0,0 +1,39 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class MetrigoManualClockTest {
+    @Test
+    void testAdvance() {
+        MetrigoManualClock underTest = new MetrigoManualClock(100);
+        assertEquals(100, underTest.nanoTime());
+        assertEquals(150, underTest.advance(50));
+        assertEquals(150, underTest.nanoTime());
+        assertEquals(0, new MetrigoManualClock().nanoTime());
+    }
+
+    @Test
+    void testBackwards() {
+        MetrigoManualClock underTest = new MetrigoManualClock();
+        assertThrows(IllegalArgumentException.class, () -> underTest.advance(-1));
+    }
+}
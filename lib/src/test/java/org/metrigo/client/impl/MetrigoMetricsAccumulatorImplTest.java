@@ -21,10 +21,14 @@ import static org.hamcrest.Matchers.contains;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
+import org.metrigo.MetrigoBinLayout;
 import org.metrigo.MetrigoStatistics;
 
 public class MetrigoMetricsAccumulatorImplTest {
@@ -39,6 +43,56 @@ public class MetrigoMetricsAccumulatorImplTest {
         assertEquals(expectedBin, MetrigoMetricsAccumulatorImpl.getBin(value));
     }
 
+    @ParameterizedTest
+    @CsvSource({ "-1,0", "-1000,0", "-9223372036854775808,0", "9223372036854775807,18" })
+    public void testBinsOutOfRange(long value, int expectedBin) {
+        assertEquals(expectedBin, MetrigoMetricsAccumulatorImpl.getBin(value));
+    }
+
+    @Test
+    public void testBinsMatchSearchForSmallValues() {
+        // Every value up to 2^22 covers the first 11 bin boundaries.
+        for (long value = 0; value <= (1L << 22); value++) {
+            assertBinsMatch(value);
+        }
+    }
+
+    @Test
+    public void testBinsMatchSearchAtBoundaries() {
+        // The bins are constant between bin boundaries, and the lookup table is
+        // constant between powers of 2, so checking around each of those covers
+        // every value.
+        for (Long lowerBound : MetrigoStatistics.LOWER_BOUNDS) {
+            for (long delta = -2; delta <= 2; delta++) {
+                assertBinsMatch(lowerBound.longValue() + delta);
+            }
+        }
+        for (int bits = 0; bits < Long.SIZE; bits++) {
+            long power = 1L << bits;
+            for (long delta = -2; delta <= 2; delta++) {
+                assertBinsMatch(power + delta);
+            }
+        }
+        assertBinsMatch(Long.MAX_VALUE);
+        assertBinsMatch(Long.MIN_VALUE);
+    }
+
+    @Test
+    public void testBinsMatchSearchForRandomValues() {
+        Random random = new Random(0x6d657472L);
+        for (int i = 0; i < 1000000; i++) {
+            // spread the values evenly over the bit lengths.
+            long value = random.nextLong() >>> random.nextInt(Long.SIZE);
+            assertBinsMatch(value);
+            assertBinsMatch(-value);
+        }
+    }
+
+    private static void assertBinsMatch(long value) {
+        assertEquals(MetrigoMetricsAccumulatorImpl.getBinBySearch(value), MetrigoMetricsAccumulatorImpl.getBin(value),
+                     "bin for " + value);
+    }
+
     @Test
     public void testGetName() {
         String metricName = "theName";
@@ -77,4 +131,42 @@ public class MetrigoMetricsAccumulatorImplTest {
         assertThat(result.getCounts(), contains(Long.valueOf(2), zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero));
         assertThat(result.getTotals(), contains(Long.valueOf(3), zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero));
     }
+
+    @Test
+    public void testHighResolutionLayout() {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        MetrigoMetricsAccumulatorImpl underTest = new MetrigoMetricsAccumulatorImpl("theName", layout);
+        underTest.addSample(400);
+        underTest.addSample(900);
+        MetrigoStatistics result = underTest.sampleStats();
+        assertSame(layout, result.getLayout());
+        assertEquals(1L, result.getCount(layout.getBin(400)));
+        assertEquals(400L, result.getTotal(layout.getBin(400)));
+        assertEquals(1L, result.getCount(layout.getBin(900)));
+        assertNull(underTest.sampleStats());
+    }
+
+    @Test
+    public void testSampleStatsInto() {
+        MetrigoMetricsAccumulatorImpl underTest = new MetrigoMetricsAccumulatorImpl("theName");
+        long [] counts = new long[MetrigoStatistics.LOWER_BOUNDS.size()];
+        long [] totals = new long[MetrigoStatistics.LOWER_BOUNDS.size()];
+        underTest.addSample(20);
+        underTest.addSample(30);
+        assertEquals(2L, underTest.sampleStatsInto(counts, totals));
+        underTest.addSample(25);
+        assertEquals(1L, underTest.sampleStatsInto(counts, totals));
+        assertEquals(3L, counts[2]);
+        assertEquals(75L, totals[2]);
+        assertEquals(0L, underTest.sampleStatsInto(counts, totals));
+        assertNull(underTest.sampleStats());
+        assertThrows(IllegalArgumentException.class, () -> underTest.sampleStatsInto(new long[3], totals));
+    }
+
+    @Test
+    public void testNoSamplesLostDuringSwap() throws Exception {
+        MetrigoMetricsAccumulatorImpl underTest = new MetrigoMetricsAccumulatorImpl("theName");
+        MetrigoAccumulatorConcurrency.assertNoSamplesLost(MetrigoStatistics.LOWER_BOUNDS.size(), underTest::addSample,
+                                                          underTest::sampleStatsInto);
+    }
 }
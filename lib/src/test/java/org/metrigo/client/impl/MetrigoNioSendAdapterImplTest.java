@@ -0,0 +1,329 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.MetrigoStatistics;
+
+public class MetrigoNioSendAdapterImplTest {
+    /**
+     * A loopback receiver that decodes frames, and can drop connections.
+     */
+    private static final class Receiver implements AutoCloseable {
+        private final ServerSocketChannel server;
+        private final Thread thread;
+        private final List<MetrigoSnapshot> frames = new CopyOnWriteArrayList<>();
+        private volatile int dropAfterFrames = Integer.MAX_VALUE;
+        private volatile boolean closed;
+
+        Receiver() throws IOException {
+            this.server = ServerSocketChannel.open();
+            this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            this.thread = new Thread(this::serve);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        InetSocketAddress getAddress() throws IOException {
+            return (InetSocketAddress) this.server.getLocalAddress();
+        }
+
+        private void serve() {
+            while (!this.closed) {
+                try (SocketChannel connection = this.server.accept()) {
+                    int seen = 0;
+                    ByteBuffer header = ByteBuffer.allocate(4);
+                    while (seen < this.dropAfterFrames) {
+                        header.clear();
+                        if (!readFully(connection, header)) {
+                            break;
+                        }
+                        ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+                        if (!readFully(connection, body)) {
+                            break;
+                        }
+                        body.flip();
+                        this.frames.add(MetrigoSnapshot.decode(body));
+                        seen += 1;
+                    }
+                    // Only drop the first connection.
+                    this.dropAfterFrames = Integer.MAX_VALUE;
+                } catch (IOException e) {
+                    // Closed.
+                }
+            }
+        }
+
+        private static boolean readFully(SocketChannel connection, ByteBuffer target) throws IOException {
+            while (target.hasRemaining()) {
+                if (connection.read(target) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int metricCount() {
+            int count = 0;
+            for (MetrigoSnapshot frame : this.frames) {
+                count += frame.size();
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.closed = true;
+            this.server.close();
+        }
+    }
+
+    @Test
+    public void testBadArguments() {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+        MetrigoSnapshotQueue queue = new MetrigoSnapshotQueue(4, MetrigoSnapshotQueue.OverflowPolicy.DROP_NEWEST);
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoNioSendAdapterImpl(address, queue, 10, 1, 2));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoNioSendAdapterImpl(address, queue, 4096, 0, 2));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoNioSendAdapterImpl(address, queue, 4096, 5, 2));
+    }
+
+    @Test
+    public void testBackoff() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long first = MetrigoNioSendAdapterImpl.backoffMillis(1, 100, 30000, random);
+            assertTrue(first >= 50 && first <= 100, "first " + first);
+            long fourth = MetrigoNioSendAdapterImpl.backoffMillis(4, 100, 30000, random);
+            assertTrue(fourth >= 400 && fourth <= 800, "fourth " + fourth);
+            long capped = MetrigoNioSendAdapterImpl.backoffMillis(1000, 100, 30000, random);
+            assertTrue(capped >= 15000 && capped <= 30000, "capped " + capped);
+        }
+    }
+
+    @Test
+    public void testSendAndBatch() throws Exception {
+        try (Receiver receiver = new Receiver()) {
+            MetrigoNioSendAdapterImpl underTest = new MetrigoNioSendAdapterImpl(receiver.getAddress());
+            // Queue everything before starting, so the metrics for each time share a frame.
+            Date time = new Date(60000);
+            for (int i = 0; i < 100; i++) {
+                underTest.sendMetrics("metric" + i, time, stats(i));
+            }
+            underTest.sendBatch(new MetrigoSnapshot.Builder(120000, 2).add("a", stats(1)).add("b", stats(2)).build());
+            Thread thread = new Thread(underTest);
+            thread.start();
+
+            waitFor(() -> receiver.metricCount() == 102);
+            assertEquals(2, receiver.frames.size());
+            MetrigoSnapshot first = receiver.frames.get(0);
+            assertEquals(60000, first.getTimeMillis());
+            assertEquals("metric7", first.getName(7));
+            assertEquals(stats(7), first.getStatistics(7));
+            assertEquals(120000, receiver.frames.get(1).getTimeMillis());
+
+            // And again, with the connection already made.
+            underTest.sendMetrics("late", new Date(180000), stats(3));
+            waitFor(() -> receiver.metricCount() == 103);
+
+            underTest.shutdown();
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+            assertEquals(3, underTest.getSentFrameCount());
+            assertEquals(1, underTest.getConnectCount());
+            assertEquals(0, underTest.getDroppedCount());
+        }
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        try (Receiver receiver = new Receiver()) {
+            receiver.dropAfterFrames = 1;
+            MetrigoNioSendAdapterImpl underTest = new MetrigoNioSendAdapterImpl(
+                receiver.getAddress(), new MetrigoSnapshotQueue(1024, MetrigoSnapshotQueue.OverflowPolicy.DROP_OLDEST),
+                4096, 1, 10);
+            Thread thread = new Thread(underTest);
+            thread.start();
+
+            // Keep sending until the adapter notices the dropped connection and reconnects.
+            long time = 0;
+            long deadline = System.currentTimeMillis() + 10000;
+            while (underTest.getConnectCount() < 2 && System.currentTimeMillis() < deadline) {
+                underTest.sendMetrics("metric", new Date(time), stats(1));
+                time += 1000;
+                Thread.sleep(5);
+            }
+            assertEquals(2, underTest.getConnectCount());
+            int before = receiver.frames.size();
+            underTest.sendMetrics("metric", new Date(time), stats(1));
+            waitFor(() -> receiver.frames.size() > before);
+
+            underTest.shutdown();
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    @Test
+    public void testDropsWhenDisconnected() throws Exception {
+        InetSocketAddress nowhere;
+        try (ServerSocketChannel unused = ServerSocketChannel.open()) {
+            unused.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            nowhere = (InetSocketAddress) unused.getLocalAddress();
+        }
+        MetrigoNioSendAdapterImpl underTest = new MetrigoNioSendAdapterImpl(
+            nowhere, new MetrigoSnapshotQueue(8, MetrigoSnapshotQueue.OverflowPolicy.DROP_OLDEST), 4096, 1000, 1000);
+        Thread thread = new Thread(underTest);
+        thread.start();
+        for (int i = 0; i < 100; i++) {
+            underTest.sendMetrics("metric", new Date(i * 1000L), stats(1));
+        }
+        // Nothing is sent, and only what fits on the queue is kept.
+        assertEquals(92, underTest.getDroppedCount());
+        underTest.shutdown();
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertEquals(0, underTest.getSentFrameCount());
+    }
+
+    @Test
+    public void testSplitsLargeSnapshot() throws Exception {
+        try (Receiver receiver = new Receiver()) {
+            MetrigoNioSendAdapterImpl underTest = new MetrigoNioSendAdapterImpl(
+                receiver.getAddress(), new MetrigoSnapshotQueue(16, MetrigoSnapshotQueue.OverflowPolicy.DROP_OLDEST),
+                1024, 1, 10);
+            MetrigoSnapshot.Builder builder = new MetrigoSnapshot.Builder(1000, 100);
+            for (int i = 0; i < 100; i++) {
+                builder.add("a fairly long metric name number " + i, stats(i));
+            }
+            underTest.sendBatch(builder.build());
+            underTest.sendMetrics("small", new Date(2000), stats(1));
+            Thread thread = new Thread(underTest);
+            thread.start();
+
+            waitFor(() -> receiver.metricCount() == 101);
+            int frames = receiver.frames.size();
+            assertTrue(frames > 2, "frames " + frames);
+            int index = 0;
+            for (int i = 0; i < frames - 1; i++) {
+                MetrigoSnapshot frame = receiver.frames.get(i);
+                assertEquals(1000, frame.getTimeMillis());
+                for (int j = 0; j < frame.size(); j++) {
+                    assertEquals("a fairly long metric name number " + index, frame.getName(j));
+                    assertEquals(stats(index), frame.getStatistics(j));
+                    index += 1;
+                }
+            }
+            assertEquals("small", receiver.frames.get(frames - 1).getName(0));
+            assertEquals(0, underTest.getDroppedCount());
+            assertEquals(0, underTest.getOversizedMetricCount());
+            underTest.shutdown();
+            thread.join(10000);
+        }
+    }
+
+    @Test
+    public void testOversizedMetric() throws Exception {
+        try (Receiver receiver = new Receiver()) {
+            MetrigoNioSendAdapterImpl underTest = new MetrigoNioSendAdapterImpl(
+                receiver.getAddress(), new MetrigoSnapshotQueue(16, MetrigoSnapshotQueue.OverflowPolicy.DROP_OLDEST),
+                1024, 1, 10);
+            StringBuilder name = new StringBuilder();
+            while (name.length() < 2000) {
+                name.append("long");
+            }
+            underTest.sendBatch(new MetrigoSnapshot.Builder(1000, 2).add(name.toString(), stats(1))
+                                .add("kept", stats(2)).build());
+            underTest.sendMetrics("small", new Date(2000), stats(1));
+            Thread thread = new Thread(underTest);
+            thread.start();
+
+            waitFor(() -> receiver.metricCount() == 2);
+            assertEquals("kept", receiver.frames.get(0).getName(0));
+            assertEquals("small", receiver.frames.get(1).getName(0));
+            assertEquals(1, underTest.getOversizedMetricCount());
+            assertEquals(0, underTest.getDroppedCount());
+            underTest.shutdown();
+            thread.join(10000);
+        }
+    }
+
+    @Test
+    public void testNothingUncountedWhenBufferFull() throws Exception {
+        try (Receiver receiver = new Receiver()) {
+            MetrigoNioSendAdapterImpl underTest = new MetrigoNioSendAdapterImpl(
+                receiver.getAddress(), new MetrigoSnapshotQueue(64, MetrigoSnapshotQueue.OverflowPolicy.DROP_OLDEST),
+                1024, 1, 10);
+            // Alternating times, so no two snapshots share a frame, and far more than fits in the buffer.
+            int offered = 500;
+            for (int i = 0; i < offered; i++) {
+                underTest.sendMetrics("metric", new Date((i % 2 + 1) * 1000L), stats(i));
+            }
+            Thread thread = new Thread(underTest);
+            thread.start();
+            for (int i = 0; i < offered; i++) {
+                underTest.sendMetrics("metric", new Date((i % 2 + 1) * 1000L), stats(i));
+            }
+            waitFor(() -> receiver.frames.size() + underTest.getDroppedCount() + underTest.getLostFrameCount()
+                          >= 2 * offered);
+            underTest.shutdown();
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+
+            assertEquals(2 * offered, underTest.getSentFrameCount() + underTest.getDroppedCount()
+                                      + underTest.getLostFrameCount());
+            assertEquals(underTest.getSentFrameCount(), receiver.frames.size());
+            assertEquals(receiver.frames.size(), receiver.metricCount());
+        }
+    }
+
+    private interface Condition {
+        boolean test();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.test()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(1);
+        }
+    }
+
+    private static MetrigoStatistics stats(long count) {
+        long [] counts = new long[MetrigoStatistics.LOWER_BOUNDS.size()];
+        long [] totals = new long[counts.length];
+        counts[3] = count + 1;
+        totals[3] = (count + 1) * 50;
+        return new MetrigoStatistics(counts, totals);
+    }
+}
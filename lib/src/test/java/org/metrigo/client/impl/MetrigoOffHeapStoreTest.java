@@ -0,0 +1,172 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.client.MetrigoMetricAccumulator;
+import org.metrigo.client.MetrigoRegistry;
+
+public class MetrigoOffHeapStoreTest {
+    @Test
+    public void testBadCapacity() {
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoOffHeapStore(0));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoOffHeapStore(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testNoSamples() {
+        MetrigoOffHeapStore store = new MetrigoOffHeapStore(4);
+        MetrigoMetricAccumulator underTest = store.newAccumulator("theName");
+        assertEquals("theName", underTest.getMetricName());
+        assertNull(underTest.sampleStats());
+    }
+
+    @Test
+    public void testSamples() {
+        MetrigoOffHeapStore store = new MetrigoOffHeapStore(4);
+        MetrigoMetricAccumulator first = store.newAccumulator("first");
+        MetrigoMetricAccumulator second = store.newAccumulator("second");
+        first.addSample(2);
+        first.addSample(1000000000L);
+        second.addSample(500);
+
+        MetrigoStatistics result = first.sampleStats();
+        assertEquals(1L, result.getCount(0));
+        assertEquals(2L, result.getTotal(0));
+        assertEquals(1L, result.getCount(18));
+        assertEquals(1000000000L, result.getTotal(18));
+        assertEquals(2L, result.getSampleCount());
+        // cleared, and the neighbouring slot is untouched.
+        assertNull(first.sampleStats());
+        assertEquals(500L, second.sampleStats().getTotal(5));
+    }
+
+    @Test
+    public void testDrainInto() {
+        MetrigoOffHeapStore store = new MetrigoOffHeapStore(1);
+        store.record(0, 20);
+        store.record(0, 30);
+        long [] counts = new long[19];
+        long [] totals = new long[19];
+        assertEquals(2L, store.drainInto(0, counts, totals));
+        assertEquals(2L, counts[2]);
+        assertEquals(50L, totals[2]);
+        assertEquals(0L, store.drainInto(0, counts, totals));
+    }
+
+    @Test
+    public void testLayout() {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        MetrigoOffHeapStore store = new MetrigoOffHeapStore(2, layout);
+        MetrigoMetricAccumulator underTest = store.newAccumulator("theName");
+        underTest.addSample(400);
+        MetrigoStatistics result = underTest.sampleStats();
+        assertSame(layout, result.getLayout());
+        assertEquals(1L, result.getCount(layout.getBin(400)));
+    }
+
+    @Test
+    public void testFull() {
+        MetrigoOffHeapStore store = new MetrigoOffHeapStore(2);
+        store.newAccumulator("first");
+        store.newAccumulator("second");
+        assertThrows(IllegalStateException.class, () -> store.newAccumulator("third"));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testRegistryFactory() {
+        MetrigoOffHeapStore store = new MetrigoOffHeapStore(100);
+        MetrigoRegistry registry = new MetrigoRegistry(store::newAccumulator);
+        int handle = registry.getOrRegister("theName");
+        registry.addSample(handle, 10);
+        assertEquals(1L, registry.get(handle).sampleStats().getSampleCount());
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testNoSamplesLostDuringSwap() throws Exception {
+        final int threads = 8;
+        final int samplesPerThread = 200000;
+        MetrigoOffHeapStore store = new MetrigoOffHeapStore(2);
+        MetrigoMetricAccumulator underTest = store.newAccumulator("theName");
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean done = new AtomicBoolean(false);
+        List<Thread> writers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            final long value = 10L * (t + 1);
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < samplesPerThread; i++) {
+                    underTest.addSample(value);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+
+        long [] seen = new long[2];
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                add(underTest.sampleStats(), seen);
+            }
+        });
+        reader.start();
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        reader.join();
+        add(underTest.sampleStats(), seen);
+
+        long expectedTotal = 0;
+        for (int t = 0; t < threads; t++) {
+            expectedTotal += 10L * (t + 1) * samplesPerThread;
+        }
+        assertEquals((long) threads * samplesPerThread, seen[0]);
+        assertEquals(expectedTotal, seen[1]);
+    }
+
+    private static void add(MetrigoStatistics stats, long [] seen) {
+        if (stats == null) {
+            return;
+        }
+        for (int i = 0; i < stats.getBinCount(); i++) {
+            seen[0] += stats.getCount(i);
+            seen[1] += stats.getTotal(i);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.client.MetrigoBatchSendAdapter;
+import org.metrigo.client.MetrigoRegistry;
+import org.metrigo.client.MetrigoSendAdapter;
+
+public class MetrigoQueueRunnerImplTest {
+    private static List<String> names(MetrigoSnapshot snapshot) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            result.add(snapshot.getName(i));
+        }
+        return result;
+    }
+
+    @Test
+    void testBadInterval() {
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoQueueRunnerImpl(0, (name, time, stats) -> { }));
+    }
+
+    @Test
+    void testNextBoundary() {
+        MetrigoQueueRunnerImpl underTest = new MetrigoQueueRunnerImpl(1000, (name, time, stats) -> { });
+        assertEquals(1000L, underTest.nextBoundary(0));
+        assertEquals(2000L, underTest.nextBoundary(1000));
+        assertEquals(2000L, underTest.nextBoundary(1999));
+        assertEquals(0L, underTest.nextBoundary(-1));
+    }
+
+    @Test
+    void testRegister() {
+        MetrigoQueueRunnerImpl underTest = new MetrigoQueueRunnerImpl(1000, (name, time, stats) -> { });
+        MetrigoMetricsAccumulatorImpl first = new MetrigoMetricsAccumulatorImpl("first");
+        assertTrue(underTest.register(first));
+        assertTrue(underTest.register(first));
+        assertFalse(underTest.register(new MetrigoMetricsAccumulatorImpl("first")));
+        assertSame(first, underTest.deregister("first"));
+        assertNull(underTest.deregister("first"));
+    }
+
+    @Test
+    void testFlushSingleMetrics() {
+        List<String> sent = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        MetrigoSendAdapter adapter = (name, time, stats) -> {
+            sent.add(name);
+            times.add(time.getTime());
+        };
+        MetrigoQueueRunnerImpl underTest = new MetrigoQueueRunnerImpl(1000, adapter);
+        MetrigoMetricsAccumulatorImpl first = new MetrigoMetricsAccumulatorImpl("first");
+        MetrigoMetricsAccumulatorImpl second = new MetrigoMetricsAccumulatorImpl("second");
+        underTest.register(first);
+        underTest.register(second);
+        first.addSample(10);
+
+        underTest.flush(5000L);
+        // the empty accumulator is left out.
+        assertThat(sent, contains("first"));
+        assertThat(times, contains(5000L));
+    }
+
+    @Test
+    void testFlushBatch() {
+        List<MetrigoSnapshot> sent = new ArrayList<>();
+        MetrigoBatchSendAdapter adapter = sent::add;
+        MetrigoQueueRunnerImpl underTest = new MetrigoQueueRunnerImpl(1000, adapter);
+        MetrigoMetricsAccumulatorImpl first = new MetrigoMetricsAccumulatorImpl("first");
+        MetrigoMetricsAccumulatorImpl second = new MetrigoMetricsAccumulatorImpl("second");
+        underTest.register(first);
+        underTest.register(second);
+        first.addSample(10);
+        second.addSample(20);
+
+        underTest.flush(5000L);
+        assertEquals(1, sent.size());
+        assertEquals(5000L, sent.get(0).getTimeMillis());
+        assertThat(names(sent.get(0)), containsInAnyOrder("first", "second"));
+
+        underTest.flush(6000L);
+        assertEquals(0, sent.get(1).size());
+    }
+
+    @Test
+    void testDeregisterFlushesPending() {
+        List<MetrigoSnapshot> sent = new ArrayList<>();
+        MetrigoBatchSendAdapter adapter = sent::add;
+        MetrigoQueueRunnerImpl underTest = new MetrigoQueueRunnerImpl(1000, adapter);
+        MetrigoMetricsAccumulatorImpl first = new MetrigoMetricsAccumulatorImpl("first");
+        underTest.register(first);
+        first.addSample(10);
+        underTest.deregister("first");
+
+        underTest.flush(5000L);
+        assertThat(names(sent.get(0)), contains("first"));
+        first.addSample(10);
+        underTest.flush(6000L);
+        assertEquals(0, sent.get(1).size());
+    }
+
+    @Test
+    void testRunAndShutdown() throws Exception {
+        final long interval = 20L;
+        List<MetrigoSnapshot> sent = Collections.synchronizedList(new ArrayList<>());
+        MetrigoBatchSendAdapter adapter = sent::add;
+        MetrigoQueueRunnerImpl underTest = new MetrigoQueueRunnerImpl(interval, adapter);
+        MetrigoMetricsAccumulatorImpl lateness = new MetrigoMetricsAccumulatorImpl("lateness");
+        underTest.setFlushLatenessAccumulator(lateness);
+        MetrigoMetricsAccumulatorImpl first = new MetrigoMetricsAccumulatorImpl("first");
+        underTest.register(first);
+
+        Thread thread = new Thread(underTest);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (sent.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(interval);
+        }
+        first.addSample(10);
+        underTest.shutdown();
+        thread.join(10000L);
+        assertFalse(thread.isAlive());
+
+        assertThat(sent.size(), greaterThanOrEqualTo(4));
+        for (int i = 0; i < sent.size(); i++) {
+            // Every flush, including the final one, is on an interval boundary.
+            assertEquals(0L, sent.get(i).getTimeMillis() % interval);
+        }
+        // The final flush picked up the last sample.
+        MetrigoSnapshot last = sent.get(sent.size() - 1);
+        assertThat(names(last), contains("first"));
+        assertNotNull(lateness.sampleStats());
+        assertThat(underTest.getLastFlushLatenessMillis(), greaterThanOrEqualTo(0L));
+    }
+
+    @Test
+    void testShutdownDoesNotInterruptSend() throws Exception {
+        List<Boolean> interrupted = Collections.synchronizedList(new ArrayList<>());
+        MetrigoBatchSendAdapter adapter = snapshot -> interrupted.add(Thread.currentThread().isInterrupted());
+        MetrigoQueueRunnerImpl underTest = new MetrigoQueueRunnerImpl(60000L, adapter);
+
+        Thread thread = new Thread(underTest);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (thread.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        underTest.shutdown();
+        thread.join(10000L);
+        assertFalse(thread.isAlive());
+        assertThat(interrupted, contains(false));
+    }
+
+    @Test
+    void testInterruptIsPassedOn() throws Exception {
+        List<Boolean> interrupted = Collections.synchronizedList(new ArrayList<>());
+        MetrigoBatchSendAdapter adapter = snapshot -> interrupted.add(Thread.currentThread().isInterrupted());
+        MetrigoQueueRunnerImpl underTest = new MetrigoQueueRunnerImpl(60000L, adapter);
+        List<Boolean> interruptedAfter = Collections.synchronizedList(new ArrayList<>());
+
+        Thread thread = new Thread(() -> {
+            underTest.run();
+            interruptedAfter.add(Thread.currentThread().isInterrupted());
+        });
+        thread.start();
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (thread.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        thread.interrupt();
+        thread.join(10000L);
+        assertFalse(thread.isAlive());
+        // The final flush still sends without the interrupt, which is restored afterwards.
+        assertThat(interrupted, contains(false));
+        assertThat(interruptedAfter, contains(true));
+    }
+
+    @Test
+    void testShutdownBeforeRun() {
+        List<MetrigoSnapshot> sent = new ArrayList<>();
+        MetrigoBatchSendAdapter adapter = sent::add;
+        MetrigoQueueRunnerImpl underTest = new MetrigoQueueRunnerImpl(60000L, adapter);
+        underTest.shutdown();
+        underTest.run();
+        assertEquals(1, sent.size());
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    void testFlushSharedRegistry() {
+        List<MetrigoSnapshot> sent = new ArrayList<>();
+        MetrigoBatchSendAdapter adapter = sent::add;
+        MetrigoRegistry registry = new MetrigoRegistry();
+        MetrigoQueueRunnerImpl underTest = new MetrigoQueueRunnerImpl(1000, registry, adapter);
+        assertSame(registry, underTest.getRegistry());
+        int first = registry.getOrRegister("first");
+        int second = registry.getOrRegister("second");
+        registry.addSample(second, 20);
+        registry.addSample(first, 10);
+
+        underTest.flush(5000L);
+        // flushed in handle order.
+        assertThat(names(sent.get(0)), contains("first", "second"));
+    }
+}
@@ -0,0 +1,197 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.metrigo.MetrigoStatistics;
+
+public class MetrigoSampleAsyncImplTest {
+    private static long countOf(MetrigoStatistics stats) {
+        long count = 0;
+        if (stats != null) {
+            for (long value : stats.getCountsAsArray()) {
+                count += value;
+            }
+        }
+        return count;
+    }
+
+    @ParameterizedTest
+    @CsvSource({"-5,0", "0,0", "499,0", "500,0", "501,1", "1499,1",
+                "1500,2", "2500,2", "2501,3", "1000000,1000"})
+    void testToMicros(long inputNanos, long expected) {
+        assertEquals(expected, MetrigoSampleAsyncImpl.toMicros(inputNanos));
+    }
+
+    @Test
+    void testFinish() {
+        MetrigoMetricsAccumulatorImpl stats = new MetrigoMetricsAccumulatorImpl("good");
+        MetrigoSampleAsyncImpl underTest = new MetrigoSampleAsyncImpl();
+        underTest.start();
+        underTest.finish(stats);
+        MetrigoStatistics result = stats.sampleStats();
+        assertEquals(1, countOf(result));
+        long total = 0;
+        for (long value : result.getTotalsAsArray()) {
+            total += value;
+        }
+        // Measured in microseconds, not whole milliseconds.
+        assertTrue(total < 1000000, "total " + total);
+    }
+
+    @Test
+    void testManualClock() {
+        MetrigoManualClock clock = new MetrigoManualClock(1000000);
+        MetrigoMetricsAccumulatorImpl stats = new MetrigoMetricsAccumulatorImpl("good");
+        MetrigoSampleAsyncImpl underTest = new MetrigoSampleAsyncImpl(clock);
+        underTest.start();
+        clock.advance(42600);
+        underTest.finish(stats);
+        MetrigoStatistics result = stats.sampleStats();
+        assertEquals(1, countOf(result));
+        assertEquals(43, result.getTotal(result.getLayout().getBin(43)));
+    }
+
+    @Test
+    void testFinishOnce() {
+        MetrigoMetricsAccumulatorImpl stats = new MetrigoMetricsAccumulatorImpl("good");
+        MetrigoMetricsAccumulatorImpl errorStats = new MetrigoMetricsAccumulatorImpl("error");
+        MetrigoSampleAsyncImpl underTest = new MetrigoSampleAsyncImpl();
+        underTest.setErrorStats(errorStats);
+        underTest.start();
+        assertFalse(underTest.isFinished());
+        underTest.finish(stats);
+        underTest.finish(stats);
+        underTest.close();
+        underTest.accept(null, new IOException("late"));
+        assertTrue(underTest.isFinished());
+        assertEquals(1, countOf(stats.sampleStats()));
+        assertEquals(0, countOf(errorStats.sampleStats()));
+
+        // Starting again allows one more sample.
+        underTest.start();
+        underTest.close();
+        assertEquals(1, countOf(errorStats.sampleStats()));
+    }
+
+    @Test
+    void testCloseWithoutError() {
+        MetrigoSampleAsyncImpl underTest = new MetrigoSampleAsyncImpl();
+        underTest.start();
+        underTest.close();
+        assertTrue(underTest.isFinished());
+    }
+
+    @Test
+    void testRacingFinish() throws Exception {
+        final int threads = 8;
+        MetrigoMetricsAccumulatorImpl stats = new MetrigoMetricsAccumulatorImpl("good");
+        for (int round = 0; round < 200; round++) {
+            MetrigoSampleAsyncImpl underTest = new MetrigoSampleAsyncImpl();
+            underTest.setErrorStats(stats);
+            underTest.start();
+            CountDownLatch go = new CountDownLatch(1);
+            List<Thread> racers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final boolean close = t % 2 == 0;
+                Thread racer = new Thread(() -> {
+                    try {
+                        go.await();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (close) {
+                        underTest.close();
+                    } else {
+                        underTest.finish(stats);
+                    }
+                });
+                racer.start();
+                racers.add(racer);
+            }
+            go.countDown();
+            for (Thread racer : racers) {
+                racer.join();
+            }
+        }
+        assertEquals(200, countOf(stats.sampleStats()));
+    }
+
+    @Test
+    void testWhenComplete() throws Exception {
+        MetrigoMetricsAccumulatorImpl stats = new MetrigoMetricsAccumulatorImpl("good");
+        MetrigoMetricsAccumulatorImpl errorStats = new MetrigoMetricsAccumulatorImpl("error");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CompletableFuture<String> good = new CompletableFuture<>();
+            assertSame(good, MetrigoSampleAsyncImpl.whenComplete(good, stats, errorStats));
+            CompletableFuture<String> bad = MetrigoSampleAsyncImpl.whenComplete(new CompletableFuture<>(), stats, errorStats);
+            assertEquals(0, countOf(stats.sampleStats()));
+
+            executor.submit(() -> good.complete("done")).get();
+            executor.submit(() -> bad.completeExceptionally(new IOException("failed"))).get();
+            assertEquals(1, countOf(stats.sampleStats()));
+            assertEquals(1, countOf(errorStats.sampleStats()));
+
+            // A stage that is already complete is recorded straight away.
+            MetrigoSampleAsyncImpl.whenComplete(CompletableFuture.completedFuture("done"), stats, null);
+            MetrigoSampleAsyncImpl.whenComplete(CompletableFuture.failedFuture(new IOException("failed")), stats, null);
+            assertEquals(1, countOf(stats.sampleStats()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testWrap() throws Exception {
+        MetrigoMetricsAccumulatorImpl stats = new MetrigoMetricsAccumulatorImpl("good");
+        MetrigoMetricsAccumulatorImpl errorStats = new MetrigoMetricsAccumulatorImpl("error");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Callable<String> good = MetrigoSampleAsyncImpl.wrap(() -> "done", stats, errorStats);
+            assertEquals("done", executor.submit(good).get());
+            IOException failure = new IOException("failed");
+            Callable<String> bad = MetrigoSampleAsyncImpl.wrap(() -> {
+                throw failure;
+            }, stats, errorStats);
+            ExecutionException thrown = assertThrows(ExecutionException.class, () -> executor.submit(bad).get());
+            assertSame(failure, thrown.getCause());
+            assertEquals(1, countOf(stats.sampleStats()));
+            assertEquals(1, countOf(errorStats.sampleStats()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
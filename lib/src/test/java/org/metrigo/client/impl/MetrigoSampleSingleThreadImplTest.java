@@ -16,6 +16,7 @@ package org.metrigo.client.impl;
  * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
  */
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -25,12 +26,13 @@ import static org.mockito.Mockito.verifyNoMoreInteractions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
+import org.metrigo.MetrigoStatistics;
 import org.metrigo.client.MetrigoMetricAccumulator;
 
 public class MetrigoSampleSingleThreadImplTest {
     @ParameterizedTest
-    @CsvSource({"1,0", "500000,0", "500001,1", "1499999,1",
-                "1500000,2", "2500000,2"})
+    @CsvSource({"1,0", "500,0", "501,1", "1499,1",
+                "1500,2", "2500,2", "3000000,3000"})
     void testAddSample(long inputNanos, long expected) {
         try (MetrigoSampleSingleThreadImpl underTest = new MetrigoSampleSingleThreadImpl()) {
             MetrigoMetricAccumulator accumulator = mock(MetrigoMetricAccumulator.class);
@@ -83,4 +85,17 @@ public class MetrigoSampleSingleThreadImplTest {
         verifyNoMoreInteractions(accumulator);
         verifyNoMoreInteractions(errorAccumulator);
     }
+
+    @Test
+    void testClock() {
+        MetrigoManualClock clock = new MetrigoManualClock();
+        MetrigoMetricsAccumulatorImpl accumulator = new MetrigoMetricsAccumulatorImpl("good");
+        try (MetrigoSampleSingleThreadImpl underTest = new MetrigoSampleSingleThreadImpl(clock)) {
+            underTest.start();
+            clock.advance(3000000);
+            underTest.finish(accumulator);
+        }
+        MetrigoStatistics result = accumulator.sampleStats();
+        assertEquals(3000L, result.getTotal(result.getLayout().getBin(3000)));
+    }
 }
@@ -0,0 +1,151 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+import org.metrigo.MetrigoStatistics;
+
+public class MetrigoSampleThreadLocalImplTest {
+    private static long countOf(MetrigoStatistics stats) {
+        long count = 0;
+        if (stats != null) {
+            for (long value : stats.getCountsAsArray()) {
+                count += value;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void testReused() {
+        MetrigoSampleThreadLocalImpl first;
+        try (MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire()) {
+            first = sample;
+        }
+        try (MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire()) {
+            assertSame(first, sample);
+        }
+    }
+
+    @Test
+    void testNested() {
+        MetrigoMetricsAccumulatorImpl outerStats = new MetrigoMetricsAccumulatorImpl("outer");
+        MetrigoMetricsAccumulatorImpl innerStats = new MetrigoMetricsAccumulatorImpl("inner");
+        MetrigoMetricsAccumulatorImpl errorStats = new MetrigoMetricsAccumulatorImpl("error");
+
+        try (MetrigoSampleThreadLocalImpl outer = MetrigoSampleThreadLocalImpl.acquire()) {
+            outer.setErrorStats(errorStats);
+            outer.start();
+            try (MetrigoSampleThreadLocalImpl inner = MetrigoSampleThreadLocalImpl.acquire()) {
+                assertNotSame(outer, inner);
+                inner.setErrorStats(errorStats);
+                inner.start();
+                inner.finish(innerStats);
+            }
+            outer.finish(outerStats);
+        }
+        assertEquals(1, countOf(outerStats.sampleStats()));
+        assertEquals(1, countOf(innerStats.sampleStats()));
+        assertNull(errorStats.sampleStats());
+    }
+
+    @Test
+    void testCloseWithError() {
+        MetrigoMetricsAccumulatorImpl errorStats = new MetrigoMetricsAccumulatorImpl("error");
+        MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire();
+        sample.setErrorStats(errorStats);
+        sample.start();
+        sample.close();
+        // a second close must not record again, or give the sampler back twice.
+        sample.close();
+        assertEquals(1, countOf(errorStats.sampleStats()));
+    }
+
+    @Test
+    void testAcquireClearsErrorStats() {
+        MetrigoMetricsAccumulatorImpl errorStats = new MetrigoMetricsAccumulatorImpl("error");
+        MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire();
+        sample.setErrorStats(errorStats);
+        sample.close();
+        assertEquals(1, countOf(errorStats.sampleStats()));
+
+        try (MetrigoSampleThreadLocalImpl reused = MetrigoSampleThreadLocalImpl.acquire()) {
+            assertSame(sample, reused);
+        }
+        assertNull(errorStats.sampleStats());
+    }
+
+    @Test
+    void testOutOfOrderClose() {
+        MetrigoSampleThreadLocalImpl outer = MetrigoSampleThreadLocalImpl.acquire();
+        MetrigoSampleThreadLocalImpl inner = MetrigoSampleThreadLocalImpl.acquire();
+        outer.close();
+        // inner is still in use, so a new sampler must not be either of them.
+        MetrigoSampleThreadLocalImpl other = MetrigoSampleThreadLocalImpl.acquire();
+        assertNotNull(other);
+        assertNotSame(outer, other);
+        assertNotSame(inner, other);
+        other.close();
+        inner.close();
+        try (MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire()) {
+            assertSame(outer, sample);
+        }
+    }
+
+    @Test
+    void testSeparateThreads() throws Exception {
+        MetrigoSampleThreadLocalImpl [] other = new MetrigoSampleThreadLocalImpl[1];
+        Thread thread = new Thread(() -> {
+            try (MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire()) {
+                other[0] = sample;
+            }
+        });
+        thread.start();
+        thread.join();
+        try (MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire()) {
+            assertNotSame(other[0], sample);
+        }
+    }
+
+    @Test
+    void testClock() {
+        MetrigoManualClock clock = new MetrigoManualClock();
+        MetrigoMetricsAccumulatorImpl stats = new MetrigoMetricsAccumulatorImpl("good");
+        try (MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire(clock)) {
+            sample.start();
+            clock.advance(5000000);
+            sample.finish(stats);
+        }
+        MetrigoStatistics timed = stats.sampleStats();
+        try (MetrigoSampleThreadLocalImpl sample = MetrigoSampleThreadLocalImpl.acquire()) {
+            sample.start();
+            clock.advance(5000000);
+            sample.finish(stats);
+        }
+        // The same sampler goes back to the system clock, so the manual clock is not used.
+        MetrigoStatistics untimed = stats.sampleStats();
+        assertEquals(1, countOf(timed));
+        assertEquals(1, countOf(untimed));
+        assertEquals(5000, timed.getTotal(timed.getLayout().getBin(5000)));
+    }
+}
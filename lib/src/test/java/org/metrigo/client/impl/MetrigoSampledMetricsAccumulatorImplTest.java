@@ -0,0 +1,144 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoStatistics;
+
+public class MetrigoSampledMetricsAccumulatorImplTest {
+    @Test
+    public void testGetName() {
+        String metricName = "theName";
+        MetrigoSampledMetricsAccumulatorImpl underTest = new MetrigoSampledMetricsAccumulatorImpl(metricName, 4);
+        assertSame(metricName, underTest.getMetricName());
+    }
+
+    @Test
+    public void testBadArguments() {
+        MetrigoBinLayout layout = MetrigoBinLayout.DEFAULT;
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoSampledMetricsAccumulatorImpl("theName", 0));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoSampledMetricsAccumulatorImpl(
+            "theName", MetrigoSampledMetricsAccumulatorImpl.MAX_SAMPLING_INTERVAL + 1));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoSampledMetricsAccumulatorImpl("theName", layout, 1, -1));
+    }
+
+    @Test
+    public void testNoSamples() {
+        MetrigoSampledMetricsAccumulatorImpl underTest = new MetrigoSampledMetricsAccumulatorImpl("theName", 4);
+        assertNull(underTest.sampleStats());
+    }
+
+    @Test
+    public void testEverySample() {
+        MetrigoSampledMetricsAccumulatorImpl underTest = new MetrigoSampledMetricsAccumulatorImpl("theName", 1);
+        underTest.addSample(2);
+        underTest.addSample(1000000000L);
+        MetrigoStatistics result = underTest.sampleStats();
+        assertEquals(1, result.getSamplingInterval());
+        assertEquals(1, result.getCount(0));
+        assertEquals(2, result.getTotal(0));
+        assertEquals(1, result.getCount(18));
+        assertEquals(1000000000L, result.getTotal(18));
+        assertNull(underTest.sampleStats());
+    }
+
+    @Test
+    public void testScaledUp() {
+        final int samples = 1600000;
+        MetrigoSampledMetricsAccumulatorImpl underTest = new MetrigoSampledMetricsAccumulatorImpl("theName", 16);
+        for (int i = 0; i < samples; i++) {
+            underTest.addSample(400);
+        }
+        MetrigoStatistics result = underTest.sampleStats();
+        assertEquals(16, result.getSamplingInterval());
+        int bin = result.getLayout().getBin(400);
+        long count = result.getCount(bin);
+        assertEquals(0, count % 16);
+        assertEquals(400 * count, result.getTotal(bin));
+        assertEquals(count, result.getSampleCount());
+        assertTrue(Math.abs(count - samples) < samples / 50, "count " + count);
+    }
+
+    @Test
+    public void testManyThreads() throws Exception {
+        final int threads = 4;
+        final int samplesPerThread = 1000000;
+        MetrigoSampledMetricsAccumulatorImpl underTest = new MetrigoSampledMetricsAccumulatorImpl("theName", 8);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < samplesPerThread; i++) {
+                    underTest.addSample(50);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long count = underTest.sampleStats().getSampleCount();
+        long expected = (long) threads * samplesPerThread;
+        assertTrue(Math.abs(count - expected) < expected / 50, "count " + count);
+    }
+
+    @Test
+    public void testAdaptive() {
+        MetrigoSampledMetricsAccumulatorImpl underTest = new MetrigoSampledMetricsAccumulatorImpl(
+            "theName", MetrigoBinLayout.DEFAULT, 1, 1000);
+        for (int i = 0; i < 1000000; i++) {
+            underTest.addSample(50);
+        }
+        MetrigoStatistics first = underTest.sampleStats();
+        assertEquals(1, first.getSamplingInterval());
+        assertEquals(1000000, first.getSampleCount());
+        assertEquals(1000, underTest.getSamplingInterval());
+
+        for (int i = 0; i < 1000000; i++) {
+            underTest.addSample(50);
+        }
+        MetrigoStatistics second = underTest.sampleStats();
+        assertEquals(1000, second.getSamplingInterval());
+        assertTrue(Math.abs(second.getSampleCount() - 1000000) < 100000, "count " + second.getSampleCount());
+        // The rate is the same, so the interval barely moves.
+        int next = underTest.getSamplingInterval();
+        assertTrue(next > 900 && next < 1100, "interval " + next);
+
+        // A quiet interval only halves the sampling interval.
+        assertNull(underTest.sampleStats());
+        assertEquals(next / 2, underTest.getSamplingInterval());
+    }
+
+    @Test
+    public void testNextInterval() {
+        assertEquals(1, MetrigoSampledMetricsAccumulatorImpl.nextInterval(1, 10, 1000));
+        assertEquals(50, MetrigoSampledMetricsAccumulatorImpl.nextInterval(1, 50000, 1000));
+        assertEquals(50, MetrigoSampledMetricsAccumulatorImpl.nextInterval(100, 0, 1000));
+        assertEquals(MetrigoSampledMetricsAccumulatorImpl.MAX_SAMPLING_INTERVAL,
+                     MetrigoSampledMetricsAccumulatorImpl.nextInterval(1, Long.MAX_VALUE, 1));
+    }
+}
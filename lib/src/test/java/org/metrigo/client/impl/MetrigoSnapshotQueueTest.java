@@ -0,0 +1,168 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.client.MetrigoBatchSendAdapter;
+import org.metrigo.client.impl.MetrigoSnapshotQueue.OverflowPolicy;
+
+public class MetrigoSnapshotQueueTest {
+    private static MetrigoSnapshot snapshot(long time) {
+        long [] counts = new long[MetrigoStatistics.LOWER_BOUNDS.size()];
+        long [] totals = new long[MetrigoStatistics.LOWER_BOUNDS.size()];
+        counts[0] = 1;
+        totals[0] = 2;
+        return new MetrigoSnapshot.Builder(time, 1).add("metric", new MetrigoStatistics(counts, totals)).build();
+    }
+
+    @Test
+    void testBadCapacity() {
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoSnapshotQueue(0, OverflowPolicy.DROP_NEWEST));
+    }
+
+    @Test
+    void testFifo() {
+        MetrigoSnapshotQueue underTest = new MetrigoSnapshotQueue(3, OverflowPolicy.DROP_NEWEST);
+        assertEquals(4, underTest.capacity());
+        assertNull(underTest.poll());
+        MetrigoSnapshot first = snapshot(1);
+        MetrigoSnapshot second = snapshot(2);
+        assertTrue(underTest.offer(first));
+        assertTrue(underTest.offer(second));
+        assertEquals(2, underTest.size());
+        assertSame(first, underTest.poll());
+        assertSame(second, underTest.poll());
+        assertNull(underTest.poll());
+        assertEquals(0, underTest.size());
+    }
+
+    @Test
+    void testWrapAround() {
+        MetrigoSnapshotQueue underTest = new MetrigoSnapshotQueue(2, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 100; i++) {
+            MetrigoSnapshot value = snapshot(i);
+            assertTrue(underTest.offer(value));
+            assertSame(value, underTest.poll());
+        }
+    }
+
+    @Test
+    void testDropNewest() {
+        MetrigoSnapshotQueue underTest = new MetrigoSnapshotQueue(2, OverflowPolicy.DROP_NEWEST);
+        underTest.offer(snapshot(1));
+        underTest.offer(snapshot(2));
+        assertFalse(underTest.offer(snapshot(3)));
+        assertEquals(1, underTest.getDroppedCount());
+        assertEquals(1L, underTest.poll().getTimeMillis());
+        assertEquals(2L, underTest.poll().getTimeMillis());
+    }
+
+    @Test
+    void testDropOldest() {
+        MetrigoSnapshotQueue underTest = new MetrigoSnapshotQueue(2, OverflowPolicy.DROP_OLDEST);
+        underTest.offer(snapshot(1));
+        underTest.offer(snapshot(2));
+        assertTrue(underTest.offer(snapshot(3)));
+        assertEquals(1, underTest.getDroppedCount());
+        assertEquals(2L, underTest.poll().getTimeMillis());
+        assertEquals(3L, underTest.poll().getTimeMillis());
+    }
+
+    @Test
+    void testMerge() {
+        MetrigoSnapshotQueue underTest = new MetrigoSnapshotQueue(2, OverflowPolicy.MERGE);
+        underTest.offer(snapshot(1));
+        underTest.offer(snapshot(2));
+        assertTrue(underTest.offer(snapshot(3)));
+        assertEquals(0, underTest.getDroppedCount());
+        assertEquals(1, underTest.getMergedCount());
+        assertEquals(2L, underTest.poll().getTimeMillis());
+        MetrigoSnapshot merged = underTest.poll();
+        assertEquals(3L, merged.getTimeMillis());
+        assertEquals(1, merged.size());
+        assertEquals(2L, merged.getStatistics(0).getCount(0));
+        assertEquals(4L, merged.getStatistics(0).getTotal(0));
+    }
+
+    @Test
+    void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        MetrigoSnapshotQueue underTest = new MetrigoSnapshotQueue(16, OverflowPolicy.DROP_NEWEST);
+        AtomicLong received = new AtomicLong();
+        List<MetrigoSnapshot> sent = Collections.synchronizedList(new ArrayList<>());
+        MetrigoBatchSendAdapter adapter = snapshot -> received.incrementAndGet();
+        MetrigoSendRunnerImpl sender = new MetrigoSendRunnerImpl(underTest, adapter);
+        Thread senderThread = new Thread(sender);
+        senderThread.start();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    MetrigoSnapshot value = snapshot(i);
+                    if (underTest.offer(value)) {
+                        sent.add(value);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        sender.shutdown();
+        senderThread.join(10000L);
+        assertFalse(senderThread.isAlive());
+
+        assertEquals((long) producers * perProducer, sent.size() + underTest.getDroppedCount());
+        assertEquals(sent.size(), received.get());
+        assertEquals(0, underTest.size());
+    }
+
+    @Test
+    void testQueueRunnerHandsOff() throws Exception {
+        MetrigoSnapshotQueue queue = new MetrigoSnapshotQueue(4, OverflowPolicy.DROP_OLDEST);
+        MetrigoQueueRunnerImpl runner = new MetrigoQueueRunnerImpl(1000L, queue);
+        MetrigoMetricsAccumulatorImpl accumulator = new MetrigoMetricsAccumulatorImpl("metric");
+        runner.register(accumulator);
+        accumulator.addSample(5);
+        runner.flush(1000L);
+
+        List<String> names = new ArrayList<>();
+        MetrigoSendRunnerImpl sender = new MetrigoSendRunnerImpl(queue, (name, time, stats) -> names.add(name));
+        sender.shutdown();
+        // With shutdown already requested, run sends what is queued and returns.
+        sender.run();
+        assertEquals(List.of("metric"), names);
+    }
+}
@@ -0,0 +1,93 @@
+package org.metrigo.client.impl;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoStatistics;
+
+public class MetrigoStripedMetricsAccumulatorImplTest {
+    @Test
+    public void testGetName() {
+        String metricName = "theName";
+
+        MetrigoStripedMetricsAccumulatorImpl underTest = new MetrigoStripedMetricsAccumulatorImpl(metricName);
+        assertSame(metricName, underTest.getMetricName());
+    }
+
+    @Test
+    public void testBadStripes() {
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoStripedMetricsAccumulatorImpl("theName", 0));
+    }
+
+    @Test
+    public void testNoSamples() {
+        MetrigoStripedMetricsAccumulatorImpl underTest = new MetrigoStripedMetricsAccumulatorImpl("theName");
+        assertNull(underTest.sampleStats());
+    }
+
+    @Test
+    public void testTwoSamplesTwoBins() {
+        MetrigoStripedMetricsAccumulatorImpl underTest = new MetrigoStripedMetricsAccumulatorImpl("theName");
+        underTest.addSample(2);
+        underTest.addSample(1000000000L);
+        MetrigoStatistics result = underTest.sampleStats();
+        // verify that we cleared the stats.
+        assertNull(underTest.sampleStats());
+        Long zero = Long.valueOf(0);
+        assertThat(result.getCounts(), contains(Long.valueOf(1), zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, Long.valueOf(1)));
+        assertThat(result.getTotals(), contains(Long.valueOf(2), zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, zero, Long.valueOf(1000000000L)));
+    }
+
+    @Test
+    public void testNoSamplesLostDuringSwap() throws Exception {
+        MetrigoStripedMetricsAccumulatorImpl underTest = new MetrigoStripedMetricsAccumulatorImpl("theName", 4);
+        MetrigoAccumulatorConcurrency.assertNoSamplesLost(MetrigoStatistics.LOWER_BOUNDS.size(), underTest::addSample,
+                                                          (counts, totals) -> add(underTest.sampleStats(), counts, totals));
+    }
+
+    @Test
+    public void testHighResolutionLayout() {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        MetrigoStripedMetricsAccumulatorImpl underTest = new MetrigoStripedMetricsAccumulatorImpl("theName", 2, layout);
+        underTest.addSample(400);
+        underTest.addSample(410);
+        MetrigoStatistics result = underTest.sampleStats();
+        assertSame(layout, result.getLayout());
+        assertEquals(2L, result.getCount(layout.getBin(400)));
+        assertEquals(810L, result.getTotal(layout.getBin(400)));
+    }
+
+    private static void add(MetrigoStatistics stats, long [] counts, long [] totals) {
+        if (stats == null) {
+            return;
+        }
+        long [] statsCounts = stats.getCountsAsArray();
+        long [] statsTotals = stats.getTotalsAsArray();
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += statsCounts[i];
+            totals[i] += statsTotals[i];
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Queries over stored metrigo statistics.
+ *
+ * Rolls stored statistics up into steps over a time range, with quantiles
+ * and rates, merging as it scans.
+ */
+
+plugins {
+    `java-library`
+}
+
+repositories {
+    // Use Maven Central for resolving dependencies.
+    mavenCentral()
+}
+
+dependencies {
+    // Queries run against the storage module's readers.
+    api(project(":storage"))
+
+    // Use JUnit Jupiter for testing.
+    testImplementation("org.junit.jupiter:junit-jupiter:5.9.1")
+    testImplementation("org.hamcrest:hamcrest:2.2")
+}
+
+// Apply a specific Java toolchain to ease working on different environments.
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(11))
+    }
+}
+
+tasks.named<Test>("test") {
+    // Use JUnit Platform for unit tests.
+    useJUnitPlatform()
+}
@@ -0,0 +1,253 @@
+package org.metrigo.query;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoQuantiles;
+import org.metrigo.MetrigoStatistics;
+
+/**
+ * A query over stored statistics.
+ * 
+ * A query picks metrics, either by name or by a pattern that the whole name
+ * must match, and a time range that is split into steps. The steps start at
+ * the start of the range, and the last step is cut short at the end of the
+ * range if the range is not a whole number of steps. Instances are immutable.
+ */
+public class MetrigoQuery {
+    /**
+     * A builder for a query.
+     */
+    public static class Builder {
+        private final long fromMillis;
+        private final long toMillis;
+        private final long stepMillis;
+        private String metricName;
+        private Pattern metricPattern;
+        private double [] quantiles = new double[0];
+
+        /**
+         * Constructor.
+         * 
+         * @param fromMillis the start of the range in milliseconds since the epoch (inclusive).
+         * @param toMillis the end of the range in milliseconds since the epoch (exclusive).
+         * @param stepMillis the length of each step in milliseconds.
+         */
+        public Builder(long fromMillis, long toMillis, long stepMillis) {
+            if (fromMillis >= toMillis) {
+                throw new IllegalArgumentException("Range start " + fromMillis + " must be before the end " + toMillis);
+            }
+            if (stepMillis <= 0) {
+                throw new IllegalArgumentException("Step must be positive but got " + stepMillis);
+            }
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.stepMillis = stepMillis;
+        }
+
+        /**
+         * Query a single metric.
+         * 
+         * @param name the name of the metric.
+         * @return this builder.
+         */
+        public Builder metric(@Nonnull String name) {
+            this.metricName = name;
+            this.metricPattern = null;
+            return this;
+        }
+
+        /**
+         * Query every metric whose whole name matches a pattern.
+         * 
+         * @param pattern the pattern.
+         * @return this builder.
+         */
+        public Builder metricPattern(@Nonnull Pattern pattern) {
+            this.metricPattern = pattern;
+            this.metricName = null;
+            return this;
+        }
+
+        /**
+         * Set the quantiles to estimate for each step.
+         * 
+         * @param values the quantiles, between 0 and 1, in ascending order.
+         * @return this builder.
+         */
+        public Builder quantiles(double... values) {
+            for (int i = 0; i < values.length; i++) {
+                if (!(values[i] >= 0.0 && values[i] <= 1.0)) {
+                    throw new IllegalArgumentException("Quantile must be between 0 and 1 but got " + values[i]);
+                }
+                if (i > 0 && values[i] < values[i - 1]) {
+                    throw new IllegalArgumentException("Quantiles must be in ascending order but got " + values[i]
+                                                       + " after " + values[i - 1]);
+                }
+            }
+            this.quantiles = values.clone();
+            return this;
+        }
+
+        /**
+         * Build the query.
+         * 
+         * @return the query.
+         */
+        public MetrigoQuery build() {
+            if (this.metricName == null && this.metricPattern == null) {
+                throw new IllegalArgumentException("A metric name or pattern is needed");
+            }
+            return new MetrigoQuery(this);
+        }
+    }
+
+    private final long fromMillis;
+    private final long toMillis;
+    private final long stepMillis;
+    @CheckForNull private final String metricName;
+    @CheckForNull private final Pattern metricPattern;
+    private final double [] quantiles;
+
+    /**
+     * Constructor.
+     * 
+     * @param builder the settings.
+     */
+    private MetrigoQuery(Builder builder) {
+        this.fromMillis = builder.fromMillis;
+        this.toMillis = builder.toMillis;
+        this.stepMillis = builder.stepMillis;
+        this.metricName = builder.metricName;
+        this.metricPattern = builder.metricPattern;
+        this.quantiles = builder.quantiles;
+    }
+
+    /**
+     * Get the start of the range.
+     * 
+     * @return the start in milliseconds since the epoch (inclusive).
+     */
+    public long getFromMillis() {
+        return this.fromMillis;
+    }
+
+    /**
+     * Get the end of the range.
+     * 
+     * @return the end in milliseconds since the epoch (exclusive).
+     */
+    public long getToMillis() {
+        return this.toMillis;
+    }
+
+    /**
+     * Get the length of a step.
+     * 
+     * @return the step in milliseconds.
+     */
+    public long getStepMillis() {
+        return this.stepMillis;
+    }
+
+    /**
+     * Get the number of steps in the range.
+     * 
+     * @return the number of steps, counting a cut short last step.
+     */
+    public long getStepCount() {
+        long span = this.toMillis - this.fromMillis;
+        return span / this.stepMillis + ((span % this.stepMillis == 0) ? 0 : 1);
+    }
+
+    /**
+     * Get the start of the step that holds a time.
+     * 
+     * @param timeMillis a time in the range.
+     * @return the start of its step.
+     */
+    public long getStepStart(long timeMillis) {
+        return timeMillis - (timeMillis - this.fromMillis) % this.stepMillis;
+    }
+
+    /**
+     * Get the end of the step that starts at a time.
+     * 
+     * @param stepStart the start of the step.
+     * @return the end of the step (exclusive), which is never past the end of the range.
+     */
+    public long getStepEnd(long stepStart) {
+        return (this.toMillis - stepStart <= this.stepMillis) ? this.toMillis : stepStart + this.stepMillis;
+    }
+
+    /**
+     * Get the quantiles to estimate.
+     * 
+     * @return a copy of the quantiles.
+     */
+    public double [] getQuantiles() {
+        return this.quantiles.clone();
+    }
+
+    /**
+     * Get the number of quantiles to estimate.
+     * 
+     * @return the number of quantiles.
+     */
+    int getQuantileCount() {
+        return this.quantiles.length;
+    }
+
+    /**
+     * Estimate the quantiles into an array.
+     * 
+     * @param stats the statistics.
+     * @param results where to put the estimates.
+     */
+    void estimateQuantiles(MetrigoStatistics stats, double [] results) {
+        MetrigoQuantiles.quantiles(stats, this.quantiles, results);
+    }
+
+    /**
+     * Pick the metrics that this query covers.
+     * 
+     * @param names the names of all metrics.
+     * @return the matching names, in the order given.
+     */
+    @Nonnull
+    List<String> selectMetrics(List<String> names) {
+        List<String> result = new ArrayList<>();
+        for (String name : names) {
+            if ((this.metricName != null) ? this.metricName.equals(name) : this.metricPattern.matcher(name).matches()) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "MetrigoQuery [" + ((this.metricName != null) ? this.metricName : this.metricPattern.pattern())
+            + ", from=" + this.fromMillis + ", to=" + this.toMillis + ", step=" + this.stepMillis + "]";
+    }
+}
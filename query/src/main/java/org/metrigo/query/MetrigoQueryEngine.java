@@ -0,0 +1,220 @@
+package org.metrigo.query;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.MetrigoStatisticsMerger;
+import org.metrigo.storage.MetrigoSeriesReader;
+import org.metrigo.storage.MetrigoSeriesVisitor;
+
+/**
+ * Runs queries against stored statistics.
+ * 
+ * The range of a query is cut into partitions of whole steps, and each
+ * partition of each metric is scanned as a separate task on a fork join
+ * pool. A task merges each record into its step as it is scanned, straight
+ * from the encoded bytes, so only the current step is held while scanning,
+ * and each partition only holds its own results.
+ * 
+ * If the reader keeps rolled up records, the coarsest ones that fit the
+ * steps are read (see {@link MetrigoSeriesReader#forStep(long, long)}).
+ * 
+ * Results are passed on to the caller's thread in order: metric by metric,
+ * in the order the reader lists them, then step by step. Only a few
+ * partitions are in flight at once, so a query over a long range with many
+ * metrics does not build up all its results in memory. Steps with no
+ * samples are left out.
+ */
+public class MetrigoQueryEngine {
+    /**
+     * The largest number of steps that one task covers.
+     */
+    static final int MAX_STEPS_PER_PARTITION = 1024;
+
+    private final MetrigoSeriesReader reader;
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor using the common pool.
+     * 
+     * @param reader the stored statistics.
+     */
+    public MetrigoQueryEngine(@Nonnull MetrigoSeriesReader reader) {
+        this(reader, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param reader the stored statistics.
+     * @param pool the pool to scan partitions in.
+     */
+    public MetrigoQueryEngine(@Nonnull MetrigoSeriesReader reader, @Nonnull ForkJoinPool pool) {
+        this.reader = reader;
+        this.pool = pool;
+    }
+
+    /**
+     * Run a query.
+     * 
+     * @param query the query.
+     * @param consumer receives the result of each step, on the calling thread.
+     */
+    public void execute(@Nonnull MetrigoQuery query, @Nonnull Consumer<MetrigoStepResult> consumer) {
+        // Read rolled up records if the reader has some that fit the steps.
+        MetrigoSeriesReader source = this.reader.forStep(query.getFromMillis(), query.getStepMillis());
+        List<String> names = query.selectMetrics(source.getMetricNames());
+        long partitionSteps = partitionSteps(query.getStepCount(), this.pool.getParallelism());
+        long partitionMillis = partitionSteps * query.getStepMillis();
+        int window = 2 * this.pool.getParallelism();
+
+        Deque<PartitionTask> pending = new ArrayDeque<>();
+        try {
+            for (String name : names) {
+                long from = query.getFromMillis();
+                while (from < query.getToMillis()) {
+                    long to = (query.getToMillis() - from <= partitionMillis) ? query.getToMillis() : from + partitionMillis;
+                    PartitionTask task = new PartitionTask(source, query, name, from, to);
+                    this.pool.execute(task);
+                    pending.add(task);
+                    if (pending.size() >= window) {
+                        pending.poll().join().forEach(consumer);
+                    }
+                    from = to;
+                }
+            }
+            while (!pending.isEmpty()) {
+                pending.poll().join().forEach(consumer);
+            }
+        } finally {
+            // Only left over if something failed.
+            for (PartitionTask task : pending) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Run a query, gathering the results.
+     * 
+     * @param query the query.
+     * @return the result of each step that has samples.
+     */
+    @Nonnull
+    public List<MetrigoStepResult> execute(@Nonnull MetrigoQuery query) {
+        List<MetrigoStepResult> results = new ArrayList<>();
+        execute(query, results::add);
+        return results;
+    }
+
+    /**
+     * Work out how many steps go in each partition.
+     * 
+     * The steps are spread evenly over the threads, up to a limit per
+     * partition so that long ranges are cut into more tasks.
+     * 
+     * @param stepCount the number of steps in the query.
+     * @param parallelism the number of threads.
+     * @return the number of steps per partition.
+     */
+    static long partitionSteps(long stepCount, int parallelism) {
+        long perThread = (stepCount + parallelism - 1) / parallelism;
+        return Math.max(1, Math.min(MAX_STEPS_PER_PARTITION, perThread));
+    }
+
+    /**
+     * Scans one metric over part of the range, merging records into steps.
+     */
+    private static final class PartitionTask extends RecursiveTask<List<MetrigoStepResult>> implements MetrigoSeriesVisitor {
+        private static final long serialVersionUID = 1L;
+
+        private final transient MetrigoSeriesReader reader;
+        private final transient MetrigoQuery query;
+        private final String name;
+        private final long fromMillis;
+        private final long toMillis;
+        private transient List<MetrigoStepResult> results;
+        private transient MetrigoStatisticsMerger merger;
+        private long stepStart;
+
+        /**
+         * Constructor.
+         * 
+         * @param reader the stored statistics.
+         * @param query the query.
+         * @param name the metric to scan.
+         * @param fromMillis the start of the partition, on a step boundary (inclusive).
+         * @param toMillis the end of the partition (exclusive).
+         */
+        PartitionTask(MetrigoSeriesReader reader, MetrigoQuery query, String name, long fromMillis, long toMillis) {
+            this.reader = reader;
+            this.query = query;
+            this.name = name;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+        }
+
+        @Override
+        protected List<MetrigoStepResult> compute() {
+            this.results = new ArrayList<>();
+            this.reader.scan(this.name, this.fromMillis, this.toMillis, this);
+            finishStep();
+            return this.results;
+        }
+
+        @Override
+        public void visit(long timeMillis, ByteBuffer statistics, int length) {
+            long start = this.query.getStepStart(timeMillis);
+            if (this.merger == null || start != this.stepStart) {
+                finishStep();
+                // A new merger for each step, so that it follows the layout of that step.
+                this.merger = new MetrigoStatisticsMerger();
+                this.stepStart = start;
+            }
+            this.merger.addEncoded(statistics, length);
+        }
+
+        /**
+         * Add the result of the current step, if there is one.
+         */
+        private void finishStep() {
+            if (this.merger == null) {
+                return;
+            }
+            long sampleCount = this.merger.getSampleCount();
+            if (sampleCount != 0) {
+                MetrigoStatistics stats = this.merger.toStatistics();
+                double [] estimates = new double[this.query.getQuantileCount()];
+                this.query.estimateQuantiles(stats, estimates);
+                this.results.add(new MetrigoStepResult(this.name, this.stepStart, this.query.getStepEnd(this.stepStart),
+                                                       stats, sampleCount, estimates));
+            }
+            this.merger = null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.metrigo.query;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoStatistics;
+
+/**
+ * The result of a query for one metric over one step.
+ * 
+ * This holds the statistics merged over the step, along with the quantiles
+ * that the query asked for and the rate of samples. Instances are immutable.
+ */
+public class MetrigoStepResult {
+    @Nonnull private final String metricName;
+    private final long startMillis;
+    private final long endMillis;
+    @Nonnull private final MetrigoStatistics statistics;
+    private final long sampleCount;
+    private final double [] quantiles;
+
+    /**
+     * Constructor.
+     * 
+     * @param metricName the name of the metric.
+     * @param startMillis the start of the step (inclusive).
+     * @param endMillis the end of the step (exclusive).
+     * @param statistics the merged statistics.
+     * @param sampleCount the number of samples in the statistics.
+     * @param quantiles the estimated quantiles, which are kept, not copied.
+     */
+    MetrigoStepResult(@Nonnull String metricName, long startMillis, long endMillis,
+                      @Nonnull MetrigoStatistics statistics, long sampleCount, double [] quantiles) {
+        this.metricName = metricName;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.statistics = statistics;
+        this.sampleCount = sampleCount;
+        this.quantiles = quantiles;
+    }
+
+    /**
+     * Get the name of the metric.
+     * 
+     * @return the name.
+     */
+    @Nonnull
+    public String getMetricName() {
+        return this.metricName;
+    }
+
+    /**
+     * Get the start of the step.
+     * 
+     * @return the start in milliseconds since the epoch (inclusive).
+     */
+    public long getStartMillis() {
+        return this.startMillis;
+    }
+
+    /**
+     * Get the end of the step.
+     * 
+     * @return the end in milliseconds since the epoch (exclusive).
+     */
+    public long getEndMillis() {
+        return this.endMillis;
+    }
+
+    /**
+     * Get the statistics merged over the step.
+     * 
+     * @return the statistics.
+     */
+    @Nonnull
+    public MetrigoStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * Get the number of samples in the step.
+     * 
+     * @return the number of samples.
+     */
+    public long getSampleCount() {
+        return this.sampleCount;
+    }
+
+    /**
+     * Get the rate of samples over the step.
+     * 
+     * @return the number of samples per second.
+     */
+    public double getRate() {
+        return this.sampleCount * 1000.0 / (this.endMillis - this.startMillis);
+    }
+
+    /**
+     * Get an estimated quantile.
+     * 
+     * @param index the index of the quantile in the query.
+     * @return the estimate in microseconds.
+     */
+    public double getQuantile(int index) {
+        return this.quantiles[index];
+    }
+
+    /**
+     * Get the estimated quantiles.
+     * 
+     * @return a copy of the estimates in microseconds, in the order of the query.
+     */
+    public double [] getQuantiles() {
+        return this.quantiles.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "MetrigoStepResult [" + this.metricName + ", start=" + this.startMillis + ", end=" + this.endMillis
+            + ", samples=" + this.sampleCount + ", quantiles=" + Arrays.toString(this.quantiles) + "]";
+    }
+}
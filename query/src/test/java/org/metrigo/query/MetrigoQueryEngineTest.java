@@ -0,0 +1,238 @@
+package org.metrigo.query;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoQuantiles;
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.storage.MetrigoSeriesReader;
+import org.metrigo.storage.MetrigoSeriesVisitor;
+import org.metrigo.storage.MetrigoStore;
+import org.metrigo.storage.MetrigoTieredStore;
+
+public class MetrigoQueryEngineTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testMergeSteps() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            store.append("metric", 1000, stats(0, 1, 2));
+            store.append("metric", 1500, stats(0, 2, 5));
+            store.append("metric", 2100, stats(3, 4, 400));
+            // Nothing from 3000 to 4000.
+            store.append("metric", 4000, stats(1, 1, 20));
+            store.append("other", 1000, stats(0, 1, 1));
+
+            MetrigoQuery query = new MetrigoQuery.Builder(1000, 5000, 1000).metric("metric").build();
+            List<MetrigoStepResult> results = new MetrigoQueryEngine(store).execute(query);
+
+            assertEquals(3, results.size());
+            assertEquals(1000, results.get(0).getStartMillis());
+            assertEquals(2000, results.get(0).getEndMillis());
+            assertEquals(stats(0, 3, 7), results.get(0).getStatistics());
+            assertEquals(3, results.get(0).getSampleCount());
+            assertEquals(3.0, results.get(0).getRate(), 1e-9);
+            assertEquals(2000, results.get(1).getStartMillis());
+            assertEquals(stats(3, 4, 400), results.get(1).getStatistics());
+            assertEquals(4000, results.get(2).getStartMillis());
+            assertEquals("metric", results.get(2).getMetricName());
+        }
+    }
+
+    @Test
+    public void testQuantilesAndRate() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            store.append("metric", 0, stats(0, 90, 180));
+            store.append("metric", 100, stats(10, 10, 100000));
+
+            MetrigoQuery query = new MetrigoQuery.Builder(0, 500, 1000).metric("metric").quantiles(0.5, 0.99).build();
+            List<MetrigoStepResult> results = new MetrigoQueryEngine(store).execute(query);
+
+            assertEquals(1, results.size());
+            MetrigoStepResult result = results.get(0);
+            // The step is cut short at the end of the range.
+            assertEquals(500, result.getEndMillis());
+            assertEquals(200.0, result.getRate(), 1e-9);
+            double [] expected = new double[2];
+            MetrigoQuantiles.quantiles(result.getStatistics(), new double[] { 0.5, 0.99 }, expected);
+            assertArrayEquals(expected, result.getQuantiles(), 0.0);
+            assertEquals(2.0, result.getQuantile(0), 0.0);
+            assertTrue(result.getQuantile(1) > 1000);
+        }
+    }
+
+    @Test
+    public void testPattern() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            store.append("http.get", 0, stats(0, 1, 1));
+            store.append("db.query", 0, stats(0, 1, 1));
+            store.append("http.post", 0, stats(0, 2, 2));
+            store.append("http.get", 1000, stats(0, 3, 3));
+
+            MetrigoQuery query = new MetrigoQuery.Builder(0, 2000, 1000).metricPattern(Pattern.compile("http\\..*")).build();
+            List<String> seen = new ArrayList<>();
+            new MetrigoQueryEngine(store).execute(query, result -> seen.add(result.getMetricName() + "@" + result.getStartMillis()));
+            assertThat(seen, contains("http.get@0", "http.get@1000", "http.post@0"));
+        }
+    }
+
+    @Test
+    public void testMixedLayouts() throws IOException {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        counts[layout.getBin(5)] = 1;
+        totals[layout.getBin(5)] = 5;
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            store.append("metric", 0, new MetrigoStatistics(layout, counts, totals));
+            store.append("metric", 1000, stats(2, 1, 5));
+
+            MetrigoQuery query = new MetrigoQuery.Builder(0, 2000, 1000).metric("metric").build();
+            List<MetrigoStepResult> results = new MetrigoQueryEngine(store).execute(query);
+            // Each step keeps its own layout.
+            assertEquals(layout, results.get(0).getStatistics().getLayout());
+            assertEquals(MetrigoBinLayout.DEFAULT, results.get(1).getStatistics().getLayout());
+        }
+    }
+
+    @Test
+    public void testTieredStore() throws IOException {
+        try (MetrigoTieredStore store = new MetrigoTieredStore.Builder(this.directory)
+                 .tier(1000, 1000000)
+                 .tier(10000, 1000000)
+                 .delayMillis(0)
+                 .open()) {
+            for (long time = 0; time < 30000; time += 100) {
+                store.append("metric", time, stats((int) (time % 7), 1, time));
+            }
+            store.compact(Long.MAX_VALUE);
+
+            MetrigoQuery query = new MetrigoQuery.Builder(0, 30000, 10000).metric("metric").quantiles(0.5).build();
+            List<MetrigoStepResult> tiered = new MetrigoQueryEngine(store).execute(query);
+            List<MetrigoStepResult> raw = new MetrigoQueryEngine(store.getRawStore()).execute(query);
+            assertEquals(3, tiered.size());
+            for (int i = 0; i < raw.size(); i++) {
+                assertEquals(raw.get(i).getStatistics(), tiered.get(i).getStatistics());
+                assertEquals(raw.get(i).getQuantile(0), tiered.get(i).getQuantile(0), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testFailure() {
+        MetrigoQuery query = new MetrigoQuery.Builder(0, 100000, 10).metric("metric").build();
+        MetrigoQueryEngine underTest = new MetrigoQueryEngine(new MetrigoSeriesReader() {
+            @Override
+            public List<String> getMetricNames() {
+                return List.of("metric");
+            }
+
+            @Override
+            public void scan(String metricName, long fromMillis, long toMillis, MetrigoSeriesVisitor visitor) {
+                throw new IllegalStateException("broken");
+            }
+        });
+        assertThrows(IllegalStateException.class, () -> underTest.execute(query));
+    }
+
+    @Test
+    public void testPartitionSteps() {
+        assertEquals(1, MetrigoQueryEngine.partitionSteps(1, 8));
+        assertEquals(2, MetrigoQueryEngine.partitionSteps(10, 8));
+        assertEquals(MetrigoQueryEngine.MAX_STEPS_PER_PARTITION, MetrigoQueryEngine.partitionSteps(1000000, 8));
+    }
+
+    @Test
+    public void testParallelMatchesBruteForce() throws IOException {
+        Random random = new Random(7);
+        String [] names = { "a", "b", "c" };
+        long [][] expectedCounts = new long[names.length][5000];
+        long [][] expectedTotals = new long[names.length][5000];
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).maxSegmentBytes(64 * 1024).open()) {
+            long time = 0;
+            for (int i = 0; i < 20000; i++) {
+                time += random.nextInt(5);
+                int metric = random.nextInt(names.length);
+                long count = 1 + random.nextInt(10);
+                long total = count * (1 + random.nextInt(1000));
+                store.append(names[metric], time, stats(0, count, total));
+                if (time >= 1000 && time < 41000) {
+                    int step = (int) ((time - 1000) / 10);
+                    expectedCounts[metric][step] += count;
+                    expectedTotals[metric][step] += total;
+                }
+            }
+
+            MetrigoQuery query = new MetrigoQuery.Builder(1000, 41000, 10).metricPattern(Pattern.compile(".*")).build();
+            ForkJoinPool pool = new ForkJoinPool(4);
+            ForkJoinPool single = new ForkJoinPool(1);
+            try {
+                List<MetrigoStepResult> parallel = new MetrigoQueryEngine(store, pool).execute(query);
+                List<MetrigoStepResult> serial = new MetrigoQueryEngine(store, single).execute(query);
+                assertEquals(serial.size(), parallel.size());
+
+                // Results come in the order the store lists the metrics.
+                int index = 0;
+                for (String name : store.getMetricNames()) {
+                    int metric = name.charAt(0) - 'a';
+                    for (int step = 0; step < 4000; step++) {
+                        if (expectedCounts[metric][step] == 0) {
+                            continue;
+                        }
+                        MetrigoStepResult result = parallel.get(index);
+                        assertEquals(names[metric], result.getMetricName());
+                        assertEquals(1000 + step * 10L, result.getStartMillis());
+                        assertEquals(expectedCounts[metric][step], result.getSampleCount());
+                        assertEquals(expectedTotals[metric][step], result.getStatistics().getTotal(0));
+                        assertEquals(serial.get(index).getStatistics(), result.getStatistics());
+                        index += 1;
+                    }
+                }
+                assertEquals(index, parallel.size());
+            } finally {
+                pool.shutdown();
+                single.shutdown();
+            }
+        }
+    }
+
+    private static MetrigoStatistics stats(int bin, long count, long total) {
+        long [] counts = new long[MetrigoBinLayout.DEFAULT.getBinCount()];
+        long [] totals = new long[counts.length];
+        counts[bin] = count;
+        totals[bin] = total;
+        return new MetrigoStatistics(counts, totals);
+    }
+}
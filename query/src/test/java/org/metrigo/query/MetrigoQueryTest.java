@@ -0,0 +1,61 @@
+package org.metrigo.query;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class MetrigoQueryTest {
+    @Test
+    public void testBadArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoQuery.Builder(1000, 1000, 10));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoQuery.Builder(0, 1000, 0));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoQuery.Builder(0, 1000, 10).build());
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoQuery.Builder(0, 1000, 10).quantiles(0.5, 0.1));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoQuery.Builder(0, 1000, 10).quantiles(1.5));
+        assertThrows(IllegalArgumentException.class, () -> new MetrigoQuery.Builder(0, 1000, 10).quantiles(Double.NaN));
+    }
+
+    @Test
+    public void testSteps() {
+        MetrigoQuery query = new MetrigoQuery.Builder(1000, 3500, 1000).metric("m").build();
+        assertEquals(3, query.getStepCount());
+        assertEquals(1000, query.getStepStart(1000));
+        assertEquals(2000, query.getStepStart(2999));
+        assertEquals(3000, query.getStepStart(3499));
+        assertEquals(2000, query.getStepEnd(1000));
+        assertEquals(3500, query.getStepEnd(3000));
+
+        assertEquals(2, new MetrigoQuery.Builder(1000, 3000, 1000).metric("m").build().getStepCount());
+    }
+
+    @Test
+    public void testSelectMetrics() {
+        List<String> names = List.of("http.get", "http.post", "db.query", "http");
+        MetrigoQuery byName = new MetrigoQuery.Builder(0, 1000, 10).metric("http").build();
+        assertThat(byName.selectMetrics(names), contains("http"));
+        MetrigoQuery byPattern = new MetrigoQuery.Builder(0, 1000, 10).metricPattern(Pattern.compile("http\\..*")).build();
+        assertThat(byPattern.selectMetrics(names), contains("http.get", "http.post"));
+    }
+}
@@ -14,3 +14,7 @@ plugins {
 
 rootProject.name = "metrigo"
 include("lib")
+include("benchmarks")
+include("storage")
+include("query")
+include("collector")
@@ -0,0 +1,38 @@
+/*
+ * Local storage for metrigo statistics.
+ *
+ * Appends time-stamped statistics to memory mapped segment files, and serves
+ * range scans per metric.
+ */
+
+plugins {
+    `java-library`
+}
+
+repositories {
+    // Use Maven Central for resolving dependencies.
+    mavenCentral()
+}
+
+dependencies {
+    // The statistics and their encoding are part of this module's API.
+    api(project(":lib"))
+
+    implementation("com.google.guava:guava:31.1-jre")
+
+    // Use JUnit Jupiter for testing.
+    testImplementation("org.junit.jupiter:junit-jupiter:5.9.1")
+    testImplementation("org.hamcrest:hamcrest:2.2")
+}
+
+// Apply a specific Java toolchain to ease working on different environments.
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(11))
+    }
+}
+
+tasks.named<Test>("test") {
+    // Use JUnit Platform for unit tests.
+    useJUnitPlatform()
+}
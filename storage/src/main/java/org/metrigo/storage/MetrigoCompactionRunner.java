@@ -0,0 +1,131 @@
+package org.metrigo.storage;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The runner that rolls up a tiered store in the background.
+ * 
+ * This is meant to be run on its own thread. Every interval it does one
+ * compaction pass with a fixed budget of records, so however large the
+ * backlog, compaction reads at most about that many records per interval.
+ * A pass that fails is tried again on the next interval, and the failure is
+ * kept for {@link #getLastFailure()}.
+ * 
+ * Call {@link #shutdown()} to stop the runner. A pass that is running is
+ * finished before {@link #run()} returns. The runner is woken from its sleep
+ * rather than interrupted, so a shutdown never breaks the store's I/O.
+ */
+public class MetrigoCompactionRunner implements Runnable {
+    private final MetrigoTieredStore store;
+    private final long intervalMillis;
+    private final long maxRecordsPerPass;
+    private volatile boolean running;
+    private volatile IOException lastFailure;
+    private volatile long passes;
+
+    /**
+     * Constructor.
+     * 
+     * @param store the store to roll up.
+     * @param intervalMillis the time between passes.
+     * @param maxRecordsPerPass the budget of records for each pass.
+     */
+    public MetrigoCompactionRunner(@Nonnull MetrigoTieredStore store, long intervalMillis, long maxRecordsPerPass) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive but got " + intervalMillis);
+        }
+        if (maxRecordsPerPass <= 0) {
+            throw new IllegalArgumentException("Records per pass must be positive but got " + maxRecordsPerPass);
+        }
+        this.store = store;
+        this.intervalMillis = intervalMillis;
+        this.maxRecordsPerPass = maxRecordsPerPass;
+        this.running = true;
+    }
+
+    /**
+     * Stop the runner.
+     * 
+     * A pass that is running is not disturbed, the runner stops when it would
+     * next sleep.
+     */
+    public synchronized void shutdown() {
+        this.running = false;
+        notifyAll();
+    }
+
+    /**
+     * Get the failure of the last pass that failed.
+     * 
+     * @return the failure, or null if no pass has failed.
+     */
+    @CheckForNull
+    public IOException getLastFailure() {
+        return this.lastFailure;
+    }
+
+    /**
+     * Get the number of passes that have been run.
+     * 
+     * @return the number of passes.
+     */
+    public long getPassCount() {
+        return this.passes;
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                this.store.compact(this.maxRecordsPerPass);
+            } catch (IOException e) {
+                this.lastFailure = e;
+            }
+            this.passes += 1;
+            try {
+                sleep();
+            } catch (InterruptedException ie) {
+                // Interrupted by something other than shutdown, pass it on.
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Wait for the next pass, or for a shutdown.
+     * 
+     * The runner is never interrupted by {@link #shutdown()}, as an interrupt
+     * during a pass would close the store's file channels.
+     * 
+     * @throws InterruptedException if the thread was interrupted.
+     */
+    private synchronized void sleep() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.intervalMillis);
+        long remaining = deadline - System.nanoTime();
+        while (this.running && remaining > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+}
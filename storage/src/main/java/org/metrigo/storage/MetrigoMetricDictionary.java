@@ -0,0 +1,165 @@
+package org.metrigo.storage;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The dictionary of metric names in a store.
+ * 
+ * Records refer to metrics by a dense integer id rather than by name, so
+ * scans compare ids, and the names are only stored once. The dictionary is
+ * an append only file of names, each a 2 byte little endian length followed
+ * by the UTF-8 bytes, and a name's id is its position in the file.
+ */
+class MetrigoMetricDictionary implements Closeable {
+    private static final int MAX_NAME_BYTES = 0xffff;
+
+    private final FileChannel channel;
+    private final ConcurrentHashMap<String, Integer> ids;
+    private volatile String [] names;
+    private volatile int size;
+
+    /**
+     * Constructor, loading any names already in the file.
+     * 
+     * @param path the dictionary file.
+     * @throws IOException if the file cannot be read.
+     */
+    MetrigoMetricDictionary(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.ids = new ConcurrentHashMap<>();
+        List<String> loaded = new ArrayList<>();
+
+        ByteBuffer contents = ByteBuffer.allocate((int) this.channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        while (contents.hasRemaining() && this.channel.read(contents, contents.position()) >= 0) {
+            // keep reading.
+        }
+        contents.flip();
+        int valid = 0;
+        while (contents.remaining() >= 2) {
+            int length = contents.getShort() & 0xffff;
+            if (contents.remaining() < length) {
+                // A name was only partly written, drop it.
+                break;
+            }
+            byte [] bytes = new byte[length];
+            contents.get(bytes);
+            String name = new String(bytes, StandardCharsets.UTF_8);
+            this.ids.put(name, Integer.valueOf(loaded.size()));
+            loaded.add(name);
+            valid = contents.position();
+        }
+        this.channel.truncate(valid);
+        this.channel.position(valid);
+        this.names = loaded.toArray(new String[Math.max(16, loaded.size())]);
+        this.size = loaded.size();
+    }
+
+    /**
+     * Get the id for a name.
+     * 
+     * @param name the metric name.
+     * @return the id, or -1 if the name has never been stored.
+     */
+    int getId(String name) {
+        Integer id = this.ids.get(name);
+        return (id == null) ? -1 : id.intValue();
+    }
+
+    /**
+     * Get the id for a name, adding it if needed.
+     * 
+     * Only the writer calls this, so it is not synchronized against itself.
+     * 
+     * @param name the metric name.
+     * @return the id.
+     * @throws IOException if the name cannot be written.
+     */
+    int getOrAdd(String name) throws IOException {
+        Integer id = this.ids.get(name);
+        if (id != null) {
+            return id.intValue();
+        }
+        byte [] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Metric name is " + bytes.length + " bytes, but the most allowed is " + MAX_NAME_BYTES);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(2 + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putShort((short) bytes.length).put(bytes).flip();
+        while (entry.hasRemaining()) {
+            this.channel.write(entry);
+        }
+
+        int result = this.size;
+        String [] current = this.names;
+        if (result == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[result] = name;
+        // Publish the array before the size, so anyone who sees the size sees the name.
+        this.names = current;
+        this.size = result + 1;
+        this.ids.put(name, Integer.valueOf(result));
+        return result;
+    }
+
+    /**
+     * Get the number of names.
+     * 
+     * @return the number of names, which is one more than the largest id.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Get all names, in id order.
+     * 
+     * @return an unmodifiable copy of the names.
+     */
+    List<String> getNames() {
+        int count = this.size;
+        return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(this.names, count)));
+    }
+
+    /**
+     * Force the names to disk.
+     * 
+     * @throws IOException if the names cannot be written.
+     */
+    void force() throws IOException {
+        this.channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,435 @@
+package org.metrigo.storage;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.metrigo.MetrigoStatistics;
+
+/**
+ * One memory mapped segment file of a store.
+ * 
+ * The file starts with a magic number and a version, followed by records.
+ * Each record is a little endian header and the statistics, encoded with
+ * {@link MetrigoStatistics#encode(MetrigoStatistics, java.nio.ByteBuffer)}:
+ * <pre>
+ *     int  metric id + 1 (0 marks the end of the records)
+ *     int  offset of the previous record for the same metric, or -1
+ *     long time in milliseconds
+ *     int  length of the statistics
+ *     byte [length] statistics
+ * </pre>
+ * 
+ * The previous record offsets chain together the records of each metric, so
+ * a scan only reads the records of the metric it wants. The segment also
+ * keeps a sparse index in memory for each metric, holding the time and
+ * offset of every {@value #SPARSE_INTERVAL}th record, so a scan can jump
+ * close to the end of its range and follow the chain back from there. The
+ * index is rebuilt from the chains when a segment is opened.
+ * 
+ * The segment being written is mapped read-write at its full size, and
+ * records are written straight into the mapping, with the id written last
+ * so that a torn record reads as the end. When it is sealed, it is cut down
+ * to the written size and mapped read-only.
+ * 
+ * Writing is single threaded. Scans may run on any thread at the same time.
+ */
+class MetrigoSegment implements Closeable {
+    static final int MAGIC = 0x4d474753;
+    static final int VERSION = 1;
+    static final int FILE_HEADER = 8;
+    static final int RECORD_HEADER = 20;
+    static final int SPARSE_INTERVAL = 64;
+
+    private static final int ID = 0;
+    private static final int PREVIOUS = 4;
+    private static final int TIME = 8;
+    private static final int LENGTH = 16;
+
+    /**
+     * The index of one metric's records in this segment.
+     */
+    private static final class SeriesIndex {
+        private int head = -1;
+        private int count;
+        private long [] sparseTimes = new long[4];
+        private int [] sparseOffsets = new int[4];
+        private int sparseSize;
+
+        /**
+         * Add a record at the end of the series.
+         * 
+         * @param offset the offset of the record.
+         * @param timeMillis the time of the record.
+         */
+        void add(int offset, long timeMillis) {
+            if (this.count % SPARSE_INTERVAL == 0) {
+                if (this.sparseSize == this.sparseTimes.length) {
+                    this.sparseTimes = Arrays.copyOf(this.sparseTimes, this.sparseSize * 2);
+                    this.sparseOffsets = Arrays.copyOf(this.sparseOffsets, this.sparseSize * 2);
+                }
+                this.sparseTimes[this.sparseSize] = timeMillis;
+                this.sparseOffsets[this.sparseSize] = offset;
+                this.sparseSize += 1;
+            }
+            this.head = offset;
+            this.count += 1;
+        }
+    }
+
+    private final Path path;
+    private final long sequence;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private ByteBuffer writeView;
+    private int size;
+    private boolean sealed;
+    private long minTime = Long.MAX_VALUE;
+    private long maxTime = Long.MIN_VALUE;
+    private SeriesIndex [] series = new SeriesIndex[16];
+
+    /**
+     * Constructor.
+     * 
+     * @param path the file.
+     * @param sequence the sequence number of the segment.
+     * @param channel the open file.
+     */
+    private MetrigoSegment(Path path, long sequence, FileChannel channel) {
+        this.path = path;
+        this.sequence = sequence;
+        this.channel = channel;
+    }
+
+    /**
+     * Create a new segment to write to.
+     * 
+     * @param path the file, which must not exist.
+     * @param sequence the sequence number of the segment.
+     * @param capacity the largest size of the segment in bytes.
+     * @return the segment.
+     * @throws IOException if the file cannot be made.
+     */
+    static MetrigoSegment create(Path path, long sequence, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MetrigoSegment segment = new MetrigoSegment(path, sequence, channel);
+        segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        segment.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.writeView = segment.buffer.duplicate();
+        segment.size = FILE_HEADER;
+        return segment;
+    }
+
+    /**
+     * Open an existing segment, read-only.
+     * 
+     * Records are read until the end marker, a torn record, or a record for
+     * a metric that is not in the dictionary, and the file is cut down to
+     * the records that were read.
+     * 
+     * @param path the file.
+     * @param sequence the sequence number of the segment.
+     * @param metricCount the number of metrics in the dictionary.
+     * @return the segment.
+     * @throws IOException if the file cannot be read, or is not a segment.
+     */
+    static MetrigoSegment recover(Path path, long sequence, int metricCount) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MetrigoSegment segment = new MetrigoSegment(path, sequence, channel);
+        try {
+            long fileSize = channel.size();
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Segment " + path + " is too large at " + fileSize + " bytes");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (fileSize < FILE_HEADER || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                throw new IOException("File " + path + " is not a version " + VERSION + " segment");
+            }
+            segment.buffer = mapped;
+            int offset = FILE_HEADER;
+            while (offset + RECORD_HEADER <= fileSize) {
+                int id = mapped.getInt(offset + ID) - 1;
+                if (id < 0 || id >= metricCount) {
+                    break;
+                }
+                int length = mapped.getInt(offset + LENGTH);
+                if (length < 0 || offset + RECORD_HEADER + length > fileSize
+                    || mapped.getInt(offset + PREVIOUS) != segment.head(id)) {
+                    break;
+                }
+                segment.index(id, offset, mapped.getLong(offset + TIME));
+                offset += RECORD_HEADER + length;
+            }
+            segment.size = offset;
+            segment.sealed = true;
+            if (offset < fileSize) {
+                // Drop the unused or damaged tail, and map just what is left.
+                channel.truncate(offset);
+                segment.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, offset);
+                segment.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the head of a metric's chain.
+     * 
+     * @param id the metric id.
+     * @return the offset of the last record, or -1 if there is none.
+     */
+    private int head(int id) {
+        return (id < this.series.length && this.series[id] != null) ? this.series[id].head : -1;
+    }
+
+    /**
+     * Get the time of a metric's latest record.
+     * 
+     * @param id the metric id.
+     * @return the time, or {@link Long#MIN_VALUE} if the metric has no records here.
+     */
+    synchronized long getLastTime(int id) {
+        int head = head(id);
+        return (head < 0) ? Long.MIN_VALUE : this.buffer.getLong(head + TIME);
+    }
+
+    /**
+     * Get the time of a metric's earliest record.
+     * 
+     * @param id the metric id.
+     * @return the time, or {@link Long#MAX_VALUE} if the metric has no records here.
+     */
+    synchronized long getFirstTime(int id) {
+        return (head(id) < 0) ? Long.MAX_VALUE : this.series[id].sparseTimes[0];
+    }
+
+    /**
+     * Add a record to the index.
+     * 
+     * @param id the metric id.
+     * @param offset the offset of the record.
+     * @param timeMillis the time of the record.
+     */
+    private void index(int id, int offset, long timeMillis) {
+        if (id >= this.series.length) {
+            this.series = Arrays.copyOf(this.series, Math.max(id + 1, this.series.length * 2));
+        }
+        if (this.series[id] == null) {
+            this.series[id] = new SeriesIndex();
+        }
+        this.series[id].add(offset, timeMillis);
+        this.minTime = Math.min(this.minTime, timeMillis);
+        this.maxTime = Math.max(this.maxTime, timeMillis);
+    }
+
+    /**
+     * Append a record.
+     * 
+     * @param id the metric id.
+     * @param timeMillis the time of the record.
+     * @param stats the statistics.
+     * @param length the encoded length of the statistics.
+     * @return false if there is no room for the record.
+     */
+    synchronized boolean append(int id, long timeMillis, MetrigoStatistics stats, int length) {
+        if (this.sealed) {
+            throw new IllegalStateException("Segment " + this.path + " is sealed");
+        }
+        int offset = this.size;
+        if ((long) offset + RECORD_HEADER + length > this.buffer.capacity()) {
+            return false;
+        }
+        this.buffer.putInt(offset + PREVIOUS, head(id));
+        this.buffer.putLong(offset + TIME, timeMillis);
+        this.buffer.putInt(offset + LENGTH, length);
+        this.writeView.limit(offset + RECORD_HEADER + length).position(offset + RECORD_HEADER);
+        MetrigoStatistics.encode(stats, this.writeView);
+        // The id goes last, so a torn record looks like the end.
+        this.buffer.putInt(offset + ID, id + 1);
+
+        index(id, offset, timeMillis);
+        this.size = offset + RECORD_HEADER + length;
+        return true;
+    }
+
+    /**
+     * Seal the segment, cutting it down to its records and mapping it read-only.
+     * 
+     * @throws IOException if the file cannot be written.
+     */
+    synchronized void seal() throws IOException {
+        if (this.sealed) {
+            return;
+        }
+        this.buffer.force();
+        this.channel.truncate(this.size);
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+        this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.writeView = null;
+        this.sealed = true;
+    }
+
+    /**
+     * Force written records to disk.
+     */
+    synchronized void force() {
+        if (!this.sealed) {
+            this.buffer.force();
+        }
+    }
+
+    /**
+     * Scan the records of one metric in a time range, in time order.
+     * 
+     * @param id the metric id.
+     * @param fromMillis the start of the range (inclusive).
+     * @param toMillis the end of the range (exclusive).
+     * @param visitor receives each record.
+     */
+    void scan(int id, long fromMillis, long toMillis, MetrigoSeriesVisitor visitor) {
+        ByteBuffer source;
+        int start;
+        synchronized (this) {
+            if (id >= this.series.length || this.series[id] == null
+                || this.minTime >= toMillis || this.maxTime < fromMillis) {
+                return;
+            }
+            SeriesIndex index = this.series[id];
+            source = this.buffer;
+            // Find the first sparse entry at or after the end, and start just before it.
+            int entry = Arrays.binarySearch(index.sparseTimes, 0, index.sparseSize, toMillis);
+            if (entry < 0) {
+                entry = -entry - 1;
+            }
+            while (entry > 0 && index.sparseTimes[entry - 1] >= toMillis) {
+                // Step back over equal times.
+                entry -= 1;
+            }
+            start = (entry < index.sparseSize) ? source.getInt(index.sparseOffsets[entry] + PREVIOUS) : index.head;
+        }
+
+        // Walk back to the start of the range, then visit forwards.
+        int [] offsets = new int[16];
+        int count = 0;
+        for (int offset = start; offset >= 0; offset = source.getInt(offset + PREVIOUS)) {
+            long time = source.getLong(offset + TIME);
+            if (time < fromMillis) {
+                break;
+            }
+            if (time < toMillis) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = offset;
+            }
+        }
+        ByteBuffer view = source.duplicate();
+        for (int i = count - 1; i >= 0; i--) {
+            int offset = offsets[i];
+            int length = source.getInt(offset + LENGTH);
+            view.limit(offset + RECORD_HEADER + length).position(offset + RECORD_HEADER);
+            visitor.visit(source.getLong(offset + TIME), view, length);
+        }
+    }
+
+    /**
+     * Get the sequence number of the segment.
+     * 
+     * @return the sequence number.
+     */
+    long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Get the path of the segment.
+     * 
+     * @return the path.
+     */
+    Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Get the earliest record time.
+     * 
+     * @return the time, or {@link Long#MAX_VALUE} if there are no records.
+     */
+    synchronized long getMinTime() {
+        return this.minTime;
+    }
+
+    /**
+     * Get the latest record time.
+     * 
+     * @return the time, or {@link Long#MIN_VALUE} if there are no records.
+     */
+    synchronized long getMaxTime() {
+        return this.maxTime;
+    }
+
+    /**
+     * Get the number of bytes written.
+     * 
+     * @return the size.
+     */
+    synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Check if the segment is sealed.
+     * 
+     * @return true if sealed.
+     */
+    synchronized boolean isSealed() {
+        return this.sealed;
+    }
+
+    /**
+     * Close and delete the segment.
+     * 
+     * Scans that are already running can still finish, as the mapping stays
+     * valid until it is collected.
+     * 
+     * @throws IOException if the file cannot be deleted.
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(this.path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,60 @@
+package org.metrigo.storage;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Reads stored series of statistics.
+ */
+public interface MetrigoSeriesReader {
+    /**
+     * Get the names of all metrics that have been stored.
+     * 
+     * @return the metric names.
+     */
+    @Nonnull
+    List<String> getMetricNames();
+
+    /**
+     * Scan the records of one metric in a time range, in time order.
+     * 
+     * @param metricName the name of the metric.
+     * @param fromMillis the start of the range (inclusive).
+     * @param toMillis the end of the range (exclusive).
+     * @param visitor receives each record.
+     */
+    void scan(@Nonnull String metricName, long fromMillis, long toMillis, @Nonnull MetrigoSeriesVisitor visitor);
+
+    /**
+     * Get a reader for rolling records up into steps.
+     * 
+     * A reader that keeps rolled up copies of its records may return a reader
+     * over fewer, coarser records, as long as each record still falls within
+     * a single step. Steps start at the given time.
+     * 
+     * @param fromMillis the start of the first step.
+     * @param stepMillis the length of each step.
+     * @return the reader to scan, by default this one.
+     */
+    @Nonnull
+    default MetrigoSeriesReader forStep(long fromMillis, long stepMillis) {
+        return this;
+    }
+}
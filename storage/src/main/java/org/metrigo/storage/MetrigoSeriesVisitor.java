@@ -0,0 +1,39 @@
+package org.metrigo.storage;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the records of a series during a scan.
+ */
+@FunctionalInterface
+public interface MetrigoSeriesVisitor {
+    /**
+     * Visit one record.
+     * 
+     * The statistics are passed still encoded, so that they can be merged
+     * straight from storage (with {@link org.metrigo.MetrigoStatisticsMerger#addEncoded})
+     * or decoded (with {@link org.metrigo.MetrigoStatistics#decode(ByteBuffer, int)}).
+     * The buffer is only valid during the call.
+     * 
+     * @param timeMillis the time of the record.
+     * @param statistics a buffer positioned at the encoded statistics.
+     * @param length the length of the encoded statistics.
+     */
+    void visit(long timeMillis, ByteBuffer statistics, int length);
+}
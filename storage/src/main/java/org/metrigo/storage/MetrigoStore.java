@@ -0,0 +1,472 @@
+package org.metrigo.storage;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.MetrigoStatistics;
+
+/**
+ * A local store for metric statistics over time.
+ * 
+ * Records are appended to a series of memory mapped segment files in a
+ * directory, along with a dictionary that gives each metric name a small
+ * integer id. A new segment is started when the current one is full, or
+ * when it spans more than the segment duration, and whole segments are
+ * deleted once they fall out of the retention period. Times are
+ * milliseconds since the epoch, and must not go backwards for any one
+ * metric.
+ * 
+ * Appending is synchronized, and scans may run at the same time as appends
+ * from any number of threads. A scan sees every record that was appended
+ * before it started.
+ * 
+ * Records are written to the mapped files straight away, but are only
+ * forced to disk by {@link #flush()}, or when a segment is sealed. After a
+ * crash, the store is recovered up to the last complete record.
+ */
+public class MetrigoStore implements MetrigoSeriesReader, Closeable {
+    static final String DICTIONARY_FILE = "metrics.dict";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * A builder for a store.
+     */
+    public static class Builder {
+        private final Path directory;
+        private int maxSegmentBytes = 64 * 1024 * 1024;
+        private long segmentDurationMillis = 60L * 60 * 1000;
+        private long retentionMillis = 7L * 24 * 60 * 60 * 1000;
+
+        /**
+         * Constructor.
+         * 
+         * @param directory the directory to keep the store in, which is made if needed.
+         */
+        public Builder(@Nonnull Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Set the largest size of a segment file.
+         * 
+         * @param value the size in bytes, 64MB by default.
+         * @return this builder.
+         */
+        public Builder maxSegmentBytes(int value) {
+            if (value < 4096) {
+                throw new IllegalArgumentException("Segments must be at least 4096 bytes but got " + value);
+            }
+            this.maxSegmentBytes = value;
+            return this;
+        }
+
+        /**
+         * Set the longest time span of a segment.
+         * 
+         * @param value the span in milliseconds, one hour by default.
+         * @return this builder.
+         */
+        public Builder segmentDurationMillis(long value) {
+            if (value <= 0) {
+                throw new IllegalArgumentException("Segment duration must be positive but got " + value);
+            }
+            this.segmentDurationMillis = value;
+            return this;
+        }
+
+        /**
+         * Set how long records are kept.
+         * 
+         * A segment is deleted once its latest record is older than this,
+         * relative to the latest record in the store.
+         * 
+         * @param value the retention in milliseconds, seven days by default.
+         * @return this builder.
+         */
+        public Builder retentionMillis(long value) {
+            if (value <= 0) {
+                throw new IllegalArgumentException("Retention must be positive but got " + value);
+            }
+            this.retentionMillis = value;
+            return this;
+        }
+
+        /**
+         * Open the store, recovering anything already in the directory.
+         * 
+         * @return the store.
+         * @throws IOException if the store cannot be read or written.
+         */
+        public MetrigoStore open() throws IOException {
+            return new MetrigoStore(this);
+        }
+    }
+
+    private final Path directory;
+    private final int maxSegmentBytes;
+    private final long segmentDurationMillis;
+    private final long retentionMillis;
+    private final MetrigoMetricDictionary dictionary;
+    private volatile List<MetrigoSegment> segments;
+    private MetrigoSegment active;
+    private long [] lastTimes = new long[16];
+    private long latestTime = Long.MIN_VALUE;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     * 
+     * @param builder the settings.
+     * @throws IOException if the store cannot be read or written.
+     */
+    private MetrigoStore(Builder builder) throws IOException {
+        this.directory = builder.directory;
+        this.maxSegmentBytes = builder.maxSegmentBytes;
+        this.segmentDurationMillis = builder.segmentDurationMillis;
+        this.retentionMillis = builder.retentionMillis;
+        Files.createDirectories(this.directory);
+        this.dictionary = new MetrigoMetricDictionary(this.directory.resolve(DICTIONARY_FILE));
+
+        Arrays.fill(this.lastTimes, Long.MIN_VALUE);
+        List<MetrigoSegment> recovered = new ArrayList<>();
+        long nextSequence = 0;
+        try {
+            for (Path path : listSegments()) {
+                long sequence = parseSequence(path);
+                MetrigoSegment segment = MetrigoSegment.recover(path, sequence, this.dictionary.size());
+                nextSequence = sequence + 1;
+                if (segment.getMaxTime() == Long.MIN_VALUE) {
+                    // Nothing made it to disk.
+                    segment.delete();
+                    continue;
+                }
+                recovered.add(segment);
+                this.latestTime = Math.max(this.latestTime, segment.getMaxTime());
+                for (int id = 0; id < this.dictionary.size(); id++) {
+                    updateLastTime(id, segment.getLastTime(id));
+                }
+            }
+            this.active = MetrigoSegment.create(segmentPath(nextSequence), nextSequence, this.maxSegmentBytes);
+        } catch (IOException | RuntimeException e) {
+            for (MetrigoSegment segment : recovered) {
+                segment.close();
+            }
+            this.dictionary.close();
+            throw e;
+        }
+        recovered.add(this.active);
+        this.segments = Collections.unmodifiableList(recovered);
+    }
+
+    /**
+     * List the segment files in the directory, in sequence order.
+     * 
+     * @return the paths.
+     * @throws IOException if the directory cannot be read.
+     */
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> paths = Files.list(this.directory)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Get the sequence number from a segment file name.
+     * 
+     * @param path the segment file.
+     * @return the sequence number.
+     * @throws IOException if the name is not a sequence number.
+     */
+    private static long parseSequence(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected segment file " + path, e);
+        }
+    }
+
+    /**
+     * Get the file for a segment.
+     * 
+     * The sequence number is zero padded so that the names sort in order.
+     * 
+     * @param sequence the sequence number.
+     * @return the path.
+     */
+    private Path segmentPath(long sequence) {
+        return this.directory.resolve(String.format("%020d%s", sequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Note the time of a metric's latest record.
+     * 
+     * @param id the metric id.
+     * @param timeMillis the time.
+     */
+    private void updateLastTime(int id, long timeMillis) {
+        if (id >= this.lastTimes.length) {
+            int oldLength = this.lastTimes.length;
+            this.lastTimes = Arrays.copyOf(this.lastTimes, Math.max(id + 1, oldLength * 2));
+            Arrays.fill(this.lastTimes, oldLength, this.lastTimes.length, Long.MIN_VALUE);
+        }
+        this.lastTimes[id] = Math.max(this.lastTimes[id], timeMillis);
+    }
+
+    /**
+     * Append the statistics for one metric.
+     * 
+     * @param metricName the name of the metric.
+     * @param timeMillis the time of the statistics.
+     * @param stats the statistics.
+     * @throws IOException if the store cannot be written.
+     * @throws IllegalArgumentException if the time is before the metric's
+     *      latest record, or the record will not fit in a segment.
+     */
+    public synchronized void append(@Nonnull String metricName, long timeMillis, @Nonnull MetrigoStatistics stats) throws IOException {
+        int length = check(metricName, timeMillis, stats);
+        int id = this.dictionary.getId(metricName);
+        if (id < 0) {
+            id = this.dictionary.getOrAdd(metricName);
+        }
+
+        long activeMin = this.active.getMinTime();
+        if (activeMin != Long.MAX_VALUE && timeMillis - activeMin >= this.segmentDurationMillis) {
+            roll();
+        }
+        if (!this.active.append(id, timeMillis, stats, length)) {
+            roll();
+            this.active.append(id, timeMillis, stats, length);
+        }
+        updateLastTime(id, timeMillis);
+        this.latestTime = Math.max(this.latestTime, timeMillis);
+    }
+
+    /**
+     * Check that the statistics for one metric can be appended.
+     * 
+     * @param metricName the name of the metric.
+     * @param timeMillis the time of the statistics.
+     * @param stats the statistics.
+     * @return the encoded length of the statistics.
+     * @throws IllegalArgumentException if the time is before the metric's
+     *      latest record, or the record will not fit in a segment.
+     */
+    private int check(String metricName, long timeMillis, MetrigoStatistics stats) {
+        if (this.closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+        int length = MetrigoStatistics.encodedLength(stats);
+        if (MetrigoSegment.FILE_HEADER + MetrigoSegment.RECORD_HEADER + length > this.maxSegmentBytes) {
+            throw new IllegalArgumentException("Statistics for " + metricName + " are too large to store at " + length + " bytes");
+        }
+        int id = this.dictionary.getId(metricName);
+        if (id >= 0 && id < this.lastTimes.length && timeMillis < this.lastTimes[id]) {
+            throw new IllegalArgumentException("Time " + timeMillis + " for " + metricName
+                                               + " is before its latest record at " + this.lastTimes[id]);
+        }
+        return length;
+    }
+
+    /**
+     * Append every metric in a snapshot, at the snapshot's time.
+     * 
+     * Every metric is checked before any is written, so a snapshot that is
+     * rejected leaves the store as it was and can be fixed and retried.
+     * 
+     * @param snapshot the snapshot.
+     * @throws IOException if the store cannot be written, in which case some
+     *      of the metrics may have been written.
+     * @throws IllegalArgumentException if the time is before the latest
+     *      record of any of the metrics, or a record will not fit in a
+     *      segment, in which case nothing is written.
+     */
+    public synchronized void append(@Nonnull MetrigoSnapshot snapshot) throws IOException {
+        for (int i = 0; i < snapshot.size(); i++) {
+            check(snapshot.getName(i), snapshot.getTimeMillis(), snapshot.getStatistics(i));
+        }
+        for (int i = 0; i < snapshot.size(); i++) {
+            append(snapshot.getName(i), snapshot.getTimeMillis(), snapshot.getStatistics(i));
+        }
+    }
+
+    /**
+     * Seal the active segment and start a new one.
+     * 
+     * @throws IOException if the store cannot be written.
+     */
+    private void roll() throws IOException {
+        // The dictionary goes first, so a sealed segment never holds an id it does not have.
+        this.dictionary.force();
+        this.active.seal();
+        long sequence = this.active.getSequence() + 1;
+        MetrigoSegment next = MetrigoSegment.create(segmentPath(sequence), sequence, this.maxSegmentBytes);
+        List<MetrigoSegment> updated = new ArrayList<>(this.segments);
+        updated.add(next);
+        this.segments = Collections.unmodifiableList(updated);
+        this.active = next;
+        enforceRetention();
+    }
+
+    /**
+     * Delete sealed segments that are entirely older than the retention period.
+     * 
+     * This is done whenever a new segment is started, and may also be
+     * called directly.
+     * 
+     * @return the number of segments deleted.
+     * @throws IOException if a segment cannot be deleted.
+     */
+    public synchronized int enforceRetention() throws IOException {
+        if (this.latestTime == Long.MIN_VALUE) {
+            return 0;
+        }
+        long cutoff = this.latestTime - this.retentionMillis;
+        List<MetrigoSegment> kept = new ArrayList<>(this.segments.size());
+        List<MetrigoSegment> expired = new ArrayList<>();
+        for (MetrigoSegment segment : this.segments) {
+            if (segment != this.active && segment.getMaxTime() < cutoff) {
+                expired.add(segment);
+            } else {
+                kept.add(segment);
+            }
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        // Publish first, so new scans no longer see the expired segments.
+        this.segments = Collections.unmodifiableList(kept);
+        for (MetrigoSegment segment : expired) {
+            segment.delete();
+        }
+        return expired.size();
+    }
+
+    /**
+     * Get the time of a metric's latest record.
+     * 
+     * @param metricName the name of the metric.
+     * @return the time, or {@link Long#MIN_VALUE} if the metric has no records.
+     */
+    public synchronized long getLastTime(@Nonnull String metricName) {
+        int id = this.dictionary.getId(metricName);
+        return (id >= 0 && id < this.lastTimes.length) ? this.lastTimes[id] : Long.MIN_VALUE;
+    }
+
+    /**
+     * Get the time of a metric's earliest record that has not been dropped.
+     * 
+     * @param metricName the name of the metric.
+     * @return the time, or {@link Long#MAX_VALUE} if the metric has no records.
+     */
+    public long getFirstTime(@Nonnull String metricName) {
+        int id = this.dictionary.getId(metricName);
+        if (id >= 0) {
+            for (MetrigoSegment segment : this.segments) {
+                long time = segment.getFirstTime(id);
+                if (time != Long.MAX_VALUE) {
+                    return time;
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Get the time of the latest record of any metric.
+     * 
+     * @return the time, or {@link Long#MIN_VALUE} if the store is empty.
+     */
+    public synchronized long getLatestTime() {
+        return this.latestTime;
+    }
+
+    /**
+     * Force everything appended so far to disk.
+     * 
+     * @throws IOException if the store cannot be written.
+     */
+    public synchronized void flush() throws IOException {
+        this.dictionary.force();
+        this.active.force();
+    }
+
+    @Override
+    @Nonnull
+    public List<String> getMetricNames() {
+        return this.dictionary.getNames();
+    }
+
+    @Override
+    public void scan(@Nonnull String metricName, long fromMillis, long toMillis, @Nonnull MetrigoSeriesVisitor visitor) {
+        int id = this.dictionary.getId(metricName);
+        if (id < 0 || fromMillis >= toMillis) {
+            return;
+        }
+        for (MetrigoSegment segment : this.segments) {
+            segment.scan(id, fromMillis, toMillis, visitor);
+        }
+    }
+
+    /**
+     * Get the number of segments, including the one being written.
+     * 
+     * @return the number of segments.
+     */
+    public int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * Get the directory of the store.
+     * 
+     * @return the directory.
+     */
+    @Nonnull
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.dictionary.force();
+        this.active.seal();
+        for (MetrigoSegment segment : this.segments) {
+            segment.close();
+        }
+        this.dictionary.close();
+    }
+}
@@ -0,0 +1,558 @@
+package org.metrigo.storage;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.MetrigoStatistics;
+import org.metrigo.MetrigoStatisticsMerger;
+
+/**
+ * A store that keeps rolled up copies of its records at coarser resolutions.
+ * 
+ * Records are appended to a raw store, and {@link #compact(long)} rolls them
+ * up into tiers, by default of one minute, one hour and one day. Each tier
+ * is a {@link MetrigoStore} of its own, in a subdirectory, with one record
+ * per metric for each period that has samples, stamped with the start of the
+ * period. Periods are aligned to the epoch. The first tier is rolled up from
+ * the raw records and each later tier from the tier before it, so each
+ * resolution must be a multiple of the one before. Statistics merge exactly,
+ * so the tiers lose nothing at the level of the bins.
+ * 
+ * Compaction is incremental. Each tier has a watermark, saved in its
+ * directory, before which every metric has been rolled up. A raw period is
+ * rolled up once the latest raw record is past its end by the delay, and a
+ * period of a later tier once the tier before it has passed its end. Raw
+ * records that arrive later than that are not rolled up. A compaction pass
+ * reads at most about a given number of records, so a background
+ * {@link MetrigoCompactionRunner} can spread the work of a large backlog.
+ * 
+ * Queries use {@link #forStep(long, long)} to read the coarsest tier whose
+ * periods fit in their steps. Records that the tier has not caught up with
+ * yet are read from the finer tiers, and then the raw records.
+ */
+public class MetrigoTieredStore implements MetrigoSeriesReader, Closeable {
+    public static final long MINUTE_MILLIS = 60L * 1000;
+    public static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    public static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    static final String RAW_DIRECTORY = "raw";
+    static final String WATERMARK_FILE = "watermark";
+
+    /**
+     * The number of periods read in one scan while compacting.
+     */
+    static final int CHUNK_PERIODS = 64;
+
+    /**
+     * A builder for a tiered store.
+     */
+    public static class Builder {
+        private final Path directory;
+        private final MetrigoStore.Builder raw;
+        private final List<Long> resolutions = new ArrayList<>();
+        private final List<Long> retentions = new ArrayList<>();
+        private long delayMillis = MINUTE_MILLIS;
+
+        /**
+         * Constructor.
+         * 
+         * @param directory the directory to keep the store in, which is made if needed.
+         */
+        public Builder(@Nonnull Path directory) {
+            this.directory = directory;
+            this.raw = new MetrigoStore.Builder(directory.resolve(RAW_DIRECTORY));
+        }
+
+        /**
+         * Get the builder for the raw store, to change its settings.
+         * 
+         * @return the raw store builder.
+         */
+        public MetrigoStore.Builder raw() {
+            return this.raw;
+        }
+
+        /**
+         * Add a tier.
+         * 
+         * If no tiers are added, there are tiers of one minute, one hour and
+         * one day, kept for 30 days, one year and ten years.
+         * 
+         * @param resolutionMillis the length of each period, a multiple of the tier before.
+         * @param retentionMillis how long to keep the tier's records.
+         * @return this builder.
+         */
+        public Builder tier(long resolutionMillis, long retentionMillis) {
+            long previous = this.resolutions.isEmpty() ? 1 : this.resolutions.get(this.resolutions.size() - 1);
+            if (resolutionMillis <= previous || resolutionMillis % previous != 0) {
+                throw new IllegalArgumentException("Tier resolution " + resolutionMillis
+                                                   + " must be a larger multiple of " + previous);
+            }
+            this.resolutions.add(resolutionMillis);
+            this.retentions.add(retentionMillis);
+            return this;
+        }
+
+        /**
+         * Set how long to wait for raw records before rolling them up.
+         * 
+         * @param value the delay in milliseconds, one minute by default.
+         * @return this builder.
+         */
+        public Builder delayMillis(long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Delay must not be negative but got " + value);
+            }
+            this.delayMillis = value;
+            return this;
+        }
+
+        /**
+         * Open the store, recovering anything already in the directory.
+         * 
+         * @return the store.
+         * @throws IOException if the store cannot be read or written.
+         */
+        public MetrigoTieredStore open() throws IOException {
+            if (this.resolutions.isEmpty()) {
+                tier(MINUTE_MILLIS, 30 * DAY_MILLIS);
+                tier(HOUR_MILLIS, 366 * DAY_MILLIS);
+                tier(DAY_MILLIS, 3653 * DAY_MILLIS);
+            }
+            return new MetrigoTieredStore(this);
+        }
+    }
+
+    /**
+     * One tier of rolled up records.
+     */
+    private static final class Tier {
+        private final long resolutionMillis;
+        private final MetrigoStore store;
+        private final Path watermarkPath;
+        private volatile long watermark;
+
+        /**
+         * Constructor.
+         * 
+         * @param resolutionMillis the length of each period.
+         * @param store the rolled up records.
+         * @param watermarkPath the file that holds the watermark.
+         * @throws IOException if the watermark cannot be read.
+         */
+        Tier(long resolutionMillis, MetrigoStore store, Path watermarkPath) throws IOException {
+            this.resolutionMillis = resolutionMillis;
+            this.store = store;
+            this.watermarkPath = watermarkPath;
+            this.watermark = Files.exists(watermarkPath)
+                ? ByteBuffer.wrap(Files.readAllBytes(watermarkPath)).getLong()
+                : Long.MIN_VALUE;
+        }
+
+        /**
+         * Move the watermark on, saving it.
+         * 
+         * @param value the new watermark.
+         * @throws IOException if the watermark cannot be written.
+         */
+        void setWatermark(long value) throws IOException {
+            // Make sure the records are on disk before the watermark says they are there.
+            this.store.flush();
+            Path temporary = this.watermarkPath.resolveSibling(WATERMARK_FILE + ".tmp");
+            Files.write(temporary, ByteBuffer.allocate(Long.BYTES).putLong(value).array());
+            Files.move(temporary, this.watermarkPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.watermark = value;
+        }
+
+        /**
+         * Get the time before which a metric has been rolled up.
+         * 
+         * @param metricName the name of the metric.
+         * @return the time, which is at least the watermark.
+         */
+        long getRolledUpBefore(String metricName) {
+            long last = this.store.getLastTime(metricName);
+            return (last == Long.MIN_VALUE) ? this.watermark : Math.max(this.watermark, last + this.resolutionMillis);
+        }
+    }
+
+    /**
+     * Merges records into periods and appends them to a tier.
+     */
+    private static final class RollUp implements MetrigoSeriesVisitor {
+        private final Tier tier;
+        private final String metricName;
+        private MetrigoStatisticsMerger merger;
+        private long period;
+        private long records;
+        private IOException failure;
+
+        /**
+         * Constructor.
+         * 
+         * @param tier the tier to append to.
+         * @param metricName the metric being rolled up.
+         */
+        RollUp(Tier tier, String metricName) {
+            this.tier = tier;
+            this.metricName = metricName;
+        }
+
+        @Override
+        public void visit(long timeMillis, ByteBuffer statistics, int length) {
+            long start = Math.floorDiv(timeMillis, this.tier.resolutionMillis) * this.tier.resolutionMillis;
+            if (this.merger == null || start != this.period) {
+                finish();
+                this.merger = new MetrigoStatisticsMerger();
+                this.period = start;
+            }
+            this.merger.addEncoded(statistics, length);
+            this.records += 1;
+        }
+
+        /**
+         * Append the current period, if there is one.
+         */
+        void finish() {
+            if (this.merger != null && this.failure == null && !this.merger.isEmpty()) {
+                try {
+                    this.tier.store.append(this.metricName, this.period, this.merger.toStatistics());
+                } catch (IOException e) {
+                    this.failure = e;
+                }
+            }
+            this.merger = null;
+        }
+    }
+
+    /**
+     * Reads the coarsest usable tier, then finer ones for what it does not have yet.
+     */
+    private final class StitchedReader implements MetrigoSeriesReader {
+        private final int coarsest;
+
+        /**
+         * Constructor.
+         * 
+         * @param coarsest the index of the coarsest tier to read.
+         */
+        StitchedReader(int coarsest) {
+            this.coarsest = coarsest;
+        }
+
+        @Override
+        @Nonnull
+        public List<String> getMetricNames() {
+            return MetrigoTieredStore.this.getMetricNames();
+        }
+
+        @Override
+        public void scan(@Nonnull String metricName, long fromMillis, long toMillis, @Nonnull MetrigoSeriesVisitor visitor) {
+            long start = fromMillis;
+            for (int i = this.coarsest; i >= 0 && start < toMillis; i--) {
+                Tier tier = MetrigoTieredStore.this.tiers.get(i);
+                long end = Math.min(toMillis, tier.getRolledUpBefore(metricName));
+                if (end > start) {
+                    tier.store.scan(metricName, start, end, visitor);
+                    start = end;
+                }
+            }
+            if (start < toMillis) {
+                MetrigoTieredStore.this.raw.scan(metricName, start, toMillis, visitor);
+            }
+        }
+    }
+
+    private final Path directory;
+    private final long delayMillis;
+    private final MetrigoStore raw;
+    private final List<Tier> tiers = new ArrayList<>();
+    private final Object compactionLock = new Object();
+
+    /**
+     * Constructor.
+     * 
+     * @param builder the settings.
+     * @throws IOException if the store cannot be read or written.
+     */
+    private MetrigoTieredStore(Builder builder) throws IOException {
+        this.directory = builder.directory;
+        this.delayMillis = builder.delayMillis;
+        this.raw = builder.raw.open();
+        try {
+            for (int i = 0; i < builder.resolutions.size(); i++) {
+                long resolution = builder.resolutions.get(i);
+                Path tierDirectory = this.directory.resolve(tierDirectoryName(resolution));
+                MetrigoStore store = new MetrigoStore.Builder(tierDirectory)
+                    .segmentDurationMillis(resolution * 1024)
+                    .retentionMillis(builder.retentions.get(i))
+                    .open();
+                this.tiers.add(new Tier(resolution, store, tierDirectory.resolve(WATERMARK_FILE)));
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the name of a tier's directory.
+     * 
+     * @param resolutionMillis the resolution of the tier.
+     * @return the directory name.
+     */
+    static String tierDirectoryName(long resolutionMillis) {
+        return "tier-" + resolutionMillis;
+    }
+
+    /**
+     * Append the statistics for one metric.
+     * 
+     * @param metricName the name of the metric.
+     * @param timeMillis the time of the statistics.
+     * @param stats the statistics.
+     * @throws IOException if the store cannot be written.
+     * @see MetrigoStore#append(String, long, MetrigoStatistics)
+     */
+    public void append(@Nonnull String metricName, long timeMillis, @Nonnull MetrigoStatistics stats) throws IOException {
+        this.raw.append(metricName, timeMillis, stats);
+    }
+
+    /**
+     * Append every metric in a snapshot, at the snapshot's time.
+     * 
+     * @param snapshot the snapshot.
+     * @throws IOException if the store cannot be written.
+     * @see MetrigoStore#append(MetrigoSnapshot)
+     */
+    public void append(@Nonnull MetrigoSnapshot snapshot) throws IOException {
+        this.raw.append(snapshot);
+    }
+
+    /**
+     * Roll up records that are ready into the tiers.
+     * 
+     * Work stops once the budget has been used up, at the end of a scan. A
+     * scan covers {@value #CHUNK_PERIODS} periods of one metric, and counts as
+     * at least one record even if it finds none.
+     * 
+     * @param maxRecords the number of records to read before stopping.
+     * @return the number of records read, which is less than the budget when
+     *      everything that is ready has been rolled up.
+     * @throws IOException if the store cannot be read or written.
+     */
+    public long compact(long maxRecords) throws IOException {
+        synchronized (this.compactionLock) {
+            long used = 0;
+            for (int i = 0; i < this.tiers.size() && used < maxRecords; i++) {
+                used += compactTier(i, maxRecords - used);
+            }
+            return used;
+        }
+    }
+
+    /**
+     * Roll up one tier.
+     * 
+     * @param index the index of the tier.
+     * @param budget the number of records to read before stopping.
+     * @return the number of records read.
+     * @throws IOException if the store cannot be read or written.
+     */
+    private long compactTier(int index, long budget) throws IOException {
+        Tier tier = this.tiers.get(index);
+        long resolution = tier.resolutionMillis;
+        MetrigoStore source;
+        long readyBefore;
+        if (index == 0) {
+            source = this.raw;
+            long latest = this.raw.getLatestTime();
+            if (latest == Long.MIN_VALUE) {
+                return 0;
+            }
+            readyBefore = Math.floorDiv(latest - this.delayMillis, resolution) * resolution;
+        } else {
+            Tier previous = this.tiers.get(index - 1);
+            source = previous.store;
+            if (previous.watermark == Long.MIN_VALUE) {
+                return 0;
+            }
+            readyBefore = Math.floorDiv(previous.watermark, resolution) * resolution;
+        }
+        if (readyBefore <= tier.watermark) {
+            return 0;
+        }
+
+        long used = 0;
+        for (String metricName : source.getMetricNames()) {
+            long first = source.getFirstTime(metricName);
+            if (first == Long.MAX_VALUE) {
+                continue;
+            }
+            long from = Math.max(tier.getRolledUpBefore(metricName), Math.floorDiv(first, resolution) * resolution);
+            while (from < readyBefore) {
+                if (used >= budget) {
+                    return used;
+                }
+                long to = (readyBefore - from <= resolution * CHUNK_PERIODS) ? readyBefore : from + resolution * CHUNK_PERIODS;
+                RollUp rollUp = new RollUp(tier, metricName);
+                source.scan(metricName, from, to, rollUp);
+                rollUp.finish();
+                if (rollUp.failure != null) {
+                    throw rollUp.failure;
+                }
+                used += Math.max(1, rollUp.records);
+                from = to;
+            }
+        }
+        tier.setWatermark(readyBefore);
+        return used;
+    }
+
+    @Override
+    @Nonnull
+    public List<String> getMetricNames() {
+        return this.raw.getMetricNames();
+    }
+
+    /**
+     * Scan the raw records of one metric in a time range, in time order.
+     * 
+     * @param metricName the name of the metric.
+     * @param fromMillis the start of the range (inclusive).
+     * @param toMillis the end of the range (exclusive).
+     * @param visitor receives each record.
+     */
+    @Override
+    public void scan(@Nonnull String metricName, long fromMillis, long toMillis, @Nonnull MetrigoSeriesVisitor visitor) {
+        this.raw.scan(metricName, fromMillis, toMillis, visitor);
+    }
+
+    /**
+     * Get a reader for rolling records up into steps.
+     * 
+     * This picks the coarsest tier whose periods line up with the steps: the
+     * step and its start must both be multiples of the tier's resolution.
+     * 
+     * @param fromMillis the start of the first step.
+     * @param stepMillis the length of each step.
+     * @return the reader.
+     */
+    @Override
+    @Nonnull
+    public MetrigoSeriesReader forStep(long fromMillis, long stepMillis) {
+        for (int i = this.tiers.size() - 1; i >= 0; i--) {
+            long resolution = this.tiers.get(i).resolutionMillis;
+            if (stepMillis % resolution == 0 && Math.floorMod(fromMillis, resolution) == 0) {
+                return new StitchedReader(i);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Get the raw store.
+     * 
+     * @return the raw store.
+     */
+    @Nonnull
+    public MetrigoStore getRawStore() {
+        return this.raw;
+    }
+
+    /**
+     * Get the number of tiers.
+     * 
+     * @return the number of tiers.
+     */
+    public int getTierCount() {
+        return this.tiers.size();
+    }
+
+    /**
+     * Get the store for a tier.
+     * 
+     * @param index the index of the tier, from the finest.
+     * @return the store.
+     */
+    @Nonnull
+    public MetrigoStore getTierStore(int index) {
+        return this.tiers.get(index).store;
+    }
+
+    /**
+     * Get the resolution of a tier.
+     * 
+     * @param index the index of the tier, from the finest.
+     * @return the length of each period in milliseconds.
+     */
+    public long getTierResolution(int index) {
+        return this.tiers.get(index).resolutionMillis;
+    }
+
+    /**
+     * Get the watermark of a tier.
+     * 
+     * @param index the index of the tier, from the finest.
+     * @return the time before which every metric has been rolled up,
+     *      or {@link Long#MIN_VALUE} if nothing has been.
+     */
+    public long getTierWatermark(int index) {
+        return this.tiers.get(index).watermark;
+    }
+
+    /**
+     * Force everything appended so far to disk.
+     * 
+     * @throws IOException if the store cannot be written.
+     */
+    public void flush() throws IOException {
+        this.raw.flush();
+        for (Tier tier : this.tiers) {
+            tier.store.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this.compactionLock) {
+            IOException failure = null;
+            for (Tier tier : this.tiers) {
+                try {
+                    tier.store.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            this.raw.close();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.metrigo.storage;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoStatistics;
+
+public class MetrigoCompactionRunnerTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testBadArguments() throws Exception {
+        try (MetrigoTieredStore store = new MetrigoTieredStore.Builder(this.directory).open()) {
+            assertThrows(IllegalArgumentException.class, () -> new MetrigoCompactionRunner(store, 0, 10));
+            assertThrows(IllegalArgumentException.class, () -> new MetrigoCompactionRunner(store, 10, 0));
+        }
+    }
+
+    @Test
+    public void testRunAndShutdown() throws Exception {
+        try (MetrigoTieredStore store = new MetrigoTieredStore.Builder(this.directory)
+                 .tier(1000, 1000000)
+                 .delayMillis(0)
+                 .open()) {
+            long [] counts = new long[MetrigoBinLayout.DEFAULT.getBinCount()];
+            long [] totals = new long[counts.length];
+            counts[0] = 1;
+            totals[0] = 1;
+            for (long time = 0; time < 10000; time += 10) {
+                store.append("metric", time, new MetrigoStatistics(counts, totals));
+            }
+
+            // A small budget, so the backlog takes a few passes.
+            MetrigoCompactionRunner underTest = new MetrigoCompactionRunner(store, 1, 50);
+            Thread thread = new Thread(underTest);
+            thread.start();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (store.getTierWatermark(0) != 9000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            underTest.shutdown();
+            thread.join(10000);
+
+            assertFalse(thread.isAlive());
+            assertEquals(9000, store.getTierWatermark(0));
+            assertNull(underTest.getLastFailure());
+        }
+    }
+
+    @Test
+    public void testShutdownDuringPass() throws Exception {
+        try (MetrigoTieredStore store = new MetrigoTieredStore.Builder(this.directory)
+                 .tier(1000, 1000000)
+                 .delayMillis(0)
+                 .open()) {
+            long [] counts = new long[MetrigoBinLayout.DEFAULT.getBinCount()];
+            long [] totals = new long[counts.length];
+            counts[0] = 1;
+            totals[0] = 1;
+            MetrigoStatistics statistics = new MetrigoStatistics(counts, totals);
+            for (long time = 0; time < 200000; time += 10) {
+                store.append("metric", time, statistics);
+            }
+
+            // A budget big enough that the shutdown lands while a pass writes.
+            MetrigoCompactionRunner underTest = new MetrigoCompactionRunner(store, 1000, 20000);
+            Thread thread = new Thread(underTest);
+            thread.start();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!isCompacting(thread) && System.currentTimeMillis() < deadline) {
+                Thread.onSpinWait();
+            }
+            underTest.shutdown();
+            thread.join(10000);
+
+            assertFalse(thread.isAlive());
+            assertNull(underTest.getLastFailure());
+            assertTrue(underTest.getPassCount() >= 1);
+
+            // The store's channels are still open.
+            store.append("metric", 200000, statistics);
+            store.compact(Long.MAX_VALUE);
+            assertEquals(200000, store.getTierWatermark(0));
+        }
+    }
+
+    /**
+     * Check whether a thread is in the middle of a compaction pass.
+     * 
+     * @param thread the thread.
+     * @return true if the thread is compacting.
+     */
+    private static boolean isCompacting(Thread thread) {
+        for (StackTraceElement element : thread.getStackTrace()) {
+            if (element.getMethodName().equals("compactTier")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
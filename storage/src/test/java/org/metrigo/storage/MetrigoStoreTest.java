@@ -0,0 +1,297 @@
+package org.metrigo.storage;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoSnapshot;
+import org.metrigo.MetrigoStatistics;
+
+public class MetrigoStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testAppendAndScan() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            store.append("first", 1000, stats(1, 10));
+            store.append("second", 1000, stats(2, 20));
+            store.append("first", 2000, stats(3, 30));
+
+            assertThat(store.getMetricNames(), contains("first", "second"));
+            List<Long> times = new ArrayList<>();
+            List<MetrigoStatistics> values = new ArrayList<>();
+            store.scan("first", 0, Long.MAX_VALUE, (time, buffer, length) -> {
+                times.add(time);
+                values.add(MetrigoStatistics.decode(buffer, length));
+            });
+            assertThat(times, contains(1000L, 2000L));
+            assertThat(values, contains(stats(1, 10), stats(3, 30)));
+
+            assertEquals(1000, store.getFirstTime("first"));
+            assertEquals(2000, store.getLastTime("first"));
+            assertEquals(1000, store.getLastTime("second"));
+            assertEquals(2000, store.getLatestTime());
+            assertEquals(Long.MAX_VALUE, store.getFirstTime("missing"));
+            assertEquals(Long.MIN_VALUE, store.getLastTime("missing"));
+        }
+    }
+
+    @Test
+    public void testScanRange() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            for (long time = 0; time < 10; time++) {
+                store.append("metric", time * 1000, stats(time + 1, time));
+            }
+            assertThat(scanTimes(store, "metric", 3000, 6000), contains(3000L, 4000L, 5000L));
+            assertThat(scanTimes(store, "metric", 2500, 3001), contains(3000L));
+            assertTrue(scanTimes(store, "metric", 6000, 6000).isEmpty());
+            assertTrue(scanTimes(store, "metric", 20000, 30000).isEmpty());
+            assertTrue(scanTimes(store, "missing", 0, Long.MAX_VALUE).isEmpty());
+        }
+    }
+
+    @Test
+    public void testAppendSnapshot() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            MetrigoSnapshot snapshot = new MetrigoSnapshot.Builder(5000, 2)
+                .add("first", stats(1, 10))
+                .add("second", stats(2, 20))
+                .build();
+            store.append(snapshot);
+            assertThat(scanTimes(store, "first", 0, Long.MAX_VALUE), contains(5000L));
+            assertThat(scanTimes(store, "second", 0, Long.MAX_VALUE), contains(5000L));
+        }
+    }
+
+    @Test
+    public void testAppendSnapshotRejectedWhole() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            store.append("second", 6000, stats(1, 1));
+            MetrigoSnapshot snapshot = new MetrigoSnapshot.Builder(5000, 2)
+                .add("first", stats(1, 10))
+                .add("second", stats(2, 20))
+                .build();
+            assertThrows(IllegalArgumentException.class, () -> store.append(snapshot));
+            // Nothing was written, so the first metric can still take the time.
+            assertTrue(scanTimes(store, "first", 0, Long.MAX_VALUE).isEmpty());
+            store.append("first", 5000, stats(1, 10));
+            assertThat(scanTimes(store, "first", 0, Long.MAX_VALUE), contains(5000L));
+        }
+    }
+
+    @Test
+    public void testHighResolutionLayout() throws IOException {
+        MetrigoBinLayout layout = MetrigoBinLayout.HIGH_RESOLUTION;
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        counts[100] = 3;
+        totals[100] = 12345;
+        MetrigoStatistics value = new MetrigoStatistics(layout, counts, totals);
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            store.append("metric", 1000, value);
+            List<MetrigoStatistics> values = new ArrayList<>();
+            store.scan("metric", 0, 2000, (time, buffer, length) -> values.add(MetrigoStatistics.decode(buffer, length)));
+            assertThat(values, contains(value));
+        }
+    }
+
+    @Test
+    public void testOutOfOrder() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            store.append("metric", 2000, stats(1, 1));
+            assertThrows(IllegalArgumentException.class, () -> store.append("metric", 1000, stats(1, 1)));
+            // Other metrics, and equal times, are fine.
+            store.append("other", 1000, stats(1, 1));
+            store.append("metric", 2000, stats(1, 1));
+            assertThat(scanTimes(store, "metric", 0, Long.MAX_VALUE), contains(2000L, 2000L));
+        }
+    }
+
+    @Test
+    public void testRollBySize() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).maxSegmentBytes(4096).open()) {
+            for (long time = 0; time < 1000; time++) {
+                store.append("metric", time, stats(time + 1, time * 7));
+            }
+            assertTrue(store.getSegmentCount() > 1);
+            assertEquals(1000, scanTimes(store, "metric", 0, Long.MAX_VALUE).size());
+            assertThat(scanTimes(store, "metric", 499, 502), contains(499L, 500L, 501L));
+        }
+    }
+
+    @Test
+    public void testRollByTime() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).segmentDurationMillis(1000).open()) {
+            for (long time = 0; time < 5000; time += 100) {
+                store.append("metric", time, stats(1, 1));
+            }
+            assertEquals(5, store.getSegmentCount());
+            assertEquals(50, scanTimes(store, "metric", 0, Long.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    public void testTooLarge() throws IOException {
+        MetrigoBinLayout layout = MetrigoBinLayout.logLinear(3, 30);
+        long [] counts = new long[layout.getBinCount()];
+        long [] totals = new long[layout.getBinCount()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = Long.MAX_VALUE;
+            totals[i] = Long.MAX_VALUE;
+        }
+        MetrigoStatistics value = new MetrigoStatistics(layout, counts, totals);
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).maxSegmentBytes(4096).open()) {
+            assertThrows(IllegalArgumentException.class, () -> store.append("metric", 0, value));
+        }
+    }
+
+    @Test
+    public void testRetention() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory)
+                 .segmentDurationMillis(1000)
+                 .retentionMillis(3000)
+                 .open()) {
+            for (long time = 0; time < 10000; time += 100) {
+                store.append("metric", time, stats(1, 1));
+            }
+            // The last roll, at 9000, dropped everything before 5000.
+            assertEquals(5, store.getSegmentCount());
+            assertEquals(1, store.enforceRetention());
+            // Now the latest record is at 9900, so everything before 6000 has gone.
+            assertEquals(4, store.getSegmentCount());
+            assertEquals(6000L, (long) scanTimes(store, "metric", 0, Long.MAX_VALUE).get(0));
+            assertEquals(4, countSegmentFiles());
+        }
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).maxSegmentBytes(4096).open()) {
+            for (long time = 0; time < 500; time++) {
+                store.append((time % 2 == 0) ? "even" : "odd", time, stats(time + 1, time));
+            }
+        }
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).maxSegmentBytes(4096).open()) {
+            assertThat(store.getMetricNames(), contains("even", "odd"));
+            assertEquals(250, scanTimes(store, "even", 0, Long.MAX_VALUE).size());
+            assertThrows(IllegalArgumentException.class, () -> store.append("odd", 10, stats(1, 1)));
+            store.append("odd", 1000, stats(1, 1));
+            assertEquals(251, scanTimes(store, "odd", 0, Long.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    public void testRecoverTornRecord() throws IOException {
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            for (long time = 0; time < 10; time++) {
+                store.append("metric", time, stats(1, time));
+            }
+        }
+        Path segment;
+        try (Stream<Path> paths = Files.list(this.directory)) {
+            segment = paths.filter(path -> path.toString().endsWith(MetrigoStore.SEGMENT_SUFFIX)).findFirst().get();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // Lose the end of the last record.
+            channel.truncate(channel.size() - 2);
+        }
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory).open()) {
+            assertEquals(9, scanTimes(store, "metric", 0, Long.MAX_VALUE).size());
+            store.append("metric", 9, stats(1, 9));
+            assertEquals(10, scanTimes(store, "metric", 0, Long.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    public void testMatchesBruteForce() throws IOException {
+        Random random = new Random(42);
+        String [] names = { "a", "b", "c", "d", "e" };
+        List<List<Long>> expected = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            expected.add(new ArrayList<>());
+        }
+        try (MetrigoStore store = new MetrigoStore.Builder(this.directory)
+                 .maxSegmentBytes(64 * 1024)
+                 .segmentDurationMillis(5000)
+                 .open()) {
+            long time = 0;
+            for (int i = 0; i < 10000; i++) {
+                time += random.nextInt(3);
+                int metric = random.nextInt(names.length);
+                store.append(names[metric], time, stats(1, time));
+                expected.get(metric).add(time);
+            }
+            for (int i = 0; i < 200; i++) {
+                long from = random.nextInt((int) time + 10);
+                long to = from + random.nextInt(2000);
+                int metric = random.nextInt(names.length);
+                List<Long> wanted = new ArrayList<>();
+                for (long value : expected.get(metric)) {
+                    if (value >= from && value < to) {
+                        wanted.add(value);
+                    }
+                }
+                List<Long> got = new ArrayList<>();
+                store.scan(names[metric], from, to, (t, buffer, length) -> {
+                    MetrigoStatistics value = MetrigoStatistics.decode(buffer, length);
+                    assertEquals(t, value.getTotal(0));
+                    got.add(t);
+                });
+                assertEquals(wanted, got);
+            }
+        }
+    }
+
+    private long countSegmentFiles() throws IOException {
+        try (Stream<Path> paths = Files.list(this.directory)) {
+            return paths.filter(path -> path.toString().endsWith(MetrigoStore.SEGMENT_SUFFIX)).count();
+        }
+    }
+
+    private static List<Long> scanTimes(MetrigoStore store, String name, long from, long to) {
+        List<Long> result = new ArrayList<>();
+        store.scan(name, from, to, (time, buffer, length) -> result.add(time));
+        return result;
+    }
+
+    private static MetrigoStatistics stats(long count, long total) {
+        long [] counts = new long[MetrigoBinLayout.DEFAULT.getBinCount()];
+        long [] totals = new long[counts.length];
+        counts[0] = count;
+        totals[0] = total;
+        return new MetrigoStatistics(counts, totals);
+    }
+}
@@ -0,0 +1,186 @@
+package org.metrigo.storage;
+/*
+ * This file is part of Metrigo.
+ * 
+ * Metrigo is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Metrigo is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with Metrigo. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.metrigo.MetrigoBinLayout;
+import org.metrigo.MetrigoStatistics;
+
+public class MetrigoTieredStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testDefaultTiers() throws IOException {
+        try (MetrigoTieredStore store = new MetrigoTieredStore.Builder(this.directory).open()) {
+            assertEquals(3, store.getTierCount());
+            assertEquals(MetrigoTieredStore.MINUTE_MILLIS, store.getTierResolution(0));
+            assertEquals(MetrigoTieredStore.HOUR_MILLIS, store.getTierResolution(1));
+            assertEquals(MetrigoTieredStore.DAY_MILLIS, store.getTierResolution(2));
+            assertEquals(0, store.compact(100));
+        }
+    }
+
+    @Test
+    public void testBadTiers() {
+        MetrigoTieredStore.Builder builder = new MetrigoTieredStore.Builder(this.directory).tier(1000, 1000000);
+        assertThrows(IllegalArgumentException.class, () -> builder.tier(1000, 1000000));
+        assertThrows(IllegalArgumentException.class, () -> builder.tier(1500, 1000000));
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        try (MetrigoTieredStore store = open()) {
+            fill(store);
+            long used = store.compact(Long.MAX_VALUE);
+            // The second tier reads what the first wrote before 20000.
+            assertEquals(2 * 290 + 2 * 20, used);
+            assertEquals(29000, store.getTierWatermark(0));
+            assertEquals(20000, store.getTierWatermark(1));
+
+            List<Long> times = new ArrayList<>();
+            List<MetrigoStatistics> values = new ArrayList<>();
+            store.getTierStore(0).scan("a", 0, Long.MAX_VALUE, (time, buffer, length) -> {
+                times.add(time);
+                values.add(MetrigoStatistics.decode(buffer, length));
+            });
+            assertEquals(29, times.size());
+            assertEquals(5000L, (long) times.get(5));
+            // 5000 + 5100 + ... + 5900.
+            assertEquals(stats(10, 54500), values.get(5));
+
+            times.clear();
+            values.clear();
+            store.getTierStore(1).scan("b", 0, Long.MAX_VALUE, (time, buffer, length) -> {
+                times.add(time);
+                values.add(MetrigoStatistics.decode(buffer, length));
+            });
+            assertEquals(List.of(0L, 10000L), times);
+            assertEquals(stats(100, 1495000), values.get(1));
+
+            // Nothing more to do until more records arrive.
+            assertEquals(0, store.compact(Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void testBudget() throws IOException {
+        try (MetrigoTieredStore store = open()) {
+            fill(store);
+            // One scan covers all of the ready records of the first metric.
+            assertEquals(290, store.compact(20));
+            assertEquals(Long.MIN_VALUE, store.getTierWatermark(0));
+            int passes = 1;
+            long used;
+            do {
+                used = store.compact(20);
+                passes += 1;
+            } while (used >= 20);
+            assertTrue(passes >= 3);
+            assertEquals(20000, store.getTierWatermark(1));
+            assertEquals(29, count(store.getTierStore(0), "a"));
+            assertEquals(2, count(store.getTierStore(1), "a"));
+        }
+    }
+
+    @Test
+    public void testForStep() throws IOException {
+        try (MetrigoTieredStore store = open()) {
+            fill(store);
+            store.compact(Long.MAX_VALUE);
+
+            assertSame(store, store.forStep(0, 500));
+            assertSame(store, store.forStep(500, 1000));
+
+            // Two ten second records, nine one second records, then the raw records.
+            MetrigoSeriesReader reader = store.forStep(0, 10000);
+            List<Long> times = new ArrayList<>();
+            long [] count = new long[1];
+            reader.scan("a", 0, 30000, (time, buffer, length) -> {
+                times.add(time);
+                count[0] += MetrigoStatistics.decode(buffer, length).getCount(0);
+            });
+            assertEquals(2 + 9 + 10, times.size());
+            assertEquals(10000L, (long) times.get(1));
+            assertEquals(20000L, (long) times.get(2));
+            assertEquals(29000L, (long) times.get(11));
+            assertEquals(300, count[0]);
+
+            // A minute step can only use the one second tier.
+            times.clear();
+            store.forStep(1000, 1000).scan("a", 1000, 30000, (time, buffer, length) -> times.add(time));
+            assertEquals(28 + 10, times.size());
+        }
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        try (MetrigoTieredStore store = open()) {
+            fill(store);
+            store.compact(Long.MAX_VALUE);
+        }
+        try (MetrigoTieredStore store = open()) {
+            assertEquals(29000, store.getTierWatermark(0));
+            assertEquals(0, store.compact(Long.MAX_VALUE));
+            store.append("a", 31000, stats(1, 1));
+            // The last raw second of each metric, then the new ten seconds of the first tier.
+            assertEquals(10 + 10 + 2 * 10, store.compact(Long.MAX_VALUE));
+            assertEquals(31000, store.getTierWatermark(0));
+            assertEquals(30, count(store.getTierStore(0), "a"));
+        }
+    }
+
+    private MetrigoTieredStore open() throws IOException {
+        return new MetrigoTieredStore.Builder(this.directory)
+            .tier(1000, 1000000)
+            .tier(10000, 1000000)
+            .delayMillis(0)
+            .open();
+    }
+
+    private static void fill(MetrigoTieredStore store) throws IOException {
+        for (long time = 0; time < 30000; time += 100) {
+            store.append("a", time, stats(1, time));
+            store.append("b", time, stats(1, time));
+        }
+    }
+
+    private static int count(MetrigoStore store, String name) {
+        int [] count = new int[1];
+        store.scan(name, Long.MIN_VALUE, Long.MAX_VALUE, (time, buffer, length) -> count[0]++);
+        return count[0];
+    }
+
+    private static MetrigoStatistics stats(long count, long total) {
+        long [] counts = new long[MetrigoBinLayout.DEFAULT.getBinCount()];
+        long [] totals = new long[counts.length];
+        counts[0] = count;
+        totals[0] = total;
+        return new MetrigoStatistics(counts, totals);
+    }
+}